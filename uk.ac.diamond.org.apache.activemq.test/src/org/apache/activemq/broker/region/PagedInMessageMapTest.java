@@ -0,0 +1,217 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.broker.region;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.activemq.command.ActiveMQQueue;
+import org.apache.activemq.command.ActiveMQTextMessage;
+import org.apache.activemq.command.ConnectionId;
+import org.apache.activemq.command.MessageId;
+import org.apache.activemq.command.ProducerId;
+import org.apache.activemq.command.SessionId;
+import org.junit.Test;
+
+public class PagedInMessageMapTest {
+
+    private final ProducerId producerId = new ProducerId(new SessionId(new ConnectionId("ID:PagedInMessageMapTest-1"), 1), 1);
+    private long producerSequence;
+
+    @Test
+    public void testValuesAreInTheOrderPagedIn() {
+        PagedInMessageMap map = new PagedInMessageMap();
+        List<QueueMessageReference> expected = new ArrayList<QueueMessageReference>();
+        // sequence ids out of order, as recovered and redelivered ones are
+        long[] sequences = {50, 3, 1000, 4, 64, 128, 2};
+        for (long sequence : sequences) {
+            QueueMessageReference ref = createReference(sequence);
+            map.put(ref);
+            expected.add(ref);
+        }
+        assertEquals(expected, map.values());
+
+        // one put back after being removed goes to the end
+        QueueMessageReference moved = expected.remove(1);
+        assertSame(moved, map.remove(moved.getMessageId()));
+        QueueMessageReference removed = expected.remove(3);
+        assertSame(removed, map.remove(ack(removed)));
+        map.put(moved);
+        expected.add(moved);
+        assertEquals(expected, map.values());
+        assertEquals(expected.size(), map.size());
+    }
+
+    @Test
+    public void testRemovedSlotsAreReusedAndRehashed() {
+        PagedInMessageMap map = new PagedInMessageMap();
+        List<QueueMessageReference> live = new ArrayList<QueueMessageReference>();
+        // a window of messages sliding on, leaving removed slots behind it
+        for (long sequence = 1; sequence <= 100000; sequence++) {
+            QueueMessageReference ref = createReference(sequence);
+            map.put(ref);
+            live.add(ref);
+            if (live.size() > 40) {
+                QueueMessageReference removed = live.remove(0);
+                assertSame(removed, map.remove(ack(removed)));
+            }
+        }
+        assertEquals(live, map.values());
+        for (QueueMessageReference ref : live) {
+            assertSame(ref, map.get(ack(ref)));
+        }
+
+        // many at once, then most of them gone
+        for (long sequence = 200000; sequence < 205000; sequence++) {
+            QueueMessageReference ref = createReference(sequence);
+            map.put(ref);
+            live.add(ref);
+        }
+        List<QueueMessageReference> kept = new ArrayList<QueueMessageReference>();
+        for (int i = 0; i < live.size(); i++) {
+            if (i % 100 == 0) {
+                kept.add(live.get(i));
+            } else {
+                assertSame(live.get(i), map.remove(ack(live.get(i))));
+            }
+        }
+        for (long sequence = 300000; sequence < 300100; sequence++) {
+            QueueMessageReference ref = createReference(sequence);
+            map.put(ref);
+            kept.add(ref);
+        }
+        assertEquals(kept, map.values());
+        for (QueueMessageReference ref : kept) {
+            assertTrue(map.containsKey(ack(ref)));
+        }
+        assertFalse(map.containsKey(ack(live.get(1))));
+    }
+
+    @Test
+    public void testIdsNotFoundBySequenceIdAreFoundByScanning() {
+        PagedInMessageMap map = new PagedInMessageMap();
+        List<QueueMessageReference> refs = new ArrayList<QueueMessageReference>();
+        for (long sequence = 1; sequence <= 100; sequence++) {
+            QueueMessageReference ref = createReference(sequence);
+            map.put(ref);
+            refs.add(ref);
+        }
+        QueueMessageReference ref = refs.get(42);
+        MessageId parsed = new MessageId(ref.getMessageId().toString());
+        assertEquals(0, parsed.getBrokerSequenceId());
+        assertSame(ref, map.get(parsed));
+        assertSame(ref, map.remove(parsed));
+        assertNull(map.get(parsed));
+        assertEquals(99, map.size());
+
+        // as sent on by another broker, with the sequence id it gave the message
+        MessageId forwarded = new MessageId(refs.get(7).getMessageId().toString());
+        forwarded.setBrokerSequenceId(refs.get(8).getMessageId().getBrokerSequenceId());
+        assertSame(refs.get(7), map.get(forwarded));
+        assertSame(refs.get(7), map.remove(forwarded));
+        assertNull(map.get(forwarded));
+        assertSame(refs.get(8), map.get(refs.get(8).getMessageId()));
+        assertEquals(98, map.size());
+    }
+
+    @Test
+    public void testMessagesWithTheSameSequenceIdAreKeptApart() {
+        PagedInMessageMap map = new PagedInMessageMap();
+        // recovered from a store, alongside one sent since the broker started
+        QueueMessageReference recovered = createReference(7);
+        QueueMessageReference sent = createReference(7);
+        map.put(recovered);
+        map.put(sent);
+        assertSame(recovered, map.get(ack(recovered)));
+        assertSame(sent, map.get(ack(sent)));
+        assertSame(sent, map.remove(ack(sent)));
+        assertSame(recovered, map.get(ack(recovered)));
+        assertNull(map.get(ack(sent)));
+    }
+
+    @Test
+    public void testRemoveByReference() {
+        PagedInMessageMap map = new PagedInMessageMap();
+        QueueMessageReference first = createReference(1);
+        QueueMessageReference second = createReference(2);
+        map.put(first);
+        map.put(second);
+
+        assertTrue(map.remove(first));
+        assertFalse(map.remove(first));
+
+        // another reference to the message paged in is matched by its id
+        QueueMessageReference other = new IndirectMessageReference(second.getMessage());
+        assertTrue(map.remove(other));
+        assertTrue(map.isEmpty());
+        assertFalse(map.remove(createReference(3)));
+    }
+
+    @Test
+    public void testEmptiedMapStartsAgain() {
+        PagedInMessageMap map = new PagedInMessageMap();
+        List<QueueMessageReference> refs = new ArrayList<QueueMessageReference>();
+        for (long sequence = 1; sequence <= 30; sequence++) {
+            QueueMessageReference ref = createReference(sequence);
+            map.put(ref);
+            refs.add(ref);
+        }
+        for (QueueMessageReference ref : refs) {
+            assertSame(ref, map.remove(ack(ref)));
+        }
+        assertTrue(map.isEmpty());
+        assertTrue(map.values().isEmpty());
+        for (QueueMessageReference ref : refs) {
+            assertNull(map.get(ack(ref)));
+        }
+
+        refs.clear();
+        for (long sequence = 31; sequence <= 60; sequence++) {
+            QueueMessageReference ref = createReference(sequence);
+            map.put(ref);
+            refs.add(ref);
+        }
+        assertEquals(refs, map.values());
+        for (QueueMessageReference ref : refs) {
+            assertSame(ref, map.get(ack(ref)));
+        }
+    }
+
+    private QueueMessageReference createReference(long brokerSequenceId) {
+        ActiveMQTextMessage message = new ActiveMQTextMessage();
+        message.setDestination(new ActiveMQQueue("PagedInMessageMapTest"));
+        message.setMessageId(new MessageId(producerId, ++producerSequence));
+        message.getMessageId().setBrokerSequenceId(brokerSequenceId);
+        return new IndirectMessageReference(message);
+    }
+
+    /**
+     * @return an id equal to the message's, with its sequence id, as an ack
+     *         would carry.
+     */
+    private static MessageId ack(QueueMessageReference ref) {
+        MessageId id = new MessageId(ref.getMessageId().toString());
+        id.setBrokerSequenceId(ref.getMessageId().getBrokerSequenceId());
+        return id;
+    }
+}
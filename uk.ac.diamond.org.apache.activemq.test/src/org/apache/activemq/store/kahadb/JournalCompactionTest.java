@@ -0,0 +1,140 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.store.kahadb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.activemq.command.ActiveMQQueue;
+import org.apache.activemq.command.ActiveMQTextMessage;
+import org.apache.activemq.command.Message;
+import org.apache.activemq.command.MessageAck;
+import org.apache.activemq.command.MessageId;
+import org.apache.activemq.command.ProducerId;
+import org.apache.activemq.store.MessageRecoveryListener;
+import org.apache.activemq.store.MessageStore;
+import org.apache.activemq.util.IOHelper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class JournalCompactionTest {
+
+    private static final int MESSAGES = 3000;
+
+    private final ActiveMQQueue queue = new ActiveMQQueue("Q");
+    private final ProducerId producerId = new ProducerId("producer:1:1");
+    private File directory;
+    private KahaDBPersistenceAdapter adapter;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = new File(IOHelper.getDefaultDataDirectory(), getClass().getSimpleName());
+        IOHelper.deleteChildren(directory);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (adapter != null) {
+            adapter.stop();
+        }
+        IOHelper.deleteChildren(directory);
+    }
+
+    @Test
+    public void testRebuiltIndexKeepsTheOrderOfCompactedMessages() throws Exception {
+        adapter = open(true);
+        MessageStore store = adapter.createQueueMessageStore(queue);
+        for (int i = 0; i < MESSAGES; i++) {
+            store.addMessage(null, createMessage(i));
+        }
+        // Every hundredth message is left behind in the old data files, along with the newest ones.
+        List<Long> expected = new ArrayList<Long>();
+        for (int i = 0; i < MESSAGES; i++) {
+            if (i % 100 == 7 || i >= MESSAGES - 50) {
+                expected.add(Long.valueOf(i));
+            } else {
+                store.removeMessage(null, new MessageAck(createMessage(i), MessageAck.STANDARD_ACK_TYPE, 1));
+            }
+        }
+
+        long end = System.currentTimeMillis() + 30000;
+        while (adapter.getStore().journalBytesCompacted.getCount() == 0 && System.currentTimeMillis() < end) {
+            Thread.sleep(100);
+        }
+        assertTrue("messages compacted", adapter.getStore().journalBytesCompacted.getCount() > 0);
+        adapter.stop();
+        adapter = null;
+
+        new File(directory, "db.data").delete();
+        new File(directory, "db.redo").delete();
+        adapter = open(false);
+        assertEquals(expected, recover(adapter.createQueueMessageStore(queue)));
+    }
+
+    private KahaDBPersistenceAdapter open(boolean compact) throws Exception {
+        KahaDBPersistenceAdapter rc = new KahaDBPersistenceAdapter();
+        rc.setDirectory(directory);
+        rc.setJournalMaxFileLength(64 * 1024);
+        rc.setCheckpointInterval(500);
+        rc.setCleanupInterval(500);
+        rc.setEnableJournalCompaction(compact);
+        rc.setJournalCompactionRate(10 * 1024 * 1024);
+        rc.start();
+        return rc;
+    }
+
+    private ActiveMQTextMessage createMessage(long sequence) throws Exception {
+        ActiveMQTextMessage message = new ActiveMQTextMessage();
+        message.setMessageId(new MessageId(producerId, sequence));
+        message.setDestination(queue);
+        message.setPersistent(true);
+        message.setText("message " + sequence + new String(new char[200]));
+        return message;
+    }
+
+    private List<Long> recover(MessageStore store) throws Exception {
+        final List<Long> rc = new ArrayList<Long>();
+        store.recover(new MessageRecoveryListener() {
+            @Override
+            public boolean recoverMessage(Message message) {
+                rc.add(Long.valueOf(message.getMessageId().getProducerSequenceId()));
+                return true;
+            }
+
+            @Override
+            public boolean recoverMessageReference(MessageId ref) {
+                return true;
+            }
+
+            @Override
+            public boolean hasSpace() {
+                return true;
+            }
+
+            @Override
+            public boolean isDuplicate(MessageId ref) {
+                return false;
+            }
+        });
+        return rc;
+    }
+}
@@ -0,0 +1,204 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.store.kahadb.disk.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.activemq.store.kahadb.disk.page.PageFile;
+import org.apache.activemq.store.kahadb.disk.page.Transaction;
+import org.apache.activemq.store.kahadb.disk.util.LongMarshaller;
+import org.apache.activemq.store.kahadb.disk.util.StringMarshaller;
+import org.apache.activemq.util.IOHelper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BTreeIndexBulkLoadTest {
+
+    private File directory;
+    private PageFile pf;
+    private BTreeIndex<Long, String> index;
+    private Transaction tx;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = new File(IOHelper.getDefaultDataDirectory(), getClass().getSimpleName());
+        IOHelper.deleteChildren(directory);
+        pf = new PageFile(directory, getClass().getName());
+        pf.setPageSize(512);
+        pf.load();
+        tx = pf.tx();
+        index = new BTreeIndex<Long, String>(pf, tx.allocate().getPageId());
+        index.setKeyMarshaller(LongMarshaller.INSTANCE);
+        index.setValueMarshaller(StringMarshaller.INSTANCE);
+        index.load(tx);
+        tx.commit();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (pf != null) {
+            pf.unload();
+            pf.delete();
+        }
+    }
+
+    @Test
+    public void testBulkLoadKeepsKeysInOrder() throws Exception {
+        List<Long> keys = new ArrayList<Long>();
+        for (long key = 0; key < 10000; key += 2) {
+            keys.add(key);
+        }
+        index.bulkLoad(tx, entries(keys));
+        tx.commit();
+
+        assertKeys(keys);
+        for (Long key : keys) {
+            assertEquals(value(key), index.get(tx, key));
+        }
+        assertNull(index.get(tx, 1L));
+        assertTrue("Branches not built", index.getMaxLeafDepth(tx) > 2);
+        assertEquals(index.getMinLeafDepth(tx), index.getMaxLeafDepth(tx));
+
+        Iterator<Map.Entry<Long, String>> i = index.iterator(tx, 5001L);
+        assertEquals(Long.valueOf(5002), i.next().getKey());
+        assertEquals(Long.valueOf(5004), i.next().getKey());
+    }
+
+    @Test
+    public void testBulkLoadedIndexTakesPutsAndRemoves() throws Exception {
+        List<Long> keys = new ArrayList<Long>();
+        for (long key = 0; key < 4000; key += 2) {
+            keys.add(key);
+        }
+        index.bulkLoad(tx, entries(keys));
+        tx.commit();
+
+        // fill the gaps, which splits the full bulk loaded leaves
+        List<Long> expected = new ArrayList<Long>();
+        for (long key = 0; key < 4000; key++) {
+            if (key % 2 == 1) {
+                assertNull(index.put(tx, key, value(key)));
+            }
+            if (key % 3 != 0) {
+                expected.add(key);
+            }
+        }
+        for (long key = 0; key < 4000; key += 3) {
+            assertEquals(value(key), index.remove(tx, key));
+        }
+        tx.commit();
+
+        assertKeys(expected);
+        assertEquals(index.getMinLeafDepth(tx), index.getMaxLeafDepth(tx));
+    }
+
+    @Test
+    public void testBulkLoadOfOneLeaf() throws Exception {
+        List<Long> keys = new ArrayList<Long>();
+        keys.add(3L);
+        keys.add(7L);
+        keys.add(11L);
+        index.bulkLoad(tx, entries(keys));
+        tx.commit();
+
+        assertKeys(keys);
+        assertEquals(1, index.getMaxLeafDepth(tx));
+    }
+
+    @Test
+    public void testBulkLoadRejectsKeysOutOfOrder() throws Exception {
+        assertRejected(1L, 3L, 2L);
+    }
+
+    @Test
+    public void testBulkLoadRejectsDuplicateKeys() throws Exception {
+        assertRejected(1L, 2L, 2L);
+    }
+
+    @Test
+    public void testBulkLoadIntoIndexWithEntriesPutsThem() throws Exception {
+        index.put(tx, 10L, value(10));
+        index.put(tx, 20L, value(20));
+        List<Long> keys = new ArrayList<Long>();
+        keys.add(25L);
+        keys.add(5L);
+        keys.add(15L);
+        // not in order, as they are put one at a time
+        index.bulkLoad(tx, entries(keys));
+        tx.commit();
+
+        List<Long> expected = new ArrayList<Long>();
+        for (long key = 5; key <= 25; key += 5) {
+            expected.add(key);
+        }
+        assertKeys(expected);
+    }
+
+    private void assertRejected(Long... keys) throws Exception {
+        List<Long> list = new ArrayList<Long>();
+        for (Long key : keys) {
+            list.add(key);
+        }
+        try {
+            index.bulkLoad(tx, entries(list));
+            fail("Bulk loaded keys out of order");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private void assertKeys(List<Long> expected) throws IOException {
+        List<Long> actual = new ArrayList<Long>();
+        for (Iterator<Map.Entry<Long, String>> i = index.iterator(tx); i.hasNext();) {
+            Map.Entry<Long, String> entry = i.next();
+            assertEquals(value(entry.getKey()), entry.getValue());
+            actual.add(entry.getKey());
+        }
+        assertEquals(expected, actual);
+    }
+
+    private static Iterator<Map.Entry<Long, String>> entries(List<Long> keys) {
+        List<Map.Entry<Long, String>> rc = new ArrayList<Map.Entry<Long, String>>();
+        for (Long key : keys) {
+            rc.add(new AbstractMap.SimpleImmutableEntry<Long, String>(key, value(key)));
+        }
+        return rc.iterator();
+    }
+
+    /**
+     * @return a value whose size depends on the key, so leaves hold different
+     *         numbers of entries.
+     */
+    private static String value(long key) {
+        StringBuilder rc = new StringBuilder("value-").append(key);
+        for (int i = 0; i < key % 7; i++) {
+            rc.append('x');
+        }
+        return rc.toString();
+    }
+}
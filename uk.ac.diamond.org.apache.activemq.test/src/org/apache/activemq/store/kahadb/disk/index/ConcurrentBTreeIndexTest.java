@@ -0,0 +1,183 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.store.kahadb.disk.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.apache.activemq.store.kahadb.disk.page.PageFile;
+import org.apache.activemq.store.kahadb.disk.page.Transaction;
+import org.apache.activemq.store.kahadb.disk.util.LongMarshaller;
+import org.apache.activemq.util.IOHelper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ConcurrentBTreeIndexTest {
+
+    private static final int WRITERS = 4;
+    private static final int READERS = 4;
+    private static final int TRANSACTIONS = 200;
+    private static final int PUTS_PER_TRANSACTION = 20;
+
+    // transactions writing the index are serialized, as they are per
+    // destination by the MessageDatabase
+    private final Object writeMutex = new Object();
+    private File directory;
+    private PageFile pf;
+    private ConcurrentBTreeIndex<Long, Long> index;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = new File(IOHelper.getDefaultDataDirectory(), getClass().getSimpleName());
+        IOHelper.deleteChildren(directory);
+        pf = new PageFile(directory, getClass().getName());
+        // small pages and a small cache, so puts split leaves and the pages
+        // a transaction has not committed yet get evicted
+        pf.setPageSize(512);
+        pf.setPageCacheSize(4);
+        pf.load();
+        pf.tx().execute(new Transaction.Closure<IOException>() {
+            public void execute(Transaction tx) throws IOException {
+                index = new ConcurrentBTreeIndex<Long, Long>(pf, tx.allocate().getPageId());
+                index.setKeyMarshaller(LongMarshaller.INSTANCE);
+                index.setValueMarshaller(LongMarshaller.INSTANCE);
+                index.load(tx);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (pf != null) {
+            pf.unload();
+            pf.delete();
+        }
+    }
+
+    @Test(timeout = 120000)
+    public void testReadersSeeCommittedPutsWhileLeavesSplit() throws Exception {
+        // how many transactions each writer has committed
+        final AtomicIntegerArray committed = new AtomicIntegerArray(WRITERS);
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        final ConcurrentLinkedQueue<Throwable> failures = new ConcurrentLinkedQueue<Throwable>();
+
+        List<Thread> writers = new ArrayList<Thread>();
+        for (int w = 0; w < WRITERS; w++) {
+            final int writer = w;
+            writers.add(new Thread("Writer " + w) {
+                @Override
+                public void run() {
+                    try {
+                        for (int t = 0; t < TRANSACTIONS; t++) {
+                            final int transaction = t;
+                            synchronized (writeMutex) {
+                                pf.tx().execute(new Transaction.Closure<IOException>() {
+                                    public void execute(Transaction tx) throws IOException {
+                                        for (int p = 0; p < PUTS_PER_TRANSACTION; p++) {
+                                            long key = key(writer, transaction, p);
+                                            index.put(tx, key, key * 10);
+                                        }
+                                    }
+                                });
+                            }
+                            committed.set(writer, t + 1);
+                        }
+                    } catch (Throwable e) {
+                        failures.add(e);
+                    }
+                }
+            });
+        }
+
+        List<Thread> readers = new ArrayList<Thread>();
+        for (int r = 0; r < READERS; r++) {
+            final Random random = new Random(r);
+            readers.add(new Thread("Reader " + r) {
+                @Override
+                public void run() {
+                    try {
+                        while (writing.get()) {
+                            int writer = random.nextInt(WRITERS);
+                            int transactions = committed.get(writer);
+                            if (transactions == 0) {
+                                Thread.yield();
+                                continue;
+                            }
+                            long key = key(writer, random.nextInt(transactions), random.nextInt(PUTS_PER_TRANSACTION));
+                            Transaction tx = pf.tx();
+                            assertTrue("Missing " + key, index.containsKey(tx, key));
+                            assertEquals(Long.valueOf(key * 10), index.get(tx, key));
+                        }
+                    } catch (Throwable e) {
+                        failures.add(e);
+                    }
+                }
+            });
+        }
+
+        for (Thread thread : readers) {
+            thread.start();
+        }
+        for (Thread thread : writers) {
+            thread.start();
+        }
+        for (Thread thread : writers) {
+            thread.join();
+        }
+        writing.set(false);
+        for (Thread thread : readers) {
+            thread.join();
+        }
+        if (!failures.isEmpty()) {
+            throw new AssertionError(failures.peek());
+        }
+
+        Transaction tx = pf.tx();
+        long previous = -1;
+        int count = 0;
+        for (Iterator<Map.Entry<Long, Long>> i = index.iterator(tx); i.hasNext();) {
+            Map.Entry<Long, Long> entry = i.next();
+            assertTrue("Out of order " + entry.getKey(), entry.getKey() > previous);
+            assertEquals(Long.valueOf(entry.getKey() * 10), entry.getValue());
+            previous = entry.getKey();
+            count++;
+        }
+        assertEquals(WRITERS * TRANSACTIONS * PUTS_PER_TRANSACTION, count);
+        assertTrue("Leaves not split", index.getMaxLeafDepth(tx) > 1);
+        assertEquals(index.getMinLeafDepth(tx), index.getMaxLeafDepth(tx));
+    }
+
+    /**
+     * Spreads the keys of a transaction over the index, so it splits leaves
+     * other writers are putting to.
+     */
+    private static long key(int writer, int transaction, int put) {
+        return ((long) put * TRANSACTIONS + transaction) * WRITERS + writer;
+    }
+}
@@ -0,0 +1,110 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.store.kahadb.disk.journal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.activemq.util.ByteSequence;
+import org.apache.activemq.util.IOHelper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DataFileAccessorPoolTest {
+
+    private File directory;
+    private Journal journal;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = new File(IOHelper.getDefaultDataDirectory(), getClass().getSimpleName());
+        IOHelper.deleteChildren(directory);
+        IOHelper.mkdirs(directory);
+        journal = new Journal();
+        journal.setDirectory(directory);
+        journal.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (journal != null) {
+            journal.close();
+        }
+        IOHelper.deleteChildren(directory);
+    }
+
+    @Test
+    public void testReadsRaceDisposingUnusedPools() throws Exception {
+        final List<Location> locations = new ArrayList<Location>();
+        for (int i = 0; i < 100; i++) {
+            locations.add(journal.write(new ByteSequence(("record-" + i).getBytes("UTF-8")), false));
+        }
+        journal.write(new ByteSequence(new byte[1]), true);
+
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final CountDownLatch readers = new CountDownLatch(4);
+        for (int t = 0; t < 4; t++) {
+            new Thread("reader-" + t) {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < 20000 && failure.get() == null; i++) {
+                            int index = i % locations.size();
+                            ByteSequence data = journal.read(locations.get(index));
+                            assertEquals("record-" + index, new String(data.getData(), data.getOffset(), data.getLength(), "UTF-8"));
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        readers.countDown();
+                    }
+                }
+            }.start();
+        }
+
+        // as the journal's cleanup does, with every pool marked unused
+        Thread cleaner = new Thread("cleaner") {
+            @Override
+            public void run() {
+                while (!done.get()) {
+                    journal.accessorPool.clearUsedMark();
+                    journal.accessorPool.disposeUnused();
+                }
+            }
+        };
+        cleaner.start();
+        try {
+            assertTrue("Readers did not finish", readers.await(60, TimeUnit.SECONDS));
+        } finally {
+            done.set(true);
+            cleaner.join();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.store.kahadb.scheduler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TimingWheelTest {
+
+    private static final long TICK = 10;
+
+    @Test
+    public void testExpiresAtTheTickAfterItsTime() {
+        TimingWheel<Long> wheel = new TimingWheel<Long>(TICK, 0);
+        wheel.add(25, 25L);
+        wheel.add(5, 5L);
+        wheel.add(20, 20L);
+        assertEquals(3, wheel.size());
+        assertEquals(10, wheel.nextTime());
+
+        List<Long> expired = new ArrayList<Long>();
+        wheel.advance(9, expired);
+        assertTrue(expired.isEmpty());
+        wheel.advance(10, expired);
+        assertEquals(Arrays.asList(5L), expired);
+        expired.clear();
+        wheel.advance(29, expired);
+        assertEquals(Arrays.asList(20L), expired);
+        expired.clear();
+        wheel.advance(30, expired);
+        assertEquals(Arrays.asList(25L), expired);
+        assertEquals(0, wheel.size());
+        assertEquals(Long.MAX_VALUE, wheel.nextTime());
+    }
+
+    @Test
+    public void testEntriesCascadeDownToExpireOnTime() {
+        long now = 12345;
+        TimingWheel<Long> wheel = new TimingWheel<Long>(TICK, now);
+        Random random = new Random(42);
+        int count = 10000;
+        for (int i = 0; i < count; i++) {
+            // from the next tick to several levels up the wheel
+            long time = now + 1 + (long) (Math.pow(random.nextDouble(), 4) * TICK * 64 * 64 * 64 * 64);
+            wheel.add(time, time);
+        }
+
+        // jumping to each time the wheel asks for, every entry expires
+        // exactly at the tick after its time
+        List<Long> expired = new ArrayList<Long>();
+        int expiredCount = 0;
+        long last = now;
+        while (wheel.size() > 0) {
+            long next = wheel.nextTime();
+            assertTrue("Went back from " + last + " to " + next, next >= last);
+            wheel.advance(next, expired);
+            for (Long time : expired) {
+                assertEquals(tickTime(time), next);
+            }
+            expiredCount += expired.size();
+            expired.clear();
+            last = next;
+        }
+        assertEquals(count, expiredCount);
+    }
+
+    @Test
+    public void testAdvancingPastManyTicksExpiresInOrder() {
+        TimingWheel<Long> wheel = new TimingWheel<Long>(TICK, 0);
+        Random random = new Random(7);
+        for (int i = 0; i < 1000; i++) {
+            long time = 1 + random.nextInt(5000000);
+            wheel.add(time, time);
+        }
+        List<Long> expired = new ArrayList<Long>();
+        wheel.advance(2500000, expired);
+        for (int i = 1; i < expired.size(); i++) {
+            assertTrue(tickTime(expired.get(i - 1)) <= tickTime(expired.get(i)));
+        }
+        for (Long time : expired) {
+            assertTrue(time <= 2500000);
+        }
+        int first = expired.size();
+        expired.clear();
+        wheel.advance(5000000, expired);
+        for (Long time : expired) {
+            assertTrue(time > 2500000);
+        }
+        assertEquals(1000, first + expired.size());
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testEntriesBeyondTheTopLevelAreKept() {
+        TimingWheel<Long> wheel = new TimingWheel<Long>(1, 0);
+        long far = (1L << 36) * 3 + 17;
+        wheel.add(far, far);
+        wheel.add(100, 100L);
+
+        List<Long> expired = new ArrayList<Long>();
+        while (wheel.size() > 0) {
+            long next = wheel.nextTime();
+            assertTrue(next <= far);
+            wheel.advance(next, expired);
+        }
+        assertEquals(Arrays.asList(100L, far), expired);
+    }
+
+    @Test
+    public void testRemovedEntriesDoNotExpire() {
+        TimingWheel<Long> wheel = new TimingWheel<Long>(TICK, 0);
+        TimingWheel.Entry<Long> near = wheel.add(15, 15L);
+        TimingWheel.Entry<Long> far = wheel.add(TICK * 64 * 64 + 5, 1L);
+        TimingWheel.Entry<Long> kept = wheel.add(TICK * 64 * 64 + 5, 2L);
+        assertTrue(wheel.remove(near));
+        assertFalse(wheel.remove(near));
+        assertTrue(wheel.remove(far));
+        assertEquals(1, wheel.size());
+
+        List<Long> expired = new ArrayList<Long>();
+        wheel.advance(TICK * 64 * 64 * 2, expired);
+        assertEquals(Arrays.asList(2L), expired);
+        assertFalse(wheel.remove(kept));
+        assertEquals(0, wheel.size());
+    }
+
+    private static long tickTime(long time) {
+        return (time + TICK - 1) / TICK * TICK;
+    }
+}
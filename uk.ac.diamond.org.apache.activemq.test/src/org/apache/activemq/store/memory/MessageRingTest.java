@@ -0,0 +1,179 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.store.memory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.activemq.command.ActiveMQTextMessage;
+import org.apache.activemq.command.ConnectionId;
+import org.apache.activemq.command.Message;
+import org.apache.activemq.command.MessageId;
+import org.apache.activemq.command.ProducerId;
+import org.apache.activemq.command.SessionId;
+import org.junit.Test;
+
+public class MessageRingTest {
+
+    private final ProducerId producerId = new ProducerId(new SessionId(new ConnectionId("ID:MessageRingTest-1"), 1), 1);
+    private long producerSequence;
+
+    @Test
+    public void testWrapsAroundWithoutGrowing() {
+        MessageRing ring = new MessageRing(16);
+        List<Message> held = new ArrayList<Message>();
+        List<Long> sequences = new ArrayList<Long>();
+        for (int i = 0; i < 1000; i++) {
+            Message message = createMessage();
+            sequences.add(ring.add(message));
+            held.add(message);
+            if (held.size() > 10) {
+                assertSame(held.remove(0), ring.remove(sequences.remove(0)));
+            }
+        }
+        assertEquals(16, ring.capacity());
+        assertEquals(10, ring.size());
+        assertEquals(1000, ring.getEnd());
+        for (int i = 0; i < held.size(); i++) {
+            assertSame(held.get(i), ring.get(sequences.get(i)));
+            assertEquals((long) sequences.get(i), ring.find(copy(held.get(i).getMessageId())));
+        }
+        assertEquals(sequences, iterate(ring));
+    }
+
+    @Test
+    public void testSkipsHoles() {
+        MessageRing ring = new MessageRing(16);
+        List<Message> messages = new ArrayList<Message>();
+        for (int i = 0; i < 100; i++) {
+            Message message = createMessage();
+            assertEquals(i, ring.add(message));
+            messages.add(message);
+        }
+        List<Long> expected = new ArrayList<Long>();
+        for (int i = 0; i < 100; i++) {
+            if (i % 3 == 0) {
+                assertSame(messages.get(i), ring.remove(i));
+            } else {
+                expected.add((long) i);
+            }
+        }
+        assertNull(ring.remove(0));
+        assertNull(ring.get(3));
+        assertEquals(-1, ring.find(copy(messages.get(3).getMessageId())));
+        assertEquals(4, ring.next(3));
+        assertEquals(-1, ring.next(100));
+        assertEquals(expected, iterate(ring));
+        for (Long sequence : expected) {
+            assertEquals((long) sequence, ring.find(copy(messages.get(sequence.intValue()).getMessageId())));
+        }
+        assertEquals(expected.size(), ring.size());
+    }
+
+    @Test
+    public void testPinnedOldestMessageDoesNotGrowTheRing() {
+        MessageRing ring = new MessageRing(16);
+        Message pinned = createMessage();
+        long pinnedSequence = ring.add(pinned);
+        ring.reference(pinnedSequence, 3);
+
+        // the messages after it come and go, the pinned one stays
+        for (int i = 0; i < 100000; i++) {
+            long sequence = ring.add(createMessage());
+            if (i % 100 != 99) {
+                ring.remove(sequence);
+            }
+            assertTrue("Ring grew to " + ring.capacity(), ring.capacity() <= 4096);
+        }
+        assertTrue("Ring grew to " + ring.capacity(), ring.capacity() <= 4096);
+        assertEquals(1001, ring.size());
+
+        assertSame(pinned, ring.get(pinnedSequence));
+        assertEquals(pinnedSequence, ring.find(copy(pinned.getMessageId())));
+        assertEquals(pinnedSequence, ring.next(0));
+        assertEquals(2, ring.reference(pinnedSequence, -1));
+
+        List<Long> sequences = iterate(ring);
+        assertEquals(1001, sequences.size());
+        for (int i = 1; i < sequences.size(); i++) {
+            assertTrue(sequences.get(i - 1) < sequences.get(i));
+            assertEquals(sequences.get(i).longValue(), ring.find(copy(ring.get(sequences.get(i)).getMessageId())));
+        }
+
+        assertSame(pinned, ring.remove(pinnedSequence));
+        assertNull(ring.get(pinnedSequence));
+        assertEquals(-1, ring.find(copy(pinned.getMessageId())));
+        for (Long sequence : sequences.subList(1, sequences.size())) {
+            ring.remove(sequence);
+        }
+        assertEquals(0, ring.size());
+        assertEquals(-1, ring.next(0));
+    }
+
+    @Test
+    public void testScatteredSurvivorsKeepTheirOrder() {
+        MessageRing ring = new MessageRing(16);
+        List<Long> expected = new ArrayList<Long>();
+        for (int i = 0; i < 20000; i++) {
+            long sequence = ring.add(createMessage());
+            if (i % 997 == 0) {
+                expected.add(sequence);
+                ring.reference(sequence, 1);
+            }
+            // remove a little behind, leaving holes for a while
+            if (sequence >= 50 && !expected.contains(sequence - 50)) {
+                ring.remove(sequence - 50);
+            }
+        }
+        for (long sequence = ring.getEnd() - 50; sequence < ring.getEnd(); sequence++) {
+            if (ring.get(sequence) != null && !expected.contains(sequence)) {
+                ring.remove(sequence);
+            }
+        }
+        assertEquals(expected, iterate(ring));
+        for (Long sequence : expected) {
+            assertEquals(1, ring.reference(sequence, 0));
+        }
+        assertTrue("Ring grew to " + ring.capacity(), ring.capacity() <= 256);
+    }
+
+    private static List<Long> iterate(MessageRing ring) {
+        List<Long> rc = new ArrayList<Long>();
+        for (long sequence = ring.next(0); sequence >= 0; sequence = ring.next(sequence + 1)) {
+            rc.add(sequence);
+        }
+        return rc;
+    }
+
+    private Message createMessage() {
+        ActiveMQTextMessage message = new ActiveMQTextMessage();
+        message.setMessageId(new MessageId(producerId, ++producerSequence));
+        return message;
+    }
+
+    /**
+     * @return an id equal to the given one, as an ack would carry.
+     */
+    private static MessageId copy(MessageId id) {
+        return new MessageId(id.toString());
+    }
+}
@@ -0,0 +1,63 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.broker.jmx;
+
+import java.util.List;
+
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.OpenDataException;
+
+import org.apache.activemq.store.kahadb.MultiKahaDBPersistenceAdapter;
+
+public class MultiKahaDBPersistenceAdapterView implements MultiKahaDBPersistenceAdapterViewMBean {
+
+    private final String name;
+    private final MultiKahaDBPersistenceAdapter persistenceAdapter;
+
+    public MultiKahaDBPersistenceAdapterView(MultiKahaDBPersistenceAdapter adapter) {
+        this.name = adapter.toString();
+        this.persistenceAdapter = adapter;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public CompositeData[] getInstanceWriteRates() throws Exception {
+        return convert(persistenceAdapter.getInstanceWriteRates());
+    }
+
+    @Override
+    public CompositeData[] getDestinationWriteRates() throws Exception {
+        return convert(persistenceAdapter.getDestinationWriteRates());
+    }
+
+    @Override
+    public void migrateDestination(String destination, String directory) throws Exception {
+        persistenceAdapter.migrateDestination(destination, directory);
+    }
+
+    private static CompositeData[] convert(List<WriteRate> rates) throws OpenDataException {
+        CompositeData[] rc = new CompositeData[rates.size()];
+        for (int i = 0; i < rc.length; i++) {
+            rc[i] = OpenTypeSupport.convert(rates.get(i));
+        }
+        return rc;
+    }
+}
@@ -0,0 +1,34 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.broker.jmx;
+
+import javax.management.openmbean.CompositeData;
+
+public interface MultiKahaDBPersistenceAdapterViewMBean {
+
+    @MBeanInfo("Name of this persistence adapter.")
+    String getName();
+
+    @MBeanInfo("Write rate of each KahaDB instance destinations are placed on adaptively.")
+    CompositeData[] getInstanceWriteRates() throws Exception;
+
+    @MBeanInfo("Write rate of each adaptively placed destination and the instance it is on.")
+    CompositeData[] getDestinationWriteRates() throws Exception;
+
+    @MBeanInfo("Moves an idle destination, a queue unless prefixed with topic://, to the KahaDB instance in the given directory.")
+    void migrateDestination(@MBeanInfo("destination") String destination, @MBeanInfo("directory") String directory) throws Exception;
+}
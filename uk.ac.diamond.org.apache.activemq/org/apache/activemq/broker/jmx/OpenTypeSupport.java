@@ -25,6 +25,9 @@ import org.apache.activemq.command.ActiveMQMessage;
 import org.apache.activemq.command.ActiveMQObjectMessage;
 import org.apache.activemq.command.ActiveMQStreamMessage;
 import org.apache.activemq.command.ActiveMQTextMessage;
+import org.apache.activemq.management.CountStatisticImpl;
+import org.apache.activemq.management.HistogramStatisticImpl;
+import org.apache.activemq.management.StatisticImpl;
 import org.fusesource.hawtbuf.UTF8Buffer;
 
 import javax.jms.DeliveryMode;
@@ -515,6 +518,118 @@ public final class OpenTypeSupport {
         }
     }
 
+    static class StatisticOpenTypeFactory extends AbstractOpenTypeFactory {
+        @Override
+        protected String getTypeName() {
+            return StatisticImpl.class.getName();
+        }
+
+        @Override
+        protected void init() throws OpenDataException {
+            super.init();
+            addItem("name", "statistic name", SimpleType.STRING);
+            addItem("unit", "unit of measure", SimpleType.STRING);
+            addItem("description", "description", SimpleType.STRING);
+            addItem("startTime", "time measurement started", SimpleType.LONG);
+            addItem("lastSampleTime", "time of the last measurement", SimpleType.LONG);
+        }
+
+        @Override
+        public Map<String, Object> getFields(Object o) throws OpenDataException {
+            StatisticImpl statistic = (StatisticImpl) o;
+            Map<String, Object> rc = super.getFields(o);
+            rc.put("name", statistic.getName());
+            rc.put("unit", statistic.getUnit());
+            rc.put("description", statistic.getDescription());
+            rc.put("startTime", Long.valueOf(statistic.getStartTime()));
+            rc.put("lastSampleTime", Long.valueOf(statistic.getLastSampleTime()));
+            return rc;
+        }
+    }
+
+    static class CountStatisticOpenTypeFactory extends StatisticOpenTypeFactory {
+        @Override
+        protected String getTypeName() {
+            return CountStatisticImpl.class.getName();
+        }
+
+        @Override
+        protected void init() throws OpenDataException {
+            super.init();
+            addItem("count", "count", SimpleType.LONG);
+        }
+
+        @Override
+        public Map<String, Object> getFields(Object o) throws OpenDataException {
+            CountStatisticImpl statistic = (CountStatisticImpl) o;
+            Map<String, Object> rc = super.getFields(o);
+            rc.put("count", Long.valueOf(statistic.getCount()));
+            return rc;
+        }
+    }
+
+    static class HistogramStatisticOpenTypeFactory extends StatisticOpenTypeFactory {
+        @Override
+        protected String getTypeName() {
+            return HistogramStatisticImpl.class.getName();
+        }
+
+        @Override
+        protected void init() throws OpenDataException {
+            super.init();
+            addItem("count", "number of values recorded", SimpleType.LONG);
+            addItem("total", "sum of the values recorded", SimpleType.LONG);
+            addItem("average", "average value", SimpleType.DOUBLE);
+            addItem("max", "largest value", SimpleType.LONG);
+            addItem("p50", "median, as the upper bound of its bucket", SimpleType.LONG);
+            addItem("p99", "99th percentile, as the upper bound of its bucket", SimpleType.LONG);
+            addItem("p999", "99.9th percentile, as the upper bound of its bucket", SimpleType.LONG);
+        }
+
+        @Override
+        public Map<String, Object> getFields(Object o) throws OpenDataException {
+            HistogramStatisticImpl statistic = (HistogramStatisticImpl) o;
+            Map<String, Object> rc = super.getFields(o);
+            rc.put("count", Long.valueOf(statistic.getCount()));
+            rc.put("total", Long.valueOf(statistic.getTotal()));
+            rc.put("average", Double.valueOf(statistic.getAverage()));
+            rc.put("max", Long.valueOf(statistic.getMax()));
+            rc.put("p50", Long.valueOf(statistic.getPercentile(50)));
+            rc.put("p99", Long.valueOf(statistic.getPercentile(99)));
+            rc.put("p999", Long.valueOf(statistic.getPercentile(99.9)));
+            return rc;
+        }
+    }
+
+    static class WriteRateOpenTypeFactory extends AbstractOpenTypeFactory {
+        @Override
+        protected String getTypeName() {
+            return WriteRate.class.getName();
+        }
+
+        @Override
+        protected void init() throws OpenDataException {
+            super.init();
+            addItem("name", "destination or instance directory", SimpleType.STRING);
+            addItem("instance", "directory of the instance written to", SimpleType.STRING);
+            addItem("bytesPerSecond", "average bytes written a second over about a minute", SimpleType.DOUBLE);
+            addItem("bytes", "bytes written", SimpleType.LONG);
+            addItem("destinations", "number of destinations writing", SimpleType.INTEGER);
+        }
+
+        @Override
+        public Map<String, Object> getFields(Object o) throws OpenDataException {
+            WriteRate rate = (WriteRate) o;
+            Map<String, Object> rc = super.getFields(o);
+            rc.put("name", rate.getName());
+            rc.put("instance", rate.getInstance());
+            rc.put("bytesPerSecond", Double.valueOf(rate.getBytesPerSecond()));
+            rc.put("bytes", Long.valueOf(rate.getBytes()));
+            rc.put("destinations", Integer.valueOf(rate.getDestinations()));
+            return rc;
+        }
+    }
+
     static {
         OPEN_TYPE_FACTORIES.put(ActiveMQMessage.class, new MessageOpenTypeFactory());
         OPEN_TYPE_FACTORIES.put(ActiveMQBytesMessage.class, new ByteMessageOpenTypeFactory());
@@ -526,6 +641,9 @@ public final class OpenTypeSupport {
         OPEN_TYPE_FACTORIES.put(SlowConsumerEntry.class, new SlowConsumerEntryOpenTypeFactory());
         OPEN_TYPE_FACTORIES.put(ActiveMQBlobMessage.class, new ActiveMQBlobMessageOpenTypeFactory());
         OPEN_TYPE_FACTORIES.put(HealthStatus.class, new HealthStatusOpenTypeFactory());
+        OPEN_TYPE_FACTORIES.put(CountStatisticImpl.class, new CountStatisticOpenTypeFactory());
+        OPEN_TYPE_FACTORIES.put(HistogramStatisticImpl.class, new HistogramStatisticOpenTypeFactory());
+        OPEN_TYPE_FACTORIES.put(WriteRate.class, new WriteRateOpenTypeFactory());
     }
 
     private OpenTypeSupport() {
@@ -16,7 +16,12 @@
  */
 package org.apache.activemq.broker.jmx;
 
+import java.util.List;
 import java.util.concurrent.Callable;
+
+import javax.management.openmbean.CompositeData;
+
+import org.apache.activemq.management.StatisticImpl;
 import org.apache.activemq.store.PersistenceAdapter;
 
 public class PersistenceAdapterView implements PersistenceAdapterViewMBean {
@@ -26,6 +31,8 @@ public class PersistenceAdapterView implements PersistenceAdapterViewMBean {
 
     private Callable<String> inflightTransactionViewCallable;
     private Callable<String> dataViewCallable;
+    private Callable<List<StatisticImpl>> statisticsViewCallable;
+    private Callable<String> recoveryProgressViewCallable;
 
     public PersistenceAdapterView(PersistenceAdapter adapter) {
         this.name = adapter.toString();
@@ -52,6 +59,24 @@ public class PersistenceAdapterView implements PersistenceAdapterViewMBean {
         return persistenceAdapter.size();
     }
 
+    @Override
+    public CompositeData[] getStatistics() throws Exception {
+        if (statisticsViewCallable == null) {
+            return new CompositeData[0];
+        }
+        List<StatisticImpl> statistics = statisticsViewCallable.call();
+        CompositeData[] rc = new CompositeData[statistics.size()];
+        for (int i = 0; i < rc.length; i++) {
+            rc[i] = OpenTypeSupport.convert(statistics.get(i));
+        }
+        return rc;
+    }
+
+    @Override
+    public String getRecoveryProgress() {
+        return invoke(recoveryProgressViewCallable);
+    }
+
     private String invoke(Callable<String> callable) {
         String result = null;
         if (callable != null) {
@@ -68,6 +93,14 @@ public class PersistenceAdapterView implements PersistenceAdapterViewMBean {
         this.dataViewCallable = dataViewCallable;
     }
 
+    public void setStatisticsViewCallable(Callable<List<StatisticImpl>> statisticsViewCallable) {
+        this.statisticsViewCallable = statisticsViewCallable;
+    }
+
+    public void setRecoveryProgressViewCallable(Callable<String> recoveryProgressViewCallable) {
+        this.recoveryProgressViewCallable = recoveryProgressViewCallable;
+    }
+
     public void setInflightTransactionViewCallable(Callable<String> inflightTransactionViewCallable) {
         this.inflightTransactionViewCallable = inflightTransactionViewCallable;
     }
@@ -16,6 +16,8 @@
  */
 package org.apache.activemq.broker.jmx;
 
+import javax.management.openmbean.CompositeData;
+
 public interface PersistenceAdapterViewMBean {
 
     @MBeanInfo("Name of this persistence adapter.")
@@ -29,4 +31,10 @@ public interface PersistenceAdapterViewMBean {
 
     @MBeanInfo("Current size.")
     long getSize();
+
+    @MBeanInfo("Current statistics.")
+    CompositeData[] getStatistics() throws Exception;
+
+    @MBeanInfo("Progress of the last journal recovery.")
+    String getRecoveryProgress();
 }
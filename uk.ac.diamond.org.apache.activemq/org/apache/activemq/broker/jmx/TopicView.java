@@ -17,11 +17,67 @@
 package org.apache.activemq.broker.jmx;
 
 import org.apache.activemq.broker.region.Topic;
+import org.apache.activemq.management.TimeStatisticImpl;
 
 public class TopicView extends DestinationView implements TopicViewMBean {
 
+    private final Topic topic;
+
     public TopicView(ManagedRegionBroker broker, Topic destination) {
         super(broker, destination);
+        this.topic = destination;
+    }
+
+    @Override
+    public void resetStatistics() {
+        super.resetStatistics();
+        for (TimeStatisticImpl latency : topic.getDispatchShardLatencies()) {
+            latency.reset();
+        }
+    }
+
+    @Override
+    public int getDispatchShards() {
+        return topic.getDispatchShards();
+    }
+
+    @Override
+    public double[] getDispatchShardAverageLatencies() {
+        TimeStatisticImpl[] latencies = topic.getDispatchShardLatencies();
+        double[] rc = new double[latencies.length];
+        for (int i = 0; i < rc.length; i++) {
+            rc[i] = latencies[i].getAverageTime();
+        }
+        return rc;
     }
 
+    @Override
+    public long[] getDispatchShardMaxLatencies() {
+        TimeStatisticImpl[] latencies = topic.getDispatchShardLatencies();
+        long[] rc = new long[latencies.length];
+        for (int i = 0; i < rc.length; i++) {
+            rc[i] = latencies[i].getMaxTime();
+        }
+        return rc;
+    }
+
+    @Override
+    public long[] getDispatchShardDispatchCounts() {
+        TimeStatisticImpl[] latencies = topic.getDispatchShardLatencies();
+        long[] rc = new long[latencies.length];
+        for (int i = 0; i < rc.length; i++) {
+            rc[i] = latencies[i].getCount();
+        }
+        return rc;
+    }
+
+    @Override
+    public int[] getDispatchShardPendingSizes() {
+        return topic.getDispatchShardPendingSizes();
+    }
+
+    @Override
+    public int[] getDispatchShardSubscriptionCounts() {
+        return topic.getDispatchShardSubscriptionCounts();
+    }
 }
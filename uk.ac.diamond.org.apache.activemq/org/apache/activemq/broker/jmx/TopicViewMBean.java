@@ -17,4 +17,43 @@
 package org.apache.activemq.broker.jmx;
 
 public interface TopicViewMBean extends DestinationViewMBean {
+
+    /**
+     * @return the number of shards messages are dispatched by, 0 if the
+     *         producers dispatch them.
+     */
+    @MBeanInfo("Number of shards messages are dispatched to the subscriptions by, 0 if producers dispatch them.")
+    int getDispatchShards();
+
+    /**
+     * @return the average time, in microseconds, messages took to be
+     *         dispatched by each shard, from being sent.
+     */
+    @MBeanInfo("Average time, in microseconds, messages took to be dispatched by each shard.")
+    double[] getDispatchShardAverageLatencies();
+
+    /**
+     * @return the longest time, in microseconds, a message took to be
+     *         dispatched by each shard, from being sent.
+     */
+    @MBeanInfo("Longest time, in microseconds, a message took to be dispatched by each shard.")
+    long[] getDispatchShardMaxLatencies();
+
+    /**
+     * @return the number of messages each shard has dispatched.
+     */
+    @MBeanInfo("Number of messages each shard has dispatched.")
+    long[] getDispatchShardDispatchCounts();
+
+    /**
+     * @return the number of messages each shard has still to dispatch.
+     */
+    @MBeanInfo("Number of messages each shard has still to dispatch.")
+    int[] getDispatchShardPendingSizes();
+
+    /**
+     * @return the number of subscriptions in each shard.
+     */
+    @MBeanInfo("Number of subscriptions in each shard.")
+    int[] getDispatchShardSubscriptionCounts();
 }
@@ -0,0 +1,71 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.broker.jmx;
+
+import java.io.Serializable;
+
+/**
+ * The write rate of a destination or a KahaDB instance of a
+ * MultiKahaDBPersistenceAdapter.
+ */
+public class WriteRate implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String name;
+    private final String instance;
+    private final double bytesPerSecond;
+    private final long bytes;
+    private final int destinations;
+
+    /**
+     * @param name the destination, or the directory of the instance.
+     * @param instance the directory of the instance the writes go to.
+     * @param destinations the number of destinations writing to it.
+     */
+    public WriteRate(String name, String instance, double bytesPerSecond, long bytes, int destinations) {
+        this.name = name;
+        this.instance = instance;
+        this.bytesPerSecond = bytesPerSecond;
+        this.bytes = bytes;
+        this.destinations = destinations;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getInstance() {
+        return instance;
+    }
+
+    public double getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public int getDestinations() {
+        return destinations;
+    }
+
+    public String toString() {
+        return name + ": " + Math.round(bytesPerSecond) + " bytes/s, " + bytes + " bytes, on " + instance;
+    }
+}
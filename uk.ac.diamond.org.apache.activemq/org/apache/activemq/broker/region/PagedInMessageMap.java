@@ -0,0 +1,231 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.broker.region;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.activemq.command.MessageId;
+
+/**
+ * The messages a {@link Queue} has paged in, by the broker sequence id the
+ * queue gave them when they were sent, in the order they were paged in.
+ *
+ * An open addressing hash table of long keys with linear probing, the slots
+ * linked in insertion order through int arrays, so adding a message does not
+ * allocate and finding one compares longs until the one with its sequence
+ * id.  A message found by its sequence id is checked against the
+ * {@link MessageId} looked for, as ids recovered from a store can have the
+ * same sequence ids as those sent since the broker started.  An id not
+ * found by its sequence id is looked for in all the messages, as ids parsed
+ * from text have none at all and those from another broker have its
+ * sequence ids.
+ *
+ * Used when {@link Queue#setIndexPagedInBySequenceId(boolean)} is set, which
+ * has the queue give non persistent messages sequence ids too.
+ */
+final class PagedInMessageMap extends PagedInMessages {
+
+    private static final int MIN_CAPACITY = 64;
+    private static final int NONE = -1;
+    // in a slot a message was removed from, that a search goes on past
+    private static final Object REMOVED = new Object();
+
+    private long[] keys;
+    private Object[] values;
+    private int[] before;
+    private int[] after;
+    private int mask;
+    private int head = NONE;
+    private int tail = NONE;
+    private int size;
+    // slots holding a message or REMOVED
+    private int used;
+
+    PagedInMessageMap() {
+        allocate(MIN_CAPACITY);
+    }
+
+    @Override
+    int size() {
+        return size;
+    }
+
+    @Override
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    QueueMessageReference get(MessageId id) {
+        int slot = find(id);
+        if (slot == NONE) {
+            slot = scan(id);
+        }
+        return slot == NONE ? null : (QueueMessageReference)values[slot];
+    }
+
+    @Override
+    void put(QueueMessageReference ref) {
+        if (used + 1 > (mask + 1) >> 1) {
+            // clear out the removed slots, to at most a quarter full of
+            // messages
+            int capacity = MIN_CAPACITY;
+            while (capacity < (size + 1) << 2) {
+                capacity <<= 1;
+            }
+            rehash(capacity);
+        }
+        long key = ref.getMessageId().getBrokerSequenceId();
+        int slot = hash(key);
+        int free = NONE;
+        while (values[slot] != null) {
+            if (free == NONE && values[slot] == REMOVED) {
+                free = slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        if (free == NONE) {
+            free = slot;
+            used++;
+        }
+        keys[free] = key;
+        values[free] = ref;
+        link(free);
+        size++;
+    }
+
+    @Override
+    QueueMessageReference remove(MessageId id) {
+        int slot = find(id);
+        if (slot == NONE) {
+            slot = scan(id);
+        }
+        return slot == NONE ? null : removeSlot(slot);
+    }
+
+    /**
+     * Looks for the message as paged in, by its sequence id and identity,
+     * before comparing ids.
+     */
+    @Override
+    boolean remove(QueueMessageReference ref) {
+        long key = ref.getMessageId().getBrokerSequenceId();
+        for (int slot = hash(key); values[slot] != null; slot = (slot + 1) & mask) {
+            if (values[slot] == ref) {
+                removeSlot(slot);
+                return true;
+            }
+        }
+        // another reference to a message that was paged in
+        return remove(ref.getMessageId()) != null;
+    }
+
+    @Override
+    List<QueueMessageReference> values() {
+        List<QueueMessageReference> rc = new ArrayList<QueueMessageReference>(size);
+        for (int slot = head; slot != NONE; slot = after[slot]) {
+            rc.add((QueueMessageReference)values[slot]);
+        }
+        return rc;
+    }
+
+    private int find(MessageId id) {
+        long key = id.getBrokerSequenceId();
+        for (int slot = hash(key); values[slot] != null; slot = (slot + 1) & mask) {
+            if (keys[slot] == key && values[slot] != REMOVED) {
+                MessageId found = ((QueueMessageReference)values[slot]).getMessageId();
+                if (found == id || found.equals(id)) {
+                    return slot;
+                }
+            }
+        }
+        return NONE;
+    }
+
+    private int scan(MessageId id) {
+        for (int slot = head; slot != NONE; slot = after[slot]) {
+            if (((QueueMessageReference)values[slot]).getMessageId().equals(id)) {
+                return slot;
+            }
+        }
+        return NONE;
+    }
+
+    private QueueMessageReference removeSlot(int slot) {
+        QueueMessageReference ref = (QueueMessageReference)values[slot];
+        unlink(slot);
+        values[slot] = REMOVED;
+        size--;
+        if (size == 0) {
+            // start again without the removed slots to search past
+            Arrays.fill(values, null);
+            used = 0;
+        }
+        return ref;
+    }
+
+    private int hash(long key) {
+        // sequence ids are consecutive, so spread over consecutive slots
+        return (int)(key ^ (key >>> 32)) & mask;
+    }
+
+    private void link(int slot) {
+        before[slot] = tail;
+        after[slot] = NONE;
+        if (tail == NONE) {
+            head = slot;
+        } else {
+            after[tail] = slot;
+        }
+        tail = slot;
+    }
+
+    private void unlink(int slot) {
+        if (before[slot] == NONE) {
+            head = after[slot];
+        } else {
+            after[before[slot]] = after[slot];
+        }
+        if (after[slot] == NONE) {
+            tail = before[slot];
+        } else {
+            before[after[slot]] = before[slot];
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new Object[capacity];
+        before = new int[capacity];
+        after = new int[capacity];
+        mask = capacity - 1;
+        head = NONE;
+        tail = NONE;
+        used = 0;
+    }
+
+    private void rehash(int capacity) {
+        List<QueueMessageReference> refs = values();
+        allocate(capacity);
+        size = 0;
+        for (QueueMessageReference ref : refs) {
+            put(ref);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.broker.region;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import org.apache.activemq.command.MessageId;
+
+/**
+ * The messages a {@link Queue} has paged in, by their {@link MessageId}, in
+ * the order they were paged in.
+ *
+ * Not thread safe, the queue guards it with a lock.
+ */
+abstract class PagedInMessages {
+
+    abstract int size();
+
+    abstract boolean isEmpty();
+
+    /**
+     * @return the message with the id, or null if it has not been paged in.
+     */
+    abstract QueueMessageReference get(MessageId id);
+
+    boolean containsKey(MessageId id) {
+        return get(id) != null;
+    }
+
+    /**
+     * Adds a message, that must not already be in the map.
+     */
+    abstract void put(QueueMessageReference ref);
+
+    /**
+     * @return the message removed with the id, or null if it was not in the
+     *         map.
+     */
+    abstract QueueMessageReference remove(MessageId id);
+
+    /**
+     * Removes the message, for messages that may not have been paged in.
+     *
+     * @return true if it was in the map.
+     */
+    boolean remove(QueueMessageReference ref) {
+        return remove(ref.getMessageId()) != null;
+    }
+
+    /**
+     * @return the messages in the order they were paged in.
+     */
+    abstract List<QueueMessageReference> values();
+
+    /**
+     * The messages in a {@link LinkedHashMap} by their {@link MessageId}.
+     */
+    static final class ByMessageId extends PagedInMessages {
+
+        private final LinkedHashMap<MessageId, QueueMessageReference> messages = new LinkedHashMap<MessageId, QueueMessageReference>();
+
+        @Override
+        int size() {
+            return messages.size();
+        }
+
+        @Override
+        boolean isEmpty() {
+            return messages.isEmpty();
+        }
+
+        @Override
+        QueueMessageReference get(MessageId id) {
+            return messages.get(id);
+        }
+
+        @Override
+        void put(QueueMessageReference ref) {
+            messages.put(ref.getMessageId(), ref);
+        }
+
+        @Override
+        QueueMessageReference remove(MessageId id) {
+            return messages.remove(id);
+        }
+
+        @Override
+        List<QueueMessageReference> values() {
+            return new ArrayList<QueueMessageReference>(messages.values());
+        }
+    }
+}
@@ -0,0 +1,307 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.broker.region;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.activemq.command.ActiveMQQueue;
+import org.apache.activemq.command.ActiveMQTextMessage;
+import org.apache.activemq.command.ConnectionId;
+import org.apache.activemq.command.MessageId;
+import org.apache.activemq.command.ProducerId;
+import org.apache.activemq.command.SessionId;
+import org.apache.activemq.store.kahadb.disk.util.CommandLineSupport;
+
+/**
+ * This class is used to benchmark the structure a {@link Queue} keeps its
+ * paged in messages in, the {@link PagedInMessageMap} keyed by broker
+ * sequence id against the <code>LinkedHashMap</code> keyed by
+ * {@link MessageId} it replaced.
+ *
+ * Each round pages in the given number of messages, checking each is not
+ * already paged in as the queue does, looks each up by an id equal to its
+ * own, as acks and dispatch notifications from the wire carry, and removes
+ * them as they are acked, in the order they were paged in or at random.
+ */
+public class PagedInMessagesBenchmark {
+
+    boolean verbose;
+    int messages = 100000;
+    // remove in random rather than paged in order.
+    boolean randomAcks;
+    long warmupInterval = 5 * 1000;
+    long sampleInterval = 10 * 1000;
+
+    public static void main(String[] args) {
+
+        PagedInMessagesBenchmark benchmark = new PagedInMessagesBenchmark();
+        CommandLineSupport.setOptions(benchmark, args);
+
+        try {
+            ArrayList<Report> reports = benchmark.benchmark();
+            for (Report report : reports) {
+                System.out.println(report.toString());
+            }
+        } catch (Throwable e) {
+            if (benchmark.verbose) {
+                System.out.println("ERROR:");
+                e.printStackTrace(System.out);
+            } else {
+                System.out.println("ERROR: " + e);
+            }
+        }
+    }
+
+    public static class Report {
+
+        public String structure;
+        public int messages;
+        public long rounds;
+        public long pageInTime;
+        public long lookupTime;
+        public long ackTime;
+
+        @Override
+        public String toString() {
+            return
+            structure + " with " + messages + " message(s), " + rounds + " round(s): \n" +
+            "  " + getNanos(pageInTime) + " ns/page in.\n" +
+            "  " + getNanos(lookupTime) + " ns/lookup.\n" +
+            "  " + getNanos(ackTime) + " ns/ack.\n";
+        }
+
+        private float getNanos(long time) {
+            return rounds == 0 ? 0 : (float)time / (rounds * messages);
+        }
+
+        public String getStructure() {
+            return structure;
+        }
+
+        public int getMessages() {
+            return messages;
+        }
+
+        public long getRounds() {
+            return rounds;
+        }
+
+        public long getPageInTime() {
+            return pageInTime;
+        }
+
+        public long getLookupTime() {
+            return lookupTime;
+        }
+
+        public long getAckTime() {
+            return ackTime;
+        }
+    }
+
+    /**
+     * The operations the queue does on its paged in messages.
+     */
+    interface Structure {
+        boolean containsKey(MessageId id);
+
+        void put(QueueMessageReference ref);
+
+        QueueMessageReference get(MessageId id);
+
+        void remove(QueueMessageReference ref);
+
+        int size();
+    }
+
+    static class LinkedHashMapStructure implements Structure {
+        private final LinkedHashMap<MessageId, QueueMessageReference> map = new LinkedHashMap<MessageId, QueueMessageReference>();
+
+        public boolean containsKey(MessageId id) {
+            return map.containsKey(id);
+        }
+
+        public void put(QueueMessageReference ref) {
+            map.put(ref.getMessageId(), ref);
+        }
+
+        public QueueMessageReference get(MessageId id) {
+            return map.get(id);
+        }
+
+        public void remove(QueueMessageReference ref) {
+            map.remove(ref.getMessageId());
+        }
+
+        public int size() {
+            return map.size();
+        }
+    }
+
+    static class PagedInMessageMapStructure implements Structure {
+        private final PagedInMessageMap map = new PagedInMessageMap();
+
+        public boolean containsKey(MessageId id) {
+            return map.containsKey(id);
+        }
+
+        public void put(QueueMessageReference ref) {
+            map.put(ref);
+        }
+
+        public QueueMessageReference get(MessageId id) {
+            return map.get(id);
+        }
+
+        public void remove(QueueMessageReference ref) {
+            map.remove(ref);
+        }
+
+        public int size() {
+            return map.size();
+        }
+    }
+
+    public ArrayList<Report> benchmark() throws Exception {
+        ArrayList<Report> rc = new ArrayList<Report>();
+        List<QueueMessageReference> refs = createReferences(messages);
+        List<MessageId> ids = createAckIds(refs);
+        List<QueueMessageReference> acks = new ArrayList<QueueMessageReference>(refs);
+        if (randomAcks) {
+            Collections.shuffle(acks, new Random(messages));
+        }
+        for (int i = 0; i < 2; i++) {
+            Structure structure = i == 0 ? new LinkedHashMapStructure() : new PagedInMessageMapStructure();
+            Report report = new Report();
+            report.structure = structure.getClass().getSimpleName();
+            report.messages = messages;
+            run(structure, refs, ids, acks, warmupInterval, new Report());
+            run(structure, refs, ids, acks, sampleInterval, report);
+            rc.add(report);
+        }
+        return rc;
+    }
+
+    private void run(Structure structure, List<QueueMessageReference> refs, List<MessageId> ids,
+                     List<QueueMessageReference> acks, long interval, Report report) {
+        long end = System.currentTimeMillis() + interval;
+        long found = 0;
+        while (System.currentTimeMillis() < end) {
+            long start = System.nanoTime();
+            for (QueueMessageReference ref : refs) {
+                if (!structure.containsKey(ref.getMessageId())) {
+                    structure.put(ref);
+                }
+            }
+            long paged = System.nanoTime();
+            for (MessageId id : ids) {
+                if (structure.get(id) != null) {
+                    found++;
+                }
+            }
+            long looked = System.nanoTime();
+            for (QueueMessageReference ref : acks) {
+                structure.remove(ref);
+            }
+            long acked = System.nanoTime();
+            if (structure.size() != 0) {
+                throw new IllegalStateException(structure.size() + " messages left in " + structure);
+            }
+            report.pageInTime += paged - start;
+            report.lookupTime += looked - paged;
+            report.ackTime += acked - looked;
+            report.rounds++;
+        }
+        if (found != report.rounds * refs.size()) {
+            throw new IllegalStateException("Found " + found + " of " + report.rounds * refs.size() + " messages");
+        }
+    }
+
+    private List<QueueMessageReference> createReferences(int count) throws Exception {
+        ActiveMQQueue queue = new ActiveMQQueue("PagedInMessagesBenchmark");
+        ProducerId producerId = new ProducerId(new SessionId(new ConnectionId("ID:PagedInMessagesBenchmark-1"), 1), 1);
+        List<QueueMessageReference> rc = new ArrayList<QueueMessageReference>(count);
+        for (int i = 0; i < count; i++) {
+            ActiveMQTextMessage message = new ActiveMQTextMessage();
+            MessageId id = new MessageId(producerId, i + 1);
+            id.setBrokerSequenceId(1000 + i);
+            message.setMessageId(id);
+            message.setDestination(queue);
+            rc.add(new IndirectMessageReference(message));
+        }
+        return rc;
+    }
+
+    /**
+     * @return ids equal to those of the messages that share nothing with
+     *         them, as if unmarshalled.
+     */
+    private List<MessageId> createAckIds(List<QueueMessageReference> refs) {
+        ProducerId producerId = new ProducerId(new SessionId(new ConnectionId(new String("ID:PagedInMessagesBenchmark-1")), 1), 1);
+        List<MessageId> rc = new ArrayList<MessageId>(refs.size());
+        for (QueueMessageReference ref : refs) {
+            MessageId id = new MessageId(producerId, ref.getMessageId().getProducerSequenceId());
+            id.setBrokerSequenceId(ref.getMessageId().getBrokerSequenceId());
+            rc.add(id);
+        }
+        return rc;
+    }
+
+    public boolean isVerbose() {
+        return verbose;
+    }
+
+    public void setVerbose(boolean verbose) {
+        this.verbose = verbose;
+    }
+
+    public int getMessages() {
+        return messages;
+    }
+
+    public void setMessages(int messages) {
+        this.messages = messages;
+    }
+
+    public boolean isRandomAcks() {
+        return randomAcks;
+    }
+
+    public void setRandomAcks(boolean randomAcks) {
+        this.randomAcks = randomAcks;
+    }
+
+    public long getWarmupInterval() {
+        return warmupInterval;
+    }
+
+    public void setWarmupInterval(long warmupInterval) {
+        this.warmupInterval = warmupInterval;
+    }
+
+    public long getSampleInterval() {
+        return sampleInterval;
+    }
+
+    public void setSampleInterval(long sampleInterval) {
+        this.sampleInterval = sampleInterval;
+    }
+}
@@ -216,6 +216,7 @@ public abstract class PrefetchSubscription extends AbstractSubscription {
                 int index = 0;
                 boolean inAckRange = false;
                 List<MessageReference> removeList = new ArrayList<MessageReference>();
+                List<MessageReference> ackList = new ArrayList<MessageReference>();
                 for (final MessageReference node : dispatched) {
                     MessageId messageId = node.getMessageId();
                     if (ack.getFirstMessageId() == null
@@ -232,7 +233,7 @@ public abstract class PrefetchSubscription extends AbstractSubscription {
                             registerRemoveSync(context, node);
                         }
                         index++;
-                        acknowledge(context, ack, node);
+                        ackList.add(node);
                         if (ack.getLastMessageId().equals(messageId)) {
                             // contract prefetch if dispatch required a pull
                             if (getPrefetchSize() == 0) {
@@ -260,6 +261,7 @@ public abstract class PrefetchSubscription extends AbstractSubscription {
                         }
                     }
                 }
+                acknowledge(context, ack, ackList);
                 for (final MessageReference node : removeList) {
                     dispatched.remove(node);
                 }
@@ -815,6 +817,18 @@ public abstract class PrefetchSubscription extends AbstractSubscription {
      */
     protected abstract void acknowledge(ConnectionContext context, final MessageAck ack, final MessageReference node) throws IOException;
 
+    /**
+     * Used during acknowledgment to remove all the messages covered by a ranged
+     * ack, so they can be removed together.
+     *
+     * @throws IOException
+     */
+    protected void acknowledge(ConnectionContext context, final MessageAck ack, final List<MessageReference> nodes) throws IOException {
+        for (MessageReference node : nodes) {
+            acknowledge(context, ack, node);
+        }
+    }
+
 
     public int getMaxProducersToAudit() {
         return maxProducersToAudit;
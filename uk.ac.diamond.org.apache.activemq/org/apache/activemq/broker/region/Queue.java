@@ -85,7 +85,7 @@ public class Queue extends BaseDestination implements Task, UsageListener {
     private final ReentrantReadWriteLock messagesLock = new ReentrantReadWriteLock();
     protected PendingMessageCursor messages;
     private final ReentrantReadWriteLock pagedInMessagesLock = new ReentrantReadWriteLock();
-    private final LinkedHashMap<MessageId, QueueMessageReference> pagedInMessages = new LinkedHashMap<MessageId, QueueMessageReference>();
+    private PagedInMessages pagedInMessages = new PagedInMessages.ByMessageId();
     // Messages that are paged in but have not yet been targeted at a subscription
     private final ReentrantReadWriteLock pagedInPendingDispatchLock = new ReentrantReadWriteLock();
     protected PendingList pagedInPendingDispatch = new OrderedPendingList();
@@ -107,6 +107,9 @@ public class Queue extends BaseDestination implements Task, UsageListener {
     private CountDownLatch consumersBeforeStartsLatch;
     private final AtomicLong pendingWakeups = new AtomicLong();
     private boolean allConsumersExclusiveByDefault = false;
+    private boolean dispatchLanes = false;
+    private boolean indexPagedInBySequenceId = false;
+    private final Map<Subscription, QueueDispatchLane> lanes = new ConcurrentHashMap<Subscription, QueueDispatchLane>();
 
     private final Runnable sendMessagesWaitingForSpaceTask = new Runnable() {
         @Override
@@ -413,6 +416,10 @@ public class Queue extends BaseDestination implements Task, UsageListener {
 
             sub.add(context, this);
 
+            if (dispatchLanes && taskFactory != null && !sub.isBrowser() && sub.getPrefetchSize() > 0) {
+                lanes.put(sub, new QueueDispatchLane(this, sub, taskFactory));
+            }
+
             // needs to be synchronized - so no contention with dispatching
             // consumersLock.
             consumersLock.writeLock().lock();
@@ -469,6 +476,13 @@ public class Queue extends BaseDestination implements Task, UsageListener {
     public void removeSubscription(ConnectionContext context, Subscription sub, long lastDeiveredSequenceId)
             throws Exception {
         super.removeSubscription(context, sub, lastDeiveredSequenceId);
+        // outside of the locks the subscription can take while the lane
+        // dispatches to it
+        List<MessageReference> undispatched = Collections.emptyList();
+        QueueDispatchLane lane = lanes.remove(sub);
+        if (lane != null) {
+            undispatched = lane.close();
+        }
         // synchronize with dispatch method so that no new messages are sent
         // while removing up a subscription.
         pagedInPendingDispatchLock.writeLock().lock();
@@ -552,6 +566,12 @@ public class Queue extends BaseDestination implements Task, UsageListener {
                         redeliveredWaitingDispatch.addMessageLast(qmr);
                     }
                 }
+                // assigned but never given to the subscription
+                for (MessageReference ref : undispatched) {
+                    if (!ref.isDropped()) {
+                        redeliveredWaitingDispatch.addMessageLast(ref);
+                    }
+                }
                 if (sub instanceof QueueBrowserSubscription) {
                     ((QueueBrowserSubscription)sub).decrementQueueRef();
                     browserDispatches.remove(sub);
@@ -576,6 +596,29 @@ public class Queue extends BaseDestination implements Task, UsageListener {
         }
     }
 
+    /**
+     * Takes back messages a lane failed to add to its subscription, to be
+     * dispatched again after the redelivered ones.  They are tried again the
+     * next time the queue dispatches, as they were when adding them failed
+     * before there were lanes, rather than straight away.
+     */
+    void undispatched(Subscription sub, List<MessageReference> nodes) {
+        pagedInPendingDispatchLock.writeLock().lock();
+        try {
+            for (MessageReference ref : nodes) {
+                QueueMessageReference qmr = (QueueMessageReference) ref;
+                if (qmr.getLockOwner() == sub) {
+                    qmr.unlock();
+                }
+                if (!qmr.isDropped() && !qmr.isAcked()) {
+                    redeliveredWaitingDispatch.addMessageLast(qmr);
+                }
+            }
+        } finally {
+            pagedInPendingDispatchLock.writeLock().unlock();
+        }
+    }
+
     @Override
     public void send(final ProducerBrokerExchange producerExchange, final Message message) throws Exception {
         final ConnectionContext context = producerExchange.getConnectionContext();
@@ -846,6 +889,9 @@ public class Queue extends BaseDestination implements Task, UsageListener {
                 if (isReduceMemoryFootprint()) {
                     message.clearMarshalledState();
                 }
+            } else if (indexPagedInBySequenceId) {
+                // pagedInMessages is keyed by it
+                message.getMessageId().setBrokerSequenceId(getDestinationSequenceId());
             }
             if (context.isInTransaction()) {
                 // If this is a transacted message.. increase the usage now so that
@@ -920,6 +966,24 @@ public class Queue extends BaseDestination implements Task, UsageListener {
         }
     }
 
+    /**
+     * Acknowledges the messages covered by one ack, removing the persistent
+     * ones from the store as a single batch.
+     */
+    public void acknowledge(ConnectionContext context, Subscription sub, MessageAck ack, List<QueueMessageReference> nodes)
+            throws IOException {
+        List<MessageAck> acks = new ArrayList<MessageAck>(nodes.size());
+        for (QueueMessageReference node : nodes) {
+            messageConsumed(context, node);
+            if (store != null && node.isPersistent()) {
+                acks.add(convertToNonRangedAck(ack, node));
+            }
+        }
+        if (!acks.isEmpty()) {
+            store.removeMessages(context, acks);
+        }
+    }
+
     Message loadMessage(MessageId messageId) throws IOException {
         Message msg = null;
         if (store != null) { // can be null for a temp q
@@ -966,6 +1030,10 @@ public class Queue extends BaseDestination implements Task, UsageListener {
         if (taskRunner != null) {
             taskRunner.shutdown();
         }
+        for (QueueDispatchLane lane : lanes.values()) {
+            lane.close();
+        }
+        lanes.clear();
         if (this.executor != null) {
             ThreadPoolUtils.shutdownNow(executor);
             executor = null;
@@ -1076,6 +1144,53 @@ public class Queue extends BaseDestination implements Task, UsageListener {
         return allConsumersExclusiveByDefault;
     }
 
+    public boolean isDispatchLanes() {
+        return dispatchLanes;
+    }
+
+    /**
+     * Gives each subscription a lane, with a task of its own from the
+     * broker's task runner factory, that adds the messages the queue assigns
+     * it to the subscription, rather than the queue's task adding them to
+     * every subscription.  The queue's task still picks the subscription for
+     * each message, by its selector, message group and exclusive consumer,
+     * while the lanes add them at the same time, each in the order they were
+     * assigned.
+     *
+     * Takes effect for subscriptions added afterwards, those with a prefetch
+     * of 0 and browsers are always added to by the queue's task.
+     */
+    public void setDispatchLanes(boolean dispatchLanes) {
+        this.dispatchLanes = dispatchLanes;
+    }
+
+    public boolean isIndexPagedInBySequenceId() {
+        return indexPagedInBySequenceId;
+    }
+
+    /**
+     * Keeps the paged in messages in a hash table of the broker sequence ids
+     * the queue gives messages when they are sent, rather than a map by
+     * message id, so paging in, acking and finding a message compare longs
+     * rather than message ids.  Non persistent messages are given sequence
+     * ids too, as only persistent ones are otherwise.
+     */
+    public void setIndexPagedInBySequenceId(boolean indexPagedInBySequenceId) {
+        pagedInMessagesLock.writeLock().lock();
+        try {
+            if (this.indexPagedInBySequenceId != indexPagedInBySequenceId) {
+                PagedInMessages replacement = indexPagedInBySequenceId ? new PagedInMessageMap() : new PagedInMessages.ByMessageId();
+                for (QueueMessageReference ref : pagedInMessages.values()) {
+                    replacement.put(ref);
+                }
+                pagedInMessages = replacement;
+                this.indexPagedInBySequenceId = indexPagedInBySequenceId;
+            }
+        } finally {
+            pagedInMessagesLock.writeLock().unlock();
+        }
+    }
+
     // Implementation methods
     // -------------------------------------------------------------------------
     private QueueMessageReference createMessageReference(Message message) {
@@ -1123,7 +1238,7 @@ public class Queue extends BaseDestination implements Task, UsageListener {
                 } else {
                     pagedInMessagesLock.writeLock().lock();
                     try {
-                        pagedInMessages.remove(ref.getMessageId());
+                        pagedInMessages.remove((QueueMessageReference)ref);
                     } finally {
                         pagedInMessagesLock.writeLock().unlock();
                     }
@@ -1697,43 +1812,64 @@ public class Queue extends BaseDestination implements Task, UsageListener {
 
     protected void removeMessage(ConnectionContext context, Subscription sub, final QueueMessageReference reference,
             MessageAck ack) throws IOException {
-        reference.setAcked(true);
-        // This sends the ack the the journal..
+        removeMessages(context, sub, Collections.singletonList(reference), ack);
+    }
+
+    protected void removeMessages(ConnectionContext context, Subscription sub, final List<QueueMessageReference> references,
+            MessageAck ack) throws IOException {
+        for (QueueMessageReference reference : references) {
+            reference.setAcked(true);
+        }
+        // This sends the acks to the store..
         if (!ack.isInTransaction()) {
-            acknowledge(context, sub, ack, reference);
-            getDestinationStatistics().getDequeues().increment();
-            dropMessage(reference);
+            acknowledgeRemoved(context, sub, ack, references);
+            for (QueueMessageReference reference : references) {
+                getDestinationStatistics().getDequeues().increment();
+                dropMessage(reference);
+            }
         } else {
             try {
-                acknowledge(context, sub, ack, reference);
+                acknowledgeRemoved(context, sub, ack, references);
             } finally {
-                context.getTransaction().addSynchronization(new Synchronization() {
-
-                    @Override
-                    public void afterCommit() throws Exception {
-                        getDestinationStatistics().getDequeues().increment();
-                        dropMessage(reference);
-                        wakeup();
-                    }
+                for (final QueueMessageReference reference : references) {
+                    context.getTransaction().addSynchronization(new Synchronization() {
+
+                        @Override
+                        public void afterCommit() throws Exception {
+                            getDestinationStatistics().getDequeues().increment();
+                            dropMessage(reference);
+                            wakeup();
+                        }
 
-                    @Override
-                    public void afterRollback() throws Exception {
-                        reference.setAcked(false);
-                        wakeup();
-                    }
-                });
+                        @Override
+                        public void afterRollback() throws Exception {
+                            reference.setAcked(false);
+                            wakeup();
+                        }
+                    });
+                }
             }
         }
         if (ack.isPoisonAck() || (sub != null && sub.getConsumerInfo().isNetworkSubscription())) {
             // message gone to DLQ, is ok to allow redelivery
             messagesLock.writeLock().lock();
             try {
-                messages.rollback(reference.getMessageId());
+                for (QueueMessageReference reference : references) {
+                    messages.rollback(reference.getMessageId());
+                }
             } finally {
                 messagesLock.writeLock().unlock();
             }
         }
+    }
 
+    private void acknowledgeRemoved(ConnectionContext context, Subscription sub, MessageAck ack,
+            List<QueueMessageReference> references) throws IOException {
+        if (references.size() == 1) {
+            acknowledge(context, sub, ack, references.get(0));
+        } else {
+            acknowledge(context, sub, ack, references);
+        }
     }
 
     private void dropMessage(QueueMessageReference reference) {
@@ -1742,7 +1878,7 @@ public class Queue extends BaseDestination implements Task, UsageListener {
             destinationStatistics.getMessages().decrement();
             pagedInMessagesLock.writeLock().lock();
             try {
-                pagedInMessages.remove(reference.getMessageId());
+                pagedInMessages.remove(reference);
             } finally {
                 pagedInMessagesLock.writeLock().unlock();
             }
@@ -1906,7 +2042,7 @@ public class Queue extends BaseDestination implements Task, UsageListener {
                 }
                 for (QueueMessageReference ref : result) {
                     if (!pagedInMessages.containsKey(ref.getMessageId())) {
-                        pagedInMessages.put(ref.getMessageId(), ref);
+                        pagedInMessages.put(ref);
                         resultList.addMessageLast(ref);
                     } else {
                         ref.decrementReferenceCount();
@@ -1982,7 +2118,19 @@ public class Queue extends BaseDestination implements Task, UsageListener {
         }
 
         Set<Subscription> fullConsumers = new HashSet<Subscription>(this.consumers.size());
+        Set<QueueDispatchLane> wakeLanes = new LinkedHashSet<QueueDispatchLane>();
+        try {
+            return doActualDispatch(list, consumers, fullConsumers, wakeLanes);
+        } finally {
+            // hand the lanes what they were assigned in one go
+            for (QueueDispatchLane lane : wakeLanes) {
+                lane.wakeup();
+            }
+        }
+    }
 
+    private PendingList doActualDispatch(PendingList list, List<Subscription> consumers, Set<Subscription> fullConsumers,
+                                         Set<QueueDispatchLane> wakeLanes) throws Exception {
         for (Iterator<MessageReference> iterator = list.iterator(); iterator.hasNext();) {
 
             MessageReference node = iterator.next();
@@ -1992,10 +2140,16 @@ public class Queue extends BaseDestination implements Task, UsageListener {
                     continue;
                 }
                 if (!fullConsumers.contains(s)) {
-                    if (!s.isFull()) {
+                    QueueDispatchLane lane = lanes.get(s);
+                    if (lane == null ? !s.isFull() : lane.getPendingSize() < s.countBeforeFull()) {
                         if (dispatchSelector.canSelect(s, node) && assignMessageGroup(s, (QueueMessageReference)node) && !((QueueMessageReference) node).isAcked() ) {
-                            // Dispatch it.
-                            s.add(node);
+                            // Dispatch it, through its lane if it has one
+                            // that has not just been closed.
+                            if (lane != null && lane.add(node)) {
+                                wakeLanes.add(lane);
+                            } else {
+                                s.add(node);
+                            }
                             iterator.remove();
                             target = s;
                             break;
@@ -2107,6 +2261,10 @@ public class Queue extends BaseDestination implements Task, UsageListener {
             for (Subscription s : consumers) {
                 zeroPrefetch |= s.getPrefetchSize() == 0;
                 int countBeforeFull = s.countBeforeFull();
+                QueueDispatchLane lane = lanes.get(s);
+                if (lane != null) {
+                    countBeforeFull -= lane.getPendingSize();
+                }
                 total += countBeforeFull;
             }
         } finally {
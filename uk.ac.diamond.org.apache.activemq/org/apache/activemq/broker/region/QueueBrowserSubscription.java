@@ -97,6 +97,13 @@ public class QueueBrowserSubscription extends QueueSubscription {
         }
     }
 
+    @Override
+    protected void acknowledge(ConnectionContext context, final MessageAck ack, final List<MessageReference> nodes) throws IOException {
+        if (info.isNetworkSubscription()) {
+            super.acknowledge(context, ack, nodes);
+        }
+    }
+
     synchronized public void incrementQueueRef() {
         queueRefs++;
     }
@@ -0,0 +1,157 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.broker.region;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.apache.activemq.thread.Task;
+import org.apache.activemq.thread.TaskRunner;
+import org.apache.activemq.thread.TaskRunnerFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The lane a {@link Queue} dispatches the messages it assigns to one of its
+ * subscriptions through, see {@link Queue#setDispatchLanes(boolean)}.  The
+ * queue's task assigns messages, and hands them to the lane, whose own task
+ * adds them to the subscription in the order it was given them.
+ *
+ * Messages handed to the lane count towards the subscription's prefetch
+ * until it has them, so the queue does not assign it more than it can take.
+ * Those the subscription fails to take are handed back to the queue.
+ */
+class QueueDispatchLane implements Task {
+
+    private static final Logger LOG = LoggerFactory.getLogger(QueueDispatchLane.class);
+    private static final int MAX_MESSAGES_PER_ITERATION = 100;
+
+    private final Queue queue;
+    private final Subscription subscription;
+    private final TaskRunner taskRunner;
+    // held while adding to the subscription, so close() can wait for it
+    private final Object dispatchMutex = new Object();
+    // guarded by itself, never held while calling out
+    private final LinkedList<MessageReference> pending = new LinkedList<MessageReference>();
+    private volatile int pendingSize;
+    private boolean closed;
+
+    QueueDispatchLane(Queue queue, Subscription subscription, TaskRunnerFactory taskFactory) {
+        this.queue = queue;
+        this.subscription = subscription;
+        this.taskRunner = taskFactory.createTaskRunner(this, "Queue:" + queue.getActiveMQDestination().getPhysicalName()
+                                                       + " lane " + subscription.getConsumerInfo().getConsumerId());
+    }
+
+    /**
+     * Queues the message for the subscription, until {@link #wakeup()}.
+     *
+     * @return false if the lane has been closed.
+     */
+    boolean add(MessageReference node) {
+        synchronized (pending) {
+            if (closed) {
+                return false;
+            }
+            pending.addLast(node);
+            pendingSize++;
+            return true;
+        }
+    }
+
+    void wakeup() throws InterruptedException {
+        taskRunner.wakeup();
+    }
+
+    @Override
+    public boolean iterate() {
+        List<MessageReference> failed = new ArrayList<MessageReference>(0);
+        try {
+            return dispatch(failed);
+        } finally {
+            // outside of dispatchMutex, as close() is called holding none of
+            // the queue's locks
+            if (!failed.isEmpty()) {
+                queue.undispatched(subscription, failed);
+            }
+        }
+    }
+
+    private boolean dispatch(List<MessageReference> failed) {
+        synchronized (dispatchMutex) {
+            for (int i = 0; i < MAX_MESSAGES_PER_ITERATION; i++) {
+                MessageReference node;
+                synchronized (pending) {
+                    if (closed || pending.isEmpty()) {
+                        return false;
+                    }
+                    node = pending.removeFirst();
+                }
+                try {
+                    QueueMessageReference qmr = (QueueMessageReference)node;
+                    // removed from the queue while waiting
+                    if (!qmr.isAcked() && !qmr.isDropped()) {
+                        subscription.add(node);
+                    }
+                } catch (Throwable e) {
+                    LOG.warn("Failed to dispatch {} to {}", new Object[] {node.getMessageId(), subscription, e});
+                    failed.add(node);
+                } finally {
+                    synchronized (pending) {
+                        pendingSize--;
+                    }
+                }
+            }
+            synchronized (pending) {
+                return !closed && !pending.isEmpty();
+            }
+        }
+    }
+
+    /**
+     * Stops the lane, waiting for it to finish adding any message to the
+     * subscription, and must not be called holding the queue's locks, which
+     * the subscription can take.
+     *
+     * @return the messages the subscription was never given, in order.
+     */
+    List<MessageReference> close() throws InterruptedException {
+        List<MessageReference> rc;
+        synchronized (dispatchMutex) {
+            synchronized (pending) {
+                closed = true;
+                rc = new ArrayList<MessageReference>(pending);
+                pending.clear();
+                pendingSize = 0;
+            }
+        }
+        taskRunner.shutdown();
+        return rc;
+    }
+
+    /**
+     * @return the number of messages waiting to be added to the subscription.
+     */
+    int getPendingSize() {
+        return pendingSize;
+    }
+
+    Subscription getSubscription() {
+        return subscription;
+    }
+}
@@ -17,6 +17,10 @@
 package org.apache.activemq.broker.region;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 import javax.jms.JMSException;
 
@@ -53,14 +57,56 @@ public class QueueSubscription extends PrefetchSubscription implements LockOwner
         final QueueMessageReference node = (QueueMessageReference)n;
         final Queue queue = (Queue)q;
 
+        if (isExpiredElsewhere(ack, n)) {
+            return;
+        }
+        queue.removeMessage(context, this, node, ack);
+    }
+
+    /**
+     * Removes the messages of each queue covered by the ack as one batch.
+     *
+     * @throws IOException
+     */
+    @Override
+    protected void acknowledge(final ConnectionContext context, final MessageAck ack, final List<MessageReference> nodes) throws IOException {
+        if (nodes.size() <= 1) {
+            super.acknowledge(context, ack, nodes);
+            return;
+        }
+        this.setTimeOfLastMessageAck(System.currentTimeMillis());
+
+        Map<Queue, List<QueueMessageReference>> batches = new LinkedHashMap<Queue, List<QueueMessageReference>>();
+        for (MessageReference n : nodes) {
+            if (isExpiredElsewhere(ack, n)) {
+                continue;
+            }
+            Queue queue = (Queue) n.getRegionDestination();
+            List<QueueMessageReference> batch = batches.get(queue);
+            if (batch == null) {
+                batch = new ArrayList<QueueMessageReference>();
+                batches.put(queue, batch);
+            }
+            batch.add((QueueMessageReference) n);
+        }
+        for (Map.Entry<Queue, List<QueueMessageReference>> entry : batches.entrySet()) {
+            entry.getKey().removeMessages(context, this, entry.getValue(), ack);
+        }
+    }
+
+    /**
+     * @return true if the message has expired and its expiry is already being
+     *         processed, so the ack should be ignored.
+     */
+    private boolean isExpiredElsewhere(MessageAck ack, MessageReference n) {
         if (n.isExpired()) {
             // sync with message expiry processing
             if (!broker.isExpired(n)) {
                 LOG.debug("ignoring ack {}, for already expired message: {}", ack, n);
-                return;
+                return true;
             }
         }
-        queue.removeMessage(context, this, node, ack);
+        return false;
     }
 
     @Override
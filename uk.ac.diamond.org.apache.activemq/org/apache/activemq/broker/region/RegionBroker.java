@@ -28,6 +28,7 @@ import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import javax.jms.InvalidClientIDException;
@@ -69,7 +70,6 @@ import org.apache.activemq.usage.SystemUsage;
 import org.apache.activemq.util.BrokerSupport;
 import org.apache.activemq.util.IdGenerator;
 import org.apache.activemq.util.InetAddressUtil;
-import org.apache.activemq.util.LongSequenceGenerator;
 import org.apache.activemq.util.ServiceStopper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -99,7 +99,7 @@ public class RegionBroker extends EmptyBroker {
     private final Map<ActiveMQDestination, Destination> destinations = new ConcurrentHashMap<ActiveMQDestination, Destination>();
     private final Map<BrokerId, BrokerInfo> brokerInfos = new HashMap<BrokerId, BrokerInfo>();
 
-    private final LongSequenceGenerator sequenceGenerator = new LongSequenceGenerator();
+    private final AtomicLong sequenceGenerator = new AtomicLong();
     private BrokerId brokerId;
     private String brokerName;
     private final Map<String, ConnectionContext> clientIdSet = new HashMap<String, ConnectionContext>();
@@ -125,7 +125,7 @@ public class RegionBroker extends EmptyBroker {
         if (destinationFactory == null) {
             throw new IllegalArgumentException("null destinationFactory");
         }
-        this.sequenceGenerator.setLastSequenceId(destinationFactory.getLastMessageBrokerSequenceId());
+        this.sequenceGenerator.set(destinationFactory.getLastMessageBrokerSequenceId());
         this.destinationFactory = destinationFactory;
         queueRegion = createQueueRegion(memoryManager, taskRunnerFactory, destinationFactory);
         topicRegion = createTopicRegion(memoryManager, taskRunnerFactory, destinationFactory);
@@ -765,9 +765,7 @@ public class RegionBroker extends EmptyBroker {
      */
     @Override
     public long getBrokerSequenceId() {
-        synchronized (sequenceGenerator) {
-            return sequenceGenerator.getNextSequenceId();
-        }
+        return sequenceGenerator.incrementAndGet();
     }
 
     @Override
@@ -25,6 +25,7 @@ import java.util.concurrent.CancellationException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.apache.activemq.advisory.AdvisorySupport;
@@ -48,6 +49,7 @@ import org.apache.activemq.command.Response;
 import org.apache.activemq.command.SubscriptionInfo;
 import org.apache.activemq.filter.MessageEvaluationContext;
 import org.apache.activemq.filter.NonCachedMessageEvaluationContext;
+import org.apache.activemq.management.TimeStatisticImpl;
 import org.apache.activemq.store.MessageRecoveryListener;
 import org.apache.activemq.store.TopicMessageStore;
 import org.apache.activemq.thread.Task;
@@ -68,6 +70,12 @@ public class Topic extends BaseDestination implements Task {
     protected final CopyOnWriteArrayList<Subscription> consumers = new CopyOnWriteArrayList<Subscription>();
     private final ReentrantReadWriteLock dispatchLock = new ReentrantReadWriteLock();
     private DispatchPolicy dispatchPolicy = new SimpleDispatchPolicy();
+    private boolean concurrentSend;
+    private int dispatchShards;
+    private TopicDispatchShard[] shards;
+    // changed whenever the consumers are
+    private final AtomicLong consumersVersion = new AtomicLong();
+    private final TaskRunnerFactory taskFactory;
     private SubscriptionRecoveryPolicy subscriptionRecoveryPolicy;
     private final ConcurrentHashMap<SubscriptionKey, DurableTopicSubscription> durableSubscribers = new ConcurrentHashMap<SubscriptionKey, DurableTopicSubscription>();
     private final TaskRunner taskRunner;
@@ -94,6 +102,7 @@ public class Topic extends BaseDestination implements Task {
             subscriptionRecoveryPolicy = new NoSubscriptionRecoveryPolicy();
         }
         this.taskRunner = taskFactory.createTaskRunner(this, "Topic  " + destination.getPhysicalName());
+        this.taskFactory = taskFactory;
     }
 
     @Override
@@ -134,6 +143,7 @@ public class Topic extends BaseDestination implements Task {
                         if (!consumers.contains(sub)){
                             sub.add(context, this);
                             consumers.add(sub);
+                            consumersChanged();
                             applyRecovery=true;
                             super.addSubscription(context, sub);
                         }
@@ -150,6 +160,7 @@ public class Topic extends BaseDestination implements Task {
                     if (!consumers.contains(sub)){
                         sub.add(context, this);
                         consumers.add(sub);
+                        consumersChanged();
                         super.addSubscription(context, sub);
                     }
                 }
@@ -178,6 +189,7 @@ public class Topic extends BaseDestination implements Task {
 
                     if (!hasSubscription) {
                         consumers.add(sub);
+                        consumersChanged();
                     }
                 }
             }
@@ -191,6 +203,7 @@ public class Topic extends BaseDestination implements Task {
             super.removeSubscription(context, sub, lastDeliveredSequenceId);
             synchronized (consumers) {
                 consumers.remove(sub);
+                consumersChanged();
             }
         }
         sub.remove(context, this);
@@ -205,6 +218,7 @@ public class Topic extends BaseDestination implements Task {
                 // deactivate and remove
                 removed.deactivate(false);
                 consumers.remove(removed);
+                consumersChanged();
             }
         }
     }
@@ -233,11 +247,13 @@ public class Topic extends BaseDestination implements Task {
                     info = null;
                     synchronized (consumers) {
                         consumers.remove(subscription);
+                        consumersChanged();
                     }
                 } else {
                     synchronized (consumers) {
                         if (!consumers.contains(subscription)) {
                             consumers.add(subscription);
+                            consumersChanged();
                         }
                     }
                 }
@@ -255,6 +271,7 @@ public class Topic extends BaseDestination implements Task {
                 // This destination might be a pattern
                 synchronized (consumers) {
                     consumers.add(subscription);
+                    consumersChanged();
                     topicStore.addSubsciption(info, subscription.getConsumerInfo().isRetroactive());
                 }
             }
@@ -301,6 +318,7 @@ public class Topic extends BaseDestination implements Task {
     public void deactivate(ConnectionContext context, DurableTopicSubscription sub, List<MessageReference> dispatched) throws Exception {
         synchronized (consumers) {
             consumers.remove(sub);
+            consumersChanged();
         }
         sub.remove(context, this, dispatched);
     }
@@ -447,21 +465,36 @@ public class Topic extends BaseDestination implements Task {
 
     /**
      * do send the message - this needs to be synchronized to ensure messages
-     * are stored AND dispatched in the right order
+     * are stored AND dispatched in the right order, unless sends are
+     * concurrent and the message is not stored, see
+     * {@link #setConcurrentSend(boolean)}
      *
      * @param producerExchange
      * @param message
      * @throws IOException
      * @throws Exception
      */
-    synchronized void doMessageSend(final ProducerBrokerExchange producerExchange, final Message message)
+    void doMessageSend(final ProducerBrokerExchange producerExchange, final Message message)
+            throws IOException, Exception {
+        // durable subscriptions ack stored messages by the highest one
+        // acked, so they must be dispatched in the order they are stored
+        if (concurrentSend && !isStored(message)) {
+            storeAndDispatch(producerExchange, message);
+        } else {
+            synchronized (this) {
+                storeAndDispatch(producerExchange, message);
+            }
+        }
+    }
+
+    private void storeAndDispatch(final ProducerBrokerExchange producerExchange, final Message message)
             throws IOException, Exception {
         final ConnectionContext context = producerExchange.getConnectionContext();
         message.setRegionDestination(this);
         message.getMessageId().setBrokerSequenceId(getDestinationSequenceId());
         Future<Object> result = null;
 
-        if (topicStore != null && message.isPersistent() && !canOptimizeOutPersistence()) {
+        if (isStored(message)) {
             if (systemUsage.getStoreUsage().isFull(getStoreUsageHighWaterMark())) {
                 final String logMessage = "Persistent store is Full, " + getStoreUsageHighWaterMark() + "% of "
                         + systemUsage.getStoreUsage().getLimit() + ". Stopping producer (" + message.getProducerId()
@@ -517,6 +550,10 @@ public class Topic extends BaseDestination implements Task {
         }
     }
 
+    private boolean isStored(Message message) {
+        return topicStore != null && message.isPersistent() && !canOptimizeOutPersistence();
+    }
+
     private boolean canOptimizeOutPersistence() {
         return durableSubscribers.size() == 0;
     }
@@ -549,6 +586,13 @@ public class Topic extends BaseDestination implements Task {
     @Override
     public void start() throws Exception {
         this.subscriptionRecoveryPolicy.start();
+        if (dispatchShards > 0 && shards == null) {
+            TopicDispatchShard[] shards = new TopicDispatchShard[dispatchShards];
+            for (int i = 0; i < shards.length; i++) {
+                shards[i] = new TopicDispatchShard(this, i, shards.length, taskFactory);
+            }
+            this.shards = shards;
+        }
         if (memoryUsage != null) {
             memoryUsage.start();
         }
@@ -563,6 +607,13 @@ public class Topic extends BaseDestination implements Task {
         if (taskRunner != null) {
             taskRunner.shutdown();
         }
+        TopicDispatchShard[] shards = this.shards;
+        if (shards != null) {
+            this.shards = null;
+            for (TopicDispatchShard shard : shards) {
+                shard.stop();
+            }
+        }
         this.subscriptionRecoveryPolicy.stop();
         if (memoryUsage != null) {
             memoryUsage.stop();
@@ -673,6 +724,87 @@ public class Topic extends BaseDestination implements Task {
         this.subscriptionRecoveryPolicy = subscriptionRecoveryPolicy;
     }
 
+    public boolean isConcurrentSend() {
+        return concurrentSend;
+    }
+
+    /**
+     * Lets producers send to the topic at the same time, rather than one
+     * after the other.  Each message still takes the next broker sequence
+     * id, without a lock, and is stored and then dispatched to the
+     * subscriptions by the producer's thread, but with no lock held on the
+     * topic as a whole.
+     *
+     * The messages of each producer keep their order, as a producer's sends
+     * are handled one after the other by its connection, but the messages
+     * of different producers may be dispatched to one subscription in a
+     * different order than to another.  Messages that are stored, persistent
+     * ones while there are durable subscribers, are still sent one at a time
+     * so they are dispatched in the order they are stored in.
+     */
+    public void setConcurrentSend(boolean concurrentSend) {
+        this.concurrentSend = concurrentSend;
+    }
+
+    public int getDispatchShards() {
+        return dispatchShards;
+    }
+
+    /**
+     * Divides the subscriptions between the given number of shards, each
+     * with a task of its own from the broker's task runner factory, to
+     * dispatch messages to them, rather than the producer's thread
+     * dispatching to every subscription.  A message is handed to the shards
+     * and the producer carries on, the messages count against the topic's
+     * memory limit until every shard has dispatched them.
+     *
+     * Each subscription is always in the same shard, which dispatches
+     * messages in the order it was given them, so the subscription gets them
+     * in the order they were sent.  Takes effect when the topic starts, 0,
+     * the default, has the producer dispatch.
+     */
+    public void setDispatchShards(int dispatchShards) {
+        this.dispatchShards = dispatchShards;
+    }
+
+    /**
+     * @return the time messages took to be dispatched by each shard, from
+     *         being sent, in microseconds, none if there are no shards.
+     */
+    public TimeStatisticImpl[] getDispatchShardLatencies() {
+        TopicDispatchShard[] shards = this.shards;
+        TimeStatisticImpl[] rc = new TimeStatisticImpl[shards != null ? shards.length : 0];
+        for (int i = 0; i < rc.length; i++) {
+            rc[i] = shards[i].getLatency();
+        }
+        return rc;
+    }
+
+    /**
+     * @return the number of messages each shard has still to dispatch.
+     */
+    public int[] getDispatchShardPendingSizes() {
+        TopicDispatchShard[] shards = this.shards;
+        int[] rc = new int[shards != null ? shards.length : 0];
+        for (int i = 0; i < rc.length; i++) {
+            rc[i] = shards[i].getPendingSize();
+        }
+        return rc;
+    }
+
+    /**
+     * @return the number of subscriptions of each shard, as of the last
+     *         message it dispatched.
+     */
+    public int[] getDispatchShardSubscriptionCounts() {
+        TopicDispatchShard[] shards = this.shards;
+        int[] rc = new int[shards != null ? shards.length : 0];
+        for (int i = 0; i < rc.length; i++) {
+            rc[i] = shards[i].getSubscriptionCount();
+        }
+        return rc;
+    }
+
     // Implementation methods
     // -------------------------------------------------------------------------
 
@@ -680,6 +812,27 @@ public class Topic extends BaseDestination implements Task {
     public final void wakeup() {
     }
 
+    private void consumersChanged() {
+        consumersVersion.incrementAndGet();
+    }
+
+    long getConsumersVersion() {
+        return consumersVersion.get();
+    }
+
+    /**
+     * Dispatches a message to some of the subscriptions, for a dispatch
+     * shard.
+     */
+    boolean dispatch(Message message, MessageEvaluationContext msgContext, List<Subscription> subscriptions) throws Exception {
+        dispatchLock.readLock().lock();
+        try {
+            return dispatchPolicy.dispatch(message, msgContext, subscriptions);
+        } finally {
+            dispatchLock.readLock().unlock();
+        }
+    }
+
     protected void dispatch(final ConnectionContext context, Message message) throws Exception {
         // AMQ-2586: Better to leave this stat at zero than to give the user
         // misleading metrics.
@@ -693,11 +846,29 @@ public class Topic extends BaseDestination implements Task {
             if (!subscriptionRecoveryPolicy.add(context, message)) {
                 return;
             }
-            synchronized (consumers) {
+            if (concurrentSend) {
+                // the list is copy on write, no need to hold it still
                 if (consumers.isEmpty()) {
                     onMessageWithNoConsumers(context, message);
                     return;
                 }
+            } else {
+                synchronized (consumers) {
+                    if (consumers.isEmpty()) {
+                        onMessageWithNoConsumers(context, message);
+                        return;
+                    }
+                }
+            }
+            TopicDispatchShard[] shards = this.shards;
+            if (shards != null) {
+                // the last shard to dispatch it lets it go
+                message.incrementReferenceCount();
+                TopicDispatchShard.FanOut fanOut = new TopicDispatchShard.FanOut(context, message, shards.length);
+                for (TopicDispatchShard shard : shards) {
+                    shard.add(fanOut);
+                }
+                return;
             }
             msgContext = context.getMessageEvaluationContext();
             msgContext.setDestination(destination);
@@ -0,0 +1,182 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.broker.region;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.activemq.broker.ConnectionContext;
+import org.apache.activemq.command.Message;
+import org.apache.activemq.filter.MessageEvaluationContext;
+import org.apache.activemq.management.TimeStatisticImpl;
+import org.apache.activemq.thread.Task;
+import org.apache.activemq.thread.TaskRunner;
+import org.apache.activemq.thread.TaskRunnerFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * One of the shards a {@link Topic} divides its subscriptions between, see
+ * {@link Topic#setDispatchShards(int)}.  Each message the topic is sent is
+ * given to every shard and the shard's task dispatches the messages to the
+ * shard's subscriptions in the order it was given them, so a subscription
+ * gets the messages in the same order as if the producer had dispatched
+ * them.
+ */
+class TopicDispatchShard implements Task {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TopicDispatchShard.class);
+    private static final int MAX_MESSAGES_PER_ITERATION = 100;
+
+    private final Topic topic;
+    private final int index;
+    private final int count;
+    private final TaskRunner taskRunner;
+    private final ConcurrentLinkedQueue<FanOut> pending = new ConcurrentLinkedQueue<FanOut>();
+    private final AtomicInteger pendingSize = new AtomicInteger();
+    private final TimeStatisticImpl latency;
+    // only used by the task, the same list throughout for the dispatch policy
+    private final List<Subscription> subscriptions = new ArrayList<Subscription>();
+    private volatile int subscriptionCount;
+    private final MessageEvaluationContext msgContext = new MessageEvaluationContext();
+    private long consumersVersion = -1;
+
+    /**
+     * A message being dispatched by the shards, the last of which to finish
+     * with it lets it go.
+     */
+    static final class FanOut {
+        final ConnectionContext context;
+        final Message message;
+        final long enqueued = System.nanoTime();
+        final AtomicInteger remaining;
+        volatile boolean dispatched;
+
+        FanOut(ConnectionContext context, Message message, int shards) {
+            this.context = context;
+            this.message = message;
+            this.remaining = new AtomicInteger(shards);
+        }
+
+        void done(Topic topic) {
+            if (remaining.decrementAndGet() == 0) {
+                try {
+                    if (!dispatched) {
+                        topic.onMessageWithNoConsumers(context, message);
+                    }
+                } catch (Exception e) {
+                    LOG.warn("Failed to handle {} with no consumers", message.getMessageId(), e);
+                } finally {
+                    message.decrementReferenceCount();
+                }
+            }
+        }
+    }
+
+    TopicDispatchShard(Topic topic, int index, int count, TaskRunnerFactory taskFactory) {
+        this.topic = topic;
+        this.index = index;
+        this.count = count;
+        this.latency = new TimeStatisticImpl("dispatchLatency", "micros",
+                                             "Time messages wait for and take to be dispatched by the shard");
+        this.taskRunner = taskFactory.createTaskRunner(this, "Topic " + topic.getActiveMQDestination().getPhysicalName()
+                                                       + " dispatch shard " + index);
+        msgContext.setDestination(topic.getActiveMQDestination());
+    }
+
+    void add(FanOut fanOut) throws InterruptedException {
+        pendingSize.incrementAndGet();
+        pending.add(fanOut);
+        taskRunner.wakeup();
+    }
+
+    @Override
+    public boolean iterate() {
+        for (int i = 0; i < MAX_MESSAGES_PER_ITERATION; i++) {
+            FanOut fanOut = pending.poll();
+            if (fanOut == null) {
+                break;
+            }
+            pendingSize.decrementAndGet();
+            try {
+                refresh();
+                msgContext.setMessageReference(fanOut.message);
+                if (topic.dispatch(fanOut.message, msgContext, subscriptions)) {
+                    fanOut.dispatched = true;
+                }
+            } catch (Throwable e) {
+                LOG.warn("Failed to dispatch {} to shard {} of {}", new Object[] {fanOut.message.getMessageId(), index, topic, e});
+            } finally {
+                msgContext.clear();
+                msgContext.setDestination(topic.getActiveMQDestination());
+                latency.addTime((System.nanoTime() - fanOut.enqueued) / 1000);
+                fanOut.done(topic);
+            }
+        }
+        return !pending.isEmpty();
+    }
+
+    /**
+     * Picks out the shard's subscriptions again when the topic's have
+     * changed.
+     */
+    private void refresh() {
+        long version = topic.getConsumersVersion();
+        if (version != consumersVersion) {
+            consumersVersion = version;
+            subscriptions.clear();
+            for (Subscription sub : topic.consumers) {
+                if (shardOf(sub, count) == index) {
+                    subscriptions.add(sub);
+                }
+            }
+            subscriptionCount = subscriptions.size();
+        }
+    }
+
+    static int shardOf(Subscription sub, int count) {
+        return (sub.getConsumerInfo().getConsumerId().hashCode() & Integer.MAX_VALUE) % count;
+    }
+
+    /**
+     * Stops the task and lets go of the messages it had still to dispatch.
+     */
+    void stop() throws InterruptedException {
+        taskRunner.shutdown();
+        FanOut fanOut;
+        while ((fanOut = pending.poll()) != null) {
+            pendingSize.decrementAndGet();
+            // not for want of consumers
+            fanOut.dispatched = true;
+            fanOut.done(topic);
+        }
+    }
+
+    int getPendingSize() {
+        return pendingSize.get();
+    }
+
+    int getSubscriptionCount() {
+        return subscriptionCount;
+    }
+
+    TimeStatisticImpl getLatency() {
+        return latency;
+    }
+}
@@ -103,6 +103,10 @@ public class PolicyEntry extends DestinationMapEntry {
      * percentage of in-flight messages above which optimize message store is disabled
      */
     private int optimizeMessageStoreInFlightLimit = 10;
+    private boolean concurrentSend;
+    private int dispatchShards;
+    private boolean dispatchLanes;
+    private boolean indexPagedInBySequenceId;
 
 
     public void configure(Broker broker,Queue queue) {
@@ -127,6 +131,8 @@ public class PolicyEntry extends DestinationMapEntry {
         queue.setTimeBeforeDispatchStarts(getTimeBeforeDispatchStarts());
         queue.setConsumersBeforeDispatchStarts(getConsumersBeforeDispatchStarts());
         queue.setAllConsumersExclusiveByDefault(isAllConsumersExclusiveByDefault());
+        queue.setDispatchLanes(isDispatchLanes());
+        queue.setIndexPagedInBySequenceId(isIndexPagedInBySequenceId());
     }
 
     public void update(Queue queue) {
@@ -158,6 +164,8 @@ public class PolicyEntry extends DestinationMapEntry {
             topic.getMemoryUsage().setLimit(memoryLimit);
         }
         topic.setLazyDispatch(isLazyDispatch());
+        topic.setConcurrentSend(isConcurrentSend());
+        topic.setDispatchShards(getDispatchShards());
     }
 
     public void update(Topic topic) {
@@ -917,4 +925,56 @@ public class PolicyEntry extends DestinationMapEntry {
         this.optimizeMessageStoreInFlightLimit = optimizeMessageStoreInFlightLimit;
     }
 
+    public boolean isConcurrentSend() {
+        return concurrentSend;
+    }
+
+    /**
+     * Lets the producers to a topic store and dispatch their messages at the
+     * same time, see {@link Topic#setConcurrentSend(boolean)}.
+     */
+    public void setConcurrentSend(boolean concurrentSend) {
+        this.concurrentSend = concurrentSend;
+    }
+
+    public int getDispatchShards() {
+        return dispatchShards;
+    }
+
+    /**
+     * The number of shards a topic's subscriptions are divided between, to
+     * dispatch messages to them with the broker's task runners rather than
+     * the producer's thread, see {@link Topic#setDispatchShards(int)}.
+     */
+    public void setDispatchShards(int dispatchShards) {
+        this.dispatchShards = dispatchShards;
+    }
+
+    public boolean isDispatchLanes() {
+        return dispatchLanes;
+    }
+
+    /**
+     * Gives each subscription to a queue a lane that adds the messages
+     * assigned to it with the broker's task runners, rather than the queue's
+     * task adding them to every subscription, see
+     * {@link Queue#setDispatchLanes(boolean)}.
+     */
+    public void setDispatchLanes(boolean dispatchLanes) {
+        this.dispatchLanes = dispatchLanes;
+    }
+
+    public boolean isIndexPagedInBySequenceId() {
+        return indexPagedInBySequenceId;
+    }
+
+    /**
+     * Keeps a queue's paged in messages by their broker sequence ids rather
+     * than their message ids, see
+     * {@link Queue#setIndexPagedInBySequenceId(boolean)}.
+     */
+    public void setIndexPagedInBySequenceId(boolean indexPagedInBySequenceId) {
+        this.indexPagedInBySequenceId = indexPagedInBySequenceId;
+    }
+
 }
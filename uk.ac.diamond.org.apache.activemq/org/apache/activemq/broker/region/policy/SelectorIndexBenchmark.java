@@ -0,0 +1,349 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.broker.region.policy;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.jms.InvalidSelectorException;
+
+import org.apache.activemq.broker.ConnectionContext;
+import org.apache.activemq.broker.region.AbstractSubscription;
+import org.apache.activemq.broker.region.MessageReference;
+import org.apache.activemq.broker.region.Subscription;
+import org.apache.activemq.command.ActiveMQTextMessage;
+import org.apache.activemq.command.ActiveMQTopic;
+import org.apache.activemq.command.ConnectionId;
+import org.apache.activemq.command.ConsumerId;
+import org.apache.activemq.command.ConsumerInfo;
+import org.apache.activemq.command.Message;
+import org.apache.activemq.command.MessageDispatchNotification;
+import org.apache.activemq.command.MessageId;
+import org.apache.activemq.command.MessagePull;
+import org.apache.activemq.command.ProducerId;
+import org.apache.activemq.command.Response;
+import org.apache.activemq.command.SessionId;
+import org.apache.activemq.filter.MessageEvaluationContext;
+import org.apache.activemq.store.kahadb.disk.util.CommandLineSupport;
+import org.apache.activemq.usage.MemoryUsage;
+
+/**
+ * This class is used to benchmark how topic dispatch scales with the number
+ * of subscribers with selectors, with the {@link SimpleDispatchPolicy} that
+ * evaluates every selector and the {@link SelectorIndexDispatchPolicy}.
+ *
+ * Most subscribers select on equal property values, as in
+ * <code>region = 'R3' AND symbol = 'S17'</code>, the rest on a range the
+ * index cannot file them under, as in <code>price &gt; 950</code>.  For each
+ * subscriber count and policy a single thread dispatches messages with
+ * random properties to subscriptions that just count them, for a warmup
+ * pass and a timed pass.
+ */
+public class SelectorIndexBenchmark {
+
+    boolean verbose;
+    // comma separated list of subscriber counts to measure.
+    String subscribers = "10,100,1000,5000";
+    int regions = 8;
+    int symbols = 100;
+    // percentage of the subscribers that select on a range.
+    int ranges = 10;
+    long warmupInterval = 2 * 1000;
+    long sampleInterval = 5 * 1000;
+
+    public static void main(String[] args) {
+
+        SelectorIndexBenchmark benchmark = new SelectorIndexBenchmark();
+        CommandLineSupport.setOptions(benchmark, args);
+
+        try {
+            ArrayList<Report> reports = benchmark.benchmark();
+            for (Report report : reports) {
+                System.out.println(report.toString());
+            }
+        } catch (Throwable e) {
+            if (benchmark.verbose) {
+                System.out.println("ERROR:");
+                e.printStackTrace(System.out);
+            } else {
+                System.out.println("ERROR: " + e);
+            }
+        }
+    }
+
+    public static class Report {
+
+        public int subscribers;
+        public String policy;
+        public long messages;
+        public long deliveries;
+        public long duration;
+
+        @Override
+        public String toString() {
+            return
+            policy + " with " + subscribers + " subscriber(s): \n" +
+            "  " + messages + " messages dispatched in " + (duration / 1000.0) + " seconds.\n" +
+            "  " + getRate() + " messages/second.\n" +
+            "  " + getFanOut() + " matching subscribers/message.\n";
+        }
+
+        private float getRate() {
+            float rc = messages;
+            rc /= (duration / 1000.0); // get rate.
+            return rc;
+        }
+
+        private float getFanOut() {
+            return messages == 0 ? 0 : (float)deliveries / messages;
+        }
+
+        public int getSubscribers() {
+            return subscribers;
+        }
+
+        public String getPolicy() {
+            return policy;
+        }
+
+        public long getMessages() {
+            return messages;
+        }
+
+        public long getDeliveries() {
+            return deliveries;
+        }
+
+        public long getDuration() {
+            return duration;
+        }
+    }
+
+    public ArrayList<Report> benchmark() throws Exception {
+        ArrayList<Report> rc = new ArrayList<Report>();
+        ActiveMQTopic topic = new ActiveMQTopic("SelectorIndexBenchmark");
+        Message[] messages = createMessages(topic, 1024);
+        for (String s : subscribers.split(",")) {
+            int subscriberCount = Integer.parseInt(s.trim());
+            List<Subscription> consumers = createSubscriptions(topic, subscriberCount);
+            for (DispatchPolicy policy : new DispatchPolicy[] {new SimpleDispatchPolicy(), new SelectorIndexDispatchPolicy()}) {
+                run(policy, consumers, messages, warmupInterval);
+                long delivered = delivered(consumers);
+                Report report = new Report();
+                report.subscribers = subscriberCount;
+                report.policy = policy.getClass().getSimpleName();
+                report.duration = sampleInterval;
+                report.messages = run(policy, consumers, messages, sampleInterval);
+                report.deliveries = delivered(consumers) - delivered;
+                rc.add(report);
+            }
+        }
+        return rc;
+    }
+
+    private long run(DispatchPolicy policy, List<Subscription> consumers, Message[] messages, long interval) throws Exception {
+        MessageEvaluationContext msgContext = new MessageEvaluationContext();
+        long count = 0;
+        long end = System.currentTimeMillis() + interval;
+        while (System.currentTimeMillis() < end) {
+            // check the time every so often
+            for (int i = 0; i < 64; i++) {
+                Message message = messages[(int)(count++ % messages.length)];
+                msgContext.setDestination(message.getDestination());
+                msgContext.setMessageReference(message);
+                policy.dispatch(message, msgContext, consumers);
+                msgContext.clear();
+            }
+        }
+        return count;
+    }
+
+    private Message[] createMessages(ActiveMQTopic topic, int count) throws Exception {
+        Message.MessageDestination destination = new Message.MessageDestination() {
+            public int getMinimumMessageSize() {
+                return 1024;
+            }
+
+            public MemoryUsage getMemoryUsage() {
+                return null;
+            }
+        };
+        Random random = new Random(count);
+        ProducerId producerId = new ProducerId(new SessionId(new ConnectionId("ID:SelectorIndexBenchmark-2"), 1), 1);
+        Message[] rc = new Message[count];
+        for (int i = 0; i < count; i++) {
+            ActiveMQTextMessage message = new ActiveMQTextMessage();
+            message.setMessageId(new MessageId(producerId, i + 1));
+            message.setDestination(topic);
+            message.setRegionDestination(destination);
+            message.setStringProperty("region", "R" + random.nextInt(regions));
+            message.setStringProperty("symbol", "S" + random.nextInt(symbols));
+            message.setIntProperty("price", random.nextInt(1000));
+            message.setText("SelectorIndexBenchmark");
+            rc[i] = message;
+        }
+        return rc;
+    }
+
+    private List<Subscription> createSubscriptions(ActiveMQTopic topic, int count) throws Exception {
+        Random random = new Random(count);
+        ConnectionContext context = new ConnectionContext();
+        SessionId sessionId = new SessionId(new ConnectionId("ID:SelectorIndexBenchmark-1"), 1);
+        List<Subscription> rc = new CopyOnWriteArrayList<Subscription>();
+        for (int i = 0; i < count; i++) {
+            ConsumerInfo info = new ConsumerInfo(new ConsumerId(sessionId, i + 1));
+            info.setDestination(topic);
+            if (random.nextInt(100) < ranges) {
+                info.setSelector("price > " + (900 + random.nextInt(100)));
+            } else {
+                info.setSelector("region = 'R" + random.nextInt(regions) + "' AND symbol = 'S" + random.nextInt(symbols) + "'");
+            }
+            rc.add(new CountingSubscription(context, info));
+        }
+        return rc;
+    }
+
+    private long delivered(List<Subscription> consumers) {
+        long rc = 0;
+        for (Subscription sub : consumers) {
+            rc += sub.getEnqueueCounter();
+        }
+        return rc;
+    }
+
+    /**
+     * A subscription that only counts the messages dispatched to it.
+     */
+    static class CountingSubscription extends AbstractSubscription {
+        private long enqueueCounter;
+
+        CountingSubscription(ConnectionContext context, ConsumerInfo info) throws InvalidSelectorException {
+            super(null, context, info);
+        }
+
+        public void add(MessageReference node) throws Exception {
+            enqueueCounter++;
+        }
+
+        public void destroy() {
+        }
+
+        public void processMessageDispatchNotification(MessageDispatchNotification mdn) throws Exception {
+        }
+
+        public Response pullMessage(ConnectionContext context, MessagePull pull) throws Exception {
+            return null;
+        }
+
+        public int getInFlightSize() {
+            return 0;
+        }
+
+        public int getDispatchedQueueSize() {
+            return 0;
+        }
+
+        public int getPendingQueueSize() {
+            return 0;
+        }
+
+        public long getDispatchedCounter() {
+            return enqueueCounter;
+        }
+
+        public long getEnqueueCounter() {
+            return enqueueCounter;
+        }
+
+        public long getDequeueCounter() {
+            return 0;
+        }
+
+        public boolean isLowWaterMark() {
+            return false;
+        }
+
+        public boolean isHighWaterMark() {
+            return false;
+        }
+
+        public boolean isFull() {
+            return false;
+        }
+
+        public void updateConsumerPrefetch(int newPrefetch) {
+        }
+    }
+
+    public boolean isVerbose() {
+        return verbose;
+    }
+
+    public void setVerbose(boolean verbose) {
+        this.verbose = verbose;
+    }
+
+    public String getSubscribers() {
+        return subscribers;
+    }
+
+    public void setSubscribers(String subscribers) {
+        this.subscribers = subscribers;
+    }
+
+    public int getRegions() {
+        return regions;
+    }
+
+    public void setRegions(int regions) {
+        this.regions = regions;
+    }
+
+    public int getSymbols() {
+        return symbols;
+    }
+
+    public void setSymbols(int symbols) {
+        this.symbols = symbols;
+    }
+
+    public int getRanges() {
+        return ranges;
+    }
+
+    public void setRanges(int ranges) {
+        this.ranges = ranges;
+    }
+
+    public long getWarmupInterval() {
+        return warmupInterval;
+    }
+
+    public void setWarmupInterval(long warmupInterval) {
+        this.warmupInterval = warmupInterval;
+    }
+
+    public long getSampleInterval() {
+        return sampleInterval;
+    }
+
+    public void setSampleInterval(long sampleInterval) {
+        this.sampleInterval = sampleInterval;
+    }
+}
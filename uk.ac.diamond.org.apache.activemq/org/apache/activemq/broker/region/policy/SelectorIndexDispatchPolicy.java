@@ -0,0 +1,223 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.broker.region.policy;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.jms.JMSException;
+
+import org.apache.activemq.broker.region.AbstractSubscription;
+import org.apache.activemq.broker.region.MessageReference;
+import org.apache.activemq.broker.region.Subscription;
+import org.apache.activemq.command.ConsumerId;
+import org.apache.activemq.filter.BooleanExpression;
+import org.apache.activemq.filter.MessageEvaluationContext;
+import org.apache.activemq.filter.SelectorIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Dispatch policy that sends a message to every subscription that matches
+ * the message, as the {@link SimpleDispatchPolicy} does, but finds them
+ * through a {@link SelectorIndex} of the subscriptions' selectors kept for
+ * each list of subscriptions it is given, that of a topic or of one of its
+ * dispatch shards.  A publish only evaluates the selectors of the subscriptions
+ * that could match, those that want one of its property values or that
+ * cannot be indexed, and each term the selectors share only once.
+ *
+ * Suits topics with many subscribers that select on equal property values,
+ * such as <code>region = 'EMEA' AND symbol IN ('ABC', 'XYZ')</code>.  An
+ * index is built again, on the next publish, whenever the subscriptions or
+ * their selectors change.
+ *
+ * @org.apache.xbean.XBean
+ *
+ */
+public class SelectorIndexDispatchPolicy extends SimpleDispatchPolicy {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SelectorIndexDispatchPolicy.class);
+
+    // whether subscriptions of a class match as AbstractSubscription does
+    private static final Map<Class<?>, Boolean> INDEXABLE = new ConcurrentHashMap<Class<?>, Boolean>();
+
+    // by the identity of the lists, guarded by itself
+    private final Map<ListKey, Index> indexes = new HashMap<ListKey, Index>();
+    private final ReferenceQueue<List<Subscription>> collected = new ReferenceQueue<List<Subscription>>();
+
+    /**
+     * Weakly refers to a list of subscriptions, equal only to keys for the
+     * same list.
+     */
+    static final class ListKey extends WeakReference<List<Subscription>> {
+        private final int hash;
+
+        ListKey(List<Subscription> list, ReferenceQueue<List<Subscription>> queue) {
+            super(list, queue);
+            this.hash = System.identityHashCode(list);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o == this) {
+                return true;
+            }
+            if (!(o instanceof ListKey)) {
+                return false;
+            }
+            List<Subscription> list = get();
+            return list != null && list == ((ListKey)o).get();
+        }
+    }
+
+    /**
+     * The subscriptions of a topic, with the index of the selectors of those
+     * it can index.  The subscriptions are only referred to weakly, as they
+     * can refer to the list that keys the index, through their topic.
+     */
+    static final class Index {
+        final WeakReference<Subscription>[] subscriptions;
+        final BooleanExpression[] selectors;
+        final boolean[] indexed;
+        final SelectorIndex selectorIndex;
+
+        @SuppressWarnings({ "rawtypes", "unchecked" })
+        Index(Subscription[] subscriptions) {
+            this.subscriptions = new WeakReference[subscriptions.length];
+            this.selectors = new BooleanExpression[subscriptions.length];
+            this.indexed = new boolean[subscriptions.length];
+            for (int i = 0; i < subscriptions.length; i++) {
+                this.subscriptions[i] = new WeakReference<Subscription>(subscriptions[i]);
+                if (isIndexable(subscriptions[i])) {
+                    selectors[i] = ((AbstractSubscription)subscriptions[i]).getSelectorExpression();
+                    indexed[i] = true;
+                }
+            }
+            this.selectorIndex = new SelectorIndex(selectors);
+        }
+
+        boolean isCurrent(Subscription[] current) {
+            if (current.length != subscriptions.length) {
+                return false;
+            }
+            for (int i = 0; i < current.length; i++) {
+                if (current[i] != subscriptions[i].get()) {
+                    return false;
+                }
+                if (indexed[i] && ((AbstractSubscription)current[i]).getSelectorExpression() != selectors[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    public boolean dispatch(MessageReference node, MessageEvaluationContext msgContext, List<Subscription> consumers)
+            throws Exception {
+        Subscription[] current = consumers.toArray(new Subscription[consumers.size()]);
+        Index index = getIndex(consumers, current);
+
+        SelectorIndex.Selection selection = index.selectorIndex.select(msgContext);
+        int count = 0;
+        for (int i = 0; i < current.length; i++) {
+            Subscription sub = current[i];
+            // Don't deliver to browsers
+            if (sub.getConsumerInfo().isBrowser()) {
+                continue;
+            }
+            // Only dispatch to interested subscriptions
+            if (!selection.isCandidate(i) || !matches(index, i, sub, node, selection, msgContext)) {
+                sub.unmatched(node);
+                continue;
+            }
+
+            sub.add(node);
+            count++;
+        }
+
+        return count > 0;
+    }
+
+    private Index getIndex(List<Subscription> consumers, Subscription[] current) {
+        Index index;
+        synchronized (indexes) {
+            Reference<? extends List<Subscription>> key;
+            while ((key = collected.poll()) != null) {
+                indexes.remove(key);
+            }
+            index = indexes.get(new ListKey(consumers, null));
+        }
+        if (index == null || !index.isCurrent(current)) {
+            index = new Index(current);
+            synchronized (indexes) {
+                indexes.put(new ListKey(consumers, collected), index);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Matches as {@link AbstractSubscription#matches} does, with the selector
+     * evaluated by the index.
+     */
+    private boolean matches(Index index, int i, Subscription sub, MessageReference node, SelectorIndex.Selection selection,
+                            MessageEvaluationContext msgContext) throws Exception {
+        if (!index.indexed[i]) {
+            return sub.matches(node, msgContext);
+        }
+        ConsumerId targetConsumerId = node.getTargetConsumerId();
+        if (targetConsumerId != null) {
+            if (!targetConsumerId.equals(sub.getConsumerInfo().getConsumerId())) {
+                return false;
+            }
+        }
+        try {
+            return selection.matches(i) && sub.getContext().isAllowedToConsume(node);
+        } catch (JMSException e) {
+            LOG.info("Selector failed to evaluate: {}", e.getMessage(), e);
+            return false;
+        }
+    }
+
+    static boolean isIndexable(Subscription sub) {
+        if (!(sub instanceof AbstractSubscription)) {
+            return false;
+        }
+        Class<?> type = sub.getClass();
+        Boolean indexable = INDEXABLE.get(type);
+        if (indexable == null) {
+            try {
+                indexable = type.getMethod("matches", MessageReference.class, MessageEvaluationContext.class)
+                    .getDeclaringClass() == AbstractSubscription.class;
+            } catch (NoSuchMethodException e) {
+                indexable = Boolean.FALSE;
+            }
+            INDEXABLE.put(type, indexable);
+        }
+        return indexable.booleanValue();
+    }
+}
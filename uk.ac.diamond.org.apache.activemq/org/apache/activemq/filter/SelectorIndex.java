@@ -0,0 +1,407 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.filter;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.jms.JMSException;
+
+/**
+ * Evaluates many selectors against a message at once, for the subscriptions
+ * of a topic.
+ *
+ * Like the {@link MultiExpressionEvaluator} the selectors' common sub
+ * expressions are found, here the comparisons and other terms joined by AND,
+ * OR and NOT, and each is evaluated at most once a message.  Besides that a
+ * selector that must have a property equal to a constant, or IN a list of
+ * strings, is filed under that property and value in a hash table: only the
+ * selectors filed under the message's value of the property, and those with
+ * no such term, are candidates to be evaluated at all.
+ *
+ * The parsed selectors are shared through the {@link SelectorParser} cache so
+ * they are only read, never rewritten, and the index does not change once
+ * built: any number of threads can use it at the same time, each message has
+ * its own {@link Selection}.
+ */
+public class SelectorIndex {
+
+    private static final Object UNKNOWN = new Object();
+
+    private final int size;
+    // the evaluation of each selector, null for those that match everything
+    private final Term[] selectors;
+    // the distinct terms, each evaluated at most once a message
+    private final Expression[] terms;
+    private final PropertyExpression[] properties;
+    // by property, the selectors filed under each value
+    private final Map<Object, int[]>[] values;
+    // by property, all the selectors filed under it
+    private final int[][] filed;
+    private final int[] unfiled;
+
+    /**
+     * @param expressions the selectors, null for those that match
+     *                anything.
+     */
+    public SelectorIndex(BooleanExpression[] expressions) {
+        this.size = expressions.length;
+        this.selectors = new Term[size];
+        Map<Expression, Integer> termIds = new HashMap<Expression, Integer>();
+        List<Expression> termList = new ArrayList<Expression>();
+        Map<String, Map<Object, List<Integer>>> index = new HashMap<String, Map<Object, List<Integer>>>();
+        List<Integer> unfiledList = new ArrayList<Integer>();
+
+        for (int i = 0; i < size; i++) {
+            BooleanExpression expression = expressions[i];
+            if (expression == null) {
+                unfiledList.add(i);
+                continue;
+            }
+            selectors[i] = compile(expression, termIds, termList);
+            if (!file(i, expression, index)) {
+                unfiledList.add(i);
+            }
+        }
+
+        this.terms = termList.toArray(new Expression[termList.size()]);
+        this.properties = new PropertyExpression[index.size()];
+        this.values = newValueMaps(index.size());
+        this.filed = new int[index.size()][];
+        int p = 0;
+        for (Map.Entry<String, Map<Object, List<Integer>>> entry : index.entrySet()) {
+            properties[p] = new PropertyExpression(entry.getKey());
+            values[p] = new HashMap<Object, int[]>();
+            List<Integer> all = new ArrayList<Integer>();
+            boolean[] seen = new boolean[size];
+            for (Map.Entry<Object, List<Integer>> value : entry.getValue().entrySet()) {
+                values[p].put(value.getKey(), toArray(value.getValue()));
+                for (Integer id : value.getValue()) {
+                    if (!seen[id.intValue()]) {
+                        seen[id.intValue()] = true;
+                        all.add(id);
+                    }
+                }
+            }
+            filed[p++] = toArray(all);
+        }
+        this.unfiled = toArray(unfiledList);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the number of selectors that are only candidates for messages
+     *         with particular property values.
+     */
+    public int getFiledCount() {
+        return size - unfiled.length;
+    }
+
+    /**
+     * Picks out the selectors that could match the message.
+     */
+    public Selection select(MessageEvaluationContext context) {
+        Selection selection = new Selection(context);
+        boolean[] candidates = selection.candidates;
+        for (int i = 0; i < unfiled.length; i++) {
+            candidates[unfiled[i]] = true;
+        }
+        for (int p = 0; p < properties.length; p++) {
+            int[] ids;
+            try {
+                Object value = properties[p].evaluate(context);
+                if (value == null) {
+                    continue;
+                }
+                Object key = key(value);
+                ids = key != null ? values[p].get(key) : filed[p];
+            } catch (JMSException e) {
+                // let the selectors evaluate it, and fail, for themselves
+                ids = filed[p];
+            }
+            if (ids != null) {
+                for (int i = 0; i < ids.length; i++) {
+                    candidates[ids[i]] = true;
+                }
+            }
+        }
+        return selection;
+    }
+
+    /**
+     * The evaluation of the selectors against one message, that caches the
+     * value of each term the first time it is needed.  Not thread safe.
+     */
+    public final class Selection {
+        private final MessageEvaluationContext context;
+        private final boolean[] candidates = new boolean[size];
+        private final Object[] results = new Object[terms.length];
+
+        Selection(MessageEvaluationContext context) {
+            this.context = context;
+        }
+
+        /**
+         * @return false when the selector cannot match the message, true
+         *         when it has to be evaluated to know.
+         */
+        public boolean isCandidate(int selector) {
+            return candidates[selector];
+        }
+
+        /**
+         * @return true if the selector matches the message, as
+         *         {@link BooleanExpression#matches} would.
+         */
+        public boolean matches(int selector) throws JMSException {
+            Term term = selectors[selector];
+            return term == null || term.evaluate(this) == Boolean.TRUE;
+        }
+
+        Object evaluate(int id) throws JMSException {
+            Object result = results[id];
+            if (result == null) {
+                try {
+                    result = terms[id].evaluate(context);
+                } catch (JMSException e) {
+                    results[id] = e;
+                    throw e;
+                }
+                results[id] = result == null ? UNKNOWN : result;
+                return result;
+            }
+            if (result == UNKNOWN) {
+                return null;
+            }
+            if (result instanceof JMSException) {
+                throw (JMSException)result;
+            }
+            return result;
+        }
+    }
+
+    /**
+     * A selector compiled to the logic joining its terms, evaluated as
+     * {@link LogicExpression} and {@link UnaryExpression} do.
+     */
+    abstract static class Term {
+        abstract Object evaluate(Selection selection) throws JMSException;
+    }
+
+    static final class And extends Term {
+        private final Term left;
+        private final Term right;
+
+        And(Term left, Term right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        Object evaluate(Selection selection) throws JMSException {
+            Boolean lv = (Boolean)left.evaluate(selection);
+            if (lv == null) {
+                return null;
+            }
+            if (!lv.booleanValue()) {
+                return Boolean.FALSE;
+            }
+            return (Boolean)right.evaluate(selection);
+        }
+    }
+
+    static final class Or extends Term {
+        private final Term left;
+        private final Term right;
+
+        Or(Term left, Term right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        Object evaluate(Selection selection) throws JMSException {
+            Boolean lv = (Boolean)left.evaluate(selection);
+            if (lv != null && lv.booleanValue()) {
+                return Boolean.TRUE;
+            }
+            return (Boolean)right.evaluate(selection);
+        }
+    }
+
+    static final class Not extends Term {
+        private final Term term;
+
+        Not(Term term) {
+            this.term = term;
+        }
+
+        Object evaluate(Selection selection) throws JMSException {
+            Boolean value = (Boolean)term.evaluate(selection);
+            if (value == null) {
+                return null;
+            }
+            return value.booleanValue() ? Boolean.FALSE : Boolean.TRUE;
+        }
+    }
+
+    static final class Cached extends Term {
+        private final int id;
+
+        Cached(int id) {
+            this.id = id;
+        }
+
+        Object evaluate(Selection selection) throws JMSException {
+            return selection.evaluate(id);
+        }
+    }
+
+    private static Term compile(Expression expression, Map<Expression, Integer> termIds, List<Expression> termList) {
+        if (expression instanceof LogicExpression) {
+            LogicExpression logic = (LogicExpression)expression;
+            Term left = compile(logic.getLeft(), termIds, termList);
+            Term right = compile(logic.getRight(), termIds, termList);
+            if ("AND".equals(logic.getExpressionSymbol())) {
+                return new And(left, right);
+            }
+            if ("OR".equals(logic.getExpressionSymbol())) {
+                return new Or(left, right);
+            }
+        } else if (expression instanceof UnaryExpression.BooleanUnaryExpression
+                   && "NOT".equals(((UnaryExpression)expression).getExpressionSymbol())) {
+            return new Not(compile(((UnaryExpression)expression).getRight(), termIds, termList));
+        }
+        // equal terms, by their text, are evaluated once.
+        Integer id = termIds.get(expression);
+        if (id == null) {
+            id = Integer.valueOf(termList.size());
+            termIds.put(expression, id);
+            termList.add(expression);
+        }
+        return new Cached(id.intValue());
+    }
+
+    /**
+     * Files the selector under the first term it cannot match without, that
+     * compares a property with constants.
+     *
+     * @return false if it has no such term.
+     */
+    private static boolean file(int selector, Expression expression, Map<String, Map<Object, List<Integer>>> index) {
+        if (expression instanceof LogicExpression && "AND".equals(((LogicExpression)expression).getExpressionSymbol())) {
+            LogicExpression and = (LogicExpression)expression;
+            return file(selector, and.getLeft(), index) || file(selector, and.getRight(), index);
+        }
+        String property = null;
+        Collection<Object> keys = null;
+        if (expression instanceof UnaryExpression.InExpression) {
+            UnaryExpression.InExpression in = (UnaryExpression.InExpression)expression;
+            if (in.isNot() || !(in.getRight() instanceof PropertyExpression)) {
+                return false;
+            }
+            property = ((PropertyExpression)in.getRight()).getName();
+            // only ever matches strings, and none for an empty list
+            keys = new ArrayList<Object>();
+            if (in.getInList() != null) {
+                for (Object value : in.getInList()) {
+                    if (value instanceof String) {
+                        keys.add(value);
+                    }
+                }
+            }
+        } else if (expression instanceof ComparisonExpression && "=".equals(((ComparisonExpression)expression).getExpressionSymbol())) {
+            ComparisonExpression equal = (ComparisonExpression)expression;
+            if (equal.convertStringExpressions) {
+                // strings equal to numbers and booleans they spell
+                return false;
+            }
+            Expression left = equal.getLeft();
+            Expression right = equal.getRight();
+            if (left instanceof ConstantExpression && right instanceof PropertyExpression) {
+                Expression swap = left;
+                left = right;
+                right = swap;
+            }
+            if (!(left instanceof PropertyExpression) || !(right instanceof ConstantExpression)) {
+                return false;
+            }
+            Object value = ((ConstantExpression)right).getValue();
+            // not for IS NULL, nor float constants whose comparisons round
+            if (!(value instanceof String || value instanceof Boolean || value instanceof Integer || value instanceof Long)) {
+                return false;
+            }
+            property = ((PropertyExpression)left).getName();
+            keys = new ArrayList<Object>();
+            keys.add(key(value));
+        } else {
+            return false;
+        }
+
+        Map<Object, List<Integer>> values = index.get(property);
+        if (values == null) {
+            values = new HashMap<Object, List<Integer>>();
+            index.put(property, values);
+        }
+        for (Object key : keys) {
+            List<Integer> ids = values.get(key);
+            if (ids == null) {
+                ids = new ArrayList<Integer>();
+                values.put(key, ids);
+            }
+            if (ids.isEmpty() || ids.get(ids.size() - 1).intValue() != selector) {
+                ids.add(selector);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the value as filed, integers of any size being equal when
+     *         their values are, or null for values that are only compared
+     *         by evaluating the selector.
+     */
+    private static Object key(Object value) {
+        if (value instanceof String || value instanceof Boolean) {
+            return value;
+        }
+        if (value instanceof Long) {
+            return value;
+        }
+        if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            return Long.valueOf(((Number)value).longValue());
+        }
+        return null;
+    }
+
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    private static Map<Object, int[]>[] newValueMaps(int size) {
+        return new Map[size];
+    }
+
+    private static int[] toArray(List<Integer> list) {
+        int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i).intValue();
+        }
+        return array;
+    }
+}
@@ -68,56 +68,80 @@ public abstract class UnaryExpression implements Expression {
         } else {
             t = new HashSet<Object>(elements);
         }
-        final Collection inList = t;
+        return new InExpression(right, t, not);
+    }
 
-        return new BooleanUnaryExpression(right) {
-            public Object evaluate(MessageEvaluationContext message) throws JMSException {
+    /**
+     * The IN and NOT IN expressions, the list is open to the
+     * {@link SelectorIndex}.
+     */
+    static class InExpression extends BooleanUnaryExpression {
+        private final Collection<Object> inList;
+        private final boolean not;
+
+        InExpression(PropertyExpression right, Collection<Object> inList, boolean not) {
+            super(right);
+            this.inList = inList;
+            this.not = not;
+        }
 
-                Object rvalue = right.evaluate(message);
-                if (rvalue == null) {
-                    return null;
-                }
-                if (rvalue.getClass() != String.class) {
-                    return null;
-                }
+        public Object evaluate(MessageEvaluationContext message) throws JMSException {
 
-                if ((inList != null && inList.contains(rvalue)) ^ not) {
-                    return Boolean.TRUE;
-                } else {
-                    return Boolean.FALSE;
-                }
+            Object rvalue = right.evaluate(message);
+            if (rvalue == null) {
+                return null;
+            }
+            if (rvalue.getClass() != String.class) {
+                return null;
+            }
 
+            if ((inList != null && inList.contains(rvalue)) ^ not) {
+                return Boolean.TRUE;
+            } else {
+                return Boolean.FALSE;
             }
 
-            public String toString() {
-                StringBuffer answer = new StringBuffer();
-                answer.append(right);
-                answer.append(" ");
-                answer.append(getExpressionSymbol());
-                answer.append(" ( ");
-
-                int count = 0;
-                for (Iterator i = inList.iterator(); i.hasNext();) {
-                    Object o = (Object)i.next();
-                    if (count != 0) {
-                        answer.append(", ");
-                    }
-                    answer.append(o);
-                    count++;
-                }
+        }
 
-                answer.append(" )");
-                return answer.toString();
-            }
+        /**
+         * @return the values, null when there are none.
+         */
+        Collection<Object> getInList() {
+            return inList;
+        }
 
-            public String getExpressionSymbol() {
-                if (not) {
-                    return "NOT IN";
-                } else {
-                    return "IN";
+        boolean isNot() {
+            return not;
+        }
+
+        public String toString() {
+            StringBuffer answer = new StringBuffer();
+            answer.append(right);
+            answer.append(" ");
+            answer.append(getExpressionSymbol());
+            answer.append(" ( ");
+
+            int count = 0;
+            for (Iterator<Object> i = inList.iterator(); i.hasNext();) {
+                Object o = i.next();
+                if (count != 0) {
+                    answer.append(", ");
                 }
+                answer.append(o);
+                count++;
             }
-        };
+
+            answer.append(" )");
+            return answer.toString();
+        }
+
+        public String getExpressionSymbol() {
+            if (not) {
+                return "NOT IN";
+            } else {
+                return "IN";
+            }
+        }
     }
 
     abstract static class BooleanUnaryExpression extends UnaryExpression implements BooleanExpression {
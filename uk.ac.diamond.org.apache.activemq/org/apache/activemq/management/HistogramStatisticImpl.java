@@ -0,0 +1,145 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.management;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A statistic that records the distribution of values in power of two
+ * buckets, so percentiles are reported as the upper bound of the bucket they
+ * fall in. Values are recorded without locking.
+ */
+public class HistogramStatisticImpl extends StatisticImpl {
+
+    // bucket 0 holds zero, bucket n holds values in [2^(n-1), 2^n)
+    private static final int BUCKETS = 65;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public HistogramStatisticImpl(String name, String unit, String description) {
+        super(name, unit, description);
+    }
+
+    public synchronized void reset() {
+        if (isDoReset()) {
+            super.reset();
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets.set(i, 0);
+            }
+            count.set(0);
+            total.set(0);
+            max.set(0);
+        }
+    }
+
+    public void addValue(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+        count.incrementAndGet();
+        total.addAndGet(value);
+        long currentMax = max.get();
+        while (value > currentMax && !max.compareAndSet(currentMax, value)) {
+            currentMax = max.get();
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getTotal() {
+        return total.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getAverage() {
+        long c = count.get();
+        if (c == 0) {
+            return 0;
+        }
+        double d = total.get();
+        return d / c;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the upper bound of the bucket holding the given percentile
+     */
+    public long getPercentile(double percentile) {
+        long c = count.get();
+        if (c == 0) {
+            return 0;
+        }
+        long target = (long)Math.ceil(c * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets.get(i);
+            if (seen >= target) {
+                long upper = i == 0 ? 0 : (i == 64 ? Long.MAX_VALUE : (1L << i) - 1);
+                return Math.min(upper, max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * @return the non empty buckets as "upperBound=count" pairs
+     */
+    public String getBuckets() {
+        StringBuffer buffer = new StringBuffer("[");
+        for (int i = 0; i < BUCKETS; i++) {
+            long c = buckets.get(i);
+            if (c > 0) {
+                if (buffer.length() > 1) {
+                    buffer.append(", ");
+                }
+                buffer.append(i == 0 ? 0 : (i == 64 ? Long.MAX_VALUE : (1L << i) - 1));
+                buffer.append("=");
+                buffer.append(c);
+            }
+        }
+        buffer.append("]");
+        return buffer.toString();
+    }
+
+    protected synchronized void appendFieldDescription(StringBuffer buffer) {
+        buffer.append(" count: ");
+        buffer.append(Long.toString(getCount()));
+        buffer.append(" average: ");
+        buffer.append(Double.toString(getAverage()));
+        buffer.append(" p50: ");
+        buffer.append(Long.toString(getPercentile(50)));
+        buffer.append(" p99: ");
+        buffer.append(Long.toString(getPercentile(99)));
+        buffer.append(" p99.9: ");
+        buffer.append(Long.toString(getPercentile(99.9)));
+        buffer.append(" max: ");
+        buffer.append(Long.toString(getMax()));
+        buffer.append(" buckets: ");
+        buffer.append(getBuckets());
+        super.appendFieldDescription(buffer);
+    }
+}
@@ -17,6 +17,7 @@
 package org.apache.activemq.store;
 
 import java.io.IOException;
+import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.Future;
 import java.util.concurrent.FutureTask;
@@ -117,6 +118,20 @@ abstract public class AbstractMessageStore implements MessageStore {
         removeMessage(context, ack);
     }
 
+    @Override
+    public void addMessages(ConnectionContext context, List<Message> messages) throws IOException {
+        for (Message message : messages) {
+            addMessage(context, message);
+        }
+    }
+
+    @Override
+    public void removeMessages(ConnectionContext context, List<MessageAck> acks) throws IOException {
+        for (MessageAck ack : acks) {
+            removeMessage(context, ack);
+        }
+    }
+
     static class CallableImplementation implements Callable<Object> {
         public Object call() throws Exception {
             return null;
@@ -17,6 +17,7 @@
 package org.apache.activemq.store;
 
 import java.io.IOException;
+import java.util.List;
 import java.util.concurrent.Future;
 
 import org.apache.activemq.Service;
@@ -123,6 +124,26 @@ public interface MessageStore extends Service {
 
     void removeAsyncMessage(ConnectionContext context, MessageAck ack) throws IOException;
 
+    /**
+     * Adds a batch of messages to the message store, in order. Stores that can
+     * write the batch together, rather than one message at a time, do so.
+     *
+     * @param context context
+     * @param messages
+     * @throws IOException
+     */
+    void addMessages(ConnectionContext context, List<Message> messages) throws IOException;
+
+    /**
+     * Removes a batch of messages from the message store. Stores that can
+     * write the batch together, rather than one ack at a time, do so.
+     *
+     * @param context
+     * @param acks the non ranged acks of the messages to remove
+     * @throws IOException
+     */
+    void removeMessages(ConnectionContext context, List<MessageAck> acks) throws IOException;
+
     /**
      * Removes all the messages from the message store.
      *
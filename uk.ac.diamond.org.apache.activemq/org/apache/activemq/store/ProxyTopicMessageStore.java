@@ -17,6 +17,7 @@
 package org.apache.activemq.store;
 
 import java.io.IOException;
+import java.util.List;
 import java.util.concurrent.Future;
 
 import org.apache.activemq.broker.ConnectionContext;
@@ -195,6 +196,16 @@ public class ProxyTopicMessageStore implements TopicMessageStore {
         delegate.removeAsyncMessage(context, ack);
     }
 
+    @Override
+    public void addMessages(ConnectionContext context, List<Message> messages) throws IOException {
+        delegate.addMessages(context, messages);
+    }
+
+    @Override
+    public void removeMessages(ConnectionContext context, List<MessageAck> acks) throws IOException {
+        delegate.removeMessages(context, acks);
+    }
+
     @Override
     public void setPrioritizedMessages(boolean prioritizedMessages) {
         delegate.setPrioritizedMessages(prioritizedMessages);
@@ -18,6 +18,11 @@ package org.apache.activemq.store.jdbc;
 
 import java.io.IOException;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.activemq.ActiveMQMessageAudit;
@@ -67,6 +72,9 @@ public class JDBCMessageStore extends AbstractMessageStore {
     protected AtomicLong lastRecoveredPriority = new AtomicLong(Byte.MAX_VALUE -1);
 
     protected ActiveMQMessageAudit audit;
+    // sequence ids of the adds queued for write behind but not yet committed
+    private final Map<MessageId, Long> pendingAdds = new ConcurrentHashMap<MessageId, Long>();
+    private JDBCRecoveryCursor recoveryCursor;
     
     public JDBCMessageStore(JDBCPersistenceAdapter persistenceAdapter, JDBCAdapter adapter, WireFormat wireFormat, ActiveMQDestination destination, ActiveMQMessageAudit audit) throws IOException {
         super(destination);
@@ -96,6 +104,11 @@ public class JDBCMessageStore extends AbstractMessageStore {
     }
 
     public void addMessage(ConnectionContext context, Message message) throws IOException {
+        JDBCWriteBehind writeBehind = getWriteBehind(context);
+        if (writeBehind != null) {
+            JDBCWriteBehind.waitFor(writeBehindAdd(writeBehind, message));
+            return;
+        }
         MessageId messageId = message.getMessageId();
         if (audit != null && audit.isDuplicate(message)) {
             if (LOG.isDebugEnabled()) {
@@ -135,6 +148,156 @@ public class JDBCMessageStore extends AbstractMessageStore {
         }
     }
 
+    @Override
+    public Future<Object> asyncAddQueueMessage(ConnectionContext context, Message message) throws IOException {
+        JDBCWriteBehind writeBehind = getWriteBehind(context);
+        if (writeBehind != null) {
+            return writeBehindAdd(writeBehind, message);
+        }
+        return super.asyncAddQueueMessage(context, message);
+    }
+
+    @Override
+    public Future<Object> asyncAddQueueMessage(ConnectionContext context, Message message, boolean canOptimizeHint) throws IOException {
+        return asyncAddQueueMessage(context, message);
+    }
+
+    /**
+     * @return the persistence adapter's write behind if it is enabled and the
+     *         operation is outside a transaction on a queue, null otherwise.
+     */
+    private JDBCWriteBehind getWriteBehind(ConnectionContext context) {
+        JDBCWriteBehind writeBehind = persistenceAdapter.getWriteBehind();
+        if (writeBehind == null || !destination.isQueue()) {
+            return null;
+        }
+        if (context != null) {
+            if (context.getXid() != null || context.isInTransaction()) {
+                return null;
+            }
+            Object storeContext = context.getLongTermStoreContext();
+            if (storeContext instanceof TransactionContext && ((TransactionContext) storeContext).isInTx()) {
+                return null;
+            }
+        }
+        return writeBehind;
+    }
+
+    private Future<Object> writeBehindAdd(JDBCWriteBehind writeBehind, Message message) throws IOException {
+        MessageId messageId = message.getMessageId();
+        if (audit != null && audit.isDuplicate(message)) {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug(destination.getPhysicalName()
+                    + " ignoring duplicated (add) message, already stored: "
+                    + messageId);
+            }
+            return FUTURE;
+        }
+
+        long sequenceId = persistenceAdapter.getNextSequenceId();
+
+        // Serialize the Message..
+        byte data[];
+        try {
+            ByteSequence packet = wireFormat.marshal(message);
+            data = ByteSequenceData.toByteArray(packet);
+        } catch (IOException e) {
+            throw IOExceptionSupport.create("Failed to broker message: " + messageId + " in container: " + e, e);
+        }
+
+        pendingAdds.put(messageId, sequenceId);
+        return writeBehind.add(this, sequenceId, message, data);
+    }
+
+    /**
+     * Called by the write behind once a queued add is committed or has failed.
+     */
+    void onWriteBehindAdd(Message message, long sequenceId, boolean committed) {
+        pendingAdds.remove(message.getMessageId());
+        if (committed) {
+            onAdd(message.getMessageId(), sequenceId, message.getPriority());
+        }
+    }
+
+    /**
+     * @return the sequence id of a stored message, an add still queued for
+     *         write behind is found without going to the database.
+     */
+    private long getStoreSequenceId(MessageId messageId) throws IOException {
+        Long pending = pendingAdds.get(messageId);
+        if (pending != null) {
+            return pending.longValue();
+        }
+        return persistenceAdapter.getStoreSequenceIdForMessageId(messageId, destination)[0];
+    }
+
+    /**
+     * Adds the messages with one transaction context, so the inserts go to the
+     * database as one statement batch, and are committed together when not part
+     * of a transaction.
+     */
+    public void addMessages(ConnectionContext context, List<Message> messages) throws IOException {
+        JDBCWriteBehind writeBehind = getWriteBehind(context);
+        if (writeBehind != null) {
+            List<Future<Object>> futures = new ArrayList<Future<Object>>(messages.size());
+            for (Message message : messages) {
+                futures.add(writeBehindAdd(writeBehind, message));
+            }
+            for (Future<Object> future : futures) {
+                JDBCWriteBehind.waitFor(future);
+            }
+            return;
+        }
+        List<Message> added = new ArrayList<Message>(messages.size());
+        long sequenceIds[] = new long[messages.size()];
+
+        TransactionContext c = persistenceAdapter.getTransactionContext(context);
+        try {
+            for (Message message : messages) {
+                MessageId messageId = message.getMessageId();
+                if (audit != null && audit.isDuplicate(message)) {
+                    if (LOG.isDebugEnabled()) {
+                        LOG.debug(destination.getPhysicalName()
+                            + " ignoring duplicated (add) message, already stored: "
+                            + messageId);
+                    }
+                    continue;
+                }
+
+                long sequenceId = persistenceAdapter.getNextSequenceId();
+
+                // Serialize the Message..
+                byte data[];
+                try {
+                    ByteSequence packet = wireFormat.marshal(message);
+                    data = ByteSequenceData.toByteArray(packet);
+                } catch (IOException e) {
+                    throw IOExceptionSupport.create("Failed to broker message: " + messageId + " in container: " + e, e);
+                }
+
+                try {
+                    adapter.doAddMessage(c, sequenceId, messageId, destination, data, message.getExpiration(),
+                            this.isPrioritizedMessages() ? message.getPriority() : 0, context != null ? context.getXid() : null);
+                } catch (SQLException e) {
+                    JDBCPersistenceAdapter.log("JDBC Failure: ", e);
+                    throw IOExceptionSupport.create("Failed to broker message: " + messageId + " in container: " + e, e);
+                }
+                sequenceIds[added.size()] = sequenceId;
+                added.add(message);
+            }
+        } finally {
+            c.close();
+        }
+        for (int i = 0; i < added.size(); i++) {
+            Message message = added.get(i);
+            if (context != null && context.getXid() != null) {
+                message.getMessageId().setEntryLocator(sequenceIds[i]);
+            } else {
+                onAdd(message.getMessageId(), sequenceIds[i], message.getPriority());
+            }
+        }
+    }
+
     protected void onAdd(MessageId messageId, long sequenceId, byte priority) {
     }
 
@@ -189,9 +352,57 @@ public class JDBCMessageStore extends AbstractMessageStore {
         }
     }
 
+    /**
+     * Removes the messages with one transaction context, so the deletes go to
+     * the database as one statement batch.
+     */
+    public void removeMessages(ConnectionContext context, List<MessageAck> acks) throws IOException {
+        long seqs[] = new long[acks.size()];
+        for (int i = 0; i < seqs.length; i++) {
+            seqs[i] = getStoreSequenceId(acks.get(i).getLastMessageId());
+        }
+
+        JDBCWriteBehind writeBehind = getWriteBehind(context);
+        if (writeBehind != null) {
+            List<Future<Object>> futures = new ArrayList<Future<Object>>(seqs.length);
+            for (int i = 0; i < seqs.length; i++) {
+                futures.add(writeBehind.remove(this, seqs[i]));
+            }
+            for (Future<Object> future : futures) {
+                JDBCWriteBehind.waitFor(future);
+            }
+            return;
+        }
+
+        TransactionContext c = persistenceAdapter.getTransactionContext(context);
+        try {
+            for (int i = 0; i < seqs.length; i++) {
+                try {
+                    adapter.doRemoveMessage(c, seqs[i], context != null ? context.getXid() : null);
+                } catch (SQLException e) {
+                    JDBCPersistenceAdapter.log("JDBC Failure: ", e);
+                    throw IOExceptionSupport.create("Failed to broker message: " + acks.get(i).getLastMessageId() + " in container: " + e, e);
+                }
+            }
+        } finally {
+            c.close();
+        }
+        if (context != null && context.getXid() != null) {
+            for (int i = 0; i < seqs.length; i++) {
+                acks.get(i).getLastMessageId().setEntryLocator(seqs[i]);
+            }
+        }
+    }
+
     public void removeMessage(ConnectionContext context, MessageAck ack) throws IOException {
 
-    	long seq = persistenceAdapter.getStoreSequenceIdForMessageId(ack.getLastMessageId(), destination)[0];
+    	long seq = getStoreSequenceId(ack.getLastMessageId());
+
+        JDBCWriteBehind writeBehind = getWriteBehind(context);
+        if (writeBehind != null) {
+            JDBCWriteBehind.waitFor(writeBehind.remove(this, seq));
+            return;
+        }
 
         // Get a connection and remove the message from the DB
         TransactionContext c = persistenceAdapter.getTransactionContext(context);
@@ -241,6 +452,7 @@ public class JDBCMessageStore extends AbstractMessageStore {
         TransactionContext c = persistenceAdapter.getTransactionContext(context);
         try {
             adapter.doRemoveAllMessages(c, destination);
+            clearRecoveryCursor();
         } catch (SQLException e) {
             JDBCPersistenceAdapter.log("JDBC Failure: ", e);
             throw IOExceptionSupport.create("Failed to broker remove all messages: " + e, e);
@@ -273,6 +485,26 @@ public class JDBCMessageStore extends AbstractMessageStore {
      *      org.apache.activemq.store.MessageRecoveryListener)
      */
     public void recoverNextMessages(int maxReturned, final MessageRecoveryListener listener) throws Exception {
+        JDBCRecoveryCursor cursor = getRecoveryCursor();
+        if (cursor != null) {
+            try {
+                List<Message> messages = cursor.next(maxReturned);
+                for (Message msg : messages) {
+                    listener.recoverMessage(msg);
+                    lastRecoveredSequenceId.set(msg.getMessageId().getBrokerSequenceId());
+                    lastRecoveredPriority.set(msg.getPriority());
+                }
+                if (!messages.isEmpty() || !cursor.isReferenced()) {
+                    return;
+                }
+            } catch (SQLException e) {
+                JDBCPersistenceAdapter.log("JDBC Failure: ", e);
+                return;
+            }
+            // external message references were turned on since the cursor
+            // was created, recover them a batch at a time from here on
+            dropRecoveryCursor();
+        }
         TransactionContext c = persistenceAdapter.getTransactionContext();
         try {
             adapter.doRecoverNextMessages(c, destination, lastRecoveredSequenceId.get(), lastRecoveredPriority.get(),
@@ -313,7 +545,7 @@ public class JDBCMessageStore extends AbstractMessageStore {
         }
         lastRecoveredSequenceId.set(-1);
         lastRecoveredPriority.set(Byte.MAX_VALUE - 1);
-
+        resetRecoveryCursor();
     }
 
     @Override
@@ -326,12 +558,45 @@ public class JDBCMessageStore extends AbstractMessageStore {
             lastRecoveredSequenceId.set(-1);
             lastRecoveredPriority.set(Byte.MAX_VALUE -1);
         }
+        resetRecoveryCursor();
         if (LOG.isTraceEnabled()) {
             LOG.trace(destination.getPhysicalName() + " setBatch: new sequenceId: " + lastRecoveredSequenceId.get()
                     + ", priority: " + lastRecoveredPriority.get());
         }
     }
 
+    /**
+     * @return the cursor streaming this queue's messages for
+     *         recoverNextMessages, or null to query for each batch.
+     */
+    private synchronized JDBCRecoveryCursor getRecoveryCursor() {
+        if (recoveryCursor == null && persistenceAdapter.isEnablePrefetchRecovery()
+                && destination.isQueue() && !persistenceAdapter.isUseExternalMessageReferences()) {
+            recoveryCursor = new JDBCRecoveryCursor(this, Math.min(persistenceAdapter.getPrefetchRecoveryMaxPageSize(), adapter.getMaxRows()));
+            recoveryCursor.reset(lastRecoveredSequenceId.get(), lastRecoveredPriority.get());
+        }
+        return recoveryCursor;
+    }
+
+    private synchronized void dropRecoveryCursor() {
+        if (recoveryCursor != null) {
+            recoveryCursor.clear();
+            recoveryCursor = null;
+        }
+    }
+
+    private synchronized void clearRecoveryCursor() {
+        if (recoveryCursor != null) {
+            recoveryCursor.clear();
+        }
+    }
+
+    private synchronized void resetRecoveryCursor() {
+        if (recoveryCursor != null) {
+            recoveryCursor.reset(lastRecoveredSequenceId.get(), lastRecoveredPriority.get());
+        }
+    }
+
 
     public void setPrioritizedMessages(boolean prioritizedMessages) {
         super.setPrioritizedMessages(prioritizedMessages);
@@ -16,13 +16,18 @@
  */
 package org.apache.activemq.store.jdbc;
 
+import static org.apache.activemq.broker.jmx.BrokerMBeanSupport.createPersistenceAdapterName;
+
 import java.io.File;
 import java.io.IOException;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.Locale;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadFactory;
@@ -34,6 +39,8 @@ import org.apache.activemq.ActiveMQMessageAudit;
 import org.apache.activemq.broker.BrokerService;
 import org.apache.activemq.broker.ConnectionContext;
 import org.apache.activemq.broker.Locker;
+import org.apache.activemq.broker.jmx.AnnotatedMBean;
+import org.apache.activemq.broker.jmx.PersistenceAdapterView;
 import org.apache.activemq.command.ActiveMQDestination;
 import org.apache.activemq.command.ActiveMQQueue;
 import org.apache.activemq.command.ActiveMQTopic;
@@ -41,6 +48,8 @@ import org.apache.activemq.command.Message;
 import org.apache.activemq.command.MessageAck;
 import org.apache.activemq.command.MessageId;
 import org.apache.activemq.command.ProducerId;
+import org.apache.activemq.management.HistogramStatisticImpl;
+import org.apache.activemq.management.StatisticImpl;
 import org.apache.activemq.openwire.OpenWireFormat;
 import org.apache.activemq.store.MessageStore;
 import org.apache.activemq.store.PersistenceAdapter;
@@ -102,6 +111,13 @@ public class JDBCPersistenceAdapter extends DataSourceServiceSupport implements
     protected LongSequenceGenerator sequenceGenerator = new LongSequenceGenerator();
     protected int maxRows = DefaultJDBCAdapter.MAX_ROWS;
 
+    private boolean enableWriteBehind;
+    private int writeBehindBatchSize = 1000;
+    private long writeBehindMaxWait;
+    private JDBCWriteBehind writeBehind;
+    private boolean enablePrefetchRecovery;
+    private int prefetchRecoveryMaxPageSize = 1000;
+
     {
         setLockKeepAlivePeriod(DEFAULT_LOCK_KEEP_ALIVE_PERIOD);
     }
@@ -327,10 +343,42 @@ public class JDBCPersistenceAdapter extends DataSourceServiceSupport implements
             }, 0, cleanupPeriod, TimeUnit.MILLISECONDS);
         }
         createMessageAudit();
+        if (enableWriteBehind) {
+            writeBehind = new JDBCWriteBehind(this, writeBehindBatchSize, writeBehindMaxWait);
+            writeBehind.start();
+        }
+
+        if (brokerService != null && brokerService.isUseJmx()) {
+            PersistenceAdapterView view = new PersistenceAdapterView(this);
+            view.setStatisticsViewCallable(new Callable<List<StatisticImpl>>() {
+                @Override
+                public List<StatisticImpl> call() throws Exception {
+                    List<StatisticImpl> rc = new ArrayList<StatisticImpl>();
+                    HistogramStatisticImpl batchSize = getWriteBehindBatchSizeStatistic();
+                    HistogramStatisticImpl latency = getWriteBehindLatencyStatistic();
+                    if (batchSize != null && latency != null) {
+                        rc.add(batchSize);
+                        rc.add(latency);
+                    }
+                    return rc;
+                }
+            });
+            AnnotatedMBean.registerMBean(brokerService.getManagementContext(), view,
+                    createPersistenceAdapterName(brokerService.getBrokerObjectName().toString(), toString()));
+        }
     }
 
     @Override
     public synchronized void doStop(ServiceStopper stopper) throws Exception {
+        if (brokerService != null && brokerService.isUseJmx()) {
+            brokerService.getManagementContext().unregisterMBean(
+                    createPersistenceAdapterName(brokerService.getBrokerObjectName().toString(), toString()));
+        }
+        if (writeBehind != null) {
+            writeBehind.stop();
+            LOG.info("JDBC write behind stopped: " + writeBehind.getBatchSizeStatistic() + ", " + writeBehind.getLatencyStatistic());
+            writeBehind = null;
+        }
         if (cleanupTicket != null) {
             cleanupTicket.cancel(true);
             cleanupTicket = null;
@@ -758,6 +806,103 @@ public class JDBCPersistenceAdapter extends DataSourceServiceSupport implements
         this.maxRows = maxRows;
     }
 
+    JDBCWriteBehind getWriteBehind() {
+        return writeBehind;
+    }
+
+    public boolean isEnableWriteBehind() {
+        return enableWriteBehind;
+    }
+
+    /**
+     * Write the message adds and removes made outside transactions on queues
+     * from a single thread, in JDBC batches committed together, rather than
+     * with a database round trip each. Producers using async sends are
+     * completed when their batch commits.
+     *
+     * @param enableWriteBehind
+     */
+    public void setEnableWriteBehind(boolean enableWriteBehind) {
+        this.enableWriteBehind = enableWriteBehind;
+    }
+
+    public int getWriteBehindBatchSize() {
+        return writeBehindBatchSize;
+    }
+
+    /**
+     * The most adds and removes to write in one write behind batch, the
+     * default is 1000.
+     *
+     * @param writeBehindBatchSize
+     */
+    public void setWriteBehindBatchSize(int writeBehindBatchSize) {
+        this.writeBehindBatchSize = writeBehindBatchSize;
+    }
+
+    public long getWriteBehindMaxWait() {
+        return writeBehindMaxWait;
+    }
+
+    /**
+     * How many milliseconds the write behind may wait for a batch to fill
+     * before writing it. The default of 0 writes whatever has been queued as
+     * soon as the previous batch is done.
+     *
+     * @param writeBehindMaxWait
+     */
+    public void setWriteBehindMaxWait(long writeBehindMaxWait) {
+        this.writeBehindMaxWait = writeBehindMaxWait;
+    }
+
+    /**
+     * @return the sizes of the write behind batches, or null if write behind is not running.
+     */
+    public HistogramStatisticImpl getWriteBehindBatchSizeStatistic() {
+        JDBCWriteBehind writeBehind = this.writeBehind;
+        return writeBehind != null ? writeBehind.getBatchSizeStatistic() : null;
+    }
+
+    /**
+     * @return the time adds and removes waited for their write behind batch to
+     *         commit, or null if write behind is not running.
+     */
+    public HistogramStatisticImpl getWriteBehindLatencyStatistic() {
+        JDBCWriteBehind writeBehind = this.writeBehind;
+        return writeBehind != null ? writeBehind.getLatencyStatistic() : null;
+    }
+
+    public boolean isEnablePrefetchRecovery() {
+        return enablePrefetchRecovery;
+    }
+
+    /**
+     * Page queue messages into the cursors from a per queue position in the
+     * messages table, reading the next page in the background while the
+     * current one is dispatched, rather than with a query for each batch
+     * the cursor asks for.
+     *
+     * @param enablePrefetchRecovery
+     */
+    public void setEnablePrefetchRecovery(boolean enablePrefetchRecovery) {
+        this.enablePrefetchRecovery = enablePrefetchRecovery;
+    }
+
+    public int getPrefetchRecoveryMaxPageSize() {
+        return prefetchRecoveryMaxPageSize;
+    }
+
+    /**
+     * The most messages prefetch recovery reads in one page, the page size
+     * growing towards it while consumers keep up. The default is 1000 and
+     * it is also limited by maxRows.
+     *
+     * @param prefetchRecoveryMaxPageSize
+     */
+    public void setPrefetchRecoveryMaxPageSize(int prefetchRecoveryMaxPageSize) {
+        this.prefetchRecoveryMaxPageSize = prefetchRecoveryMaxPageSize;
+    }
+
     public void recover(JdbcMemoryTransactionStore jdbcMemoryTransactionStore) throws IOException {
         TransactionContext c = getTransactionContext();
         try {
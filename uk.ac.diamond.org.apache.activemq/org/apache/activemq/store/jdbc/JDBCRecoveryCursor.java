@@ -0,0 +1,244 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.store.jdbc;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.activemq.command.Message;
+import org.apache.activemq.util.ByteSequence;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Streams the messages of a queue out of the database for
+ * {@link JDBCMessageStore#recoverNextMessages}, a page at a time.
+ *
+ * The cursor keeps the (id, priority) key of the last row it has read, so
+ * each page is a keyset query carrying on from there, and buffers the rows
+ * it has read but not yet handed out.  Once the buffer is below a page, the
+ * next page is read on the persistence adapter's executor while the current
+ * one is being dispatched, messages being unmarshalled there too.
+ *
+ * The page size follows the rate the buffer is drained at: it doubles, up
+ * to maxPageSize, each time a recovery finds the buffer empty and has to
+ * wait on the database for a full page, and halves each time rows read
+ * ahead are thrown away because the store cursor moved somewhere else.
+ */
+class JDBCRecoveryCursor {
+    private static final Logger LOG = LoggerFactory.getLogger(JDBCRecoveryCursor.class);
+
+    private final JDBCMessageStore store;
+    private final int maxPageSize;
+
+    // guarded by this
+    private final LinkedList<Message> buffer = new LinkedList<Message>();
+    private long fetchedSequenceId;
+    private long fetchedPriority;
+    private long deliveredSequenceId;
+    private long deliveredPriority;
+    private int generation;
+    private int pageSize;
+    private boolean exhausted;
+    private Future<?> prefetch;
+    // set once the table is found to hold external message references
+    private volatile boolean referenced;
+
+    JDBCRecoveryCursor(JDBCMessageStore store, int maxPageSize) {
+        this.store = store;
+        this.maxPageSize = Math.max(1, maxPageSize);
+        this.pageSize = 1;
+        reset(-1, Byte.MAX_VALUE - 1);
+    }
+
+    /**
+     * Moves the cursor to just after the given key, dropping the rows read
+     * ahead unless the cursor had got to that key already.
+     */
+    synchronized void reset(long sequenceId, long priority) {
+        if (sequenceId == deliveredSequenceId && priority == deliveredPriority) {
+            return;
+        }
+        if (buffer.size() > pageSize / 2) {
+            pageSize = Math.max(1, pageSize / 2);
+        }
+        deliveredSequenceId = sequenceId;
+        deliveredPriority = priority;
+        clear();
+    }
+
+    /**
+     * Drops the rows read ahead, the next recovery reading them again.
+     */
+    synchronized void clear() {
+        generation++;
+        buffer.clear();
+        if (prefetch != null) {
+            prefetch.cancel(false);
+            prefetch = null;
+        }
+        exhausted = false;
+        fetchedSequenceId = deliveredSequenceId;
+        fetchedPriority = deliveredPriority;
+    }
+
+    /**
+     * Hands out up to maxReturned messages, waiting for the database only
+     * when nothing has been read ahead.
+     */
+    List<Message> next(int maxReturned) throws Exception {
+        boolean waited = false;
+        while (true) {
+            Future<?> pending;
+            int gen;
+            long sequenceId;
+            long priority;
+            int size;
+            synchronized (this) {
+                if (pageSize < maxReturned) {
+                    pageSize = Math.min(maxReturned, maxPageSize);
+                }
+                if (!buffer.isEmpty()) {
+                    List<Message> result = new ArrayList<Message>(Math.min(maxReturned, buffer.size()));
+                    while (result.size() < maxReturned && !buffer.isEmpty()) {
+                        result.add(buffer.removeFirst());
+                    }
+                    Message last = result.get(result.size() - 1);
+                    deliveredSequenceId = last.getMessageId().getBrokerSequenceId();
+                    deliveredPriority = last.getPriority();
+                    if (waited && !exhausted && pageSize < maxPageSize) {
+                        pageSize = Math.min(pageSize * 2, maxPageSize);
+                    }
+                    schedulePrefetch();
+                    return result;
+                }
+                pending = prefetch;
+                gen = generation;
+                sequenceId = fetchedSequenceId;
+                priority = fetchedPriority;
+                size = pageSize;
+            }
+            if (pending != null && !waited) {
+                waited = true;
+                try {
+                    pending.get();
+                } catch (ExecutionException e) {
+                    // fetch again below and let that fail
+                } catch (CancellationException e) {
+                    // reset meanwhile
+                }
+                continue;
+            }
+            // nothing read ahead, or the end of the table was reached, so
+            // look for rows added since.
+            append(gen, fetch(sequenceId, priority, size), size);
+            synchronized (this) {
+                if (buffer.isEmpty()) {
+                    return new ArrayList<Message>(0);
+                }
+            }
+            waited = true;
+        }
+    }
+
+    private void schedulePrefetch() {
+        if (prefetch != null || exhausted || buffer.size() >= pageSize) {
+            return;
+        }
+        final int gen = generation;
+        final long sequenceId = fetchedSequenceId;
+        final long priority = fetchedPriority;
+        final int size = pageSize;
+        try {
+            prefetch = store.persistenceAdapter.getScheduledThreadPoolExecutor().submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        append(gen, fetch(sequenceId, priority, size), size);
+                    } catch (Exception e) {
+                        LOG.debug("Failed to prefetch messages for " + store.getDestination() + ": " + e, e);
+                        synchronized (JDBCRecoveryCursor.this) {
+                            if (gen == generation) {
+                                prefetch = null;
+                            }
+                        }
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // stopping, the next recovery will fetch for itself
+        }
+    }
+
+    private synchronized void append(int gen, List<Message> page, int requested) {
+        if (gen != generation) {
+            return;
+        }
+        prefetch = null;
+        buffer.addAll(page);
+        exhausted = page.size() < requested;
+        if (!page.isEmpty()) {
+            Message last = page.get(page.size() - 1);
+            fetchedSequenceId = last.getMessageId().getBrokerSequenceId();
+            fetchedPriority = last.getPriority();
+        }
+    }
+
+    private List<Message> fetch(long sequenceId, long priority, int size) throws Exception {
+        final List<Message> page = new ArrayList<Message>(size);
+        TransactionContext c = store.persistenceAdapter.getTransactionContext();
+        try {
+            store.adapter.doRecoverNextMessages(c, store.getDestination(), sequenceId, priority, size,
+                    store.isPrioritizedMessages(), new JDBCMessageRecoveryListener() {
+
+                public boolean recoverMessage(long sequenceId, byte[] data) throws Exception {
+                    Message msg = (Message)store.wireFormat.unmarshal(new ByteSequence(data));
+                    msg.getMessageId().setBrokerSequenceId(sequenceId);
+                    page.add(msg);
+                    return true;
+                }
+
+                public boolean recoverMessageReference(String reference) throws Exception {
+                    // references are recovered without the cursor, see isReferenced()
+                    referenced = true;
+                    return false;
+                }
+            });
+        } finally {
+            c.close();
+        }
+        return page;
+    }
+
+    /**
+     * @return true if the adapter has been found to store external message
+     *         references, which the cursor can not read ahead as the
+     *         listener has to be asked for space for each of them.
+     */
+    boolean isReferenced() {
+        return referenced;
+    }
+
+    synchronized int getPageSize() {
+        return pageSize;
+    }
+}
@@ -0,0 +1,282 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.store.jdbc;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import org.apache.activemq.command.Message;
+import org.apache.activemq.management.HistogramStatisticImpl;
+import org.apache.activemq.util.IOExceptionSupport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes the non transactional message adds and removes of all the queues of
+ * a {@link JDBCPersistenceAdapter} from a single thread, each batch of them
+ * being sent as JDBC statement batches and committed in one transaction.
+ *
+ * Whatever is queued while a batch is being written goes in the next one, so
+ * batches grow with the load without delaying a lone write.  The writer can
+ * also be told to wait up to maxWait milliseconds for a batch to fill.  An
+ * operation's future completes once its batch is committed, or fails with
+ * the whole batch.
+ */
+class JDBCWriteBehind implements Runnable {
+    private static final Logger LOG = LoggerFactory.getLogger(JDBCWriteBehind.class);
+    private static final Runnable NO_TASK = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    private final JDBCPersistenceAdapter persistenceAdapter;
+    private final int batchSize;
+    private final long maxWait;
+    private final HistogramStatisticImpl batchSizeStatistic =
+        new HistogramStatisticImpl("writeBehindBatchSize", "operations", "Number of adds and removes written in a batch");
+    private final HistogramStatisticImpl latencyStatistic =
+        new HistogramStatisticImpl("writeBehindLatency", "microseconds", "Time from queueing an add or remove until its batch is committed");
+
+    // guarded by pending
+    private final LinkedList<Operation> pending = new LinkedList<Operation>();
+    private boolean running;
+    private Thread thread;
+
+    abstract static class Operation extends FutureTask<Object> {
+        final JDBCMessageStore store;
+        final long sequenceId;
+        final long queued = System.nanoTime();
+
+        Operation(JDBCMessageStore store, long sequenceId) {
+            super(NO_TASK, null);
+            this.store = store;
+            this.sequenceId = sequenceId;
+        }
+
+        abstract void write(TransactionContext c) throws SQLException, IOException;
+
+        void completed() {
+            set(null);
+        }
+
+        void failed(Throwable cause) {
+            setException(cause);
+        }
+    }
+
+    static final class AddOperation extends Operation {
+        final Message message;
+        final byte[] data;
+
+        AddOperation(JDBCMessageStore store, long sequenceId, Message message, byte[] data) {
+            super(store, sequenceId);
+            this.message = message;
+            this.data = data;
+        }
+
+        @Override
+        void write(TransactionContext c) throws SQLException, IOException {
+            store.adapter.doAddMessage(c, sequenceId, message.getMessageId(), store.getDestination(), data, message.getExpiration(),
+                    store.isPrioritizedMessages() ? message.getPriority() : 0, null);
+        }
+
+        @Override
+        void completed() {
+            store.onWriteBehindAdd(message, sequenceId, true);
+            super.completed();
+        }
+
+        @Override
+        void failed(Throwable cause) {
+            store.onWriteBehindAdd(message, sequenceId, false);
+            super.failed(cause);
+        }
+    }
+
+    static final class RemoveOperation extends Operation {
+
+        RemoveOperation(JDBCMessageStore store, long sequenceId) {
+            super(store, sequenceId);
+        }
+
+        @Override
+        void write(TransactionContext c) throws SQLException, IOException {
+            store.adapter.doRemoveMessage(c, sequenceId, null);
+        }
+    }
+
+    JDBCWriteBehind(JDBCPersistenceAdapter persistenceAdapter, int batchSize, long maxWait) {
+        this.persistenceAdapter = persistenceAdapter;
+        this.batchSize = Math.max(1, batchSize);
+        this.maxWait = maxWait;
+    }
+
+    void start() {
+        synchronized (pending) {
+            running = true;
+        }
+        thread = new Thread(this, "ActiveMQ JDBC Write Behind");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops taking operations and waits for the queued ones to be written.
+     */
+    void stop() throws InterruptedException {
+        synchronized (pending) {
+            running = false;
+            pending.notifyAll();
+        }
+        Thread t = thread;
+        thread = null;
+        if (t != null) {
+            t.join();
+        }
+    }
+
+    Future<Object> add(JDBCMessageStore store, long sequenceId, Message message, byte[] data) throws IOException {
+        return enqueue(new AddOperation(store, sequenceId, message, data));
+    }
+
+    Future<Object> remove(JDBCMessageStore store, long sequenceId) throws IOException {
+        return enqueue(new RemoveOperation(store, sequenceId));
+    }
+
+    private Operation enqueue(Operation operation) throws IOException {
+        synchronized (pending) {
+            if (!running) {
+                throw new IOException("JDBC write behind is stopped");
+            }
+            pending.add(operation);
+            if (pending.size() == 1 || pending.size() == batchSize) {
+                pending.notifyAll();
+            }
+        }
+        return operation;
+    }
+
+    /**
+     * Waits for a queued operation to be committed.
+     */
+    static void waitFor(Future<Object> future) throws IOException {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a JDBC write");
+        } catch (ExecutionException e) {
+            throw IOExceptionSupport.create(e.getCause());
+        }
+    }
+
+    @Override
+    public void run() {
+        List<Operation> batch = new ArrayList<Operation>(batchSize);
+        try {
+            while (true) {
+                synchronized (pending) {
+                    while (running && pending.isEmpty()) {
+                        pending.wait();
+                    }
+                    if (pending.isEmpty()) {
+                        return;
+                    }
+                    if (maxWait > 0 && running && pending.size() < batchSize) {
+                        long deadline = System.currentTimeMillis() + maxWait;
+                        long wait = maxWait;
+                        while (running && pending.size() < batchSize && wait > 0) {
+                            pending.wait(wait);
+                            wait = deadline - System.currentTimeMillis();
+                        }
+                    }
+                    while (!pending.isEmpty() && batch.size() < batchSize) {
+                        batch.add(pending.removeFirst());
+                    }
+                }
+                write(batch);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            synchronized (pending) {
+                running = false;
+                batch.addAll(pending);
+                pending.clear();
+            }
+            LOG.warn("JDBC write behind interrupted, failing " + batch.size() + " operations");
+            IOException failure = new InterruptedIOException("JDBC write behind interrupted");
+            for (Operation operation : batch) {
+                operation.failed(failure);
+            }
+        }
+    }
+
+    private void write(List<Operation> batch) {
+        Throwable failure = null;
+        try {
+            TransactionContext c = persistenceAdapter.getTransactionContext();
+            c.begin();
+            try {
+                for (Operation operation : batch) {
+                    operation.write(c);
+                }
+            } catch (SQLException e) {
+                c.rollback();
+                throw e;
+            } catch (IOException e) {
+                c.rollback();
+                throw e;
+            }
+            c.commit();
+        } catch (SQLException e) {
+            JDBCPersistenceAdapter.log("JDBC Failure: ", e);
+            failure = IOExceptionSupport.create("Failed to write a batch of " + batch.size() + " messages: " + e, e);
+        } catch (Throwable e) {
+            failure = e;
+        }
+
+        if (failure != null) {
+            LOG.warn("Failed to write a batch of " + batch.size() + " messages: " + failure);
+            for (Operation operation : batch) {
+                operation.failed(failure);
+            }
+        } else {
+            long now = System.nanoTime();
+            batchSizeStatistic.addValue(batch.size());
+            for (Operation operation : batch) {
+                latencyStatistic.addValue((now - operation.queued) / 1000);
+                operation.completed();
+            }
+        }
+    }
+
+    HistogramStatisticImpl getBatchSizeStatistic() {
+        return batchSizeStatistic;
+    }
+
+    HistogramStatisticImpl getLatencyStatistic() {
+        return latencyStatistic;
+    }
+}
@@ -66,16 +66,7 @@ public class JdbcMemoryTransactionStore extends MemoryTransactionStore {
         persistenceAdapter.beginTransaction(ctx);
         try {
 
-            // Do all the message adds.
-            for (Iterator<AddMessageCommand> iter = tx.messages.iterator(); iter.hasNext();) {
-                AddMessageCommand cmd = iter.next();
-                cmd.run(ctx);
-            }
-            // And removes..
-            for (Iterator<RemoveMessageCommand> iter = tx.acks.iterator(); iter.hasNext();) {
-                RemoveMessageCommand cmd = iter.next();
-                cmd.run(ctx);
-            }
+            tx.run(ctx);
 
         } catch ( IOException e ) {
             persistenceAdapter.rollbackTransaction(ctx);
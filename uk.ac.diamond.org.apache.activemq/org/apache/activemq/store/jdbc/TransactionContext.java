@@ -236,6 +236,10 @@ public class TransactionContext {
         this.removedMessageStatement = removedMessageStatement;
     }
     
+    public boolean isInTx() {
+        return inTx;
+    }
+
     public void setTransactionIsolation(int transactionIsolation) {
         this.transactionIsolation = transactionIsolation;
     }
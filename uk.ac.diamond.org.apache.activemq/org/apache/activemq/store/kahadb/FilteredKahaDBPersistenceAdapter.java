@@ -27,6 +27,7 @@ import org.apache.activemq.store.PersistenceAdapter;
 public class FilteredKahaDBPersistenceAdapter extends DestinationMapEntry {
     private PersistenceAdapter persistenceAdapter;
     private boolean perDestination;
+    private boolean adaptive;
 
     public FilteredKahaDBPersistenceAdapter() {
         super();
@@ -52,4 +53,20 @@ public class FilteredKahaDBPersistenceAdapter extends DestinationMapEntry {
     public void setPerDestination(boolean perDestination) {
         this.perDestination = perDestination;
     }
+
+    public boolean isAdaptive() {
+        return adaptive;
+    }
+
+    /**
+     * Pools this entry's KahaDB instance with the other adaptive entries for
+     * the same destination filter.  A new destination matching the filter is
+     * placed on the instance of the pool with the lowest write rate and can
+     * later be moved between them, see
+     * {@link MultiKahaDBPersistenceAdapter#migrateDestination(String, String)}.
+     * Not used with perDestination.
+     */
+    public void setAdaptive(boolean adaptive) {
+        this.adaptive = adaptive;
+    }
 }
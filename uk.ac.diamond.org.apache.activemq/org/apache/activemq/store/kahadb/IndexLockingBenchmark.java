@@ -0,0 +1,258 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.store.kahadb;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.activemq.broker.ConnectionContext;
+import org.apache.activemq.command.ActiveMQQueue;
+import org.apache.activemq.command.ActiveMQTextMessage;
+import org.apache.activemq.command.MessageAck;
+import org.apache.activemq.command.MessageId;
+import org.apache.activemq.command.ProducerId;
+import org.apache.activemq.store.MessageStore;
+import org.apache.activemq.store.kahadb.disk.util.CommandLineSupport;
+import org.apache.activemq.util.IOHelper;
+
+/**
+ * This class is used to benchmark how KahaDB message throughput scales with the
+ * number of destinations being written to concurrently, with the index locked
+ * as a whole and with striped per destination index locking.
+ *
+ * For each destination count, one thread per queue repeatedly adds a message
+ * and acks it. Each run gets a fresh store, a warmup pass and a timed pass.
+ */
+public class IndexLockingBenchmark {
+
+    boolean verbose;
+    // size of the body of each message.
+    int bs = 1024;
+    // comma separated list of destination counts to measure.
+    String destinations = "1,2,4,8,16";
+    long warmupInterval = 2 * 1000;
+    long sampleInterval = 10 * 1000;
+    boolean enableJournalDiskSyncs = false;
+
+    public static void main(String[] args) {
+
+        IndexLockingBenchmark benchmark = new IndexLockingBenchmark();
+        args = CommandLineSupport.setOptions(benchmark, args);
+        File directory = new File(args.length == 0 ? "index-locking-benchmark" : args[0]);
+
+        try {
+            if (directory.exists()) {
+                System.out.println("Directory " + directory + " allready exists, will not benchmark.");
+            } else {
+                System.out.println("Benchmarking: " + directory.getCanonicalPath());
+                ArrayList<Report> reports = benchmark.benchmark(directory);
+                for (Report report : reports) {
+                    System.out.println(report.toString());
+                }
+            }
+        } catch (Throwable e) {
+            if (benchmark.verbose) {
+                System.out.println("ERROR:");
+                e.printStackTrace(System.out);
+            } else {
+                System.out.println("ERROR: " + e);
+            }
+        }
+    }
+
+    public static class Report {
+
+        public int destinations;
+        public boolean striped;
+        public long messages;
+        public long duration;
+
+        @Override
+        public String toString() {
+            return
+            (striped ? "Striped" : "Exclusive") + " index locking with " + destinations + " destination(s): \n" +
+            "  " + messages + " messages added and acked in " + (duration / 1000.0) + " seconds.\n" +
+            "  " + getRate() + " messages/second.\n";
+        }
+
+        private float getRate() {
+            float rc = messages;
+            rc /= (duration / 1000.0); // get rate.
+            return rc;
+        }
+
+        public int getDestinations() {
+            return destinations;
+        }
+
+        public boolean isStriped() {
+            return striped;
+        }
+
+        public long getMessages() {
+            return messages;
+        }
+
+        public long getDuration() {
+            return duration;
+        }
+    }
+
+    public ArrayList<Report> benchmark(File directory) throws Exception {
+        ArrayList<Report> rc = new ArrayList<Report>();
+        int run = 0;
+        for (String d : destinations.split(",")) {
+            int destinationCount = Integer.parseInt(d.trim());
+            for (boolean striped : new boolean[] {false, true}) {
+                File runDirectory = new File(directory, "run-" + run++);
+                KahaDBPersistenceAdapter adapter = new KahaDBPersistenceAdapter();
+                adapter.setDirectory(runDirectory);
+                adapter.setEnableJournalDiskSyncs(enableJournalDiskSyncs);
+                adapter.setEnableStripedIndexLocking(striped);
+                adapter.start();
+                try {
+                    MessageStore[] stores = new MessageStore[destinationCount];
+                    for (int i = 0; i < destinationCount; i++) {
+                        stores[i] = adapter.createQueueMessageStore(new ActiveMQQueue("IndexLockingBenchmark." + i));
+                    }
+                    run(stores, warmupInterval);
+                    Report report = new Report();
+                    report.destinations = destinationCount;
+                    report.striped = striped;
+                    report.duration = sampleInterval;
+                    report.messages = run(stores, sampleInterval);
+                    rc.add(report);
+                } finally {
+                    adapter.stop();
+                    IOHelper.deleteFile(runDirectory);
+                }
+            }
+        }
+        IOHelper.deleteFile(directory);
+        return rc;
+    }
+
+    private long run(MessageStore[] stores, final long interval) throws Exception {
+        final AtomicLong messages = new AtomicLong();
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        final CountDownLatch doneLatch = new CountDownLatch(stores.length);
+        final AtomicLong failures = new AtomicLong();
+        final StringBuilder body = new StringBuilder(bs);
+        for (int i = 0; i < bs; i++) {
+            body.append((char)('a' + (i % 26)));
+        }
+
+        for (int i = 0; i < stores.length; i++) {
+            final MessageStore store = stores[i];
+            final ProducerId producerId = new ProducerId("ID:IndexLockingBenchmark-" + System.nanoTime() + ":" + i + ":1:1");
+            Thread thread = new Thread("Destination Writer " + i) {
+                public void run() {
+                    ConnectionContext context = new ConnectionContext();
+                    long count = 0;
+                    try {
+                        startLatch.await();
+                        long end = System.currentTimeMillis() + interval;
+                        while (System.currentTimeMillis() < end) {
+                            ActiveMQTextMessage message = new ActiveMQTextMessage();
+                            message.setMessageId(new MessageId(producerId, count + 1));
+                            message.setDestination(store.getDestination());
+                            message.setPersistent(true);
+                            message.setText(body.toString());
+                            store.addMessage(context, message);
+
+                            MessageAck ack = new MessageAck();
+                            ack.setAckType(MessageAck.STANDARD_ACK_TYPE);
+                            ack.setDestination(store.getDestination());
+                            ack.setLastMessageId(message.getMessageId());
+                            ack.setMessageCount(1);
+                            store.removeMessage(context, ack);
+                            count++;
+                        }
+                    } catch (Exception e) {
+                        if (verbose) {
+                            e.printStackTrace(System.out);
+                        }
+                        failures.incrementAndGet();
+                    } finally {
+                        messages.addAndGet(count);
+                        doneLatch.countDown();
+                    }
+                }
+            };
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        startLatch.countDown();
+        doneLatch.await();
+        if (failures.get() > 0) {
+            throw new IOException(failures.get() + " writer thread(s) failed");
+        }
+        return messages.get();
+    }
+
+    public boolean isVerbose() {
+        return verbose;
+    }
+
+    public void setVerbose(boolean verbose) {
+        this.verbose = verbose;
+    }
+
+    public int getBs() {
+        return bs;
+    }
+
+    public void setBs(int bs) {
+        this.bs = bs;
+    }
+
+    public String getDestinations() {
+        return destinations;
+    }
+
+    public void setDestinations(String destinations) {
+        this.destinations = destinations;
+    }
+
+    public long getWarmupInterval() {
+        return warmupInterval;
+    }
+
+    public void setWarmupInterval(long warmupInterval) {
+        this.warmupInterval = warmupInterval;
+    }
+
+    public long getSampleInterval() {
+        return sampleInterval;
+    }
+
+    public void setSampleInterval(long sampleInterval) {
+        this.sampleInterval = sampleInterval;
+    }
+
+    public boolean isEnableJournalDiskSyncs() {
+        return enableJournalDiskSyncs;
+    }
+
+    public void setEnableJournalDiskSyncs(boolean enableJournalDiskSyncs) {
+        this.enableJournalDiskSyncs = enableJournalDiskSyncs;
+    }
+}
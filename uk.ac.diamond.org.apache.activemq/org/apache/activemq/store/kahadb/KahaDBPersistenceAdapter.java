@@ -20,6 +20,8 @@ import static org.apache.activemq.broker.jmx.BrokerMBeanSupport.createPersistenc
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.Callable;
 
@@ -38,11 +40,15 @@ import org.apache.activemq.command.LocalTransactionId;
 import org.apache.activemq.command.ProducerId;
 import org.apache.activemq.command.TransactionId;
 import org.apache.activemq.command.XATransactionId;
+import org.apache.activemq.management.StatisticImpl;
 import org.apache.activemq.protobuf.Buffer;
 import org.apache.activemq.store.*;
 import org.apache.activemq.store.kahadb.data.KahaLocalTransactionId;
 import org.apache.activemq.store.kahadb.data.KahaTransactionInfo;
 import org.apache.activemq.store.kahadb.data.KahaXATransactionId;
+import org.apache.activemq.store.kahadb.disk.journal.Journal;
+import org.apache.activemq.store.kahadb.disk.page.OffHeapPageCache;
+import org.apache.activemq.store.kahadb.disk.page.PageFile;
 import org.apache.activemq.usage.SystemUsage;
 import org.apache.activemq.util.ServiceStopper;
 
@@ -212,8 +218,7 @@ public class KahaDBPersistenceAdapter extends LockableServiceSupport implements
      */
     @Override
     public void doStart() throws Exception {
-        this.letter.start();
-
+        // Registered before the store starts so journal recovery progress can be watched.
         if (brokerService != null && brokerService.isUseJmx()) {
             PersistenceAdapterView view = new PersistenceAdapterView(this);
             view.setInflightTransactionViewCallable(new Callable<String>() {
@@ -225,12 +230,50 @@ public class KahaDBPersistenceAdapter extends LockableServiceSupport implements
             view.setDataViewCallable(new Callable<String>() {
                 @Override
                 public String call() throws Exception {
-                    return letter.getJournal().getFileMap().keySet().toString();
+                    Journal journal = letter.journal;
+                    return journal == null ? "[]" : journal.getFileMap().keySet().toString();
+                }
+            });
+            view.setRecoveryProgressViewCallable(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    return letter.getRecoveryProgress();
+                }
+            });
+            view.setStatisticsViewCallable(new Callable<List<StatisticImpl>>() {
+                @Override
+                public List<StatisticImpl> call() throws Exception {
+                    List<StatisticImpl> rc = new ArrayList<StatisticImpl>();
+                    rc.add(letter.getJournalBytesCompacted());
+                    rc.add(letter.getJournalBytesReclaimed());
+                    Journal journal = letter.journal;
+                    if (journal != null) {
+                        rc.add(journal.getWriteBatchSizeStatistic());
+                        rc.add(journal.getSyncLatencyStatistic());
+                    }
+                    PageFile pageFile = letter.pageFile;
+                    OffHeapPageCache cache = pageFile == null ? null : pageFile.getOffHeapPageCache();
+                    if (cache != null) {
+                        rc.add(cache.getHits());
+                        rc.add(cache.getMisses());
+                        rc.add(cache.getEvictions());
+                    }
+                    return rc;
                 }
             });
             AnnotatedMBean.registerMBean(brokerService.getManagementContext(), view,
                     createPersistenceAdapterName(brokerService.getBrokerObjectName().toString(), toString()));
         }
+
+        try {
+            this.letter.start();
+        } catch (Exception e) {
+            if (brokerService != null && brokerService.isUseJmx()) {
+                ObjectName brokerObjectName = brokerService.getBrokerObjectName();
+                brokerService.getManagementContext().unregisterMBean(createPersistenceAdapterName(brokerObjectName.toString(), toString()));
+            }
+            throw e;
+        }
     }
 
     /**
@@ -368,6 +411,48 @@ public class KahaDBPersistenceAdapter extends LockableServiceSupport implements
         this.letter.setJournalMaxWriteBatchSize(journalMaxWriteBatchSize);
     }
 
+    /**
+     * Get the journalMaxWriteBatchWaitMicros
+     *
+     * @return the journalMaxWriteBatchWaitMicros
+     */
+    public long getJournalMaxWriteBatchWaitMicros() {
+        return this.letter.getJournalMaxWriteBatchWaitMicros();
+    }
+
+    /**
+     * Set the journalMaxWriteBatchWaitMicros, the longest a partially filled write
+     * batch is held open so more concurrent writes can share its disk sync.
+     * Defaults to 0, which writes each batch as soon as the writer is free.
+     *
+     * @param journalMaxWriteBatchWaitMicros
+     *            the journalMaxWriteBatchWaitMicros to set
+     */
+    public void setJournalMaxWriteBatchWaitMicros(long journalMaxWriteBatchWaitMicros) {
+        this.letter.setJournalMaxWriteBatchWaitMicros(journalMaxWriteBatchWaitMicros);
+    }
+
+    /**
+     * Get the enableJournalPipelinedSync
+     *
+     * @return the enableJournalPipelinedSync
+     */
+    public boolean isEnableJournalPipelinedSync() {
+        return this.letter.isEnableJournalPipelinedSync();
+    }
+
+    /**
+     * Set the enableJournalPipelinedSync, when true journal batches are synced to
+     * disk on their own thread so the next batch is written while the previous
+     * one syncs.
+     *
+     * @param enableJournalPipelinedSync
+     *            the enableJournalPipelinedSync to set
+     */
+    public void setEnableJournalPipelinedSync(boolean enableJournalPipelinedSync) {
+        this.letter.setEnableJournalPipelinedSync(enableJournalPipelinedSync);
+    }
+
     /**
      * Get the enableIndexWriteAsync
      *
@@ -425,6 +510,49 @@ public class KahaDBPersistenceAdapter extends LockableServiceSupport implements
         this.letter.setEnableJournalDiskSyncs(enableJournalDiskSyncs);
     }
 
+    /**
+     * Get the enableJournalMemoryMappedReads
+     *
+     * @return the enableJournalMemoryMappedReads
+     */
+    public boolean isEnableJournalMemoryMappedReads() {
+        return this.letter.isEnableJournalMemoryMappedReads();
+    }
+
+    /**
+     * Set the enableJournalMemoryMappedReads, when true journal data files that are
+     * no longer being written to are memory mapped and read without seek and read
+     * system calls.  Mapped files are only released when garbage collected, so this
+     * is best avoided where the platform will not delete a file that is still mapped.
+     *
+     * @param enableJournalMemoryMappedReads
+     *            the enableJournalMemoryMappedReads to set
+     */
+    public void setEnableJournalMemoryMappedReads(boolean enableJournalMemoryMappedReads) {
+        this.letter.setEnableJournalMemoryMappedReads(enableJournalMemoryMappedReads);
+    }
+
+    /**
+     * Get the enableJournalPreallocation
+     *
+     * @return the enableJournalPreallocation
+     */
+    public boolean isEnableJournalPreallocation() {
+        return this.letter.isEnableJournalPreallocation();
+    }
+
+    /**
+     * Set the enableJournalPreallocation, when true each journal data file is zero
+     * filled to journalMaxFileLength in the background before the journal rolls
+     * over to it, so syncs don't also have to flush file size changes.
+     *
+     * @param enableJournalPreallocation
+     *            the enableJournalPreallocation to set
+     */
+    public void setEnableJournalPreallocation(boolean enableJournalPreallocation) {
+        this.letter.setEnableJournalPreallocation(enableJournalPreallocation);
+    }
+
     /**
      * Get the indexCacheSize
      *
@@ -445,6 +573,168 @@ public class KahaDBPersistenceAdapter extends LockableServiceSupport implements
         this.letter.setIndexCacheSize(indexCacheSize);
     }
 
+    /**
+     * Get the indexOffHeapCacheSize
+     *
+     * @return the indexOffHeapCacheSize
+     */
+    public long getIndexOffHeapCacheSize() {
+        return this.letter.getIndexOffHeapCacheSize();
+    }
+
+    /**
+     * Set the number of bytes of direct memory used to cache index pages
+     * that do not fit in the indexCacheSize, 0 (the default) disables it.
+     * When set using Xbean, values of the form "20 Mb", "1024kb", and "1g" can be used
+     * @org.apache.xbean.Property propertyEditor="org.apache.activemq.util.MemoryPropertyEditor"
+     * @param indexOffHeapCacheSize
+     *            the indexOffHeapCacheSize to set
+     */
+    public void setIndexOffHeapCacheSize(long indexOffHeapCacheSize) {
+        this.letter.setIndexOffHeapCacheSize(indexOffHeapCacheSize);
+    }
+
+    /**
+     * Get the enableStripedIndexLocking
+     *
+     * @return the enableStripedIndexLocking
+     */
+    public boolean isEnableStripedIndexLocking() {
+        return this.letter.isEnableStripedIndexLocking();
+    }
+
+    /**
+     * Set whether non transacted message adds and acks, and cursor reads, on
+     * different destinations may update the index concurrently, each holding
+     * a lock on its own destination rather than the whole index.
+     *
+     * @param enableStripedIndexLocking
+     *            the enableStripedIndexLocking to set
+     */
+    public void setEnableStripedIndexLocking(boolean enableStripedIndexLocking) {
+        this.letter.setEnableStripedIndexLocking(enableStripedIndexLocking);
+    }
+
+    /**
+     * Get the enableConcurrentBTreeIndex
+     *
+     * @return the enableConcurrentBTreeIndex
+     */
+    public boolean isEnableConcurrentBTreeIndex() {
+        return this.letter.isEnableConcurrentBTreeIndex();
+    }
+
+    /**
+     * Set whether the per destination indexes are latched BTrees that can be
+     * read and updated by several threads at once.  Message lookups by id then
+     * no longer wait for other lookups, or for the destination's writer when
+     * enableStripedIndexLocking is also set.
+     *
+     * @param enableConcurrentBTreeIndex
+     *            the enableConcurrentBTreeIndex to set
+     */
+    public void setEnableConcurrentBTreeIndex(boolean enableConcurrentBTreeIndex) {
+        this.letter.setEnableConcurrentBTreeIndex(enableConcurrentBTreeIndex);
+    }
+
+    /**
+     * Get the enableJournalCompaction
+     *
+     * @return the enableJournalCompaction
+     */
+    public boolean isEnableJournalCompaction() {
+        return this.letter.isEnableJournalCompaction();
+    }
+
+    /**
+     * Set whether the messages still held in sparsely used journal data files
+     * are copied to the head of the journal during cleanup, so the files can be removed.
+     *
+     * @param enableJournalCompaction
+     *            the enableJournalCompaction to set
+     */
+    public void setEnableJournalCompaction(boolean enableJournalCompaction) {
+        this.letter.setEnableJournalCompaction(enableJournalCompaction);
+    }
+
+    /**
+     * Get the journalCompactionThreshold
+     *
+     * @return the journalCompactionThreshold
+     */
+    public int getJournalCompactionThreshold() {
+        return this.letter.getJournalCompactionThreshold();
+    }
+
+    /**
+     * Set the percentage of a data file that must still be live for compaction to leave it alone
+     *
+     * @param journalCompactionThreshold
+     *            the journalCompactionThreshold to set
+     */
+    public void setJournalCompactionThreshold(int journalCompactionThreshold) {
+        this.letter.setJournalCompactionThreshold(journalCompactionThreshold);
+    }
+
+    /**
+     * Get the journalCompactionRate
+     *
+     * @return the journalCompactionRate
+     */
+    public long getJournalCompactionRate() {
+        return this.letter.getJournalCompactionRate();
+    }
+
+    /**
+     * Set the number of bytes a second compaction may read and copy
+     * When set using Xbean, values of the form "20 Mb", "1024kb", and "1g" can be used
+     * @org.apache.xbean.Property propertyEditor="org.apache.activemq.util.MemoryPropertyEditor"
+     * @param journalCompactionRate
+     *            the journalCompactionRate to set
+     */
+    public void setJournalCompactionRate(long journalCompactionRate) {
+        this.letter.setJournalCompactionRate(journalCompactionRate);
+    }
+
+    /**
+     * Get the enablePipelinedIndexRecovery
+     *
+     * @return the enablePipelinedIndexRecovery
+     */
+    public boolean isEnablePipelinedIndexRecovery() {
+        return this.letter.isEnablePipelinedIndexRecovery();
+    }
+
+    /**
+     * Set whether journal reads and command decoding are done on separate
+     * threads, ahead of the index updates, when the index is rebuilt from the journal.
+     *
+     * @param enablePipelinedIndexRecovery
+     *            the enablePipelinedIndexRecovery to set
+     */
+    public void setEnablePipelinedIndexRecovery(boolean enablePipelinedIndexRecovery) {
+        this.letter.setEnablePipelinedIndexRecovery(enablePipelinedIndexRecovery);
+    }
+
+    /**
+     * Get the indexRecoveryDecoderThreads
+     *
+     * @return the indexRecoveryDecoderThreads
+     */
+    public int getIndexRecoveryDecoderThreads() {
+        return this.letter.getIndexRecoveryDecoderThreads();
+    }
+
+    /**
+     * Set the number of threads decoding journal commands during a pipelined index recovery
+     *
+     * @param indexRecoveryDecoderThreads
+     *            the indexRecoveryDecoderThreads to set
+     */
+    public void setIndexRecoveryDecoderThreads(int indexRecoveryDecoderThreads) {
+        this.letter.setIndexRecoveryDecoderThreads(indexRecoveryDecoderThreads);
+    }
+
     /**
      * Get the ignoreMissingJournalfiles
      *
@@ -480,6 +770,40 @@ public class KahaDBPersistenceAdapter extends LockableServiceSupport implements
         letter.setCheckForCorruptJournalFiles(checkForCorruptJournalFiles);
     }
 
+    public String getJournalChecksumAlgorithm() {
+        return letter.getJournalChecksumAlgorithm();
+    }
+
+    /**
+     * Set the algorithm used to checksum journal write batches, Adler32 (the
+     * default) or CRC32C, which is hardware accelerated on newer JVMs and
+     * makes checkForCorruptJournalFiles cheaper on large stores.  Journals
+     * written with CRC32C cannot be verified by older brokers.
+     *
+     * @param journalChecksumAlgorithm
+     *            the journalChecksumAlgorithm to set
+     */
+    public void setJournalChecksumAlgorithm(String journalChecksumAlgorithm) {
+        letter.setJournalChecksumAlgorithm(journalChecksumAlgorithm);
+    }
+
+    public boolean isEnableJournalRecordChecksums() {
+        return letter.isEnableJournalRecordChecksums();
+    }
+
+    /**
+     * Set whether each journal record carries its own CRC32C, verified every
+     * time the record is read back rather than only when its write batch is
+     * checked at startup.  Older brokers cannot read journals written with
+     * record checksums.
+     *
+     * @param enableJournalRecordChecksums
+     *            the enableJournalRecordChecksums to set
+     */
+    public void setEnableJournalRecordChecksums(boolean enableJournalRecordChecksums) {
+        letter.setEnableJournalRecordChecksums(enableJournalRecordChecksums);
+    }
+
     @Override
     public void setBrokerService(BrokerService brokerService) {
         super.setBrokerService(brokerService);
@@ -510,6 +834,20 @@ public class KahaDBPersistenceAdapter extends LockableServiceSupport implements
         letter.setConcurrentStoreAndDispatchQueues(concurrentStoreAndDispatch);
     }
 
+    public boolean isEnableReadAhead() {
+        return letter.isEnableReadAhead();
+    }
+
+    /**
+     * When a queue cursor pages in a batch of messages, read their journal
+     * records in file order, those close together with a single read, and
+     * read the next batch ahead in the background.  Speeds up draining a
+     * large persisted backlog.
+     */
+    public void setEnableReadAhead(boolean enableReadAhead) {
+        letter.setEnableReadAhead(enableReadAhead);
+    }
+
     public boolean isConcurrentStoreAndDispatchTopics() {
         return letter.isConcurrentStoreAndDispatchTopics();
     }
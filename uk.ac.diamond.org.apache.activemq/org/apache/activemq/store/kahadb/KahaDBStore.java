@@ -20,15 +20,18 @@ import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InterruptedIOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 import java.util.concurrent.FutureTask;
@@ -39,6 +42,7 @@ import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
 
 import org.apache.activemq.broker.ConnectionContext;
 import org.apache.activemq.broker.region.Destination;
@@ -101,6 +105,8 @@ public class KahaDBStore extends MessageDatabase implements PersistenceAdapter {
     private boolean concurrentStoreAndDispatchTopics = false;
     private final boolean concurrentStoreAndDispatchTransactions = false;
     private int maxAsyncJobs = MAX_ASYNC_JOBS;
+    private boolean enableReadAhead = false;
+    protected ThreadPoolExecutor readAheadExecutor;
     private final KahaDBTransactionStore transactionStore;
     private TransactionIdTransformer transactionIdTransformer;
 
@@ -147,6 +153,18 @@ public class KahaDBStore extends MessageDatabase implements PersistenceAdapter {
         this.concurrentStoreAndDispatchQueues = concurrentStoreAndDispatch;
     }
 
+    public boolean isEnableReadAhead() {
+        return this.enableReadAhead;
+    }
+
+    /**
+     * @param enableReadAhead
+     *            the enableReadAhead to set
+     */
+    public void setEnableReadAhead(boolean enableReadAhead) {
+        this.enableReadAhead = enableReadAhead;
+    }
+
     /**
      * @return the concurrentStoreAndDispatch
      */
@@ -225,6 +243,19 @@ public class KahaDBStore extends MessageDatabase implements PersistenceAdapter {
                     return thread;
                 }
             });
+        if (isEnableReadAhead()) {
+            int threads = Runtime.getRuntime().availableProcessors();
+            this.readAheadExecutor = new ThreadPoolExecutor(threads, threads, 30L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "KahaDB Read Ahead");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            this.readAheadExecutor.allowCoreThreadTimeOut(true);
+        }
     }
 
     @Override
@@ -272,6 +303,10 @@ public class KahaDBStore extends MessageDatabase implements PersistenceAdapter {
             ThreadPoolUtils.shutdownNow(topicExecutor);
             topicExecutor = null;
         }
+        if (this.readAheadExecutor != null) {
+            ThreadPoolUtils.shutdownNow(readAheadExecutor);
+            readAheadExecutor = null;
+        }
         LOG.info("Stopped KahaDB");
         super.doStop(stopper);
     }
@@ -339,7 +374,8 @@ public class KahaDBStore extends MessageDatabase implements PersistenceAdapter {
                 if (sequence == null) {
                     return null;
                 }
-                return sd.orderIndex.get(tx, sequence).location;
+                MessageKeys keys = sd.orderIndex.peek(tx, sequence);
+                return keys != null ? keys.location : null;
             }
         });
     }
@@ -392,6 +428,10 @@ public class KahaDBStore extends MessageDatabase implements PersistenceAdapter {
         protected KahaDestination dest;
         private final int maxAsyncJobs;
         private final Semaphore localDestinationSemaphore;
+        // the messages of the next batch, being read ahead of recoverNextMessages
+        private ReadAhead readAhead;
+        // messages read for an earlier batch but not recovered yet
+        private Map<Location, Message> readButNotRecovered;
 
         double doneTasks, canceledTasks = 0;
 
@@ -422,6 +462,18 @@ public class KahaDBStore extends MessageDatabase implements PersistenceAdapter {
 
         @Override
         public void removeAsyncMessage(ConnectionContext context, MessageAck ack) throws IOException {
+            if (!cancelAsyncAdd(ack)) {
+                removeMessage(context, ack);
+            }
+        }
+
+        /**
+         * When the add of the acked message is still queued, cancels it so neither the
+         * add nor the remove need to be written, or waits for it to complete.
+         *
+         * @return true if the add was cancelled
+         */
+        private boolean cancelAsyncAdd(MessageAck ack) throws IOException {
             if (isConcurrentStoreAndDispatchQueues()) {
                 AsyncJobKey key = new AsyncJobKey(ack.getLastMessageId(), getDestination());
                 StoreQueueTask task = null;
@@ -437,22 +489,40 @@ public class KahaDBStore extends MessageDatabase implements PersistenceAdapter {
                         } catch (Exception ignored) {
                             LOG.debug("removeAsync: cannot cancel, waiting for add resulted in ex", ignored);
                         }
-                        removeMessage(context, ack);
                     } else {
                         synchronized (asyncTaskMap) {
                             asyncTaskMap.remove(key);
                         }
+                        return true;
                     }
-                } else {
-                    removeMessage(context, ack);
                 }
-            } else {
-                removeMessage(context, ack);
             }
+            return false;
         }
 
         @Override
         public void addMessage(ConnectionContext context, Message message) throws IOException {
+            store(createAddCommand(message), isEnableJournalDiskSyncs() && message.isResponseRequired(), null, null);
+        }
+
+        /**
+         * Journals the adds together and applies them in one index transaction.
+         */
+        @Override
+        public void addMessages(ConnectionContext context, List<Message> messages) throws IOException {
+            if (messages.isEmpty()) {
+                return;
+            }
+            List<JournalCommand<?>> commands = new ArrayList<JournalCommand<?>>(messages.size());
+            boolean sync = false;
+            for (Message message : messages) {
+                commands.add(createAddCommand(message));
+                sync |= isEnableJournalDiskSyncs() && message.isResponseRequired();
+            }
+            store(commands, sync);
+        }
+
+        private KahaAddMessageCommand createAddCommand(Message message) throws IOException {
             KahaAddMessageCommand command = new KahaAddMessageCommand();
             command.setDestination(dest);
             command.setMessageId(message.getMessageId().toProducerKey());
@@ -461,12 +531,35 @@ public class KahaDBStore extends MessageDatabase implements PersistenceAdapter {
             command.setPrioritySupported(isPrioritizedMessages());
             org.apache.activemq.util.ByteSequence packet = wireFormat.marshal(message);
             command.setMessage(new Buffer(packet.getData(), packet.getOffset(), packet.getLength()));
-            store(command, isEnableJournalDiskSyncs() && message.isResponseRequired(), null, null);
-
+            return command;
         }
 
         @Override
         public void removeMessage(ConnectionContext context, MessageAck ack) throws IOException {
+            store(createRemoveCommand(ack), isEnableJournalDiskSyncs() && ack.isResponseRequired(), null, null);
+        }
+
+        /**
+         * Journals the removes together and applies them in one index transaction.
+         * As with {@link #removeAsyncMessage}, acks of messages whose add is still
+         * queued cancel the add instead.
+         */
+        @Override
+        public void removeMessages(ConnectionContext context, List<MessageAck> acks) throws IOException {
+            List<JournalCommand<?>> commands = new ArrayList<JournalCommand<?>>(acks.size());
+            boolean sync = false;
+            for (MessageAck ack : acks) {
+                if (!cancelAsyncAdd(ack)) {
+                    commands.add(createRemoveCommand(ack));
+                    sync |= isEnableJournalDiskSyncs() && ack.isResponseRequired();
+                }
+            }
+            if (!commands.isEmpty()) {
+                store(commands, sync);
+            }
+        }
+
+        private KahaRemoveMessageCommand createRemoveCommand(MessageAck ack) throws IOException {
             KahaRemoveMessageCommand command = new KahaRemoveMessageCommand();
             command.setDestination(dest);
             command.setMessageId(ack.getLastMessageId().toProducerKey());
@@ -474,7 +567,7 @@ public class KahaDBStore extends MessageDatabase implements PersistenceAdapter {
 
             org.apache.activemq.util.ByteSequence packet = wireFormat.marshal(ack);
             command.setAck(new Buffer(packet.getData(), packet.getOffset(), packet.getLength()));
-            store(command, isEnableJournalDiskSyncs() && ack.isResponseRequired(), null, null);
+            return command;
         }
 
         @Override
@@ -488,15 +581,12 @@ public class KahaDBStore extends MessageDatabase implements PersistenceAdapter {
         public Message getMessage(MessageId identity) throws IOException {
             final String key = identity.toProducerKey();
 
-            // Hopefully one day the page file supports concurrent read
-            // operations... but for now we must
-            // externally synchronize...
             Location location;
-            indexLock.writeLock().lock();
+            Lock lock = lockIndexForRead(dest);
             try {
                 location = findMessageLocation(key, dest);
             }finally {
-                indexLock.writeLock().unlock();
+                unlockIndex(lock);
             }
             if (location == null) {
                 return null;
@@ -509,7 +599,7 @@ public class KahaDBStore extends MessageDatabase implements PersistenceAdapter {
         public int getMessageCount() throws IOException {
             try {
                 lockAsyncJobQueue();
-                indexLock.writeLock().lock();
+                Lock lock = lockIndex(dest);
                 try {
                     return pageFile.tx().execute(new Transaction.CallableClosure<Integer, IOException>() {
                         @Override
@@ -528,7 +618,7 @@ public class KahaDBStore extends MessageDatabase implements PersistenceAdapter {
                         }
                     });
                 }finally {
-                    indexLock.writeLock().unlock();
+                    unlockIndex(lock);
                 }
             } finally {
                 unlockAsyncJobQueue();
@@ -537,7 +627,7 @@ public class KahaDBStore extends MessageDatabase implements PersistenceAdapter {
 
         @Override
         public boolean isEmpty() throws IOException {
-            indexLock.writeLock().lock();
+            Lock lock = lockIndex(dest);
             try {
                 return pageFile.tx().execute(new Transaction.CallableClosure<Boolean, IOException>() {
                     @Override
@@ -549,7 +639,7 @@ public class KahaDBStore extends MessageDatabase implements PersistenceAdapter {
                     }
                 });
             }finally {
-                indexLock.writeLock().unlock();
+                unlockIndex(lock);
             }
         }
 
@@ -582,7 +672,11 @@ public class KahaDBStore extends MessageDatabase implements PersistenceAdapter {
 
         @Override
         public void recoverNextMessages(final int maxReturned, final MessageRecoveryListener listener) throws Exception {
-            indexLock.writeLock().lock();
+            if (readAheadExecutor != null) {
+                recoverNextMessagesReadAhead(maxReturned, listener);
+                return;
+            }
+            Lock lock = lockIndex(dest);
             try {
                 pageFile.tx().execute(new Transaction.Closure<Exception>() {
                     @Override
@@ -606,14 +700,205 @@ public class KahaDBStore extends MessageDatabase implements PersistenceAdapter {
                     }
                 });
             }finally {
-                indexLock.writeLock().unlock();
+                unlockIndex(lock);
+            }
+        }
+
+        /**
+         * Reads the batch's messages in journal order, with one read for
+         * those close together, rather than one at a time in the order of the
+         * index.  When the batch is full the next one is read ahead on the
+         * readAheadExecutor, and its messages are used by the next call if
+         * they are still next by then.  Should the listener run out of space
+         * the cursor is left after the last message recovered, and the rest
+         * are kept for the next call too.
+         */
+        private void recoverNextMessagesReadAhead(final int maxReturned, final MessageRecoveryListener listener) throws Exception {
+            final Map<Location, Message> ahead = takeReadAhead();
+            final AtomicInteger counter = new AtomicInteger();
+            final Map<Location, Message> notRecovered = new LinkedHashMap<Location, Message>();
+            Lock lock = lockIndex(dest);
+            try {
+                pageFile.tx().execute(new Transaction.Closure<Exception>() {
+                    @Override
+                    public void execute(Transaction tx) throws Exception {
+                        StoredDestination sd = getStoredDestination(dest, tx);
+                        MessageOrderIndex orderIndex = sd.orderIndex;
+                        List<Long[]> positions = new ArrayList<Long[]>();
+                        Location[] locations = nextLocations(orderIndex, orderIndex.iterator(tx), maxReturned, positions);
+                        Message[] messages = new Message[locations.length];
+                        List<Location> missing = new ArrayList<Location>();
+                        for (int i = 0; i < locations.length; i++) {
+                            messages[i] = ahead.remove(locations[i]);
+                            if (messages[i] == null) {
+                                missing.add(locations[i]);
+                            }
+                        }
+                        if (!missing.isEmpty()) {
+                            Message[] loaded = loadMessages(missing.toArray(new Location[missing.size()]));
+                            for (int i = 0, j = 0; i < messages.length; i++) {
+                                if (messages[i] == null) {
+                                    messages[i] = loaded[j++];
+                                }
+                            }
+                        }
+                        int recovered = 0;
+                        while (recovered < messages.length) {
+                            listener.recoverMessage(messages[recovered++]);
+                            if (!listener.hasSpace()) {
+                                break;
+                            }
+                        }
+                        if (recovered < messages.length) {
+                            Long[] position = positions.get(recovered - 1);
+                            orderIndex.lastDefaultKey = position[0];
+                            orderIndex.lastHighKey = position[1];
+                            orderIndex.lastLowKey = position[2];
+                            for (int i = recovered; i < messages.length; i++) {
+                                notRecovered.put(locations[i], messages[i]);
+                            }
+                        }
+                        counter.set(recovered);
+                        orderIndex.stoppedIterating();
+                    }
+                });
+            } finally {
+                unlockIndex(lock);
+            }
+            // read ahead messages not in this batch may yet be in the next one, keep a batch worth
+            for (Iterator<Entry<Location, Message>> iterator = ahead.entrySet().iterator(); iterator.hasNext() && notRecovered.size() < maxReturned; ) {
+                Entry<Location, Message> entry = iterator.next();
+                notRecovered.put(entry.getKey(), entry.getValue());
+            }
+            synchronized (this) {
+                readButNotRecovered = notRecovered.isEmpty() ? null : notRecovered;
+            }
+            if (counter.get() >= maxReturned) {
+                ReadAhead next = new ReadAhead(maxReturned);
+                synchronized (this) {
+                    readAhead = next;
+                }
+                try {
+                    readAheadExecutor.execute(next);
+                } catch (RuntimeException e) {
+                    // stopping, it will be read when needed
+                }
+            }
+        }
+
+        /**
+         * @param positions
+         *            if not null, gets the order index's last keys after each
+         *            location, to stop iterating at
+         */
+        private Location[] nextLocations(MessageOrderIndex orderIndex, Iterator<Entry<Long, MessageKeys>> iterator,
+                                         int maxReturned, List<Long[]> positions) {
+            List<Location> locations = new ArrayList<Location>();
+            while (locations.size() < maxReturned && iterator.hasNext()) {
+                Entry<Long, MessageKeys> entry = iterator.next();
+                if (ackedAndPrepared.contains(entry.getValue().messageId)) {
+                    continue;
+                }
+                locations.add(entry.getValue().location);
+                if (positions != null) {
+                    positions.add(new Long[] {orderIndex.lastDefaultKey, orderIndex.lastHighKey, orderIndex.lastLowKey});
+                }
+            }
+            return locations.toArray(new Location[locations.size()]);
+        }
+
+        private synchronized Map<Location, Message> takeReadAhead() throws InterruptedException {
+            ReadAhead pending = readAhead;
+            readAhead = null;
+            Map<Location, Message> rc = pending != null ? pending.take() : new HashMap<Location, Message>();
+            if (readButNotRecovered != null) {
+                rc.putAll(readButNotRecovered);
+                readButNotRecovered = null;
+            }
+            return rc;
+        }
+
+        /**
+         * Reads the messages after the cursor's position, without moving it.
+         */
+        private Map<Location, Message> readAhead(final int maxReturned) throws Exception {
+            final Location[] locations;
+            Lock lock = lockIndex(dest);
+            try {
+                locations = pageFile.tx().execute(new Transaction.CallableClosure<Location[], IOException>() {
+                    @Override
+                    public Location[] execute(Transaction tx) throws IOException {
+                        StoredDestination sd = getExistingStoredDestination(dest, tx);
+                        if (sd == null) {
+                            return new Location[0];
+                        }
+                        MessageOrderIndex orderIndex = sd.orderIndex;
+                        // iterating records the keys it passes for stoppedIterating
+                        Long lastDefaultKey = orderIndex.lastDefaultKey;
+                        Long lastHighKey = orderIndex.lastHighKey;
+                        Long lastLowKey = orderIndex.lastLowKey;
+                        try {
+                            return nextLocations(orderIndex, orderIndex.iterator(tx, orderIndex.cursor.copy()), maxReturned, null);
+                        } finally {
+                            orderIndex.lastDefaultKey = lastDefaultKey;
+                            orderIndex.lastHighKey = lastHighKey;
+                            orderIndex.lastLowKey = lastLowKey;
+                        }
+                    }
+                });
+            } finally {
+                unlockIndex(lock);
+            }
+            // read outside the index lock, should the messages go meanwhile
+            // and their journal file with them it is only the read ahead lost
+            Message[] messages = loadMessages(locations);
+            Map<Location, Message> result = new HashMap<Location, Message>();
+            for (int i = 0; i < locations.length; i++) {
+                result.put(locations[i], messages[i]);
+            }
+            return result;
+        }
+
+        /**
+         * The read ahead of a batch, or nothing if recoverNextMessages wants
+         * the batch before it has started.
+         */
+        private class ReadAhead implements Runnable {
+            private final int maxReturned;
+            private final AtomicBoolean claimed = new AtomicBoolean();
+            private final CountDownLatch done = new CountDownLatch(1);
+            private volatile Map<Location, Message> messages = Collections.emptyMap();
+
+            ReadAhead(int maxReturned) {
+                this.maxReturned = maxReturned;
+            }
+
+            @Override
+            public void run() {
+                if (claimed.compareAndSet(false, true)) {
+                    try {
+                        messages = readAhead(maxReturned);
+                    } catch (Throwable e) {
+                        LOG.debug("Failed to read ahead on " + destination + ", the batch will be read when needed", e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }
+
+            Map<Location, Message> take() throws InterruptedException {
+                if (claimed.compareAndSet(false, true)) {
+                    return new HashMap<Location, Message>();
+                }
+                done.await();
+                return new HashMap<Location, Message>(messages);
             }
         }
 
         @Override
         public void resetBatching() {
             if (pageFile.isLoaded()) {
-                indexLock.writeLock().lock();
+                Lock lock = lockIndex(dest);
                 try {
                     pageFile.tx().execute(new Transaction.Closure<Exception>() {
                         @Override
@@ -626,7 +911,7 @@ public class KahaDBStore extends MessageDatabase implements PersistenceAdapter {
                 } catch (Exception e) {
                     LOG.error("Failed to reset batching",e);
                 }finally {
-                    indexLock.writeLock().unlock();
+                    unlockIndex(lock);
                 }
             }
         }
@@ -641,7 +926,7 @@ public class KahaDBStore extends MessageDatabase implements PersistenceAdapter {
                 // operations... but for now we must
                 // externally synchronize...
 
-                indexLock.writeLock().lock();
+                Lock lock = lockIndex(dest);
                 try {
                     pageFile.tx().execute(new Transaction.Closure<IOException>() {
                         @Override
@@ -654,7 +939,7 @@ public class KahaDBStore extends MessageDatabase implements PersistenceAdapter {
                         }
                     });
                 } finally {
-                    indexLock.writeLock().unlock();
+                    unlockIndex(lock);
                 }
             } finally {
                 unlockAsyncJobQueue();
@@ -819,7 +1104,7 @@ public class KahaDBStore extends MessageDatabase implements PersistenceAdapter {
         @Override
         public SubscriptionInfo lookupSubscription(String clientId, String subscriptionName) throws IOException {
             final String subscriptionKey = subscriptionKey(clientId, subscriptionName);
-            indexLock.writeLock().lock();
+            Lock lock = lockIndex(dest);
             try {
                 return pageFile.tx().execute(new Transaction.CallableClosure<SubscriptionInfo, IOException>() {
                     @Override
@@ -834,14 +1119,14 @@ public class KahaDBStore extends MessageDatabase implements PersistenceAdapter {
                     }
                 });
             }finally {
-                indexLock.writeLock().unlock();
+                unlockIndex(lock);
             }
         }
 
         @Override
         public int getMessageCount(String clientId, String subscriptionName) throws IOException {
             final String subscriptionKey = subscriptionKey(clientId, subscriptionName);
-            indexLock.writeLock().lock();
+            Lock lock = lockIndex(dest);
             try {
                 return pageFile.tx().execute(new Transaction.CallableClosure<Integer, IOException>() {
                     @Override
@@ -857,7 +1142,7 @@ public class KahaDBStore extends MessageDatabase implements PersistenceAdapter {
                     }
                 });
             }finally {
-                indexLock.writeLock().unlock();
+                unlockIndex(lock);
             }
         }
 
@@ -897,7 +1182,7 @@ public class KahaDBStore extends MessageDatabase implements PersistenceAdapter {
             final String subscriptionKey = subscriptionKey(clientId, subscriptionName);
             @SuppressWarnings("unused")
             final SubscriptionInfo info = lookupSubscription(clientId, subscriptionName);
-            indexLock.writeLock().lock();
+            Lock lock = lockIndex(dest);
             try {
                 pageFile.tx().execute(new Transaction.Closure<Exception>() {
                     @Override
@@ -940,7 +1225,7 @@ public class KahaDBStore extends MessageDatabase implements PersistenceAdapter {
                     }
                 });
             }finally {
-                indexLock.writeLock().unlock();
+                unlockIndex(lock);
             }
         }
 
@@ -948,7 +1233,7 @@ public class KahaDBStore extends MessageDatabase implements PersistenceAdapter {
         public void resetBatching(String clientId, String subscriptionName) {
             try {
                 final String subscriptionKey = subscriptionKey(clientId, subscriptionName);
-                indexLock.writeLock().lock();
+                Lock lock = lockIndex(dest);
                 try {
                     pageFile.tx().execute(new Transaction.Closure<IOException>() {
                         @Override
@@ -958,7 +1243,7 @@ public class KahaDBStore extends MessageDatabase implements PersistenceAdapter {
                         }
                     });
                 }finally {
-                    indexLock.writeLock().unlock();
+                    unlockIndex(lock);
                 }
             } catch (IOException e) {
                 throw new RuntimeException(e);
@@ -1098,6 +1383,16 @@ public class KahaDBStore extends MessageDatabase implements PersistenceAdapter {
      * @return
      * @throws IOException
      */
+    Message[] loadMessages(Location[] locations) throws IOException {
+        JournalCommand<?>[] commands = load(locations);
+        Message[] messages = new Message[commands.length];
+        for (int i = 0; i < commands.length; i++) {
+            KahaAddMessageCommand addMessage = (KahaAddMessageCommand) commands[i];
+            messages[i] = (Message) wireFormat.unmarshal(new DataInputStream(addMessage.getMessage().newInput()));
+        }
+        return messages;
+    }
+
     Message loadMessage(Location location) throws IOException {
         KahaAddMessageCommand addMessage = (KahaAddMessageCommand) load(location);
         Message msg = (Message) wireFormat.unmarshal(new DataInputStream(addMessage.getMessage().newInput()));
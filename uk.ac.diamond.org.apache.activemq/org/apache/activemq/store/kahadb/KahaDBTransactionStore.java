@@ -184,6 +184,16 @@ public class KahaDBTransactionStore implements TransactionStore {
             public void removeAsyncMessage(ConnectionContext context, MessageAck ack) throws IOException {
                 KahaDBTransactionStore.this.removeAsyncMessage(context, getDelegate(), ack);
             }
+
+            @Override
+            public void addMessages(ConnectionContext context, List<Message> messages) throws IOException {
+                KahaDBTransactionStore.this.addMessages(context, getDelegate(), messages);
+            }
+
+            @Override
+            public void removeMessages(ConnectionContext context, List<MessageAck> acks) throws IOException {
+                KahaDBTransactionStore.this.removeMessages(context, getDelegate(), acks);
+            }
         };
     }
 
@@ -219,6 +229,16 @@ public class KahaDBTransactionStore implements TransactionStore {
                 KahaDBTransactionStore.this.removeAsyncMessage(context, getDelegate(), ack);
             }
 
+            @Override
+            public void addMessages(ConnectionContext context, List<Message> messages) throws IOException {
+                KahaDBTransactionStore.this.addMessages(context, getDelegate(), messages);
+            }
+
+            @Override
+            public void removeMessages(ConnectionContext context, List<MessageAck> acks) throws IOException {
+                KahaDBTransactionStore.this.removeMessages(context, getDelegate(), acks);
+            }
+
             @Override
             public void acknowledge(ConnectionContext context, String clientId, String subscriptionName,
                             MessageId messageId, MessageAck ack) throws IOException {
@@ -389,6 +409,25 @@ public class KahaDBTransactionStore implements TransactionStore {
         }
     }
 
+    /**
+     * Adds that are not deferred to the commit of a transaction go to the store as one batch.
+     */
+    void addMessages(ConnectionContext context, final MessageStore destination, final List<Message> messages)
+            throws IOException {
+        List<Message> batch = new ArrayList<Message>(messages.size());
+        for (Message message : messages) {
+            if (message.getTransactionId() != null && !message.getTransactionId().isXATransaction()
+                    && theStore.isConcurrentStoreAndDispatchTransactions()) {
+                addMessage(context, destination, message);
+            } else {
+                batch.add(message);
+            }
+        }
+        if (!batch.isEmpty()) {
+            destination.addMessages(context, batch);
+        }
+    }
+
     Future<Object> asyncAddQueueMessage(ConnectionContext context, final MessageStore destination, final Message message)
             throws IOException {
 
@@ -473,6 +512,25 @@ public class KahaDBTransactionStore implements TransactionStore {
         }
     }
 
+    /**
+     * Removes that are not deferred to the commit of a transaction go to the store as one batch.
+     */
+    final void removeMessages(ConnectionContext context, final MessageStore destination, final List<MessageAck> acks)
+            throws IOException {
+        List<MessageAck> batch = new ArrayList<MessageAck>(acks.size());
+        for (MessageAck ack : acks) {
+            if (ack.isInTransaction() && !ack.getTransactionId().isXATransaction()
+                    && theStore.isConcurrentStoreAndDispatchTransactions()) {
+                removeMessage(context, destination, ack);
+            } else {
+                batch.add(ack);
+            }
+        }
+        if (!batch.isEmpty()) {
+            destination.removeMessages(context, batch);
+        }
+    }
+
     final void removeAsyncMessage(ConnectionContext context, final MessageStore destination, final MessageAck ack)
             throws IOException {
 
@@ -28,10 +28,12 @@ import java.io.InterruptedIOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
+import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -45,8 +47,20 @@ import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.apache.activemq.ActiveMQMessageAuditNoSync;
@@ -54,6 +68,7 @@ import org.apache.activemq.broker.BrokerService;
 import org.apache.activemq.broker.BrokerServiceAware;
 import org.apache.activemq.command.MessageAck;
 import org.apache.activemq.command.TransactionId;
+import org.apache.activemq.management.CountStatisticImpl;
 import org.apache.activemq.openwire.OpenWireFormat;
 import org.apache.activemq.protobuf.Buffer;
 import org.apache.activemq.store.kahadb.data.KahaAckMessageFileMapCommand;
@@ -61,6 +76,7 @@ import org.apache.activemq.store.kahadb.data.KahaAddMessageCommand;
 import org.apache.activemq.store.kahadb.data.KahaCommitCommand;
 import org.apache.activemq.store.kahadb.data.KahaDestination;
 import org.apache.activemq.store.kahadb.data.KahaEntryType;
+import org.apache.activemq.store.kahadb.data.KahaLocation;
 import org.apache.activemq.store.kahadb.data.KahaPrepareCommand;
 import org.apache.activemq.store.kahadb.data.KahaProducerAuditCommand;
 import org.apache.activemq.store.kahadb.data.KahaRemoveDestinationCommand;
@@ -70,10 +86,12 @@ import org.apache.activemq.store.kahadb.data.KahaSubscriptionCommand;
 import org.apache.activemq.store.kahadb.data.KahaTraceCommand;
 import org.apache.activemq.store.kahadb.data.KahaTransactionInfo;
 import org.apache.activemq.store.kahadb.disk.index.BTreeIndex;
+import org.apache.activemq.store.kahadb.disk.index.ConcurrentBTreeIndex;
 import org.apache.activemq.store.kahadb.disk.index.BTreeVisitor;
 import org.apache.activemq.store.kahadb.disk.index.ListIndex;
 import org.apache.activemq.store.kahadb.disk.journal.DataFile;
 import org.apache.activemq.store.kahadb.disk.journal.Journal;
+import org.apache.activemq.store.kahadb.disk.journal.JournalChecksum;
 import org.apache.activemq.store.kahadb.disk.journal.Location;
 import org.apache.activemq.store.kahadb.disk.page.Page;
 import org.apache.activemq.store.kahadb.disk.page.PageFile;
@@ -88,6 +106,7 @@ import org.apache.activemq.store.kahadb.disk.util.VariableMarshaller;
 import org.apache.activemq.util.ByteSequence;
 import org.apache.activemq.util.DataByteArrayInputStream;
 import org.apache.activemq.util.DataByteArrayOutputStream;
+import org.apache.activemq.util.IOExceptionSupport;
 import org.apache.activemq.util.IOHelper;
 import org.apache.activemq.util.ServiceStopper;
 import org.apache.activemq.util.ServiceSupport;
@@ -226,21 +245,42 @@ public abstract class MessageDatabase extends ServiceSupport implements BrokerSe
     protected File directory = DEFAULT_DIRECTORY;
     protected Thread checkpointThread;
     protected boolean enableJournalDiskSyncs=true;
+    protected boolean enableJournalMemoryMappedReads;
+    protected boolean enableJournalPreallocation;
     protected boolean archiveDataLogs;
     protected File directoryArchive;
     protected AtomicLong journalSize = new AtomicLong(0);
+    // Progress of the last (or current) journal replay.
+    protected final AtomicLong recoveredCommands = new AtomicLong();
+    protected final AtomicLong recoveredBytes = new AtomicLong();
+    protected volatile long recoveryStartTime;
+    protected volatile long recoveryEndTime;
+    protected boolean enableJournalCompaction = false;
+    protected int journalCompactionThreshold = 20;
+    protected long journalCompactionRate = 1024 * 1024;
+    protected final CountStatisticImpl journalBytesCompacted = new CountStatisticImpl("journalBytesCompacted", "bytes", "Bytes of live messages copied to the head of the journal by compaction");
+    protected final CountStatisticImpl journalBytesReclaimed = new CountStatisticImpl("journalBytesReclaimed", "bytes", "Bytes of journal data files removed by cleanup");
     long checkpointInterval = 5*1000;
     long cleanupInterval = 30*1000;
     int journalMaxFileLength = Journal.DEFAULT_MAX_FILE_LENGTH;
     int journalMaxWriteBatchSize = Journal.DEFAULT_MAX_WRITE_BATCH_SIZE;
+    long journalMaxWriteBatchWaitMicros = 0;
+    boolean enableJournalPipelinedSync = false;
     boolean enableIndexWriteAsync = false;
     int setIndexWriteBatchSize = PageFile.DEFAULT_WRITE_BATCH_SIZE;
 
     protected AtomicBoolean opened = new AtomicBoolean();
     private boolean ignoreMissingJournalfiles = false;
     private int indexCacheSize = 10000;
+    private long indexOffHeapCacheSize = 0;
+    private boolean enablePipelinedIndexRecovery = false;
+    private int indexRecoveryDecoderThreads = Runtime.getRuntime().availableProcessors();
+    private boolean enableStripedIndexLocking = false;
+    private boolean enableConcurrentBTreeIndex = false;
     private boolean checkForCorruptJournalFiles = false;
     private boolean checksumJournalFiles = true;
+    private String journalChecksumAlgorithm = JournalChecksum.ADLER32;
+    private boolean enableJournalRecordChecksums = false;
     protected boolean forceRecoverIndex = false;
     private final Object checkpointThreadLock = new Object();
     private boolean rewriteOnRedelivery = false;
@@ -251,8 +291,12 @@ public abstract class MessageDatabase extends ServiceSupport implements BrokerSe
     private boolean enableIndexRecoveryFile = true;
     private boolean enableIndexPageCaching = true;
     ReentrantReadWriteLock checkpointLock = new ReentrantReadWriteLock();
+    // Runs checkpoints one at a time and keeps cleanup from removing the data files compaction is reading.
+    private final Object checkpointMutex = new Object();
 
     public MessageDatabase() {
+        journalBytesCompacted.setEnabled(true);
+        journalBytesReclaimed.setEnabled(true);
     }
 
     @Override
@@ -296,6 +340,7 @@ public abstract class MessageDatabase extends ServiceSupport implements BrokerSe
             // Load up all the destinations since we need to scan all the indexes to figure out which journal files can be deleted.
             // Perhaps we should just keep an index of file
             storedDestinations.clear();
+            locationCounts = null;
             pageFile.tx().execute(new Transaction.Closure<IOException>() {
                 @Override
                 public void execute(Transaction tx) throws IOException {
@@ -340,6 +385,9 @@ public abstract class MessageDatabase extends ServiceSupport implements BrokerSe
                                 long now = System.currentTimeMillis();
                                 if( cleanupInterval > 0 && (now - lastCleanup >= cleanupInterval) ) {
                                     checkpointCleanup(true);
+                                    if (enableJournalCompaction) {
+                                        compactJournal();
+                                    }
                                     lastCleanup = now;
                                     lastCheckpoint = now;
                                 } else if( checkpointInterval > 0 && (now - lastCheckpoint >= checkpointInterval )) {
@@ -413,15 +461,17 @@ public abstract class MessageDatabase extends ServiceSupport implements BrokerSe
 
     public void close() throws IOException, InterruptedException {
         if( opened.compareAndSet(true, false)) {
-            checkpointLock.writeLock().lock();
-            try {
-                if (metadata.page != null) {
-                    checkpointUpdate(true);
+            synchronized (checkpointMutex) {
+                checkpointLock.writeLock().lock();
+                try {
+                    if (metadata.page != null) {
+                        checkpointUpdate(true);
+                    }
+                    pageFile.unload();
+                    metadata = new Metadata();
+                } finally {
+                    checkpointLock.writeLock().unlock();
                 }
-                pageFile.unload();
-                metadata = new Metadata();
-            } finally {
-                checkpointLock.writeLock().unlock();
             }
             journal.close();
             synchronized (checkpointThreadLock) {
@@ -579,16 +629,45 @@ public abstract class MessageDatabase extends ServiceSupport implements BrokerSe
             if (recoveryPosition != null) {
                 int redoCounter = 0;
                 LOG.info("Recovering from the journal ...");
-                while (recoveryPosition != null) {
-                    JournalCommand<?> message = load(recoveryPosition);
-                    metadata.lastUpdate = recoveryPosition;
-                    process(message, recoveryPosition, lastIndoubtPosition);
-                    redoCounter++;
-                    recoveryPosition = journal.getNextLocation(recoveryPosition);
-                     if (LOG.isInfoEnabled() && redoCounter % 100000 == 0) {
-                         LOG.info("@" + recoveryPosition +  ", "  + redoCounter + " entries recovered ..");
-                     }
+                recoveredCommands.set(0);
+                recoveredBytes.set(0);
+                recoveryEndTime = 0;
+                recoveryStartTime = start;
+                // A new index is being built from the whole journal, so its location
+                // indexes are bulk loaded once the replay is done rather than being
+                // split over and over as the messages are added one at a time.
+                deferLocationIndex = metadata.lastUpdate == null;
+                TreeMap<Location, Location> relocations = deferLocationIndex ? findRelocations(recoveryPosition) : null;
+                try {
+                    if (enablePipelinedIndexRecovery) {
+                        redoCounter = replayPipelined(recoveryPosition, lastIndoubtPosition, relocations);
+                    } else {
+                        while (recoveryPosition != null) {
+                            JournalCommand<?> message = load(recoveryPosition);
+                            metadata.lastUpdate = recoveryPosition;
+                            replay(message, recoveryPosition, lastIndoubtPosition, relocations);
+                            redoCounter++;
+                            recoveredCommands.incrementAndGet();
+                            recoveredBytes.addAndGet(recoveryPosition.getSize());
+                            recoveryPosition = journal.getNextLocation(recoveryPosition);
+                             if (LOG.isInfoEnabled() && redoCounter % 100000 == 0) {
+                                 LOG.info("@" + recoveryPosition +  ", "  + redoCounter + " entries recovered ..");
+                             }
+                        }
+                    }
+                    if (deferLocationIndex) {
+                        deferLocationIndex = false;
+                        pageFile.tx().execute(new Transaction.Closure<IOException>() {
+                            @Override
+                            public void execute(Transaction tx) throws IOException {
+                                loadLocationIndexes(tx);
+                            }
+                        });
+                    }
+                } finally {
+                    deferLocationIndex = false;
                 }
+                recoveryEndTime = System.currentTimeMillis();
                 if (LOG.isInfoEnabled()) {
                     long end = System.currentTimeMillis();
                     LOG.info("Recovery replayed " + redoCounter + " operations from the journal in " + ((end - start) / 1000.0f) + " seconds.");
@@ -640,6 +719,167 @@ public abstract class MessageDatabase extends ServiceSupport implements BrokerSe
         }
     }
 
+    /**
+     * Replays the journal from the given location with the journal reads and
+     * command decoding done ahead of time on other threads. The commands are
+     * still applied to the index one at a time, in journal order, on the
+     * calling thread so transactions and the shared page file see exactly the
+     * same sequence of updates as a serial replay.
+     *
+     * @return the number of commands replayed
+     */
+    private int replayPipelined(final Location start, Location lastIndoubtPosition,
+                                TreeMap<Location, Location> relocations) throws IOException {
+        final ExecutorService decoders = Executors.newFixedThreadPool(Math.max(1, indexRecoveryDecoderThreads), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "ActiveMQ KahaDB Recovery Decoder");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        final BlockingQueue<RecoveredCommand> queue = new ArrayBlockingQueue<RecoveredCommand>(RECOVERY_READ_AHEAD);
+        final AtomicReference<Throwable> readerFailure = new AtomicReference<Throwable>();
+        Thread reader = new Thread("ActiveMQ KahaDB Recovery Reader") {
+            @Override
+            public void run() {
+                try {
+                    Location location = start;
+                    while (location != null) {
+                        final ByteSequence data = journal.read(location);
+                        final Location decodeLocation = location;
+                        Future<JournalCommand<?>> command = decoders.submit(new Callable<JournalCommand<?>>() {
+                            @Override
+                            public JournalCommand<?> call() throws Exception {
+                                return decode(data, decodeLocation);
+                            }
+                        });
+                        queue.put(new RecoveredCommand(location, command));
+                        location = journal.getNextLocation(location);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                } catch (Throwable e) {
+                    readerFailure.set(e);
+                }
+                try {
+                    queue.put(new RecoveredCommand(null, null));
+                } catch (InterruptedException e) {
+                }
+            }
+        };
+        reader.setDaemon(true);
+        reader.start();
+
+        int redoCounter = 0;
+        try {
+            while (true) {
+                RecoveredCommand next = queue.take();
+                if (next.location == null) {
+                    break;
+                }
+                JournalCommand<?> message;
+                try {
+                    message = next.command.get();
+                } catch (ExecutionException e) {
+                    throw IOExceptionSupport.create(e.getCause());
+                }
+                metadata.lastUpdate = next.location;
+                replay(message, next.location, lastIndoubtPosition, relocations);
+                redoCounter++;
+                recoveredCommands.incrementAndGet();
+                recoveredBytes.addAndGet(next.location.getSize());
+                if (LOG.isInfoEnabled() && redoCounter % 100000 == 0) {
+                    LOG.info("@" + next.location +  ", "  + redoCounter + " entries recovered ..");
+                }
+            }
+            if (readerFailure.get() != null) {
+                throw IOExceptionSupport.create(readerFailure.get());
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        } finally {
+            reader.interrupt();
+            decoders.shutdownNow();
+            try {
+                reader.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return redoCounter;
+    }
+
+    private static final int RECOVERY_READ_AHEAD = 1000;
+
+    /**
+     * @return the locations the messages copied by journal compaction were first
+     *         journaled at, each mapped to the location of its latest copy
+     */
+    private TreeMap<Location, Location> findRelocations(Location start) throws IOException {
+        TreeMap<Location, Location> rc = new TreeMap<Location, Location>();
+        for (Location location = start; location != null; location = journal.getNextLocation(location)) {
+            ByteSequence data = journal.read(location);
+            if (data.getLength() > 0 && KahaEntryType.valueOf(data.getData()[data.getOffset()]) == KahaEntryType.KAHA_ADD_MESSAGE_COMMAND) {
+                KahaAddMessageCommand command = (KahaAddMessageCommand) decode(data, location);
+                if (command.hasRelocatedFrom()) {
+                    KahaLocation from = command.getRelocatedFrom();
+                    rc.put(new Location(from.getLogId(), from.getOffset()), location);
+                }
+            }
+        }
+        return rc;
+    }
+
+    /**
+     * Processes a replayed command. While a full rebuild replays the journal the
+     * compaction copies are indexed once the replay gets to where their messages
+     * were first journaled, the copy itself is skipped when the replay reaches it.
+     */
+    private void replay(JournalCommand<?> data, Location location, Location inDoubtLocation,
+                        TreeMap<Location, Location> relocations) throws IOException {
+        if (relocations != null) {
+            while (!relocations.isEmpty() && relocations.firstKey().compareTo(location) < 0) {
+                Location copy = relocations.pollFirstEntry().getValue();
+                process(load(copy), copy, inDoubtLocation);
+            }
+            // The message is still where it was first journaled, so its copies are not needed.
+            relocations.remove(location);
+            if (data instanceof KahaAddMessageCommand && ((KahaAddMessageCommand) data).hasRelocatedFrom()) {
+                return;
+            }
+        }
+        process(data, location, inDoubtLocation);
+    }
+
+    private static final class RecoveredCommand {
+        final Location location;
+        final Future<JournalCommand<?>> command;
+
+        RecoveredCommand(Location location, Future<JournalCommand<?>> command) {
+            this.location = location;
+            this.command = command;
+        }
+    }
+
+    /**
+     * @return the progress of the current journal replay, or the totals of the
+     *         last one once it has finished
+     */
+    public String getRecoveryProgress() {
+        long started = recoveryStartTime;
+        if (started == 0) {
+            return "No journal recovery";
+        }
+        long ended = recoveryEndTime;
+        long duration = Math.max(1, (ended == 0 ? System.currentTimeMillis() : ended) - started);
+        long commands = recoveredCommands.get();
+        long bytes = recoveredBytes.get();
+        return "Journal recovery " + (ended == 0 ? "in progress" : "complete") + ": " +
+               commands + " commands, " + bytes + " bytes in " + (duration / 1000.0f) + " seconds, " +
+               (commands * 1000 / duration) + " commands/second, " + (bytes * 1000 / duration) + " bytes/second";
+    }
+
     @SuppressWarnings("unused")
     private KahaTransactionInfo createLocalTransactionInfo(TransactionId tx) {
         return TransactionIdConversion.convertToLocal(tx);
@@ -715,7 +955,7 @@ public abstract class MessageDatabase extends ServiceSupport implements BrokerSe
 
             for (Long sequenceId : matches) {
                 MessageKeys keys = sd.orderIndex.remove(tx, sequenceId);
-                sd.locationIndex.remove(tx, keys.location);
+                removeLocation(tx, sd, keys.location);
                 sd.messageIdIndex.remove(tx, keys.messageId);
                 metadata.producerSequenceIdTracker.rollback(keys.messageId);
                 undoCounter++;
@@ -818,7 +1058,7 @@ public abstract class MessageDatabase extends ServiceSupport implements BrokerSe
                         // Update the index to remove the references to the missing data
                         for (Long sequenceId : matches) {
                             MessageKeys keys = sd.orderIndex.remove(tx, sequenceId);
-                            sd.locationIndex.remove(tx, keys.location);
+                            removeLocation(tx, sd, keys.location);
                             sd.messageIdIndex.remove(tx, keys.messageId);
                             undoCounter++;
                             // TODO: do we need to modify the ack positions for the pub sub case?
@@ -840,6 +1080,44 @@ public abstract class MessageDatabase extends ServiceSupport implements BrokerSe
         }
     }
 
+    /**
+     * Builds the location index of every destination from its order index, for
+     * a replay that left them empty.  The locations are sorted and bulk loaded,
+     * which fills each index page once instead of splitting them as they grow.
+     */
+    private void loadLocationIndexes(Transaction tx) throws IOException {
+        long start = System.currentTimeMillis();
+        long loaded = 0;
+        for (StoredDestination sd : storedDestinations.values()) {
+            ArrayList<Entry<Location, Long>> locations = new ArrayList<Entry<Location, Long>>();
+            addLocations(tx, sd.orderIndex.defaultPriorityIndex, locations);
+            addLocations(tx, sd.orderIndex.highPriorityIndex, locations);
+            addLocations(tx, sd.orderIndex.lowPriorityIndex, locations);
+            Collections.sort(locations, new Comparator<Entry<Location, Long>>() {
+                @Override
+                public int compare(Entry<Location, Long> entry1, Entry<Location, Long> entry2) {
+                    return entry1.getKey().compareTo(entry2.getKey());
+                }
+            });
+            sd.locationIndex.bulkLoad(tx, locations.iterator());
+            loaded += locations.size();
+        }
+        locationCounts = null;
+        if (LOG.isInfoEnabled()) {
+            long end = System.currentTimeMillis();
+            LOG.info("Loaded " + loaded + " message locations into the index in " + ((end - start) / 1000.0f) + " seconds.");
+        }
+    }
+
+    private void addLocations(Transaction tx, BTreeIndex<Long, MessageKeys> index, List<Entry<Location, Long>> locations) throws IOException {
+        if (index != null) {
+            for (Iterator<Entry<Long, MessageKeys>> iterator = index.iterator(tx); iterator.hasNext();) {
+                Entry<Long, MessageKeys> entry = iterator.next();
+                locations.add(new AbstractMap.SimpleImmutableEntry<Location, Long>(entry.getValue().location, entry.getKey()));
+            }
+        }
+    }
+
     private Location nextRecoveryPosition;
     private Location lastRecoveryPosition;
 
@@ -975,6 +1253,53 @@ public abstract class MessageDatabase extends ServiceSupport implements BrokerSe
         }
     }
 
+    /**
+     * Stores a batch of updates. The updates are appended to the journal one after
+     * the other, with at most one sync after the last, so they go to disk in the
+     * same journal write batch. Message adds and removes that are not part of a
+     * transaction and are all for the same destination are then applied to the index
+     * in a single index transaction, anything else is processed one by one.
+     */
+    public Location[] store(List<JournalCommand<?>> data, boolean sync) throws IOException {
+        try {
+            ByteSequence[] sequences = new ByteSequence[data.size()];
+            for (int i = 0; i < sequences.length; i++) {
+                sequences[i] = toByteSequence(data.get(i));
+            }
+
+            Location[] locations = new Location[sequences.length];
+            checkpointLock.readLock().lock();
+            try {
+
+                long start = System.currentTimeMillis();
+                for (int i = 0; i < sequences.length; i++) {
+                    locations[i] = journal.write(sequences[i], sync && i == sequences.length - 1);
+                }
+                long start2 = System.currentTimeMillis();
+                process(data, locations);
+
+                long end = System.currentTimeMillis();
+                if( LOG_SLOW_ACCESS_TIME>0 && end-start > LOG_SLOW_ACCESS_TIME) {
+                    if (LOG.isInfoEnabled()) {
+                        LOG.info("Slow KahaDB access: Journal append of " + sequences.length + " records took: "+(start2-start)+" ms, Index update took "+(end-start2)+" ms");
+                    }
+                }
+
+            } finally{
+                checkpointLock.readLock().unlock();
+            }
+
+            if (checkpointThread != null && !checkpointThread.isAlive()) {
+                startCheckpoint();
+            }
+            return locations;
+        } catch (IOException ioe) {
+            LOG.error("KahaDB failed to store to Journal", ioe);
+            brokerService.handleIOException(ioe);
+            throw ioe;
+        }
+    }
+
     /**
      * Loads a previously stored JournalMessage
      *
@@ -991,6 +1316,30 @@ public abstract class MessageDatabase extends ServiceSupport implements BrokerSe
                 LOG.info("Slow KahaDB access: Journal read took: "+(end-start)+" ms");
             }
         }
+        return decode(data, location);
+    }
+
+    /**
+     * Loads the records at the given locations, in that order, reading those
+     * close together in the journal with one read rather than one each.
+     */
+    public JournalCommand<?>[] load(Location[] locations) throws IOException {
+        long start = System.currentTimeMillis();
+        ByteSequence[] data = journal.read(locations);
+        long end = System.currentTimeMillis();
+        if( LOG_SLOW_ACCESS_TIME>0 && end-start > LOG_SLOW_ACCESS_TIME) {
+            if (LOG.isInfoEnabled()) {
+                LOG.info("Slow KahaDB access: Journal read of " + locations.length + " records took: "+(end-start)+" ms");
+            }
+        }
+        JournalCommand<?>[] rc = new JournalCommand<?>[locations.length];
+        for (int i = 0; i < rc.length; i++) {
+            rc[i] = decode(data[i], locations[i]);
+        }
+        return rc;
+    }
+
+    private JournalCommand<?> decode(ByteSequence data, Location location) throws IOException {
         DataByteArrayInputStream is = new DataByteArrayInputStream(data);
         byte readByte = is.readByte();
         KahaEntryType type = KahaEntryType.valueOf(readByte);
@@ -1094,13 +1443,56 @@ public abstract class MessageDatabase extends ServiceSupport implements BrokerSe
         });
     }
 
+    void process(final List<JournalCommand<?>> data, final Location[] locations) throws IOException {
+        KahaDestination destination = null;
+        for (JournalCommand<?> command : data) {
+            KahaDestination commandDestination;
+            if (command instanceof KahaAddMessageCommand && !((KahaAddMessageCommand) command).hasTransactionInfo()) {
+                commandDestination = ((KahaAddMessageCommand) command).getDestination();
+            } else if (command instanceof KahaRemoveMessageCommand && !((KahaRemoveMessageCommand) command).hasTransactionInfo()) {
+                commandDestination = ((KahaRemoveMessageCommand) command).getDestination();
+            } else {
+                commandDestination = null;
+            }
+            if (commandDestination == null || (destination != null && !key(destination).equals(key(commandDestination)))) {
+                for (int i = 0; i < locations.length; i++) {
+                    process(data.get(i), locations[i], (Runnable) null, (Runnable) null);
+                }
+                return;
+            }
+            destination = commandDestination;
+        }
+        if (destination == null) {
+            return;
+        }
+
+        Lock lock = lockIndex(destination);
+        try {
+            pageFile.tx().execute(new Transaction.Closure<IOException>() {
+                @Override
+                public void execute(Transaction tx) throws IOException {
+                    for (int i = 0; i < locations.length; i++) {
+                        JournalCommand<?> command = data.get(i);
+                        if (command instanceof KahaAddMessageCommand) {
+                            upadateIndex(tx, (KahaAddMessageCommand) command, locations[i]);
+                        } else {
+                            updateIndex(tx, (KahaRemoveMessageCommand) command, locations[i]);
+                        }
+                    }
+                }
+            });
+        } finally {
+            unlockIndex(lock);
+        }
+    }
+
     @SuppressWarnings("rawtypes")
     protected void process(final KahaAddMessageCommand command, final Location location) throws IOException {
         if (command.hasTransactionInfo()) {
             List<Operation> inflightTx = getInflightTx(command.getTransactionInfo(), location);
             inflightTx.add(new AddOpperation(command, location));
         } else {
-            this.indexLock.writeLock().lock();
+            Lock lock = lockIndex(command.getDestination());
             try {
                 pageFile.tx().execute(new Transaction.Closure<IOException>() {
                     @Override
@@ -1109,7 +1501,7 @@ public abstract class MessageDatabase extends ServiceSupport implements BrokerSe
                     }
                 });
             } finally {
-                this.indexLock.writeLock().unlock();
+                unlockIndex(lock);
             }
         }
     }
@@ -1120,7 +1512,7 @@ public abstract class MessageDatabase extends ServiceSupport implements BrokerSe
            List<Operation> inflightTx = getInflightTx(command.getTransactionInfo(), location);
            inflightTx.add(new RemoveOpperation(command, location));
         } else {
-            this.indexLock.writeLock().lock();
+            Lock lock = lockIndex(command.getDestination());
             try {
                 pageFile.tx().execute(new Transaction.Closure<IOException>() {
                     @Override
@@ -1129,7 +1521,7 @@ public abstract class MessageDatabase extends ServiceSupport implements BrokerSe
                     }
                 });
             } finally {
-                this.indexLock.writeLock().unlock();
+                unlockIndex(lock);
             }
         }
     }
@@ -1258,6 +1650,80 @@ public abstract class MessageDatabase extends ServiceSupport implements BrokerSe
 
     protected final ReentrantReadWriteLock indexLock = new ReentrantReadWriteLock();
     private final HashSet<Integer> journalFilesBeingReplicated = new HashSet<Integer>();
+    // The number of location index entries in each journal data file, kept up to date as
+    // messages are added and acked. Null until the first cleanup, or after a destination's
+    // index is cleared, when it is rebuilt from the indexes.
+    private HashMap<Integer, Integer> locationCounts;
+    // Set while the journal is replayed into a new index. The location indexes are
+    // left alone and loaded from the order indexes at the end, see loadLocationIndexes.
+    private boolean deferLocationIndex;
+    // With striped index locking, message adds and removes on different destinations update
+    // the index concurrently, each under the index read lock and its destination's lock. This
+    // guards the state they share: the last update location, the ack to message file map,
+    // the producer audit and the location counts.
+    private final Object sharedIndexStateMutex = new Object();
+    private final ConcurrentHashMap<String, ReentrantLock> destinationIndexLocks = new ConcurrentHashMap<String, ReentrantLock>();
+
+    /**
+     * Locks the index for an update or read that only touches the given destination's
+     * indexes. Unless striped index locking is enabled, or the destination's indexes
+     * are not loaded yet, this is the index write lock.
+     *
+     * @return the lock to pass to {@link #unlockIndex(Lock)}
+     */
+    protected Lock lockIndex(KahaDestination destination) {
+        if (enableStripedIndexLocking && !indexLock.isWriteLockedByCurrentThread()) {
+            indexLock.readLock().lock();
+            String key = key(destination);
+            if (storedDestinations.containsKey(key)) {
+                ReentrantLock lock = destinationIndexLocks.get(key);
+                if (lock == null) {
+                    ReentrantLock created = new ReentrantLock();
+                    lock = destinationIndexLocks.putIfAbsent(key, created);
+                    if (lock == null) {
+                        lock = created;
+                    }
+                }
+                lock.lock();
+                return lock;
+            }
+            indexLock.readLock().unlock();
+        }
+        indexLock.writeLock().lock();
+        return indexLock.writeLock();
+    }
+
+    /**
+     * Locks the index for a lookup that only reads the destination's BTree
+     * indexes.  Once those are concurrent BTrees the lookup can share the index
+     * with other readers and with the destination's writer, so it only waits
+     * for checkpoints and cleanups.
+     */
+    protected Lock lockIndexForRead(KahaDestination destination) {
+        if (enableConcurrentBTreeIndex && !indexLock.isWriteLockedByCurrentThread()) {
+            indexLock.readLock().lock();
+            if (storedDestinations.containsKey(key(destination))) {
+                return indexLock.readLock();
+            }
+            indexLock.readLock().unlock();
+        }
+        return lockIndex(destination);
+    }
+
+    protected void unlockIndex(Lock lock) {
+        lock.unlock();
+        if (lock != indexLock.writeLock() && lock != indexLock.readLock()) {
+            indexLock.readLock().unlock();
+        }
+    }
+
+    private void setLastUpdate(Location location) {
+        synchronized (sharedIndexStateMutex) {
+            if (metadata.lastUpdate == null || metadata.lastUpdate.compareTo(location) < 0) {
+                metadata.lastUpdate = location;
+            }
+        }
+    }
 
     void upadateIndex(Transaction tx, KahaAddMessageCommand command, Location location) throws IOException {
         StoredDestination sd = getStoredDestination(command.getDestination(), tx);
@@ -1271,7 +1737,7 @@ public abstract class MessageDatabase extends ServiceSupport implements BrokerSe
         // Add the message.
         int priority = command.getPrioritySupported() ? command.getPriority() : javax.jms.Message.DEFAULT_PRIORITY;
         long id = sd.orderIndex.getNextMessageId(priority);
-        Long previous = sd.locationIndex.put(tx, location, id);
+        Long previous = putLocation(tx, sd, location, id);
         if (previous == null) {
             previous = sd.messageIdIndex.put(tx, command.getMessageId(), id);
             if (previous == null) {
@@ -1279,12 +1745,16 @@ public abstract class MessageDatabase extends ServiceSupport implements BrokerSe
                 if (sd.subscriptions != null && !sd.subscriptions.isEmpty(tx)) {
                     addAckLocationForNewMessage(tx, sd, id);
                 }
+            } else if (command.hasRelocatedFrom()) {
+                // A replayed compaction copy of a message the index still has where it was.
+                sd.messageIdIndex.put(tx, command.getMessageId(), previous);
+                removeLocation(tx, sd, location);
             } else {
                 // If the message ID as indexed, then the broker asked us to
                 // store a DUP message. Bad BOY! Don't do it, and log a warning.
                 LOG.warn("Duplicate message add attempt rejected. Destination: " + command.getDestination().getName() + ", Message id: " + command.getMessageId());
                 sd.messageIdIndex.put(tx, command.getMessageId(), previous);
-                sd.locationIndex.remove(tx, location);
+                removeLocation(tx, sd, location);
                 rollbackStatsOnDuplicate(command.getDestination());
             }
         } else {
@@ -1294,8 +1764,10 @@ public abstract class MessageDatabase extends ServiceSupport implements BrokerSe
             sd.locationIndex.put(tx, location, previous);
         }
         // record this id in any event, initial send or recovery
-        metadata.producerSequenceIdTracker.isDuplicate(command.getMessageId());
-        metadata.lastUpdate = location;
+        synchronized (sharedIndexStateMutex) {
+            metadata.producerSequenceIdTracker.isDuplicate(command.getMessageId());
+        }
+        setLastUpdate(location);
     }
 
     abstract void rollbackStatsOnDuplicate(KahaDestination commandDestination);
@@ -1309,7 +1781,7 @@ public abstract class MessageDatabase extends ServiceSupport implements BrokerSe
             if (sequenceId != null) {
                 MessageKeys keys = sd.orderIndex.remove(tx, sequenceId);
                 if (keys != null) {
-                    sd.locationIndex.remove(tx, keys.location);
+                    removeLocation(tx, sd, keys.location);
                     recordAckMessageReferenceLocation(ackLocation, keys.location);
                 }  else if (LOG.isDebugEnabled()) {
                     LOG.debug("message not found in order index: " + sequenceId  + " for: " + command.getMessageId());
@@ -1342,10 +1814,16 @@ public abstract class MessageDatabase extends ServiceSupport implements BrokerSe
             }
 
         }
-        metadata.lastUpdate = ackLocation;
+        setLastUpdate(ackLocation);
     }
 
     private void recordAckMessageReferenceLocation(Location ackLocation, Location messageLocation) {
+        synchronized (sharedIndexStateMutex) {
+            doRecordAckMessageReferenceLocation(ackLocation, messageLocation);
+        }
+    }
+
+    private void doRecordAckMessageReferenceLocation(Location ackLocation, Location messageLocation) {
         Set<Integer> referenceFileIds = metadata.ackMessageFileMap.get(Integer.valueOf(ackLocation.getDataFileId()));
         if (referenceFileIds == null) {
             referenceFileIds = new HashSet<Integer>();
@@ -1364,6 +1842,7 @@ public abstract class MessageDatabase extends ServiceSupport implements BrokerSe
         sd.orderIndex.remove(tx);
 
         sd.locationIndex.clear(tx);
+        locationCounts = null;
         sd.locationIndex.unload(tx);
         tx.free(sd.locationIndex.getPageId());
 
@@ -1391,6 +1870,7 @@ public abstract class MessageDatabase extends ServiceSupport implements BrokerSe
 
         String key = key(command.getDestination());
         storedDestinations.remove(key);
+        destinationIndexLocks.remove(key);
         metadata.destinations.remove(tx, key);
     }
 
@@ -1418,230 +1898,608 @@ public abstract class MessageDatabase extends ServiceSupport implements BrokerSe
             sd.subscriptionCache.remove(subscriptionKey);
             removeAckLocationsForSub(tx, sd, subscriptionKey);
 
-            if (sd.subscriptions.isEmpty(tx)) {
-                sd.messageIdIndex.clear(tx);
-                sd.locationIndex.clear(tx);
-                sd.orderIndex.clear(tx);
+            if (sd.subscriptions.isEmpty(tx)) {
+                sd.messageIdIndex.clear(tx);
+                sd.locationIndex.clear(tx);
+                locationCounts = null;
+                sd.orderIndex.clear(tx);
+            }
+        }
+    }
+
+    /**
+     * The checkpoint lock, which stalls sends and acks, is only held while the
+     * metadata is stored. Everything journaled by then is in the index, so
+     * cleanup can run without it as long as it leaves alone the data files
+     * from the one being appended to at that point on.
+     */
+    private void checkpointUpdate(final boolean cleanup) throws IOException {
+        synchronized (checkpointMutex) {
+            LOG.debug("Checkpoint started.");
+            final Location appended;
+            checkpointLock.writeLock().lock();
+            try {
+                this.indexLock.writeLock().lock();
+                try {
+                    pageFile.tx().execute(new Transaction.Closure<IOException>() {
+                        @Override
+                        public void execute(Transaction tx) throws IOException {
+                            checkpointUpdate(tx);
+                        }
+                    });
+                } finally {
+                    this.indexLock.writeLock().unlock();
+                }
+                appended = journal.getLastAppendLocation();
+            } finally {
+                checkpointLock.writeLock().unlock();
+            }
+
+            // The index pages go to disk without the index lock held so sends and acks can
+            // carry on, the page file keeps any page they update meanwhile in a copy.
+            pageFile.flush();
+
+            if (cleanup) {
+                this.indexLock.writeLock().lock();
+                try {
+                    pageFile.tx().execute(new Transaction.Closure<IOException>() {
+                        @Override
+                        public void execute(Transaction tx) throws IOException {
+                            checkpointCleanup(tx, appended);
+                        }
+                    });
+                } finally {
+                    this.indexLock.writeLock().unlock();
+                }
+            }
+            LOG.debug("Checkpoint done.");
+        }
+    }
+
+    /**
+     * @param tx
+     * @throws IOException
+     */
+    void checkpointUpdate(Transaction tx) throws IOException {
+        metadata.state = OPEN_STATE;
+        metadata.producerSequenceIdTrackerLocation = checkpointProducerAudit();
+        metadata.ackMessageFileMapLocation = checkpointAckMessageFileMap();
+        Location[] inProgressTxRange = getInProgressTxLocationRange();
+        metadata.firstInProgressTransactionLocation = inProgressTxRange[0];
+        tx.store(metadata.page, metadataMarshaller, true);
+    }
+
+    /**
+     * Removes the journal data files that nothing in the index refers to any more.
+     *
+     * @param tx
+     * @param appended the last location journaled before the metadata was checkpointed,
+     *        data files from this one on may hold updates not in the index yet
+     * @throws IOException
+     */
+    void checkpointCleanup(Transaction tx, Location appended) throws IOException {
+        Location lastUpdate = metadata.lastUpdate;
+        Location[] inProgressTxRange = getInProgressTxLocationRange();
+        final TreeSet<Integer> completeFileSet = new TreeSet<Integer>(journal.getFileMap().keySet());
+        final TreeSet<Integer> gcCandidateSet = new TreeSet<Integer>(completeFileSet);
+
+        if (LOG.isTraceEnabled()) {
+            LOG.trace("Last update: " + lastUpdate + ", full gc candidates set: " + gcCandidateSet);
+        }
+
+        if (lastUpdate != null) {
+            gcCandidateSet.remove(lastUpdate.getDataFileId());
+        }
+
+        // Don't GC files under replication
+        if( journalFilesBeingReplicated!=null ) {
+            gcCandidateSet.removeAll(journalFilesBeingReplicated);
+        }
+
+        if (metadata.producerSequenceIdTrackerLocation != null) {
+            int dataFileId = metadata.producerSequenceIdTrackerLocation.getDataFileId();
+            if (gcCandidateSet.contains(dataFileId) && gcCandidateSet.first() == dataFileId) {
+                // rewrite so we don't prevent gc
+                metadata.producerSequenceIdTracker.setModified(true);
+                if (LOG.isTraceEnabled()) {
+                    LOG.trace("rewriting producerSequenceIdTracker:" + metadata.producerSequenceIdTrackerLocation);
+                }
+            }
+            gcCandidateSet.remove(dataFileId);
+            if (LOG.isTraceEnabled()) {
+                LOG.trace("gc candidates after producerSequenceIdTrackerLocation:" + dataFileId + ", " + gcCandidateSet);
+            }
+        }
+
+        if (metadata.ackMessageFileMapLocation != null) {
+            int dataFileId = metadata.ackMessageFileMapLocation.getDataFileId();
+            gcCandidateSet.remove(dataFileId);
+            if (LOG.isTraceEnabled()) {
+                LOG.trace("gc candidates after ackMessageFileMapLocation:" + dataFileId + ", " + gcCandidateSet);
+            }
+        }
+
+        // Don't GC files referenced by in-progress tx
+        if (inProgressTxRange[0] != null) {
+            for (int pendingTx=inProgressTxRange[0].getDataFileId(); pendingTx <= inProgressTxRange[1].getDataFileId(); pendingTx++) {
+                gcCandidateSet.remove(pendingTx);
+            }
+        }
+        if (LOG.isTraceEnabled()) {
+            LOG.trace("gc candidates after tx range:" + Arrays.asList(inProgressTxRange) + ", " + gcCandidateSet);
+        }
+
+        // Files that still hold messages can't be removed, so only the ones that look
+        // empty need to be checked against the location indexes below.
+        if (locationCounts == null) {
+            rebuildLocationCounts(tx);
+        }
+        gcCandidateSet.removeAll(locationCounts.keySet());
+
+        // Go through all the destinations to see if any of them can remove GC candidates.
+        for (Entry<String, StoredDestination> entry : storedDestinations.entrySet()) {
+            if( gcCandidateSet.isEmpty() ) {
+                break;
+            }
+
+            // Use a visitor to cut down the number of pages that we load
+            entry.getValue().locationIndex.visit(tx, new BTreeVisitor<Location, Long>() {
+                int last=-1;
+                @Override
+                public boolean isInterestedInKeysBetween(Location first, Location second) {
+                    if( first==null ) {
+                        SortedSet<Integer> subset = gcCandidateSet.headSet(second.getDataFileId()+1);
+                        if( !subset.isEmpty() && subset.last() == second.getDataFileId() ) {
+                            subset.remove(second.getDataFileId());
+                        }
+                        return !subset.isEmpty();
+                    } else if( second==null ) {
+                        SortedSet<Integer> subset = gcCandidateSet.tailSet(first.getDataFileId());
+                        if( !subset.isEmpty() && subset.first() == first.getDataFileId() ) {
+                            subset.remove(first.getDataFileId());
+                        }
+                        return !subset.isEmpty();
+                    } else {
+                        SortedSet<Integer> subset = gcCandidateSet.subSet(first.getDataFileId(), second.getDataFileId()+1);
+                        if( !subset.isEmpty() && subset.first() == first.getDataFileId() ) {
+                            subset.remove(first.getDataFileId());
+                        }
+                        if( !subset.isEmpty() && subset.last() == second.getDataFileId() ) {
+                            subset.remove(second.getDataFileId());
+                        }
+                        return !subset.isEmpty();
+                    }
+                }
+
+                @Override
+                public void visit(List<Location> keys, List<Long> values) {
+                    for (Location l : keys) {
+                        int fileId = l.getDataFileId();
+                        if( last != fileId ) {
+                            gcCandidateSet.remove(fileId);
+                            last = fileId;
+                        }
+                    }
+                }
+            });
+
+            // Durable Subscription
+            if (entry.getValue().subLocations != null) {
+                Iterator<Entry<String, Location>> iter = entry.getValue().subLocations.iterator(tx);
+                while (iter.hasNext()) {
+                    Entry<String, Location> subscription = iter.next();
+                    int dataFileId = subscription.getValue().getDataFileId();
+
+                    // Move subscription along if it has no outstanding messages that need ack'd
+                    // and its in the last log file in the journal.
+                    if (!gcCandidateSet.isEmpty() && gcCandidateSet.first() == dataFileId) {
+                        final StoredDestination destination = entry.getValue();
+                        final String subscriptionKey = subscription.getKey();
+                        SequenceSet pendingAcks = destination.ackPositions.get(tx, subscriptionKey);
+
+                        // When pending is size one that is the next message Id meaning there
+                        // are no pending messages currently.
+                        if (pendingAcks == null || pendingAcks.size() <= 1) {
+                            if (LOG.isTraceEnabled()) {
+                                LOG.trace("Found candidate for rewrite: {} from file {}", entry.getKey(), dataFileId);
+                            }
+
+                            final KahaSubscriptionCommand kahaSub =
+                                destination.subscriptions.get(tx, subscriptionKey);
+                            destination.subLocations.put(
+                                tx, subscriptionKey, checkpointSubscriptionCommand(kahaSub));
+
+                            // Skips the remove from candidates if we rewrote the subscription
+                            // in order to prevent duplicate subscription commands on recover.
+                            // If another subscription is on the same file and isn't rewritten
+                            // than it will remove the file from the set.
+                            continue;
+                        }
+                    }
+
+                    gcCandidateSet.remove(dataFileId);
+                }
+            }
+
+            if (LOG.isTraceEnabled()) {
+                LOG.trace("gc candidates after dest:" + entry.getKey() + ", " + gcCandidateSet);
             }
         }
-    }
 
-    private void checkpointUpdate(final boolean cleanup) throws IOException {
-        checkpointLock.writeLock().lock();
-        try {
-            this.indexLock.writeLock().lock();
-            try {
-                pageFile.tx().execute(new Transaction.Closure<IOException>() {
-                    @Override
-                    public void execute(Transaction tx) throws IOException {
-                        checkpointUpdate(tx, cleanup);
+        if (appended == null) {
+            gcCandidateSet.clear();
+        } else {
+            gcCandidateSet.tailSet(appended.getDataFileId()).clear();
+        }
+
+        // check we are not deleting file with ack for in-use journal files
+        if (LOG.isTraceEnabled()) {
+            LOG.trace("gc candidates: " + gcCandidateSet);
+        }
+        final TreeSet<Integer> gcCandidates = new TreeSet<Integer>(gcCandidateSet);
+        Iterator<Integer> candidates = gcCandidateSet.iterator();
+        while (candidates.hasNext()) {
+            Integer candidate = candidates.next();
+            Set<Integer> referencedFileIds = metadata.ackMessageFileMap.get(candidate);
+            if (referencedFileIds != null) {
+                for (Integer referencedFileId : referencedFileIds) {
+                    if (completeFileSet.contains(referencedFileId) && !gcCandidates.contains(referencedFileId)) {
+                        // active file that is not targeted for deletion is referenced so don't delete
+                        candidates.remove();
+                        break;
                     }
-                });
-            } finally {
-                this.indexLock.writeLock().unlock();
+                }
+                if (gcCandidateSet.contains(candidate)) {
+                    metadata.ackMessageFileMap.remove(candidate);
+                } else {
+                    if (LOG.isTraceEnabled()) {
+                        LOG.trace("not removing data file: " + candidate
+                                + " as contained ack(s) refer to referenced file: " + referencedFileIds);
+                    }
+                }
             }
+        }
 
-        } finally {
-            checkpointLock.writeLock().unlock();
+        if (!gcCandidateSet.isEmpty()) {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Cleanup removing the data files: " + gcCandidateSet);
+            }
+            Map<Integer, DataFile> fileMap = journal.getFileMap();
+            int head = journal.getLastAppendLocation().getDataFileId();
+            long reclaimed = 0;
+            for (Integer candidate : gcCandidateSet) {
+                DataFile dataFile = fileMap.get(candidate);
+                if (dataFile != null && candidate < head) {
+                    reclaimed += dataFile.getLength();
+                }
+            }
+            journal.removeDataFiles(gcCandidateSet);
+            journalBytesReclaimed.add(reclaimed);
         }
     }
 
     /**
-     * @param tx
-     * @throws IOException
+     * Counts the location index entries held in each journal data file, from scratch.
      */
-    void checkpointUpdate(Transaction tx, boolean cleanup) throws IOException {
-        LOG.debug("Checkpoint started.");
+    private void rebuildLocationCounts(Transaction tx) throws IOException {
+        locationCounts = new HashMap<Integer, Integer>();
+        for (StoredDestination sd : storedDestinations.values()) {
+            for (Iterator<Entry<Location, Long>> iterator = sd.locationIndex.iterator(tx); iterator.hasNext();) {
+                incrementLocationCount(iterator.next().getKey());
+            }
+        }
+    }
 
-        // reflect last update exclusive of current checkpoint
-        Location lastUpdate = metadata.lastUpdate;
+    private void incrementLocationCount(Location location) {
+        synchronized (sharedIndexStateMutex) {
+            if (locationCounts != null) {
+                Integer count = locationCounts.get(location.getDataFileId());
+                locationCounts.put(location.getDataFileId(), count == null ? 1 : count + 1);
+            }
+        }
+    }
 
-        metadata.state = OPEN_STATE;
-        metadata.producerSequenceIdTrackerLocation = checkpointProducerAudit();
-        metadata.ackMessageFileMapLocation = checkpointAckMessageFileMap();
-        Location[] inProgressTxRange = getInProgressTxLocationRange();
-        metadata.firstInProgressTransactionLocation = inProgressTxRange[0];
-        tx.store(metadata.page, metadataMarshaller, true);
-        pageFile.flush();
+    private void decrementLocationCount(Location location) {
+        synchronized (sharedIndexStateMutex) {
+            if (locationCounts != null) {
+                Integer count = locationCounts.get(location.getDataFileId());
+                if (count == null || count <= 1) {
+                    locationCounts.remove(location.getDataFileId());
+                } else {
+                    locationCounts.put(location.getDataFileId(), count - 1);
+                }
+            }
+        }
+    }
 
-        if( cleanup ) {
+    private Long putLocation(Transaction tx, StoredDestination sd, Location location, Long id) throws IOException {
+        if (deferLocationIndex) {
+            return null;
+        }
+        Long previous = sd.locationIndex.put(tx, location, id);
+        if (previous == null) {
+            incrementLocationCount(location);
+        }
+        return previous;
+    }
 
-            final TreeSet<Integer> completeFileSet = new TreeSet<Integer>(journal.getFileMap().keySet());
-            final TreeSet<Integer> gcCandidateSet = new TreeSet<Integer>(completeFileSet);
+    private Long removeLocation(Transaction tx, StoredDestination sd, Location location) throws IOException {
+        if (deferLocationIndex) {
+            return null;
+        }
+        Long previous = sd.locationIndex.remove(tx, location);
+        if (previous != null) {
+            decrementLocationCount(location);
+        }
+        return previous;
+    }
 
-            if (LOG.isTraceEnabled()) {
-                LOG.trace("Last update: " + lastUpdate + ", full gc candidates set: " + gcCandidateSet);
-            }
+    // /////////////////////////////////////////////////////////////////
+    // Journal compaction. Copies the messages that still pin sparsely
+    // used data files to the head of the journal so cleanup can remove
+    // the files.
+    // /////////////////////////////////////////////////////////////////
 
-            if (lastUpdate != null) {
-                gcCandidateSet.remove(lastUpdate.getDataFileId());
-            }
+    private static final int COMPACTION_BATCH_SIZE = 100;
+    private long lastCompaction;
+    // data file id -> number of live messages it had when last found too full to compact.
+    private final HashMap<Integer, Integer> compactionSkipped = new HashMap<Integer, Integer>();
+
+    static class LiveLocation {
+        final String destinationKey;
+        final Location location;
+        final Long sequenceId;
+
+        LiveLocation(String destinationKey, Location location, Long sequenceId) {
+            this.destinationKey = destinationKey;
+            this.location = location;
+            this.sequenceId = sequenceId;
+        }
+    }
+
+    /**
+     * Relocates the live messages of the data files that are less than
+     * journalCompactionThreshold percent live. At most journalCompactionRate
+     * bytes a second, averaged over the cleanup interval, are read and copied.
+     */
+    protected void compactJournal() throws IOException {
+        long now = System.currentTimeMillis();
+        if (lastCompaction == 0) {
+            lastCompaction = now - cleanupInterval;
+        }
+        long budget = journalCompactionRate * (now - lastCompaction) / 1000;
+        lastCompaction = now;
 
-            // Don't GC files under replication
-            if( journalFilesBeingReplicated!=null ) {
-                gcCandidateSet.removeAll(journalFilesBeingReplicated);
+        for (Integer dataFileId : getCompactionCandidates()) {
+            if (budget <= 0 || !opened.get()) {
+                break;
             }
 
-            if (metadata.producerSequenceIdTrackerLocation != null) {
-                int dataFileId = metadata.producerSequenceIdTrackerLocation.getDataFileId();
-                if (gcCandidateSet.contains(dataFileId) && gcCandidateSet.first() == dataFileId) {
-                    // rewrite so we don't prevent gc
-                    metadata.producerSequenceIdTracker.setModified(true);
-                    if (LOG.isTraceEnabled()) {
-                        LOG.trace("rewriting producerSequenceIdTracker:" + metadata.producerSequenceIdTrackerLocation);
-                    }
+            List<LiveLocation> live;
+            DataFile dataFile;
+            long liveBytes = 0;
+            synchronized (checkpointMutex) {
+                if (!opened.get()) {
+                    break;
                 }
-                gcCandidateSet.remove(dataFileId);
-                if (LOG.isTraceEnabled()) {
-                    LOG.trace("gc candidates after producerSequenceIdTrackerLocation:" + dataFileId + ", " + gcCandidateSet);
+                dataFile = journal.getFileMap().get(dataFileId);
+                live = getLiveLocations(dataFileId);
+                Integer skipped = compactionSkipped.get(dataFileId);
+                if (dataFile == null || live.isEmpty() || (skipped != null && skipped.intValue() == live.size())) {
+                    continue;
                 }
-            }
-
-            if (metadata.ackMessageFileMapLocation != null) {
-                int dataFileId = metadata.ackMessageFileMapLocation.getDataFileId();
-                gcCandidateSet.remove(dataFileId);
-                if (LOG.isTraceEnabled()) {
-                    LOG.trace("gc candidates after ackMessageFileMapLocation:" + dataFileId + ", " + gcCandidateSet);
+                for (LiveLocation entry : live) {
+                    journal.readLocationDetails(entry.location);
+                    liveBytes += entry.location.getSize();
                 }
             }
 
-            // Don't GC files referenced by in-progress tx
-            if (inProgressTxRange[0] != null) {
-                for (int pendingTx=inProgressTxRange[0].getDataFileId(); pendingTx <= inProgressTxRange[1].getDataFileId(); pendingTx++) {
-                    gcCandidateSet.remove(pendingTx);
-                }
+            if (liveBytes * 100 >= (long) dataFile.getLength() * journalCompactionThreshold) {
+                compactionSkipped.put(dataFileId, live.size());
+                continue;
             }
-            if (LOG.isTraceEnabled()) {
-                LOG.trace("gc candidates after tx range:" + Arrays.asList(inProgressTxRange) + ", " + gcCandidateSet);
+            compactionSkipped.remove(dataFileId);
+
+            LOG.debug("Compacting journal data file {}, {} live bytes in {} messages", new Object[] {dataFileId, liveBytes, live.size()});
+            for (int i = 0; i < live.size() && budget > 0 && opened.get(); i += COMPACTION_BATCH_SIZE) {
+                budget -= relocate(live.subList(i, Math.min(live.size(), i + COMPACTION_BATCH_SIZE)));
             }
+        }
+    }
 
-            // Go through all the destinations to see if any of them can remove GC candidates.
-            for (Entry<String, StoredDestination> entry : storedDestinations.entrySet()) {
-                if( gcCandidateSet.isEmpty() ) {
-                    break;
-                }
+    /**
+     * @return the data files that could be compacted, oldest first
+     */
+    private List<Integer> getCompactionCandidates() throws IOException {
+        this.indexLock.writeLock().lock();
+        try {
+            Location head = journal.getLastAppendLocation();
+            if (!opened.get() || head == null) {
+                return Collections.emptyList();
+            }
+            TreeSet<Integer> candidates = new TreeSet<Integer>(journal.getFileMap().keySet());
+            candidates.tailSet(head.getDataFileId()).clear();
+            if (metadata.lastUpdate != null) {
+                candidates.remove(metadata.lastUpdate.getDataFileId());
+            }
+            if (metadata.producerSequenceIdTrackerLocation != null) {
+                candidates.remove(metadata.producerSequenceIdTrackerLocation.getDataFileId());
+            }
+            if (metadata.ackMessageFileMapLocation != null) {
+                candidates.remove(metadata.ackMessageFileMapLocation.getDataFileId());
+            }
+            candidates.removeAll(journalFilesBeingReplicated);
+            if (locationCounts != null) {
+                candidates.retainAll(locationCounts.keySet());
+            }
+            compactionSkipped.keySet().retainAll(candidates);
+            return new ArrayList<Integer>(candidates);
+        } finally {
+            this.indexLock.writeLock().unlock();
+        }
+    }
 
-                // Use a visitor to cut down the number of pages that we load
-                entry.getValue().locationIndex.visit(tx, new BTreeVisitor<Location, Long>() {
-                    int last=-1;
-                    @Override
-                    public boolean isInterestedInKeysBetween(Location first, Location second) {
-                        if( first==null ) {
-                            SortedSet<Integer> subset = gcCandidateSet.headSet(second.getDataFileId()+1);
-                            if( !subset.isEmpty() && subset.last() == second.getDataFileId() ) {
-                                subset.remove(second.getDataFileId());
-                            }
-                            return !subset.isEmpty();
-                        } else if( second==null ) {
-                            SortedSet<Integer> subset = gcCandidateSet.tailSet(first.getDataFileId());
-                            if( !subset.isEmpty() && subset.first() == first.getDataFileId() ) {
-                                subset.remove(first.getDataFileId());
-                            }
-                            return !subset.isEmpty();
-                        } else {
-                            SortedSet<Integer> subset = gcCandidateSet.subSet(first.getDataFileId(), second.getDataFileId()+1);
-                            if( !subset.isEmpty() && subset.first() == first.getDataFileId() ) {
-                                subset.remove(first.getDataFileId());
-                            }
-                            if( !subset.isEmpty() && subset.last() == second.getDataFileId() ) {
-                                subset.remove(second.getDataFileId());
+    private List<LiveLocation> getLiveLocations(final int dataFileId) throws IOException {
+        final List<LiveLocation> rc = new ArrayList<LiveLocation>();
+        this.indexLock.writeLock().lock();
+        try {
+            pageFile.tx().execute(new Transaction.Closure<IOException>() {
+                @Override
+                public void execute(Transaction tx) throws IOException {
+                    for (final Entry<String, StoredDestination> entry : storedDestinations.entrySet()) {
+                        entry.getValue().locationIndex.visit(tx, new BTreeVisitor.BetweenVisitor<Location, Long>(
+                                new Location(dataFileId, 0), new Location(dataFileId + 1, 0)) {
+                            @Override
+                            protected void matched(Location key, Long value) {
+                                rc.add(new LiveLocation(entry.getKey(), new Location(key), value));
                             }
-                            return !subset.isEmpty();
-                        }
+                        });
                     }
+                }
+            });
+        } finally {
+            this.indexLock.writeLock().unlock();
+        }
+        return rc;
+    }
 
-                    @Override
-                    public void visit(List<Location> keys, List<Long> values) {
-                        for (Location l : keys) {
-                            int fileId = l.getDataFileId();
-                            if( last != fileId ) {
-                                gcCandidateSet.remove(fileId);
-                                last = fileId;
-                            }
-                        }
-                    }
-                });
+    /**
+     * Copies a batch of live messages to the head of the journal and points
+     * the index at the copies.
+     *
+     * A copy journaled after its message was acked would add the message back
+     * when the journal is replayed, so the messages still live are picked and
+     * their copies appended holding the checkpoint write lock, as every
+     * journaled update holds its read lock until it is in the index. Only the
+     * checkpoint mutex, which keeps cleanup from removing the files, is held
+     * while the messages are read, the copies reach the disk and the index is
+     * moved to them. A message acked once its copy is journaled comes after
+     * the copy on a replay too, so is just left where it was.
+     *
+     * A full index rebuild gives the messages new sequence ids in the order
+     * they are replayed, so each copy records where its message was first
+     * journaled and is indexed when the replay gets there, keeping its place
+     * in the destination and behind the acks of the durable subscriptions.
+     * A transacted message is indexed when its transaction commits, which the
+     * copy can't record, so those are left where they are.
+     *
+     * @return the number of bytes copied
+     */
+    private long relocate(final List<LiveLocation> batch) throws IOException {
+        final List<LiveLocation> moving = new ArrayList<LiveLocation>(batch.size());
+        final List<KahaAddMessageCommand> commands = new ArrayList<KahaAddMessageCommand>(batch.size());
+        final AtomicBoolean written = new AtomicBoolean();
+        final List<Location> locations = new ArrayList<Location>(batch.size());
+        synchronized (checkpointMutex) {
+            if (!opened.get()) {
+                return 0;
+            }
+            for (LiveLocation entry : batch) {
+                JournalCommand<?> command = load(entry.location);
+                if (command instanceof KahaAddMessageCommand && !((KahaAddMessageCommand) command).hasTransactionInfo()) {
+                    moving.add(entry);
+                    commands.add((KahaAddMessageCommand) command);
+                }
+            }
 
-                // Durable Subscription
-                if (entry.getValue().subLocations != null) {
-                    Iterator<Entry<String, Location>> iter = entry.getValue().subLocations.iterator(tx);
-                    while (iter.hasNext()) {
-                        Entry<String, Location> subscription = iter.next();
-                        int dataFileId = subscription.getValue().getDataFileId();
-
-                        // Move subscription along if it has no outstanding messages that need ack'd
-                        // and its in the last log file in the journal.
-                        if (!gcCandidateSet.isEmpty() && gcCandidateSet.first() == dataFileId) {
-                            final StoredDestination destination = entry.getValue();
-                            final String subscriptionKey = subscription.getKey();
-                            SequenceSet pendingAcks = destination.ackPositions.get(tx, subscriptionKey);
-
-                            // When pending is size one that is the next message Id meaning there
-                            // are no pending messages currently.
-                            if (pendingAcks == null || pendingAcks.size() <= 1) {
-                                if (LOG.isTraceEnabled()) {
-                                    LOG.trace("Found candidate for rewrite: {} from file {}", entry.getKey(), dataFileId);
+            checkpointLock.writeLock().lock();
+            try {
+                this.indexLock.writeLock().lock();
+                try {
+                    if (!opened.get()) {
+                        return 0;
+                    }
+                    pageFile.tx().execute(new Transaction.Closure<IOException>() {
+                        @Override
+                        public void execute(Transaction tx) throws IOException {
+                            for (int i = moving.size() - 1; i >= 0; i--) {
+                                if (!isLive(tx, moving.get(i))) {
+                                    moving.remove(i);
+                                    commands.remove(i);
                                 }
-
-                                final KahaSubscriptionCommand kahaSub =
-                                    destination.subscriptions.get(tx, subscriptionKey);
-                                destination.subLocations.put(
-                                    tx, subscriptionKey, checkpointSubscriptionCommand(kahaSub));
-
-                                // Skips the remove from candidates if we rewrote the subscription
-                                // in order to prevent duplicate subscription commands on recover.
-                                // If another subscription is on the same file and isn't rewritten
-                                // than it will remove the file from the set.
-                                continue;
                             }
                         }
-
-                        gcCandidateSet.remove(dataFileId);
-                    }
+                    });
+                } finally {
+                    this.indexLock.writeLock().unlock();
                 }
-
-                if (LOG.isTraceEnabled()) {
-                    LOG.trace("gc candidates after dest:" + entry.getKey() + ", " + gcCandidateSet);
+                if (moving.isEmpty()) {
+                    return 0;
                 }
-            }
 
-            // check we are not deleting file with ack for in-use journal files
-            if (LOG.isTraceEnabled()) {
-                LOG.trace("gc candidates: " + gcCandidateSet);
-            }
-            final TreeSet<Integer> gcCandidates = new TreeSet<Integer>(gcCandidateSet);
-            Iterator<Integer> candidates = gcCandidateSet.iterator();
-            while (candidates.hasNext()) {
-                Integer candidate = candidates.next();
-                Set<Integer> referencedFileIds = metadata.ackMessageFileMap.get(candidate);
-                if (referencedFileIds != null) {
-                    for (Integer referencedFileId : referencedFileIds) {
-                        if (completeFileSet.contains(referencedFileId) && !gcCandidates.contains(referencedFileId)) {
-                            // active file that is not targeted for deletion is referenced so don't delete
-                            candidates.remove();
-                            break;
-                        }
+                // A copy of a copy still refers to where the message was first journaled.
+                for (int i = 0; i < moving.size(); i++) {
+                    KahaAddMessageCommand command = commands.get(i);
+                    if (!command.hasRelocatedFrom()) {
+                        Location location = moving.get(i).location;
+                        command.setRelocatedFrom(new KahaLocation().setLogId(location.getDataFileId()).setOffset(location.getOffset()));
                     }
-                    if (gcCandidateSet.contains(candidate)) {
-                        metadata.ackMessageFileMap.remove(candidate);
+                    if (i < moving.size() - 1) {
+                        locations.add(journal.write(toByteSequence(command), false));
                     } else {
-                        if (LOG.isTraceEnabled()) {
-                            LOG.trace("not removing data file: " + candidate
-                                    + " as contained ack(s) refer to referenced file: " + referencedFileIds);
-                        }
+                        locations.add(journal.write(toByteSequence(command), new Runnable() {
+                            @Override
+                            public void run() {
+                                written.set(true);
+                            }
+                        }));
                     }
                 }
+            } finally {
+                checkpointLock.writeLock().unlock();
             }
 
-            if (!gcCandidateSet.isEmpty()) {
-                if (LOG.isDebugEnabled()) {
-                    LOG.debug("Cleanup removing the data files: " + gcCandidateSet);
-                }
-                journal.removeDataFiles(gcCandidateSet);
+            try {
+                locations.get(locations.size() - 1).getLatch().await();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            if (!written.get()) {
+                throw new IOException("Failed to journal the messages compacted from data file " + moving.get(0).location.getDataFileId());
+            }
+            return moveLocations(moving, commands, locations);
+        }
+    }
+
+    private long moveLocations(final List<LiveLocation> moving, final List<KahaAddMessageCommand> commands,
+                               final List<Location> locations) throws IOException {
+        long copied = 0;
+        this.indexLock.writeLock().lock();
+        try {
+            if (!opened.get()) {
+                return 0;
             }
+            pageFile.tx().execute(new Transaction.Closure<IOException>() {
+                @Override
+                public void execute(Transaction tx) throws IOException {
+                    for (int i = 0; i < locations.size(); i++) {
+                        LiveLocation entry = moving.get(i);
+                        if (!isLive(tx, entry)) {
+                            continue;
+                        }
+                        KahaAddMessageCommand command = commands.get(i);
+                        StoredDestination sd = storedDestinations.get(entry.destinationKey);
+                        int priority = command.getPrioritySupported() ? command.getPriority() : javax.jms.Message.DEFAULT_PRIORITY;
+                        removeLocation(tx, sd, entry.location);
+                        putLocation(tx, sd, locations.get(i), entry.sequenceId);
+                        sd.orderIndex.put(tx, priority, entry.sequenceId, new MessageKeys(command.getMessageId(), locations.get(i)));
+                    }
+                    setLastUpdate(locations.get(locations.size() - 1));
+                }
+            });
+        } finally {
+            this.indexLock.writeLock().unlock();
+        }
+        for (Location location : locations) {
+            copied += location.getSize();
         }
+        journalBytesCompacted.add(copied);
+        return copied;
+    }
 
-        LOG.debug("Checkpoint done.");
+    private boolean isLive(Transaction tx, LiveLocation entry) throws IOException {
+        StoredDestination sd = storedDestinations.get(entry.destinationKey);
+        return sd != null && entry.sequenceId.equals(sd.locationIndex.get(tx, entry.location));
     }
 
     final Runnable nullCompletionCallback = new Runnable() {
@@ -1824,13 +2682,13 @@ public abstract class MessageDatabase extends ServiceSupport implements BrokerSe
         @Override
         public StoredDestination readPayload(final DataInput dataIn) throws IOException {
             final StoredDestination value = new StoredDestination();
-            value.orderIndex.defaultPriorityIndex = new BTreeIndex<Long, MessageKeys>(pageFile, dataIn.readLong());
-            value.locationIndex = new BTreeIndex<Location, Long>(pageFile, dataIn.readLong());
-            value.messageIdIndex = new BTreeIndex<String, Long>(pageFile, dataIn.readLong());
+            value.orderIndex.defaultPriorityIndex = createStoredDestinationIndex(dataIn.readLong());
+            value.locationIndex = createStoredDestinationIndex(dataIn.readLong());
+            value.messageIdIndex = createStoredDestinationIndex(dataIn.readLong());
 
             if (dataIn.readBoolean()) {
-                value.subscriptions = new BTreeIndex<String, KahaSubscriptionCommand>(pageFile, dataIn.readLong());
-                value.subscriptionAcks = new BTreeIndex<String, LastAck>(pageFile, dataIn.readLong());
+                value.subscriptions = createStoredDestinationIndex(dataIn.readLong());
+                value.subscriptionAcks = createStoredDestinationIndex(dataIn.readLong());
                 if (metadata.version >= 4) {
                     value.ackPositions = new ListIndex<String, SequenceSet>(pageFile, dataIn.readLong());
                 } else {
@@ -1896,19 +2754,19 @@ public abstract class MessageDatabase extends ServiceSupport implements BrokerSe
                 }
             }
             if (metadata.version >= 2) {
-                value.orderIndex.lowPriorityIndex = new BTreeIndex<Long, MessageKeys>(pageFile, dataIn.readLong());
-                value.orderIndex.highPriorityIndex = new BTreeIndex<Long, MessageKeys>(pageFile, dataIn.readLong());
+                value.orderIndex.lowPriorityIndex = createStoredDestinationIndex(dataIn.readLong());
+                value.orderIndex.highPriorityIndex = createStoredDestinationIndex(dataIn.readLong());
             } else {
                 // upgrade
                 pageFile.tx().execute(new Transaction.Closure<IOException>() {
                     @Override
                     public void execute(Transaction tx) throws IOException {
-                        value.orderIndex.lowPriorityIndex = new BTreeIndex<Long, MessageKeys>(pageFile, tx.allocate());
+                        value.orderIndex.lowPriorityIndex = createStoredDestinationIndex(tx.allocate().getPageId());
                         value.orderIndex.lowPriorityIndex.setKeyMarshaller(LongMarshaller.INSTANCE);
                         value.orderIndex.lowPriorityIndex.setValueMarshaller(MessageKeysMarshaller.INSTANCE);
                         value.orderIndex.lowPriorityIndex.load(tx);
 
-                        value.orderIndex.highPriorityIndex = new BTreeIndex<Long, MessageKeys>(pageFile, tx.allocate());
+                        value.orderIndex.highPriorityIndex = createStoredDestinationIndex(tx.allocate().getPageId());
                         value.orderIndex.highPriorityIndex.setKeyMarshaller(LongMarshaller.INSTANCE);
                         value.orderIndex.highPriorityIndex.setValueMarshaller(MessageKeysMarshaller.INSTANCE);
                         value.orderIndex.highPriorityIndex.load(tx);
@@ -1954,6 +2812,13 @@ public abstract class MessageDatabase extends ServiceSupport implements BrokerSe
         }
     }
 
+    private <Key, Value> BTreeIndex<Key, Value> createStoredDestinationIndex(long pageId) {
+        if (enableConcurrentBTreeIndex) {
+            return new ConcurrentBTreeIndex<Key, Value>(pageFile, pageId);
+        }
+        return new BTreeIndex<Key, Value>(pageFile, pageId);
+    }
+
     protected StoredDestination getStoredDestination(KahaDestination destination, Transaction tx) throws IOException {
         String key = key(destination);
         StoredDestination rc = storedDestinations.get(key);
@@ -1991,12 +2856,12 @@ public abstract class MessageDatabase extends ServiceSupport implements BrokerSe
             // Brand new destination.. allocate indexes for it.
             rc = new StoredDestination();
             rc.orderIndex.allocate(tx);
-            rc.locationIndex = new BTreeIndex<Location, Long>(pageFile, tx.allocate());
-            rc.messageIdIndex = new BTreeIndex<String, Long>(pageFile, tx.allocate());
+            rc.locationIndex = createStoredDestinationIndex(tx.allocate().getPageId());
+            rc.messageIdIndex = createStoredDestinationIndex(tx.allocate().getPageId());
 
             if (topic) {
-                rc.subscriptions = new BTreeIndex<String, KahaSubscriptionCommand>(pageFile, tx.allocate());
-                rc.subscriptionAcks = new BTreeIndex<String, LastAck>(pageFile, tx.allocate());
+                rc.subscriptions = createStoredDestinationIndex(tx.allocate().getPageId());
+                rc.subscriptionAcks = createStoredDestinationIndex(tx.allocate().getPageId());
                 rc.ackPositions = new ListIndex<String, SequenceSet>(pageFile, tx.allocate());
                 rc.subLocations = new ListIndex<String, Location>(pageFile, tx.allocate());
             }
@@ -2200,7 +3065,7 @@ public abstract class MessageDatabase extends ServiceSupport implements BrokerSe
 
                 // Do the actual deletes.
                 for (Entry<Long, MessageKeys> entry : deletes) {
-                    sd.locationIndex.remove(tx, entry.getValue().location);
+                    removeLocation(tx, sd, entry.getValue().location);
                     sd.messageIdIndex.remove(tx, entry.getValue().messageId);
                     sd.orderIndex.remove(tx, entry.getKey());
                 }
@@ -2245,7 +3110,7 @@ public abstract class MessageDatabase extends ServiceSupport implements BrokerSe
 
                 // Do the actual deletes.
                 for (Entry<Long, MessageKeys> entry : deletes) {
-                    sd.locationIndex.remove(tx, entry.getValue().location);
+                    removeLocation(tx, sd, entry.getValue().location);
                     sd.messageIdIndex.remove(tx, entry.getValue().messageId);
                     sd.orderIndex.remove(tx, entry.getKey());
                 }
@@ -2381,6 +3246,7 @@ public abstract class MessageDatabase extends ServiceSupport implements BrokerSe
         index.setEnableWriteThread(isEnableIndexWriteAsync());
         index.setWriteBatchSize(getIndexWriteBatchSize());
         index.setPageCacheSize(indexCacheSize);
+        index.setOffHeapPageCacheSize(indexOffHeapCacheSize);
         index.setUseLFRUEviction(isUseIndexLFRUEviction());
         index.setLFUEvictionFactor(getIndexLFUEvictionFactor());
         index.setEnableDiskSyncs(isEnableIndexDiskSyncs());
@@ -2395,10 +3261,16 @@ public abstract class MessageDatabase extends ServiceSupport implements BrokerSe
         manager.setMaxFileLength(getJournalMaxFileLength());
         manager.setCheckForCorruptionOnStartup(checkForCorruptJournalFiles);
         manager.setChecksum(checksumJournalFiles || checkForCorruptJournalFiles);
+        manager.setChecksumAlgorithm(getJournalChecksumAlgorithm());
+        manager.setEnableRecordChecksums(isEnableJournalRecordChecksums());
         manager.setWriteBatchSize(getJournalMaxWriteBatchSize());
+        manager.setMaxWriteBatchWaitMicros(getJournalMaxWriteBatchWaitMicros());
+        manager.setEnablePipelinedSync(isEnableJournalPipelinedSync());
         manager.setArchiveDataLogs(isArchiveDataLogs());
         manager.setSizeAccumulator(journalSize);
         manager.setEnableAsyncDiskSync(isEnableJournalDiskSyncs());
+        manager.setEnableMemoryMappedReads(isEnableJournalMemoryMappedReads());
+        manager.setPreallocateDataFiles(isEnableJournalPreallocation());
         if (getDirectoryArchive() != null) {
             IOHelper.mkdirs(getDirectoryArchive());
             manager.setDirectoryArchive(getDirectoryArchive());
@@ -2414,6 +3286,22 @@ public abstract class MessageDatabase extends ServiceSupport implements BrokerSe
         this.journalMaxWriteBatchSize = journalMaxWriteBatchSize;
     }
 
+    public long getJournalMaxWriteBatchWaitMicros() {
+        return journalMaxWriteBatchWaitMicros;
+    }
+
+    public void setJournalMaxWriteBatchWaitMicros(long journalMaxWriteBatchWaitMicros) {
+        this.journalMaxWriteBatchWaitMicros = journalMaxWriteBatchWaitMicros;
+    }
+
+    public boolean isEnableJournalPipelinedSync() {
+        return enableJournalPipelinedSync;
+    }
+
+    public void setEnableJournalPipelinedSync(boolean enableJournalPipelinedSync) {
+        this.enableJournalPipelinedSync = enableJournalPipelinedSync;
+    }
+
     public File getDirectory() {
         return directory;
     }
@@ -2454,6 +3342,22 @@ public abstract class MessageDatabase extends ServiceSupport implements BrokerSe
         this.enableJournalDiskSyncs = syncWrites;
     }
 
+    public boolean isEnableJournalMemoryMappedReads() {
+        return enableJournalMemoryMappedReads;
+    }
+
+    public void setEnableJournalMemoryMappedReads(boolean enableJournalMemoryMappedReads) {
+        this.enableJournalMemoryMappedReads = enableJournalMemoryMappedReads;
+    }
+
+    public boolean isEnableJournalPreallocation() {
+        return enableJournalPreallocation;
+    }
+
+    public void setEnableJournalPreallocation(boolean enableJournalPreallocation) {
+        this.enableJournalPreallocation = enableJournalPreallocation;
+    }
+
     public long getCheckpointInterval() {
         return checkpointInterval;
     }
@@ -2532,6 +3436,78 @@ public abstract class MessageDatabase extends ServiceSupport implements BrokerSe
         this.indexCacheSize = indexCacheSize;
     }
 
+    public long getIndexOffHeapCacheSize() {
+        return indexOffHeapCacheSize;
+    }
+
+    public void setIndexOffHeapCacheSize(long indexOffHeapCacheSize) {
+        this.indexOffHeapCacheSize = indexOffHeapCacheSize;
+    }
+
+    public boolean isEnableStripedIndexLocking() {
+        return enableStripedIndexLocking;
+    }
+
+    public void setEnableStripedIndexLocking(boolean enableStripedIndexLocking) {
+        this.enableStripedIndexLocking = enableStripedIndexLocking;
+    }
+
+    public boolean isEnableConcurrentBTreeIndex() {
+        return enableConcurrentBTreeIndex;
+    }
+
+    public void setEnableConcurrentBTreeIndex(boolean enableConcurrentBTreeIndex) {
+        this.enableConcurrentBTreeIndex = enableConcurrentBTreeIndex;
+    }
+
+    public boolean isEnableJournalCompaction() {
+        return enableJournalCompaction;
+    }
+
+    public void setEnableJournalCompaction(boolean enableJournalCompaction) {
+        this.enableJournalCompaction = enableJournalCompaction;
+    }
+
+    public int getJournalCompactionThreshold() {
+        return journalCompactionThreshold;
+    }
+
+    public void setJournalCompactionThreshold(int journalCompactionThreshold) {
+        this.journalCompactionThreshold = journalCompactionThreshold;
+    }
+
+    public long getJournalCompactionRate() {
+        return journalCompactionRate;
+    }
+
+    public void setJournalCompactionRate(long journalCompactionRate) {
+        this.journalCompactionRate = journalCompactionRate;
+    }
+
+    public CountStatisticImpl getJournalBytesCompacted() {
+        return journalBytesCompacted;
+    }
+
+    public CountStatisticImpl getJournalBytesReclaimed() {
+        return journalBytesReclaimed;
+    }
+
+    public boolean isEnablePipelinedIndexRecovery() {
+        return enablePipelinedIndexRecovery;
+    }
+
+    public void setEnablePipelinedIndexRecovery(boolean enablePipelinedIndexRecovery) {
+        this.enablePipelinedIndexRecovery = enablePipelinedIndexRecovery;
+    }
+
+    public int getIndexRecoveryDecoderThreads() {
+        return indexRecoveryDecoderThreads;
+    }
+
+    public void setIndexRecoveryDecoderThreads(int indexRecoveryDecoderThreads) {
+        this.indexRecoveryDecoderThreads = indexRecoveryDecoderThreads;
+    }
+
     public boolean isCheckForCorruptJournalFiles() {
         return checkForCorruptJournalFiles;
     }
@@ -2548,6 +3524,22 @@ public abstract class MessageDatabase extends ServiceSupport implements BrokerSe
         this.checksumJournalFiles = checksumJournalFiles;
     }
 
+    public String getJournalChecksumAlgorithm() {
+        return journalChecksumAlgorithm;
+    }
+
+    public void setJournalChecksumAlgorithm(String journalChecksumAlgorithm) {
+        this.journalChecksumAlgorithm = journalChecksumAlgorithm;
+    }
+
+    public boolean isEnableJournalRecordChecksums() {
+        return enableJournalRecordChecksums;
+    }
+
+    public void setEnableJournalRecordChecksums(boolean enableJournalRecordChecksums) {
+        this.enableJournalRecordChecksums = enableJournalRecordChecksums;
+    }
+
     @Override
     public void setBrokerService(BrokerService brokerService) {
         this.brokerService = brokerService;
@@ -2735,10 +3727,10 @@ public abstract class MessageDatabase extends ServiceSupport implements BrokerSe
         }
 
         void allocate(Transaction tx) throws IOException {
-            defaultPriorityIndex = new BTreeIndex<Long, MessageKeys>(pageFile, tx.allocate());
+            defaultPriorityIndex = createStoredDestinationIndex(tx.allocate().getPageId());
             if (metadata.version >= 2) {
-                lowPriorityIndex = new BTreeIndex<Long, MessageKeys>(pageFile, tx.allocate());
-                highPriorityIndex = new BTreeIndex<Long, MessageKeys>(pageFile, tx.allocate());
+                lowPriorityIndex = createStoredDestinationIndex(tx.allocate().getPageId());
+                highPriorityIndex = createStoredDestinationIndex(tx.allocate().getPageId());
             }
         }
 
@@ -2897,6 +3889,21 @@ public abstract class MessageDatabase extends ServiceSupport implements BrokerSe
             return result;
         }
 
+        /**
+         * Same as get, but leaves lastGetPriority alone so it can be called by
+         * lookups that run alongside the destination's writer.
+         */
+        MessageKeys peek(Transaction tx, Long key) throws IOException {
+            MessageKeys result = defaultPriorityIndex.get(tx, key);
+            if (result == null) {
+                result = highPriorityIndex.get(tx, key);
+                if (result == null) {
+                    result = lowPriorityIndex.get(tx, key);
+                }
+            }
+            return result;
+        }
+
         MessageKeys put(Transaction tx, int priority, Long key, MessageKeys value) throws IOException {
             if (priority == javax.jms.Message.DEFAULT_PRIORITY) {
                 return defaultPriorityIndex.put(tx, key, value);
@@ -17,9 +17,14 @@
 package org.apache.activemq.store.kahadb;
 
 import org.apache.activemq.broker.*;
+import org.apache.activemq.broker.jmx.AnnotatedMBean;
+import org.apache.activemq.broker.jmx.BrokerMBeanSupport;
+import org.apache.activemq.broker.jmx.MultiKahaDBPersistenceAdapterView;
+import org.apache.activemq.broker.jmx.WriteRate;
 import org.apache.activemq.command.*;
 import org.apache.activemq.filter.AnyDestination;
 import org.apache.activemq.filter.DestinationMap;
+import org.apache.activemq.filter.DestinationFilter;
 import org.apache.activemq.filter.DestinationMapEntry;
 import org.apache.activemq.store.*;
 import org.apache.activemq.usage.SystemUsage;
@@ -30,12 +35,14 @@ import org.apache.activemq.util.ServiceStopper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.management.ObjectName;
 import javax.transaction.xa.Xid;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.IOException;
 import java.nio.charset.Charset;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * An implementation of {@link org.apache.activemq.store.PersistenceAdapter}  that supports
@@ -60,6 +67,14 @@ public class MultiKahaDBPersistenceAdapter extends LockableServiceSupport implem
     List<PersistenceAdapter> adapters = new LinkedList<PersistenceAdapter>();
     private File directory = new File(IOHelper.getDefaultDataDirectory() + File.separator + "mKahaDB");
 
+    // the entries whose instances destinations are placed on adaptively
+    final List<FilteredKahaDBPersistenceAdapter> adaptiveEntries = new ArrayList<FilteredKahaDBPersistenceAdapter>();
+    final ConcurrentHashMap<ActiveMQDestination, PersistenceAdapter> placements = new ConcurrentHashMap<ActiveMQDestination, PersistenceAdapter>();
+    final ConcurrentHashMap<ActiveMQDestination, RoutedMessageStore> routedStores = new ConcurrentHashMap<ActiveMQDestination, RoutedMessageStore>();
+    final ConcurrentHashMap<PersistenceAdapter, WriteRateMeter> instanceMeters = new ConcurrentHashMap<PersistenceAdapter, WriteRateMeter>();
+    private long migrationIdlePeriod = 30000;
+    private ObjectName viewName;
+
     MultiKahaDBTransactionStore transactionStore = new MultiKahaDBTransactionStore(this);
 
     // all local store transactions are XA, 2pc if more than one adapter involved
@@ -111,6 +126,10 @@ public class MultiKahaDBPersistenceAdapter extends LockableServiceSupport implem
                 configureDirectory(adapter, null);
                 // per destination adapters will be created on demand or during recovery
                 continue;
+            } else if (filteredAdapter.isAdaptive()) {
+                configureDirectory(adapter, nameFromAdaptiveEntry(filteredAdapter));
+                adaptiveEntries.add(filteredAdapter);
+                instanceMeters.put(adapter, new WriteRateMeter());
             } else {
                 configureDirectory(adapter, nameFromDestinationFilter(filteredAdapter.getDestination()));
             }
@@ -130,6 +149,18 @@ public class MultiKahaDBPersistenceAdapter extends LockableServiceSupport implem
         return IOHelper.toFileSystemSafeName(destination.getQualifiedName());
     }
 
+    private String nameFromAdaptiveEntry(FilteredKahaDBPersistenceAdapter filteredAdapter) {
+        // the first instance of a pool keeps the name it had before the pool
+        int index = 0;
+        for (FilteredKahaDBPersistenceAdapter entry : adaptiveEntries) {
+            if (entry.getDestination().equals(filteredAdapter.getDestination())) {
+                index++;
+            }
+        }
+        String name = nameFromDestinationFilter(filteredAdapter.getDestination());
+        return index == 0 ? name : name + "_" + index;
+    }
+
     public boolean isLocalXid(TransactionId xid) {
         return xid instanceof XATransactionId &&
                 ((XATransactionId)xid).getFormatId() == LOCAL_FORMAT_ID_MAGIC;
@@ -154,16 +185,36 @@ public class MultiKahaDBPersistenceAdapter extends LockableServiceSupport implem
 
     @Override
     public MessageStore createQueueMessageStore(ActiveMQQueue destination) throws IOException {
+        RoutedMessageStore routed = routedStores.get(destination);
+        if (routed != null) {
+            return routed;
+        }
         PersistenceAdapter persistenceAdapter = getMatchingPersistenceAdapter(destination);
-        return transactionStore.proxy(persistenceAdapter.createTransactionStore(), persistenceAdapter.createQueueMessageStore(destination));
+        MessageStore store = transactionStore.proxy(persistenceAdapter.createTransactionStore(), persistenceAdapter.createQueueMessageStore(destination));
+        if (placements.containsKey(destination)) {
+            store = route(new RoutedMessageStore(destination, store, persistenceAdapter, instanceMeters.get(persistenceAdapter)));
+        }
+        return store;
+    }
+
+    private RoutedMessageStore route(RoutedMessageStore store) {
+        RoutedMessageStore existing = routedStores.putIfAbsent(store.getDestination(), store);
+        return existing != null ? existing : store;
     }
 
     private PersistenceAdapter getMatchingPersistenceAdapter(ActiveMQDestination destination) throws IOException {
+        PersistenceAdapter placed = placements.get(destination);
+        if (placed != null) {
+            return placed;
+        }
         Object result = destinationMap.chooseValue(destination);
         if (result == null) {
             throw new RuntimeException("No matching persistence adapter configured for destination: " + destination + ", options:" + adapters);
         }
         FilteredKahaDBPersistenceAdapter filteredAdapter = (FilteredKahaDBPersistenceAdapter) result;
+        if (filteredAdapter.isAdaptive() && !filteredAdapter.isPerDestination()) {
+            return place(filteredAdapter, destination);
+        }
         if (filteredAdapter.getDestination() == matchAll && filteredAdapter.isPerDestination()) {
             filteredAdapter = addAdapter(filteredAdapter, destination);
             if (LOG.isTraceEnabled()) {
@@ -174,6 +225,52 @@ public class MultiKahaDBPersistenceAdapter extends LockableServiceSupport implem
         return filteredAdapter.getPersistenceAdapter();
     }
 
+    /**
+     * Places a new destination on the instance of the entry's pool with the
+     * lowest write rate.
+     */
+    private synchronized PersistenceAdapter place(FilteredKahaDBPersistenceAdapter filteredAdapter, ActiveMQDestination destination) {
+        PersistenceAdapter placed = placements.get(destination);
+        if (placed == null) {
+            placed = leastLoaded(filteredAdapter.getDestination());
+            startAdapter(placed, destination.getQualifiedName());
+            placements.put(destination, placed);
+            LOG.debug("placed {} on {}", destination, placed);
+        }
+        return placed;
+    }
+
+    private PersistenceAdapter leastLoaded(ActiveMQDestination filter) {
+        PersistenceAdapter best = null;
+        double bestRate = 0;
+        int bestCount = 0;
+        for (FilteredKahaDBPersistenceAdapter entry : adaptiveEntries) {
+            if (!entry.getDestination().equals(filter)) {
+                continue;
+            }
+            PersistenceAdapter adapter = entry.getPersistenceAdapter();
+            double rate = instanceMeters.get(adapter).getRate();
+            int count = placedOn(adapter);
+            // rates within a tenth of each other are as good, go by destinations
+            if (best == null || rate < bestRate * 0.9 || (rate <= bestRate * 1.1 && count < bestCount)) {
+                best = adapter;
+                bestRate = rate;
+                bestCount = count;
+            }
+        }
+        return best;
+    }
+
+    private int placedOn(PersistenceAdapter adapter) {
+        int count = 0;
+        for (PersistenceAdapter placed : placements.values()) {
+            if (placed == adapter) {
+                count++;
+            }
+        }
+        return count;
+    }
+
     private void startAdapter(PersistenceAdapter kahaDBPersistenceAdapter, String destination) {
         try {
             kahaDBPersistenceAdapter.start();
@@ -196,8 +293,16 @@ public class MultiKahaDBPersistenceAdapter extends LockableServiceSupport implem
 
     @Override
     public TopicMessageStore createTopicMessageStore(ActiveMQTopic destination) throws IOException {
+        RoutedMessageStore routed = routedStores.get(destination);
+        if (routed != null) {
+            return (TopicMessageStore) routed;
+        }
         PersistenceAdapter persistenceAdapter = getMatchingPersistenceAdapter(destination);
-        return transactionStore.proxy(persistenceAdapter.createTransactionStore(), persistenceAdapter.createTopicMessageStore(destination));
+        TopicMessageStore store = transactionStore.proxy(persistenceAdapter.createTransactionStore(), persistenceAdapter.createTopicMessageStore(destination));
+        if (placements.containsKey(destination)) {
+            store = (TopicMessageStore) route(new RoutedTopicMessageStore(destination, store, persistenceAdapter, instanceMeters.get(persistenceAdapter)));
+        }
+        return store;
     }
 
     @Override
@@ -243,31 +348,56 @@ public class MultiKahaDBPersistenceAdapter extends LockableServiceSupport implem
 
     @Override
     public void removeQueueMessageStore(ActiveMQQueue destination) {
-        PersistenceAdapter adapter = null;
-        try {
-            adapter = getMatchingPersistenceAdapter(destination);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+        RoutedMessageStore routed = routedStores.get(destination);
+        if (routed != null) {
+            // not while it is being moved
+            routed.lock.writeLock().lock();
         }
-        if (adapter instanceof PersistenceAdapter) {
-            adapter.removeQueueMessageStore(destination);
-            removeMessageStore((PersistenceAdapter)adapter, destination);
-            destinationMap.removeAll(destination);
+        try {
+            PersistenceAdapter adapter = null;
+            try {
+                adapter = getMatchingPersistenceAdapter(destination);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            if (adapter instanceof PersistenceAdapter) {
+                adapter.removeQueueMessageStore(destination);
+                removeMessageStore((PersistenceAdapter)adapter, destination);
+                destinationMap.removeAll(destination);
+            }
+        } finally {
+            unplace(destination, routed);
         }
     }
 
     @Override
     public void removeTopicMessageStore(ActiveMQTopic destination) {
-        PersistenceAdapter adapter = null;
+        RoutedMessageStore routed = routedStores.get(destination);
+        if (routed != null) {
+            routed.lock.writeLock().lock();
+        }
         try {
-            adapter = getMatchingPersistenceAdapter(destination);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+            PersistenceAdapter adapter = null;
+            try {
+                adapter = getMatchingPersistenceAdapter(destination);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            if (adapter instanceof PersistenceAdapter) {
+                adapter.removeTopicMessageStore(destination);
+                removeMessageStore((PersistenceAdapter)adapter, destination);
+                destinationMap.removeAll(destination);
+            }
+        } finally {
+            unplace(destination, routed);
         }
-        if (adapter instanceof PersistenceAdapter) {
-            adapter.removeTopicMessageStore(destination);
-            removeMessageStore((PersistenceAdapter)adapter, destination);
-            destinationMap.removeAll(destination);
+    }
+
+    private void unplace(ActiveMQDestination destination, RoutedMessageStore routed) {
+        placements.remove(destination);
+        if (routed != null) {
+            routedStores.remove(destination, routed);
+            routed.lock.writeLock().unlock();
         }
     }
 
@@ -329,6 +459,187 @@ public class MultiKahaDBPersistenceAdapter extends LockableServiceSupport implem
         for (PersistenceAdapter persistenceAdapter : adapters) {
             persistenceAdapter.start();
         }
+        for (FilteredKahaDBPersistenceAdapter entry : adaptiveEntries) {
+            registerPlacements(entry.getPersistenceAdapter());
+        }
+        if (brokerService != null && brokerService.isUseJmx() && !adaptiveEntries.isEmpty()) {
+            String path = getDirectory() != null ? getDirectory().getAbsolutePath() : "DIRECTORY_NOT_SET";
+            viewName = BrokerMBeanSupport.createPersistenceAdapterName(brokerService.getBrokerObjectName().toString(),
+                    "MultiKahaDBPersistenceAdapter[" + path + "]");
+            AnnotatedMBean.registerMBean(brokerService.getManagementContext(), new MultiKahaDBPersistenceAdapterView(this), viewName);
+        }
+    }
+
+    private void registerPlacements(PersistenceAdapter adapter) throws IOException {
+        for (ActiveMQDestination destination : adapter.getDestinations()) {
+            PersistenceAdapter existing = placements.putIfAbsent(destination, adapter);
+            if (existing != null && existing != adapter) {
+                // stopped part way through a move, the instance it was moved
+                // from has all of it until removed, so keep the larger.
+                int count = createMessageStore(adapter, destination).getMessageCount();
+                int existingCount = createMessageStore(existing, destination).getMessageCount();
+                LOG.warn("{} found on {} and {}, keeping the one with {} messages", new Object[]{
+                        destination, existing, adapter, Math.max(count, existingCount)});
+                if (count > existingCount) {
+                    dropDestination(existing, destination);
+                    placements.put(destination, adapter);
+                } else {
+                    dropDestination(adapter, destination);
+                }
+            }
+        }
+    }
+
+    private MessageStore createMessageStore(PersistenceAdapter adapter, ActiveMQDestination destination) throws IOException {
+        if (destination.isQueue()) {
+            return adapter.createQueueMessageStore((ActiveMQQueue) destination);
+        } else {
+            return adapter.createTopicMessageStore((ActiveMQTopic) destination);
+        }
+    }
+
+    private void dropDestination(PersistenceAdapter adapter, ActiveMQDestination destination) throws IOException {
+        // removing the messages is what removes the destination from KahaDB
+        createMessageStore(adapter, destination).removeAllMessages(new ConnectionContext());
+        if (destination.isQueue()) {
+            adapter.removeQueueMessageStore((ActiveMQQueue) destination);
+        } else {
+            adapter.removeTopicMessageStore((ActiveMQTopic) destination);
+        }
+    }
+
+    /**
+     * Moves an adaptively placed destination, with its messages, to another
+     * KahaDB instance of those it may be placed on.  The destination must
+     * not have been written to for the migrationIdlePeriod, it is locked
+     * while it is copied, and a topic must not have durable subscriptions.
+     *
+     * @param destinationName the destination, a queue unless prefixed with topic://
+     * @param directory the directory of the instance or its name
+     */
+    public synchronized void migrateDestination(String destinationName, String directory) throws Exception {
+        ActiveMQDestination destination = ActiveMQDestination.createDestination(destinationName, ActiveMQDestination.QUEUE_TYPE);
+        if (placements.containsKey(destination)) {
+            createMessageStore(this, destination);
+        }
+        RoutedMessageStore routed = routedStores.get(destination);
+        if (routed == null) {
+            throw new IOException(destination + " is not placed adaptively");
+        }
+        PersistenceAdapter target = null;
+        for (FilteredKahaDBPersistenceAdapter entry : adaptiveEntries) {
+            File dir = entry.getPersistenceAdapter().getDirectory();
+            if ((dir.getPath().equals(directory) || dir.getName().equals(directory))
+                    && DestinationFilter.parseFilter(entry.getDestination()).matches(destination)) {
+                target = entry.getPersistenceAdapter();
+            }
+        }
+        if (target == null) {
+            throw new IOException("No adaptive instance in " + directory + " for " + destination);
+        }
+        startAdapter(target, destination.getQualifiedName());
+
+        routed.lock.writeLock().lock();
+        try {
+            if (routedStores.get(destination) != routed) {
+                throw new IOException(destination + " has been removed");
+            }
+            PersistenceAdapter source = routed.getAdapter();
+            if (source == target) {
+                return;
+            }
+            long idle = System.currentTimeMillis() - routed.getLastUsed();
+            if (idle < migrationIdlePeriod) {
+                throw new IOException(destination + " was written to " + idle + "ms ago, it can be moved after " + migrationIdlePeriod + "ms");
+            }
+            TransactionStore sourceTransactions = source.createTransactionStore();
+            for (MultiKahaDBTransactionStore.Tx tx : transactionStore.inflightTransactions.values()) {
+                if (tx.getStores().contains(sourceTransactions)) {
+                    throw new IOException("Transactions are in progress on " + source + ", " + destination + " can not be moved");
+                }
+            }
+            MessageStore from = routed.getDelegate();
+            if (from instanceof TopicMessageStore && ((TopicMessageStore) from).getAllSubscriptions().length != 0) {
+                throw new IOException(destination + " has durable subscriptions, it can not be moved");
+            }
+
+            final MessageStore to = createMessageStore(target, destination);
+            final ConnectionContext context = new ConnectionContext();
+            try {
+                from.recover(new MessageRecoveryListener() {
+                    @Override
+                    public boolean recoverMessage(Message message) throws Exception {
+                        // added outside the transaction it was sent in
+                        Message copy = message.copy();
+                        copy.setTransactionId(null);
+                        to.addMessage(context, copy);
+                        return true;
+                    }
+
+                    @Override
+                    public boolean recoverMessageReference(MessageId ref) throws Exception {
+                        throw new IOException("Unexpected message reference " + ref);
+                    }
+
+                    @Override
+                    public boolean hasSpace() {
+                        return true;
+                    }
+
+                    @Override
+                    public boolean isDuplicate(MessageId ref) {
+                        return false;
+                    }
+                });
+                // the copies are on disk before the originals are dropped
+                target.checkpoint(true);
+            } catch (Exception e) {
+                dropDestination(target, destination);
+                throw e;
+            }
+            dropDestination(source, destination);
+
+            TransactionStore targetTransactions = target.createTransactionStore();
+            MessageStore store;
+            if (to instanceof TopicMessageStore) {
+                store = transactionStore.proxy(targetTransactions, (TopicMessageStore) to);
+            } else {
+                store = transactionStore.proxy(targetTransactions, to);
+            }
+            routed.moved(store, target, instanceMeters.get(target));
+            placements.put(destination, target);
+            LOG.info("Moved {} from {} to {}", new Object[]{destination, source, target});
+        } finally {
+            routed.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return the write rate of each instance destinations are placed on
+     *         adaptively, and the number placed on it.
+     */
+    public List<WriteRate> getInstanceWriteRates() {
+        List<WriteRate> result = new ArrayList<WriteRate>(adaptiveEntries.size());
+        for (FilteredKahaDBPersistenceAdapter entry : adaptiveEntries) {
+            PersistenceAdapter adapter = entry.getPersistenceAdapter();
+            WriteRateMeter meter = instanceMeters.get(adapter);
+            String directory = adapter.getDirectory().getPath();
+            result.add(new WriteRate(directory, directory, meter.getRate(), meter.getBytes(), placedOn(adapter)));
+        }
+        return result;
+    }
+
+    /**
+     * @return the write rate of each destination placed adaptively, and the
+     *         instance it is on.
+     */
+    public List<WriteRate> getDestinationWriteRates() {
+        List<WriteRate> result = new ArrayList<WriteRate>();
+        for (RoutedMessageStore routed : routedStores.values()) {
+            result.add(new WriteRate(routed.getDestination().getQualifiedName(), routed.getAdapter().getDirectory().getPath(),
+                    routed.meter.getRate(), routed.meter.getBytes(), 1));
+        }
+        return result;
     }
 
     private void findAndRegisterExistingAdapters(FilteredKahaDBPersistenceAdapter template) throws IOException {
@@ -423,6 +734,10 @@ public class MultiKahaDBPersistenceAdapter extends LockableServiceSupport implem
 
     @Override
     protected void doStop(ServiceStopper stopper) throws Exception {
+        if (viewName != null) {
+            brokerService.getManagementContext().unregisterMBean(viewName);
+            viewName = null;
+        }
         for (PersistenceAdapter persistenceAdapter : adapters) {
             stopper.stop(persistenceAdapter);
         }
@@ -456,6 +771,19 @@ public class MultiKahaDBPersistenceAdapter extends LockableServiceSupport implem
         return brokerService;
     }
 
+    public long getMigrationIdlePeriod() {
+        return migrationIdlePeriod;
+    }
+
+    /**
+     * How long, in milliseconds, a destination must not have been written to
+     * for before it can be moved to another instance with
+     * {@link #migrateDestination(String, String)}.
+     */
+    public void setMigrationIdlePeriod(long migrationIdlePeriod) {
+        this.migrationIdlePeriod = migrationIdlePeriod;
+    }
+
     public void setTransactionStore(MultiKahaDBTransactionStore transactionStore) {
         this.transactionStore = transactionStore;
     }
@@ -20,6 +20,7 @@ import java.io.File;
 import java.io.IOException;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
@@ -89,6 +90,16 @@ public class MultiKahaDBTransactionStore implements TransactionStore {
             public void removeAsyncMessage(ConnectionContext context, MessageAck ack) throws IOException {
                 MultiKahaDBTransactionStore.this.removeAsyncMessage(transactionStore, context, getDelegate(), ack);
             }
+
+            @Override
+            public void addMessages(ConnectionContext context, List<Message> messages) throws IOException {
+                MultiKahaDBTransactionStore.this.addMessages(transactionStore, context, getDelegate(), messages);
+            }
+
+            @Override
+            public void removeMessages(ConnectionContext context, List<MessageAck> acks) throws IOException {
+                MultiKahaDBTransactionStore.this.removeMessages(transactionStore, context, getDelegate(), acks);
+            }
         };
     }
 
@@ -124,6 +135,16 @@ public class MultiKahaDBTransactionStore implements TransactionStore {
                 MultiKahaDBTransactionStore.this.removeAsyncMessage(transactionStore, context, getDelegate(), ack);
             }
 
+            @Override
+            public void addMessages(ConnectionContext context, List<Message> messages) throws IOException {
+                MultiKahaDBTransactionStore.this.addMessages(transactionStore, context, getDelegate(), messages);
+            }
+
+            @Override
+            public void removeMessages(ConnectionContext context, List<MessageAck> acks) throws IOException {
+                MultiKahaDBTransactionStore.this.removeMessages(transactionStore, context, getDelegate(), acks);
+            }
+
             @Override
             public void acknowledge(ConnectionContext context, String clientId, String subscriptionName,
                                     MessageId messageId, MessageAck ack) throws IOException {
@@ -384,6 +405,16 @@ public class MultiKahaDBTransactionStore implements TransactionStore {
         destination.addMessage(context, message);
     }
 
+    void addMessages(final TransactionStore transactionStore, ConnectionContext context, final MessageStore destination, final List<Message> messages)
+            throws IOException {
+        for (Message message : messages) {
+            if (message.getTransactionId() != null) {
+                getTx(message.getTransactionId()).trackStore(transactionStore);
+            }
+        }
+        destination.addMessages(context, messages);
+    }
+
     Future<Object> asyncAddQueueMessage(final TransactionStore transactionStore, ConnectionContext context, final MessageStore destination, final Message message)
             throws IOException {
         if (message.getTransactionId() != null) {
@@ -415,6 +446,16 @@ public class MultiKahaDBTransactionStore implements TransactionStore {
         destination.removeMessage(context, ack);
     }
 
+    final void removeMessages(final TransactionStore transactionStore, ConnectionContext context, final MessageStore destination, final List<MessageAck> acks)
+            throws IOException {
+        for (MessageAck ack : acks) {
+            if (ack.getTransactionId() != null) {
+                getTx(ack.getTransactionId()).trackStore(transactionStore);
+            }
+        }
+        destination.removeMessages(context, acks);
+    }
+
     final void removeAsyncMessage(final TransactionStore transactionStore, ConnectionContext context, final MessageStore destination, final MessageAck ack)
             throws IOException {
         if (ack.getTransactionId() != null) {
@@ -0,0 +1,384 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.store.kahadb;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.activemq.broker.ConnectionContext;
+import org.apache.activemq.command.ActiveMQDestination;
+import org.apache.activemq.command.Message;
+import org.apache.activemq.command.MessageAck;
+import org.apache.activemq.command.MessageId;
+import org.apache.activemq.store.MessageRecoveryListener;
+import org.apache.activemq.store.MessageStore;
+import org.apache.activemq.store.PersistenceAdapter;
+import org.apache.activemq.usage.MemoryUsage;
+
+/**
+ * The store of a destination that {@link MultiKahaDBPersistenceAdapter}
+ * placed adaptively.  Measures the bytes written to it and lets the
+ * destination be moved to another KahaDB instance while the broker holds on
+ * to this store: every call goes to the current delegate under a read lock
+ * that the move takes exclusively.
+ */
+class RoutedMessageStore implements MessageStore {
+
+    final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    final WriteRateMeter meter = new WriteRateMeter();
+    final ActiveMQDestination destination;
+    private volatile MessageStore delegate;
+    private volatile PersistenceAdapter adapter;
+    private volatile WriteRateMeter adapterMeter;
+    private volatile long lastUsed = System.currentTimeMillis();
+    // what the broker set on the store, for the next delegate
+    private volatile MemoryUsage memoryUsage;
+    private volatile boolean prioritizedMessages;
+    // the last message recovered by recoverNextMessages, null from the start
+    private volatile MessageId lastRecovered;
+
+    RoutedMessageStore(ActiveMQDestination destination, MessageStore delegate, PersistenceAdapter adapter, WriteRateMeter adapterMeter) {
+        this.destination = destination;
+        this.delegate = delegate;
+        this.adapter = adapter;
+        this.adapterMeter = adapterMeter;
+    }
+
+    MessageStore getDelegate() {
+        return delegate;
+    }
+
+    PersistenceAdapter getAdapter() {
+        return adapter;
+    }
+
+    long getLastUsed() {
+        return lastUsed;
+    }
+
+    /**
+     * Switches to the store the destination has been moved to, called with
+     * the write lock held.
+     */
+    void moved(MessageStore store, PersistenceAdapter adapter, WriteRateMeter adapterMeter) throws Exception {
+        store.setPrioritizedMessages(prioritizedMessages);
+        if (memoryUsage != null) {
+            store.setMemoryUsage(memoryUsage);
+        }
+        store.start();
+        if (lastRecovered != null) {
+            store.setBatch(lastRecovered);
+        }
+        this.delegate = store;
+        this.adapter = adapter;
+        this.adapterMeter = adapterMeter;
+    }
+
+    MessageStore acquire() {
+        lock.readLock().lock();
+        return delegate;
+    }
+
+    /**
+     * Acquires the store to write to it, which counts as it being used.
+     */
+    MessageStore acquireForWrite() {
+        MessageStore store = acquire();
+        lastUsed = System.currentTimeMillis();
+        return store;
+    }
+
+    void release() {
+        lock.readLock().unlock();
+    }
+
+    void written(Message message) {
+        int size = message.getSize();
+        meter.mark(size);
+        adapterMeter.mark(size);
+    }
+
+    void written(List<Message> messages) {
+        for (Message message : messages) {
+            written(message);
+        }
+    }
+
+    @Override
+    public void addMessage(ConnectionContext context, Message message) throws IOException {
+        MessageStore store = acquireForWrite();
+        try {
+            store.addMessage(context, message);
+            written(message);
+        } finally {
+            release();
+        }
+    }
+
+    @Override
+    public void addMessage(ConnectionContext context, Message message, boolean canOptimizeHint) throws IOException {
+        MessageStore store = acquireForWrite();
+        try {
+            store.addMessage(context, message, canOptimizeHint);
+            written(message);
+        } finally {
+            release();
+        }
+    }
+
+    @Override
+    public Future<Object> asyncAddQueueMessage(ConnectionContext context, Message message) throws IOException {
+        MessageStore store = acquireForWrite();
+        try {
+            Future<Object> result = store.asyncAddQueueMessage(context, message);
+            written(message);
+            return result;
+        } finally {
+            release();
+        }
+    }
+
+    @Override
+    public Future<Object> asyncAddQueueMessage(ConnectionContext context, Message message, boolean canOptimizeHint) throws IOException {
+        MessageStore store = acquireForWrite();
+        try {
+            Future<Object> result = store.asyncAddQueueMessage(context, message, canOptimizeHint);
+            written(message);
+            return result;
+        } finally {
+            release();
+        }
+    }
+
+    @Override
+    public Future<Object> asyncAddTopicMessage(ConnectionContext context, Message message) throws IOException {
+        MessageStore store = acquireForWrite();
+        try {
+            Future<Object> result = store.asyncAddTopicMessage(context, message);
+            written(message);
+            return result;
+        } finally {
+            release();
+        }
+    }
+
+    @Override
+    public Future<Object> asyncAddTopicMessage(ConnectionContext context, Message message, boolean canOptimizeHint) throws IOException {
+        MessageStore store = acquireForWrite();
+        try {
+            Future<Object> result = store.asyncAddTopicMessage(context, message, canOptimizeHint);
+            written(message);
+            return result;
+        } finally {
+            release();
+        }
+    }
+
+    @Override
+    public void addMessages(ConnectionContext context, List<Message> messages) throws IOException {
+        MessageStore store = acquireForWrite();
+        try {
+            store.addMessages(context, messages);
+            written(messages);
+        } finally {
+            release();
+        }
+    }
+
+    @Override
+    public Message getMessage(MessageId identity) throws IOException {
+        MessageStore store = acquire();
+        try {
+            return store.getMessage(identity);
+        } finally {
+            release();
+        }
+    }
+
+    @Override
+    public void removeMessage(ConnectionContext context, MessageAck ack) throws IOException {
+        MessageStore store = acquireForWrite();
+        try {
+            store.removeMessage(context, ack);
+        } finally {
+            release();
+        }
+    }
+
+    @Override
+    public void removeAsyncMessage(ConnectionContext context, MessageAck ack) throws IOException {
+        MessageStore store = acquireForWrite();
+        try {
+            store.removeAsyncMessage(context, ack);
+        } finally {
+            release();
+        }
+    }
+
+    @Override
+    public void removeMessages(ConnectionContext context, List<MessageAck> acks) throws IOException {
+        MessageStore store = acquireForWrite();
+        try {
+            store.removeMessages(context, acks);
+        } finally {
+            release();
+        }
+    }
+
+    @Override
+    public void removeAllMessages(ConnectionContext context) throws IOException {
+        MessageStore store = acquireForWrite();
+        try {
+            store.removeAllMessages(context);
+        } finally {
+            release();
+        }
+    }
+
+    @Override
+    public void recover(MessageRecoveryListener listener) throws Exception {
+        MessageStore store = acquire();
+        try {
+            store.recover(listener);
+        } finally {
+            release();
+        }
+    }
+
+    @Override
+    public void recoverNextMessages(int maxReturned, final MessageRecoveryListener listener) throws Exception {
+        MessageStore store = acquire();
+        try {
+            store.recoverNextMessages(maxReturned, new MessageRecoveryListener() {
+                @Override
+                public boolean recoverMessage(Message message) throws Exception {
+                    lastRecovered = message.getMessageId();
+                    return listener.recoverMessage(message);
+                }
+
+                @Override
+                public boolean recoverMessageReference(MessageId ref) throws Exception {
+                    lastRecovered = ref;
+                    return listener.recoverMessageReference(ref);
+                }
+
+                @Override
+                public boolean hasSpace() {
+                    return listener.hasSpace();
+                }
+
+                @Override
+                public boolean isDuplicate(MessageId ref) {
+                    return listener.isDuplicate(ref);
+                }
+            });
+        } finally {
+            release();
+        }
+    }
+
+    @Override
+    public void resetBatching() {
+        MessageStore store = acquire();
+        try {
+            lastRecovered = null;
+            store.resetBatching();
+        } finally {
+            release();
+        }
+    }
+
+    @Override
+    public void setBatch(MessageId messageId) throws Exception {
+        MessageStore store = acquire();
+        try {
+            lastRecovered = messageId;
+            store.setBatch(messageId);
+        } finally {
+            release();
+        }
+    }
+
+    @Override
+    public int getMessageCount() throws IOException {
+        MessageStore store = acquire();
+        try {
+            return store.getMessageCount();
+        } finally {
+            release();
+        }
+    }
+
+    @Override
+    public boolean isEmpty() throws Exception {
+        MessageStore store = acquire();
+        try {
+            return store.isEmpty();
+        } finally {
+            release();
+        }
+    }
+
+    @Override
+    public void dispose(ConnectionContext context) {
+        MessageStore store = acquire();
+        try {
+            store.dispose(context);
+        } finally {
+            release();
+        }
+    }
+
+    @Override
+    public void start() throws Exception {
+        delegate.start();
+    }
+
+    @Override
+    public void stop() throws Exception {
+        delegate.stop();
+    }
+
+    @Override
+    public ActiveMQDestination getDestination() {
+        return destination;
+    }
+
+    @Override
+    public void setMemoryUsage(MemoryUsage memoryUsage) {
+        this.memoryUsage = memoryUsage;
+        delegate.setMemoryUsage(memoryUsage);
+    }
+
+    @Override
+    public void setPrioritizedMessages(boolean prioritizedMessages) {
+        this.prioritizedMessages = prioritizedMessages;
+        delegate.setPrioritizedMessages(prioritizedMessages);
+    }
+
+    @Override
+    public boolean isPrioritizedMessages() {
+        return prioritizedMessages;
+    }
+
+    @Override
+    public String toString() {
+        return "RoutedMessageStore[" + destination + " on " + adapter + "]";
+    }
+}
@@ -0,0 +1,144 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.store.kahadb;
+
+import java.io.IOException;
+
+import org.apache.activemq.broker.ConnectionContext;
+import org.apache.activemq.command.ActiveMQDestination;
+import org.apache.activemq.command.MessageAck;
+import org.apache.activemq.command.MessageId;
+import org.apache.activemq.command.SubscriptionInfo;
+import org.apache.activemq.store.MessageRecoveryListener;
+import org.apache.activemq.store.PersistenceAdapter;
+import org.apache.activemq.store.TopicMessageStore;
+
+/**
+ * The {@link RoutedMessageStore} of a topic.
+ */
+class RoutedTopicMessageStore extends RoutedMessageStore implements TopicMessageStore {
+
+    RoutedTopicMessageStore(ActiveMQDestination destination, TopicMessageStore delegate, PersistenceAdapter adapter, WriteRateMeter adapterMeter) {
+        super(destination, delegate, adapter, adapterMeter);
+    }
+
+    @Override
+    TopicMessageStore acquire() {
+        return (TopicMessageStore) super.acquire();
+    }
+
+    @Override
+    TopicMessageStore acquireForWrite() {
+        return (TopicMessageStore) super.acquireForWrite();
+    }
+
+    @Override
+    public void acknowledge(ConnectionContext context, String clientId, String subscriptionName,
+                            MessageId messageId, MessageAck ack) throws IOException {
+        TopicMessageStore store = acquireForWrite();
+        try {
+            store.acknowledge(context, clientId, subscriptionName, messageId, ack);
+        } finally {
+            release();
+        }
+    }
+
+    @Override
+    public void deleteSubscription(String clientId, String subscriptionName) throws IOException {
+        TopicMessageStore store = acquireForWrite();
+        try {
+            store.deleteSubscription(clientId, subscriptionName);
+        } finally {
+            release();
+        }
+    }
+
+    @Override
+    public void recoverSubscription(String clientId, String subscriptionName, MessageRecoveryListener listener) throws Exception {
+        TopicMessageStore store = acquire();
+        try {
+            store.recoverSubscription(clientId, subscriptionName, listener);
+        } finally {
+            release();
+        }
+    }
+
+    @Override
+    public void recoverNextMessages(String clientId, String subscriptionName, int maxReturned, MessageRecoveryListener listener) throws Exception {
+        TopicMessageStore store = acquire();
+        try {
+            store.recoverNextMessages(clientId, subscriptionName, maxReturned, listener);
+        } finally {
+            release();
+        }
+    }
+
+    @Override
+    public void resetBatching(String clientId, String subscriptionName) {
+        TopicMessageStore store = acquire();
+        try {
+            store.resetBatching(clientId, subscriptionName);
+        } finally {
+            release();
+        }
+    }
+
+    @Override
+    public int getMessageCount(String clientId, String subscriberName) throws IOException {
+        TopicMessageStore store = acquire();
+        try {
+            return store.getMessageCount(clientId, subscriberName);
+        } finally {
+            release();
+        }
+    }
+
+    @Override
+    public SubscriptionInfo lookupSubscription(String clientId, String subscriptionName) throws IOException {
+        TopicMessageStore store = acquire();
+        try {
+            return store.lookupSubscription(clientId, subscriptionName);
+        } finally {
+            release();
+        }
+    }
+
+    @Override
+    public SubscriptionInfo[] getAllSubscriptions() throws IOException {
+        TopicMessageStore store = acquire();
+        try {
+            return store.getAllSubscriptions();
+        } finally {
+            release();
+        }
+    }
+
+    @Override
+    public void addSubsciption(SubscriptionInfo subscriptionInfo, boolean retroactive) throws IOException {
+        TopicMessageStore store = acquireForWrite();
+        try {
+            store.addSubsciption(subscriptionInfo, retroactive);
+        } finally {
+            release();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "RoutedTopicMessageStore[" + destination + " on " + getAdapter() + "]";
+    }
+}
@@ -0,0 +1,60 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.store.kahadb;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the bytes written to a destination or a KahaDB instance and keeps
+ * an exponentially weighted average of the rate, over about a minute, that
+ * is brought up to date whenever it is read.
+ */
+class WriteRateMeter {
+    private static final long SAMPLE_PERIOD = 1000;
+    private static final double WINDOW = 60000;
+
+    private final AtomicLong bytes = new AtomicLong();
+    // guarded by this
+    private long sampledBytes;
+    private long sampleTime = System.currentTimeMillis();
+    private double rate;
+
+    void mark(long size) {
+        bytes.addAndGet(size);
+    }
+
+    long getBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * @return the average bytes written a second.
+     */
+    synchronized double getRate() {
+        long now = System.currentTimeMillis();
+        long elapsed = now - sampleTime;
+        if (elapsed >= SAMPLE_PERIOD) {
+            long total = bytes.get();
+            double current = (total - sampledBytes) * 1000d / elapsed;
+            double weight = Math.exp(-elapsed / WINDOW);
+            rate = rate * weight + current * (1 - weight);
+            sampledBytes = total;
+            sampleTime = now;
+        }
+        return rate;
+    }
+}
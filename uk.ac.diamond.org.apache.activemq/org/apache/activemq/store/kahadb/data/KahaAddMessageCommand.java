@@ -31,6 +31,13 @@ public final class KahaAddMessageCommand extends KahaAddMessageCommandBase<KahaA
             missingFields.addAll(prefix(e.getMissingFields(),"destination."));
          }
       }
+      if( hasRelocatedFrom() ) {
+         try {
+            getRelocatedFrom().assertInitialized();
+         } catch (org.apache.activemq.protobuf.UninitializedMessageException e){
+            missingFields.addAll(prefix(e.getMissingFields(),"relocated_from."));
+         }
+      }
       return missingFields;
    }
 
@@ -42,6 +49,7 @@ public final class KahaAddMessageCommand extends KahaAddMessageCommandBase<KahaA
       clearMessage();
       clearPriority();
       clearPrioritySupported();
+      clearRelocatedFrom();
    }
 
    public KahaAddMessageCommand clone() {
@@ -75,6 +83,13 @@ public final class KahaAddMessageCommand extends KahaAddMessageCommandBase<KahaA
       if (other.hasPrioritySupported()) {
          setPrioritySupported(other.getPrioritySupported());
       }
+      if (other.hasRelocatedFrom()) {
+         if (hasRelocatedFrom()) {
+            getRelocatedFrom().mergeFrom(other.getRelocatedFrom());
+         } else {
+            setRelocatedFrom(other.getRelocatedFrom().clone());
+         }
+      }
       return this;
    }
 
@@ -101,6 +116,9 @@ public final class KahaAddMessageCommand extends KahaAddMessageCommandBase<KahaA
       if (hasPrioritySupported()) {
          size += org.apache.activemq.protobuf.CodedOutputStream.computeBoolSize(6, getPrioritySupported());
       }
+      if (hasRelocatedFrom()) {
+         size += computeMessageSize(7, getRelocatedFrom());
+      }
       memoizedSerializedSize = size;
       return size;
    }
@@ -143,6 +161,13 @@ public final class KahaAddMessageCommand extends KahaAddMessageCommandBase<KahaA
          case 48:
             setPrioritySupported(input.readBool());
             break;
+         case 58:
+            if (hasRelocatedFrom()) {
+               getRelocatedFrom().mergeFramed(input);
+            } else {
+               setRelocatedFrom(new KahaLocation().mergeFramed(input));
+            }
+            break;
          }
       }
    }
@@ -165,6 +190,9 @@ public final class KahaAddMessageCommand extends KahaAddMessageCommandBase<KahaA
       if (hasPrioritySupported()) {
          output.writeBool(6, getPrioritySupported());
       }
+      if (hasRelocatedFrom()) {
+         writeMessage(output, 7, getRelocatedFrom());
+      }
    }
 
    public static KahaAddMessageCommand parseUnframed(org.apache.activemq.protobuf.CodedInputStream data) throws org.apache.activemq.protobuf.InvalidProtocolBufferException, java.io.IOException {
@@ -234,6 +262,11 @@ public final class KahaAddMessageCommand extends KahaAddMessageCommandBase<KahaA
          sb.append(getPrioritySupported());
          sb.append("\n");
       }
+      if(  hasRelocatedFrom() ) {
+         sb.append(prefix+"relocated_from {\n");
+         getRelocatedFrom().toString(sb, prefix+"  ");
+         sb.append(prefix+"}\n");
+      }
       return sb;
    }
 
@@ -280,6 +313,10 @@ public final class KahaAddMessageCommand extends KahaAddMessageCommandBase<KahaA
          return false;
       if (hasPrioritySupported() && ( getPrioritySupported()!=obj.getPrioritySupported() ))
          return false;
+      if (hasRelocatedFrom() ^ obj.hasRelocatedFrom() ) 
+         return false;
+      if (hasRelocatedFrom() && ( !getRelocatedFrom().equals(obj.getRelocatedFrom()) ))
+         return false;
       return true;
    }
    
@@ -303,6 +340,9 @@ public final class KahaAddMessageCommand extends KahaAddMessageCommandBase<KahaA
       if (hasPrioritySupported()) {
          rc ^= ( 889475914^ (getPrioritySupported()? 6:-6) );
       }
+      if (hasRelocatedFrom()) {
+         rc ^= ( -1384412946^getRelocatedFrom().hashCode() );
+      }
       return rc;
    }
    
@@ -460,5 +500,30 @@ abstract class KahaAddMessageCommandBase<T> extends org.apache.activemq.protobuf
       this.f_prioritySupported = false;
    }
 
+   // optional KahaLocation relocated_from = 7;
+   private KahaLocation f_relocatedFrom = null;
+
+   public boolean hasRelocatedFrom() {
+      return this.f_relocatedFrom!=null;
+   }
+
+   public KahaLocation getRelocatedFrom() {
+      if( this.f_relocatedFrom == null ) {
+         this.f_relocatedFrom = new KahaLocation();
+      }
+      return this.f_relocatedFrom;
+   }
+
+   public T setRelocatedFrom(KahaLocation relocatedFrom) {
+      loadAndClear();
+      this.f_relocatedFrom = relocatedFrom;
+      return (T)this;
+   }
+
+   public void clearRelocatedFrom() {
+      loadAndClear();
+      this.f_relocatedFrom = null;
+   }
+
 }
 
@@ -19,6 +19,7 @@ package org.apache.activemq.store.kahadb.disk.index;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -28,6 +29,7 @@ import org.slf4j.LoggerFactory;
 import org.apache.activemq.store.kahadb.disk.page.Page;
 import org.apache.activemq.store.kahadb.disk.page.PageFile;
 import org.apache.activemq.store.kahadb.disk.page.Transaction;
+import org.apache.activemq.store.kahadb.disk.util.DataByteArrayOutputStream;
 import org.apache.activemq.store.kahadb.disk.util.Marshaller;
 
 /**
@@ -170,7 +172,7 @@ public class BTreeIndex<Key,Value> implements Index<Key,Value> {
         }    
     }
     
-    private BTreeNode<Key,Value> getRoot(Transaction tx) throws IOException {
+    BTreeNode<Key,Value> getRoot(Transaction tx) throws IOException {
         return loadNode(tx, pageId, null);
     }
     
@@ -244,16 +246,160 @@ public class BTreeIndex<Key,Value> implements Index<Key,Value> {
         return getRoot(tx).getLast(tx);
     }
 
+    /**
+     * Loads entries, which must be in ascending key order, into an empty index.
+     * The leaves are filled one after the other and linked as they are
+     * written, then each level of branches is built over the level below, so
+     * no node is ever split or written twice.  If the index is not empty the
+     * entries are put one at a time instead.
+     */
+    synchronized public void bulkLoad(Transaction tx, Iterator<Map.Entry<Key,Value>> entries) throws IOException {
+        assertLoaded();
+        if (!getRoot(tx).isEmpty(tx)) {
+            while (entries.hasNext()) {
+                Map.Entry<Key,Value> entry = entries.next();
+                put(tx, entry.getKey(), entry.getValue());
+            }
+            return;
+        }
+
+        final int capacity = tx.getPageFile().getPageSize() - Page.PAGE_HEADER_SIZE;
+        DataByteArrayOutputStream sizer = new DataByteArrayOutputStream();
+
+        // Fill the leaves.  The page of the leaf being filled is only allocated
+        // once we know it is not the only one, as a lone leaf is the root.
+        ArrayList<Long> nodeIds = new ArrayList<Long>();
+        ArrayList<Key> firstKeys = new ArrayList<Key>();
+        ArrayList<Key> keys = new ArrayList<Key>();
+        ArrayList<Value> values = new ArrayList<Value>();
+        Page<BTreeNode<Key,Value>> page = null;
+        int used = LEAF_OVERHEAD;
+        Key last = null;
+        while (entries.hasNext()) {
+            Map.Entry<Key,Value> entry = entries.next();
+            Key key = entry.getKey();
+            if (key == null) {
+                throw new IllegalArgumentException("Key cannot be null");
+            }
+            if (last != null && compare(last, key) >= 0) {
+                throw new IllegalArgumentException("Bulk loaded keys must be in ascending order: " + key + " follows " + last);
+            }
+            last = key;
+
+            int size = sizeOf(keyMarshaller, key, sizer) + sizeOf(valueMarshaller, entry.getValue(), sizer);
+            if (!keys.isEmpty() && used + size >= capacity) {
+                if (page == null) {
+                    page = tx.allocate();
+                }
+                Page<BTreeNode<Key,Value>> next = tx.allocate();
+                storeBulkNode(tx, page, keys, values, null, next.getPageId());
+                nodeIds.add(page.getPageId());
+                firstKeys.add(keys.get(0));
+                keys.clear();
+                values.clear();
+                used = LEAF_OVERHEAD;
+                page = next;
+            }
+            keys.add(key);
+            values.add(entry.getValue());
+            used += size;
+        }
+        if (keys.isEmpty()) {
+            return;
+        }
+        if (nodeIds.isEmpty()) {
+            Page<BTreeNode<Key,Value>> root = tx.load(pageId, null);
+            storeBulkNode(tx, root, keys, values, null, -1);
+            return;
+        }
+        storeBulkNode(tx, page, keys, values, null, -1);
+        nodeIds.add(page.getPageId());
+        firstKeys.add(keys.get(0));
+
+        // Build the branches a level at a time until one node, the root, is left.
+        ArrayList<Long> children = new ArrayList<Long>();
+        while (true) {
+            ArrayList<Long> upperIds = new ArrayList<Long>();
+            ArrayList<Key> upperKeys = new ArrayList<Key>();
+            keys.clear();
+            children.clear();
+            used = BRANCH_OVERHEAD;
+            for (int i = 0; i < nodeIds.size(); i++) {
+                int size = sizeOf(keyMarshaller, firstKeys.get(i), sizer) + 8;
+                if (!children.isEmpty() && used + size >= capacity) {
+                    page = tx.allocate();
+                    storeBulkNode(tx, page, keys, null, children, -1);
+                    upperIds.add(page.getPageId());
+                    upperKeys.add(firstKeys.get(i - children.size()));
+                    keys.clear();
+                    children.clear();
+                    used = BRANCH_OVERHEAD;
+                }
+                if (!children.isEmpty()) {
+                    keys.add(firstKeys.get(i));
+                    used += size;
+                }
+                children.add(nodeIds.get(i));
+            }
+            if (upperIds.isEmpty()) {
+                Page<BTreeNode<Key,Value>> root = tx.load(pageId, null);
+                storeBulkNode(tx, root, keys, null, children, -1);
+                return;
+            }
+            page = tx.allocate();
+            storeBulkNode(tx, page, keys, null, children, -1);
+            upperIds.add(page.getPageId());
+            upperKeys.add(firstKeys.get(nodeIds.size() - children.size()));
+            nodeIds = upperIds;
+            firstKeys = upperKeys;
+        }
+    }
+
     ///////////////////////////////////////////////////////////////////
     // Internal implementation methods
     ///////////////////////////////////////////////////////////////////
     
-    private void assertLoaded() throws IllegalStateException {
+    // The marshalled size of a node with no keys: the key count, the branch
+    // flag and then either the next leaf pointer or the first child pointer.
+    private static final int LEAF_OVERHEAD = 2 + 1 + 8;
+    private static final int BRANCH_OVERHEAD = 2 + 1 + 8;
+
+    void assertLoaded() throws IllegalStateException {
         if( !loaded.get() ) {
             throw new IllegalStateException("The BTreeIndex is not loaded");
         }
     }
 
+    @SuppressWarnings("unchecked")
+    private int compare(Key key1, Key key2) {
+        return ((Comparable<Key>) key1).compareTo(key2);
+    }
+
+    private static <T> int sizeOf(Marshaller<T> marshaller, T value, DataByteArrayOutputStream sizer) throws IOException {
+        if (marshaller.getFixedSize() >= 0) {
+            return marshaller.getFixedSize();
+        }
+        sizer.reset();
+        marshaller.writePayload(value, sizer);
+        return sizer.size();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void storeBulkNode(Transaction tx, Page<BTreeNode<Key,Value>> page, ArrayList<Key> keys, ArrayList<Value> values, ArrayList<Long> children, long next) throws IOException {
+        BTreeNode<Key,Value> node = createNode(page, null);
+        if (children == null) {
+            node.setLeafData((Key[]) keys.toArray(), (Value[]) values.toArray());
+            node.setNext(next);
+        } else {
+            long[] nodeIds = new long[children.size()];
+            for (int i = 0; i < nodeIds.length; i++) {
+                nodeIds[i] = children.get(i);
+            }
+            node.setBranchData((Key[]) keys.toArray(), nodeIds);
+        }
+        storeNode(tx, node, true);
+    }
+
     ///////////////////////////////////////////////////////////////////
     // Internal methods made accessible to BTreeNode
     ///////////////////////////////////////////////////////////////////
@@ -393,6 +393,33 @@ public final class BTreeNode<Key,Value> {
         }
     }
 
+    /**
+     * Puts the key and value into this leaf node only if they fit without
+     * splitting it.  Returns false, leaving the node unchanged, when a split
+     * would be needed.
+     */
+    boolean putIfFits(Transaction tx, Key key, Value value) throws IOException {
+        Key[] oldKeys = keys;
+        Value[] oldValues = values;
+        int idx = Arrays.binarySearch(keys, key);
+        if (idx >= 0) {
+            Value[] newValues = values.clone();
+            newValues[idx] = value;
+            setLeafData(keys, newValues);
+        } else {
+            idx = -(idx + 1);
+            setLeafData(arrayInsert(keys, key, idx), arrayInsert(values, value, idx));
+        }
+
+        try {
+            index.storeNode(tx, this, allowOverflow());
+            return true;
+        } catch ( Transaction.PageOverflowIOException e ) {
+            setLeafData(oldKeys, oldValues);
+            return false;
+        }
+    }
+
     private void promoteValue(Transaction tx, Key key, long nodeId) throws IOException {
 
         int idx = Arrays.binarySearch(keys, key);
@@ -716,13 +743,13 @@ public final class BTreeNode<Key,Value> {
     }
 
 
-    private void setLeafData(Key[] keys, Value[] values) {
+    void setLeafData(Key[] keys, Value[] values) {
         this.keys = keys;
         this.values = values;
         this.children = null;
     }
     
-    private void setBranchData(Key[] keys, long[] nodeIds) {
+    void setBranchData(Key[] keys, long[] nodeIds) {
         this.keys = keys;
         this.children = nodeIds;
         this.values = null;
@@ -791,10 +818,28 @@ public final class BTreeNode<Key,Value> {
     ///////////////////////////////////////////////////////////////////
     // Property Accessors
     ///////////////////////////////////////////////////////////////////
-    private boolean isBranch() {
+    boolean isBranch() {
         return children!=null;
     }
 
+    long getChildPageId(Key key) {
+        int idx = Arrays.binarySearch(keys, key);
+        idx = idx < 0 ? -(idx + 1) : idx + 1;
+        return children[idx];
+    }
+
+    Key[] getKeys() {
+        return keys;
+    }
+
+    Value[] getValues() {
+        return values;
+    }
+
+    long[] getChildren() {
+        return children;
+    }
+
     public long getPageId() {
         return page.getPageId();
     }
@@ -0,0 +1,493 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.store.kahadb.disk.index;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.activemq.store.kahadb.disk.page.Page;
+import org.apache.activemq.store.kahadb.disk.page.PageFile;
+import org.apache.activemq.store.kahadb.disk.page.Transaction;
+
+/**
+ * A BTreeIndex that can be used by several threads at once without
+ * serializing them on the index monitor.  Transactions that write to the
+ * index must still not overlap, as each commits whole pages, so the caller
+ * serializes them the way the MessageDatabase does per destination.
+ *
+ * <br>
+ * Every node is guarded by a read/write latch, striped over the page id.
+ * Lookups, iterators and visitors take read latches, so readers never block
+ * each other.  A put or remove only write latches the leaf it changes, as
+ * long as that leaf neither has to be split nor becomes empty.  Those are the
+ * only operations that touch branch nodes or the leaf chain, so they are
+ * retried while holding the structure latch exclusively.  Everything else
+ * holds the structure latch shared, which keeps the branch nodes stable and
+ * means a descent only ever needs to hold the latch of the node it is on.
+ * Once taken exclusively the structure latch is held until the transaction
+ * commits or rolls back, as the pages a split allocates are only in that
+ * transaction until then, and a reader must not follow a branch to them.
+ *
+ * <br>
+ * Iterators copy one leaf at a time and find the next leaf again by key, so
+ * they are not disturbed by splits or removals made while they are in use.
+ * Visitors must not modify the index they are visiting.
+ */
+public class ConcurrentBTreeIndex<Key,Value> extends BTreeIndex<Key,Value> {
+
+    private static final int NODE_LATCH_COUNT = 64;
+
+    private final ReentrantReadWriteLock structureLatch = new ReentrantReadWriteLock();
+    private final ReentrantReadWriteLock[] nodeLatches = createNodeLatches();
+    private final Runnable structureUnlatch = new Runnable() {
+        @Override
+        public void run() {
+            structureLatch.writeLock().unlock();
+        }
+    };
+
+    public ConcurrentBTreeIndex() {
+    }
+
+    public ConcurrentBTreeIndex(long rootPageId) {
+        super(rootPageId);
+    }
+
+    @SuppressWarnings("rawtypes")
+    public ConcurrentBTreeIndex(Page page) {
+        super(page);
+    }
+
+    public ConcurrentBTreeIndex(PageFile pageFile, long rootPageId) {
+        super(pageFile, rootPageId);
+    }
+
+    @SuppressWarnings("rawtypes")
+    public ConcurrentBTreeIndex(PageFile pageFile, Page page) {
+        super(pageFile, page);
+    }
+
+    @Override
+    public boolean containsKey(Transaction tx, Key key) throws IOException {
+        assertLoaded();
+        if (key == null) {
+            throw new IllegalArgumentException("Key cannot be null");
+        }
+        structureLatch.readLock().lock();
+        try {
+            BTreeNode<Key,Value> leaf = latchLeaf(tx, key, false, false);
+            try {
+                return leaf.contains(tx, key);
+            } finally {
+                nodeLatch(leaf.getPageId()).readLock().unlock();
+            }
+        } finally {
+            structureLatch.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Value get(Transaction tx, Key key) throws IOException {
+        assertLoaded();
+        if (key == null) {
+            throw new IllegalArgumentException("Key cannot be null");
+        }
+        structureLatch.readLock().lock();
+        try {
+            BTreeNode<Key,Value> leaf = latchLeaf(tx, key, false, false);
+            try {
+                return leaf.get(tx, key);
+            } finally {
+                nodeLatch(leaf.getPageId()).readLock().unlock();
+            }
+        } finally {
+            structureLatch.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Value put(Transaction tx, Key key, Value value) throws IOException {
+        assertLoaded();
+        if (key == null) {
+            throw new IllegalArgumentException("Key cannot be null");
+        }
+        structureLatch.readLock().lock();
+        try {
+            BTreeNode<Key,Value> leaf = latchLeaf(tx, key, false, true);
+            try {
+                Value oldValue = leaf.get(tx, key);
+                if (leaf.putIfFits(tx, key, value)) {
+                    return oldValue;
+                }
+            } finally {
+                nodeLatch(leaf.getPageId()).writeLock().unlock();
+            }
+        } finally {
+            structureLatch.readLock().unlock();
+        }
+
+        // The leaf has to be split, which also changes its parent.
+        latchStructure(tx);
+        return getRoot(tx).put(tx, key, value);
+    }
+
+    @Override
+    public Value remove(Transaction tx, Key key) throws IOException {
+        assertLoaded();
+        structureLatch.readLock().lock();
+        try {
+            BTreeNode<Key,Value> leaf = latchLeaf(tx, key, false, true);
+            try {
+                if (!leaf.contains(tx, key)) {
+                    return null;
+                }
+                // Emptying a leaf unlinks it from its parent and its left peer.
+                if (leaf.getKeys().length > 1 || leaf.getPageId() == getPageId()) {
+                    return leaf.remove(tx, key);
+                }
+            } finally {
+                nodeLatch(leaf.getPageId()).writeLock().unlock();
+            }
+        } finally {
+            structureLatch.readLock().unlock();
+        }
+
+        latchStructure(tx);
+        return getRoot(tx).remove(tx, key);
+    }
+
+    @Override
+    public void clear(Transaction tx) throws IOException {
+        latchStructure(tx);
+        super.clear(tx);
+    }
+
+    @Override
+    public void bulkLoad(Transaction tx, Iterator<Map.Entry<Key,Value>> entries) throws IOException {
+        latchStructure(tx);
+        super.bulkLoad(tx, entries);
+    }
+
+    @Override
+    public int getMinLeafDepth(Transaction tx) throws IOException {
+        structureLatch.writeLock().lock();
+        try {
+            return super.getMinLeafDepth(tx);
+        } finally {
+            structureLatch.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public int getMaxLeafDepth(Transaction tx) throws IOException {
+        structureLatch.writeLock().lock();
+        try {
+            return super.getMaxLeafDepth(tx);
+        } finally {
+            structureLatch.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void printStructure(Transaction tx, PrintWriter out) throws IOException {
+        structureLatch.writeLock().lock();
+        try {
+            super.printStructure(tx, out);
+        } finally {
+            structureLatch.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void printStructure(Transaction tx, OutputStream out) throws IOException {
+        structureLatch.writeLock().lock();
+        try {
+            super.printStructure(tx, out);
+        } finally {
+            structureLatch.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean isEmpty(Transaction tx) throws IOException {
+        structureLatch.readLock().lock();
+        try {
+            ReentrantReadWriteLock latch = nodeLatch(getPageId());
+            latch.readLock().lock();
+            try {
+                return getRoot(tx).isEmpty(tx);
+            } finally {
+                latch.readLock().unlock();
+            }
+        } finally {
+            structureLatch.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Iterator<Map.Entry<Key,Value>> iterator(Transaction tx) throws IOException {
+        return new LeafCopyIterator(tx, null);
+    }
+
+    @Override
+    public Iterator<Map.Entry<Key,Value>> iterator(Transaction tx, Key initialKey) throws IOException {
+        return new LeafCopyIterator(tx, initialKey);
+    }
+
+    @Override
+    public void visit(Transaction tx, BTreeVisitor<Key, Value> visitor) throws IOException {
+        if (visitor == null) {
+            throw new IllegalArgumentException("Visitor cannot be null");
+        }
+        structureLatch.readLock().lock();
+        try {
+            visit(tx, getPageId(), visitor);
+        } finally {
+            structureLatch.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Map.Entry<Key,Value> getFirst(Transaction tx) throws IOException {
+        return getEdge(tx, false);
+    }
+
+    @Override
+    public Map.Entry<Key,Value> getLast(Transaction tx) throws IOException {
+        return getEdge(tx, true);
+    }
+
+    ///////////////////////////////////////////////////////////////////
+    // Internal implementation methods
+    ///////////////////////////////////////////////////////////////////
+
+    private Map.Entry<Key,Value> getEdge(Transaction tx, boolean last) throws IOException {
+        structureLatch.readLock().lock();
+        try {
+            BTreeNode<Key,Value> leaf = latchLeaf(tx, null, last, false);
+            try {
+                return last ? leaf.getLast(tx) : leaf.getFirst(tx);
+            } finally {
+                nodeLatch(leaf.getPageId()).readLock().unlock();
+            }
+        } finally {
+            structureLatch.readLock().unlock();
+        }
+    }
+
+    /**
+     * Takes the structure latch exclusively until the transaction commits or
+     * rolls back.  The latch is reentrant, so each structural change in the
+     * transaction holds it once more and is let go of once more.
+     */
+    private void latchStructure(Transaction tx) {
+        structureLatch.writeLock().lock();
+        tx.onCompletion(structureUnlatch);
+    }
+
+    /**
+     * Walks down to the leaf that holds the key, or to the first or last leaf
+     * when the key is null, and returns it with its latch held in the
+     * requested mode.  Must be called with the structure latch held shared, so
+     * a child page id read from a branch stays valid once the branch latch has
+     * been let go.
+     */
+    private BTreeNode<Key,Value> latchLeaf(Transaction tx, Key key, boolean last, boolean write) throws IOException {
+        long pageId = getPageId();
+        while (true) {
+            ReentrantReadWriteLock latch = nodeLatch(pageId);
+            BTreeNode<Key,Value> node = loadLatched(tx, pageId, latch, false);
+            if (node.isBranch()) {
+                long childPageId;
+                if (key != null) {
+                    childPageId = node.getChildPageId(key);
+                } else {
+                    long[] children = node.getChildren();
+                    childPageId = last ? children[children.length - 1] : children[0];
+                }
+                latch.readLock().unlock();
+                if (childPageId == getPageId()) {
+                    throw new IOException("BTree corrupted: Cycle detected.");
+                }
+                pageId = childPageId;
+            } else if (write) {
+                // Leaves stay leaves while the structure latch is shared, so it
+                // is safe to let go of the read latch before taking the write one.
+                latch.readLock().unlock();
+                return loadLatched(tx, pageId, latch, true);
+            } else {
+                return node;
+            }
+        }
+    }
+
+    private BTreeNode<Key,Value> loadLatched(Transaction tx, long pageId, ReentrantReadWriteLock latch, boolean write) throws IOException {
+        Lock lock = write ? latch.writeLock() : latch.readLock();
+        lock.lock();
+        boolean loaded = false;
+        try {
+            BTreeNode<Key,Value> node = loadNode(tx, pageId, null);
+            loaded = true;
+            return node;
+        } finally {
+            if (!loaded) {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void visit(Transaction tx, long pageId, BTreeVisitor<Key, Value> visitor) throws IOException {
+        ReentrantReadWriteLock latch = nodeLatch(pageId);
+        BTreeNode<Key,Value> node = loadLatched(tx, pageId, latch, false);
+        Key[] keys = node.getKeys();
+        Value[] values = node.getValues();
+        long[] children = node.getChildren();
+        latch.readLock().unlock();
+
+        if (children == null) {
+            visitor.visit(Arrays.asList(keys), Arrays.asList(values));
+            return;
+        }
+        for (int i = 0; i < children.length; i++) {
+            Key key1 = null;
+            if (i != 0) {
+                key1 = keys[i - 1];
+            }
+            Key key2 = null;
+            if (i != children.length - 1) {
+                key2 = keys[i];
+            }
+            if (visitor.isInterestedInKeysBetween(key1, key2)) {
+                visit(tx, children[i], visitor);
+            }
+        }
+    }
+
+    private ReentrantReadWriteLock nodeLatch(long pageId) {
+        return nodeLatches[(int) (pageId % NODE_LATCH_COUNT)];
+    }
+
+    private static ReentrantReadWriteLock[] createNodeLatches() {
+        ReentrantReadWriteLock[] rc = new ReentrantReadWriteLock[NODE_LATCH_COUNT];
+        for (int i = 0; i < rc.length; i++) {
+            rc[i] = new ReentrantReadWriteLock();
+        }
+        return rc;
+    }
+
+    /**
+     * Iterates over a copy of one leaf at a time.  The next leaf is found by
+     * walking down from the root to the last key returned, so nothing is
+     * latched in between calls.
+     */
+    private final class LeafCopyIterator implements Iterator<Map.Entry<Key,Value>> {
+
+        private final Transaction tx;
+        // The key to carry on from, and whether it is still to be returned.
+        private Key position;
+        private boolean inclusive = true;
+        private Key[] keys;
+        private Value[] values;
+        private int nextIndex;
+        private boolean lastLeaf;
+        private Map.Entry<Key,Value> nextEntry;
+
+        private LeafCopyIterator(Transaction tx, Key position) {
+            this.tx = tx;
+            this.position = position;
+        }
+
+        private void findNextEntry() {
+            try {
+                while (nextEntry == null) {
+                    if (keys != null && nextIndex < keys.length) {
+                        position = keys[nextIndex];
+                        inclusive = false;
+                        nextEntry = new AbstractMap.SimpleImmutableEntry<Key,Value>(position, values[nextIndex]);
+                        nextIndex++;
+                    } else if (keys != null && lastLeaf) {
+                        break;
+                    } else {
+                        copyLeaf();
+                    }
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("Could not load the next BTree leaf", e);
+            }
+        }
+
+        private void copyLeaf() throws IOException {
+            structureLatch.readLock().lock();
+            try {
+                BTreeNode<Key,Value> leaf = latchLeaf(tx, position, false, false);
+                while (true) {
+                    long next;
+                    try {
+                        Key[] leafKeys = leaf.getKeys();
+                        int idx = 0;
+                        if (position != null) {
+                            idx = Arrays.binarySearch(leafKeys, position);
+                            idx = idx < 0 ? -(idx + 1) : inclusive ? idx : idx + 1;
+                        }
+                        next = leaf.getNext();
+                        if (idx < leafKeys.length || next < 0) {
+                            keys = leafKeys;
+                            values = leaf.getValues();
+                            nextIndex = idx;
+                            lastLeaf = next < 0;
+                            return;
+                        }
+                    } finally {
+                        nodeLatch(leaf.getPageId()).readLock().unlock();
+                    }
+                    leaf = loadLatched(tx, next, nodeLatch(next), false);
+                }
+            } finally {
+                structureLatch.readLock().unlock();
+            }
+        }
+
+        public boolean hasNext() {
+            findNextEntry();
+            return nextEntry != null;
+        }
+
+        public Map.Entry<Key,Value> next() {
+            findNextEntry();
+            if (nextEntry != null) {
+                Map.Entry<Key,Value> lastEntry = nextEntry;
+                nextEntry = null;
+                return lastEntry;
+            } else {
+                throw new NoSuchElementException();
+            }
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+}
@@ -18,8 +18,6 @@ package org.apache.activemq.store.kahadb.disk.journal;
 
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.util.zip.Adler32;
-import java.util.zip.Checksum;
 import org.apache.activemq.util.ByteSequence;
 import org.apache.activemq.store.kahadb.disk.util.DataByteArrayOutputStream;
 
@@ -129,9 +127,7 @@ class CallerBufferingDataFileAppender extends DataFileAppender {
                 buff.skip(5+Journal.BATCH_CONTROL_RECORD_MAGIC.length);
                 buff.writeInt(sequence.getLength()-Journal.BATCH_CONTROL_RECORD_SIZE);
                 if( journal.isChecksum() ) {
-	                Checksum checksum = new Adler32();
-	                checksum.update(sequence.getData(), sequence.getOffset()+Journal.BATCH_CONTROL_RECORD_SIZE, sequence.getLength()-Journal.BATCH_CONTROL_RECORD_SIZE);
-	                buff.writeLong(checksum.getValue());
+	                buff.writeLong(journal.batchChecksum(sequence.getData(), sequence.getOffset()+Journal.BATCH_CONTROL_RECORD_SIZE, sequence.getLength()-Journal.BATCH_CONTROL_RECORD_SIZE));
                 }
 
                 // Now do the 1 big write.
@@ -148,17 +144,18 @@ class CallerBufferingDataFileAppender extends DataFileAppender {
                     }
                 }
                 file.write(sequence.getData(), sequence.getOffset(), sequence.getLength());
+                journal.getWriteBatchSizeStatistic().addValue(sequence.getLength());
                 ReplicationTarget replicationTarget = journal.getReplicationTarget();
                 if( replicationTarget!=null ) {
                 	replicationTarget.replicate(wb.writes.getHead().location, sequence, forceToDisk);
                 }
                 
                 if (forceToDisk) {
-                    file.getFD().sync();
+                    sync(file);
                 }
 
                 Journal.WriteCommand lastWrite = wb.writes.getTail();
-                journal.setLastAppendLocation(lastWrite.location);
+                journal.written(lastWrite.location);
                 signalDone(wb);
 
 
@@ -192,6 +189,9 @@ class CallerBufferingDataFileAppender extends DataFileAppender {
         buff.writeInt(write.location.getSize());
         buff.writeByte(write.location.getType());
         buff.write(write.data.getData(), write.data.getOffset(), write.data.getLength());
+        if (write.location.getType() == Journal.USER_CHECKSUM_RECORD_TYPE) {
+            buff.writeInt(JournalChecksum.recordChecksum(write.data.getData(), write.data.getOffset(), write.data.getLength()));
+        }
         return write.sync | (syncOnComplete && write.onComplete != null);
     }
 }
@@ -19,6 +19,7 @@ package org.apache.activemq.store.kahadb.disk.journal;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
 
 import org.apache.activemq.store.kahadb.disk.util.LinkedNode;
 import org.apache.activemq.store.kahadb.disk.util.SequenceSet;
@@ -35,6 +36,8 @@ public class DataFile extends LinkedNode<DataFile> implements Comparable<DataFil
     protected final Integer dataFileId;
     protected volatile int length;
     protected final SequenceSet corruptedBlocks = new SequenceSet();
+    private volatile MappedDataFileAccessor mappedAccessor;
+    private volatile boolean retired;
 
     DataFile(File file, int number, int preferedSize) {
         this.file = file;
@@ -75,6 +78,57 @@ public class DataFile extends LinkedNode<DataFile> implements Comparable<DataFil
         file.close();
     }
 
+    /**
+     * Gets an accessor over a read only mapping of the file, only valid once
+     * the file is no longer being appended to.
+     *
+     * @return the accessor or null if the file is shorter than expected
+     * @throws IOException
+     */
+    MappedDataFileAccessor getMappedAccessor() throws IOException {
+        MappedDataFileAccessor rc = mappedAccessor;
+        if (rc == null) {
+            rc = mapFile();
+        }
+        return rc;
+    }
+
+    private synchronized MappedDataFileAccessor mapFile() throws IOException {
+        if (mappedAccessor == null) {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel = raf.getChannel();
+                if (channel.size() < length) {
+                    return null;
+                }
+                mappedAccessor = new MappedDataFileAccessor(this, channel.map(FileChannel.MapMode.READ_ONLY, 0, length));
+            } finally {
+                raf.close();
+            }
+        }
+        return mappedAccessor;
+    }
+
+    /**
+     * Drops the mapping so it can be reclaimed, the JVM only unmaps it once it is
+     * garbage collected.
+     */
+    void unmap() {
+        mappedAccessor = null;
+    }
+
+    /**
+     * Marks the file as being removed from the journal, no new readers are
+     * let open it from then on.
+     */
+    void retire() {
+        retired = true;
+    }
+
+    boolean isRetired() {
+        return retired;
+    }
+
     public synchronized boolean delete() throws IOException {
         return file.delete();
     }
@@ -18,6 +18,7 @@ package org.apache.activemq.store.kahadb.disk.journal;
 
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.util.Arrays;
 import java.util.Map;
 
 import org.apache.activemq.util.ByteSequence;
@@ -76,7 +77,7 @@ final class DataFileAccessor {
 
         try {
 
-            if (location.getSize() == Location.NOT_SET) {
+            if (location.getSize() == Location.NOT_SET || location.getType() == Location.NOT_SET_TYPE) {
                 file.seek(location.getOffset());
                 location.setSize(file.readInt());
                 location.setType(file.readByte());
@@ -86,12 +87,69 @@ final class DataFileAccessor {
 
             byte[] data = new byte[location.getSize() - Journal.RECORD_HEAD_SPACE];
             file.readFully(data);
-            return new ByteSequence(data, 0, data.length);
+            return record(location, data, 0, data.length);
 
         } catch (RuntimeException e) {
             throw new IOException("Invalid location: " + location + ", : " + e);
         }
     }
+
+    /**
+     * Reads the records at locations[from] to locations[to - 1], which are in
+     * this file and in order of offset, with one read of the span they cover
+     * and the tail bytes after the last.  A record that does not fit in what
+     * was read is read on its own.
+     */
+    public void readRecords(Location[] locations, int from, int to, int tail, ByteSequence[] result) throws IOException {
+        int start = locations[from].getOffset();
+        byte[] buffer = new byte[locations[to - 1].getOffset() + tail - start];
+        file.seek(start);
+        int length = 0;
+        int count;
+        while (length < buffer.length && (count = file.read(buffer, length, buffer.length - length)) > 0) {
+            length += count;
+        }
+
+        for (int i = from; i < to; i++) {
+            Location location = locations[i];
+            Journal.WriteCommand asyncWrite = inflightWrites.get(new Journal.WriteKey(location));
+            if (asyncWrite != null) {
+                result[i] = asyncWrite.data;
+                continue;
+            }
+            int position = location.getOffset() - start;
+            int size = position + Journal.RECORD_HEAD_SPACE <= length ? (buffer[position] & 0xFF) << 24 | (buffer[position + 1] & 0xFF) << 16
+                    | (buffer[position + 2] & 0xFF) << 8 | (buffer[position + 3] & 0xFF) : 0;
+            if (size < Journal.RECORD_HEAD_SPACE || position + size > length) {
+                result[i] = readRecord(location);
+                continue;
+            }
+            // the locations may be the index's own, so they are left as they are
+            Location record = new Location(location);
+            record.setSize(size);
+            record.setType(buffer[position + 4]);
+            try {
+                // its own copy, the record may be held on to long after the rest
+                byte[] data = Arrays.copyOfRange(buffer, position + Journal.RECORD_HEAD_SPACE, position + size);
+                result[i] = record(record, data, 0, data.length);
+            } catch (RuntimeException e) {
+                throw new IOException("Invalid location: " + record + ", : " + e);
+            }
+        }
+    }
+
+    private ByteSequence record(Location location, byte[] data, int offset, int length) throws IOException {
+        if (location.getType() == Journal.USER_CHECKSUM_RECORD_TYPE) {
+            // The record's checksum follows its data, read in the same call.
+            length -= Journal.RECORD_CHECKSUM_SPACE;
+            int end = offset + length;
+            int expected = (data[end] & 0xFF) << 24 | (data[end + 1] & 0xFF) << 16 | (data[end + 2] & 0xFF) << 8 | (data[end + 3] & 0xFF);
+            Journal.verifyRecord(location, data, offset, length, expected);
+            data = Arrays.copyOfRange(data, offset, end);
+            offset = 0;
+        }
+        return new ByteSequence(data, offset, length);
+    }
     
     public void readFully(long offset, byte data[]) throws IOException {
        file.seek(offset);
@@ -151,8 +209,18 @@ final class DataFileAccessor {
     public void updateRecord(Location location, ByteSequence data, boolean sync) throws IOException {
 
         file.seek(location.getOffset() + Journal.RECORD_HEAD_SPACE);
-        int size = Math.min(data.getLength(), location.getSize());
-        file.write(data.getData(), data.getOffset(), size);
+        if (location.getType() == Journal.USER_CHECKSUM_RECORD_TYPE) {
+            // Rewrite the record's checksum along with its data.
+            int length = location.getSize() - Journal.RECORD_HEAD_SPACE - Journal.RECORD_CHECKSUM_SPACE;
+            if (data.getLength() != length) {
+                throw new IOException("Cannot resize checksummed record at location: " + location);
+            }
+            file.write(data.getData(), data.getOffset(), length);
+            file.writeInt(JournalChecksum.recordChecksum(data.getData(), data.getOffset(), length));
+        } else {
+            int size = Math.min(data.getLength(), location.getSize());
+            file.write(data.getData(), data.getOffset(), size);
+        }
         if (sync) {
             file.getFD().sync();
         }
@@ -18,21 +18,24 @@ package org.apache.activemq.store.kahadb.disk.journal;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Used to pool DataFileAccessors.
  *
+ * Each data file gets its own pool so that readers of different files never
+ * contend with each other, accessors are only ever handed to one thread at a time.
+ *
  * @author chirino
  */
 public class DataFileAccessorPool {
 
     private final Journal journal;
-    private final Map<Integer, Pool> pools = new HashMap<Integer, Pool>();
-    private boolean closed;
+    private final ConcurrentMap<Integer, Pool> pools = new ConcurrentHashMap<Integer, Pool>();
+    private volatile boolean closed;
     private int maxOpenReadersPerFile = 5;
 
     class Pool {
@@ -45,9 +48,17 @@ public class DataFileAccessorPool {
 
         public Pool(DataFile file) {
             this.file = file;
+            // so disposeUnused() leaves it for the reader that created it
+            this.used = true;
         }
 
-        public DataFileAccessor openDataFileReader() throws IOException {
+        /**
+         * @return an accessor, or null if the pool has been disposed of.
+         */
+        public synchronized DataFileAccessor openDataFileReader() throws IOException {
+            if (disposed) {
+                return null;
+            }
             DataFileAccessor rc = null;
             if (pool.isEmpty()) {
                 rc = new DataFileAccessor(journal, file);
@@ -94,13 +105,13 @@ public class DataFileAccessorPool {
         this.journal = dataManager;
     }
 
-    synchronized void clearUsedMark() {
+    void clearUsedMark() {
         for (Pool pool : pools.values()) {
             pool.clearUsedMark();
         }
     }
 
-    synchronized void disposeUnused() {
+    void disposeUnused() {
         for (Iterator<Pool> iter = pools.values().iterator(); iter.hasNext();) {
             Pool pool = iter.next();
             if (!pool.isUsed()) {
@@ -110,36 +121,54 @@ public class DataFileAccessorPool {
         }
     }
 
+    /**
+     * Disposes of the accessors of a data file that has been retired.  Those
+     * still open are disposed of as their readers close them, rather than
+     * waiting for them, as reads do not hold the journal lock.
+     */
     synchronized void disposeDataFileAccessors(DataFile dataFile) {
         if (closed) {
             throw new IllegalStateException("Closed.");
         }
-        Pool pool = pools.get(dataFile.getDataFileId());
+        Pool pool = pools.remove(dataFile.getDataFileId());
         if (pool != null) {
-            if (pool.getOpenCounter() == 0) {
-                pool.dispose();
-                pools.remove(dataFile.getDataFileId());
-            } else {
-                throw new IllegalStateException("The data file is still in use: " + dataFile + ", use count: " + pool.getOpenCounter());
-            }
+            pool.dispose();
         }
     }
 
-    synchronized DataFileAccessor openDataFileAccessor(DataFile dataFile) throws IOException {
+    DataFileAccessor openDataFileAccessor(DataFile dataFile) throws IOException {
         if (closed) {
             throw new IOException("Closed.");
         }
 
-        Pool pool = pools.get(dataFile.getDataFileId());
-        if (pool == null) {
-            pool = new Pool(dataFile);
-            pools.put(dataFile.getDataFileId(), pool);
+        while (true) {
+            Pool pool = pools.get(dataFile.getDataFileId());
+            if (pool == null) {
+                pool = new Pool(dataFile);
+                Pool existing = pools.putIfAbsent(dataFile.getDataFileId(), pool);
+                if (existing != null) {
+                    pool = existing;
+                } else if (dataFile.isRetired()) {
+                    // retired after the reader looked it up, don't rebuild its pool
+                    pools.remove(dataFile.getDataFileId(), pool);
+                    pool.dispose();
+                }
+            }
+            DataFileAccessor rc = pool.openDataFileReader();
+            if (rc != null) {
+                return rc;
+            }
+            if (dataFile.isRetired() || closed) {
+                throw new IOException("The data file has been removed: " + dataFile);
+            }
+            // disposed of as unused, the file is still live so start a new pool
+            pools.remove(dataFile.getDataFileId(), pool);
         }
-        return pool.openDataFileReader();
     }
 
-    synchronized void closeDataFileAccessor(DataFileAccessor reader) {
+    void closeDataFileAccessor(DataFileAccessor reader) {
         Pool pool = pools.get(reader.getDataFile().getDataFileId());
+        // or its pool was disposed of when its file was retired
         if (pool == null || closed) {
             reader.dispose();
         } else {
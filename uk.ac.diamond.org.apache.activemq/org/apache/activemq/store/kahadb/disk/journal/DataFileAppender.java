@@ -19,11 +19,12 @@ package org.apache.activemq.store.kahadb.disk.journal;
 import java.io.IOException;
 import java.io.InterruptedIOException;
 import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.LinkedList;
 import java.util.Map;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicReference;
-import java.util.zip.Adler32;
-import java.util.zip.Checksum;
+import java.util.concurrent.locks.LockSupport;
 
 import org.apache.activemq.util.ByteSequence;
 import org.apache.activemq.store.kahadb.disk.util.DataByteArrayOutputStream;
@@ -49,7 +50,9 @@ class DataFileAppender implements FileAppender {
     protected IOException firstAsyncException;
     protected final CountDownLatch shutdownDone = new CountDownLatch(1);
     protected int maxWriteBatchSize;
+    protected final long maxWriteBatchWaitNanos;
     protected final boolean syncOnComplete;
+    protected final boolean pipelinedSync;
 
     protected boolean running;
     private Thread thread;
@@ -88,6 +91,12 @@ class DataFileAppender implements FileAppender {
         protected final int offset;
         public int size = Journal.BATCH_CONTROL_RECORD_SIZE;
         public AtomicReference<IOException> exception = new AtomicReference<IOException>();
+        protected final long created = System.nanoTime();
+        // set once a write could not be appended, so there is no point holding the batch open.
+        protected boolean full;
+        // when syncs are pipelined, the file the batch was written to and whether it needs a sync.
+        protected RandomAccessFile syncFile;
+        protected boolean syncRequired;
 
         public WriteBatch(DataFile dataFile,int offset) {
             this.dataFile = dataFile;
@@ -128,13 +137,15 @@ class DataFileAppender implements FileAppender {
         this.journal = dataManager;
         this.inflightWrites = this.journal.getInflightWrites();
         this.maxWriteBatchSize = this.journal.getWriteBatchSize();
+        this.maxWriteBatchWaitNanos = this.journal.getMaxWriteBatchWaitMicros() * 1000;
         this.syncOnComplete = this.journal.isEnableAsyncDiskSync();
+        this.pipelinedSync = this.journal.isEnablePipelinedSync();
     }
 
     public Location storeItem(ByteSequence data, byte type, boolean sync) throws IOException {
 
         // Write the packet our internal buffer.
-        int size = data.getLength() + Journal.RECORD_HEAD_SPACE;
+        int size = data.getLength() + Journal.recordOverhead(type);
 
         final Location location = new Location();
         location.setSize(size);
@@ -161,7 +172,7 @@ class DataFileAppender implements FileAppender {
 
     public Location storeItem(ByteSequence data, byte type, Runnable onComplete) throws IOException {
         // Write the packet our internal buffer.
-        int size = data.getLength() + Journal.RECORD_HEAD_SPACE;
+        int size = data.getLength() + Journal.recordOverhead(type);
 
         final Location location = new Location();
         location.setSize(size);
@@ -216,6 +227,8 @@ class DataFileAppender implements FileAppender {
                         break;
                     } else {
                         // Otherwise wait for the queuedCommand to be null
+                        nextWriteBatch.full = true;
+                        LockSupport.unpark(thread);
                         try {
                             while (nextWriteBatch != null) {
                                 final long start = System.currentTimeMillis();
@@ -251,6 +264,7 @@ class DataFileAppender implements FileAppender {
                 shutdown = true;
                 if (running) {
                     enqueueMutex.notifyAll();
+                    LockSupport.unpark(thread);
                 } else {
                     shutdownDone.countDown();
                 }
@@ -265,6 +279,23 @@ class DataFileAppender implements FileAppender {
 
     }
 
+    /**
+     * @return how much longer a partially filled batch should be held open to
+     *         let more writes join it, zero or less when it should be written now.
+     */
+    protected long batchHoldTime(WriteBatch wb) {
+        if (maxWriteBatchWaitNanos <= 0 || wb.full || shutdown) {
+            return 0;
+        }
+        return wb.created + maxWriteBatchWaitNanos - System.nanoTime();
+    }
+
+    protected void sync(RandomAccessFile file) throws IOException {
+        long start = System.nanoTime();
+        file.getFD().sync();
+        journal.getSyncLatencyStatistic().addValue((System.nanoTime() - start) / 1000);
+    }
+
     int statIdx = 0;
     int[] stats = new int[maxStat];
     /**
@@ -274,34 +305,53 @@ class DataFileAppender implements FileAppender {
      * file sync() requests into a single file sync() call. The batching is
      * accomplished attaching the same CountDownLatch instance to every force
      * request in a group.
+     *
+     * When syncs are pipelined the sync and completion of each batch is handed
+     * to a SyncThread, so the next batch is written while this one is synced.
      */
     protected void processQueue() {
         DataFile dataFile = null;
         RandomAccessFile file = null;
         WriteBatch wb = null;
+        SyncThread syncThread = null;
         try {
 
+            if (pipelinedSync) {
+                syncThread = new SyncThread();
+                syncThread.start();
+            }
+
             DataByteArrayOutputStream buff = new DataByteArrayOutputStream(maxWriteBatchSize);
             while (true) {
 
                 // Block till we get a command.
-                synchronized (enqueueMutex) {
-                    while (true) {
-                        if (nextWriteBatch != null) {
+                while (true) {
+                    long holdTime;
+                    synchronized (enqueueMutex) {
+                        while (nextWriteBatch == null) {
+                            if (shutdown) {
+                                return;
+                            }
+                            enqueueMutex.wait();
+                        }
+                        holdTime = batchHoldTime(nextWriteBatch);
+                        if (holdTime <= 0) {
                             wb = nextWriteBatch;
                             nextWriteBatch = null;
+                            enqueueMutex.notifyAll();
                             break;
                         }
-                        if (shutdown) {
-                            return;
-                        }
-                        enqueueMutex.wait();
                     }
-                    enqueueMutex.notifyAll();
+                    // Let more writes join the batch, we get unparked early if it fills up.
+                    LockSupport.parkNanos(holdTime);
                 }
 
                 if (dataFile != wb.dataFile) {
                     if (file != null) {
+                        if (syncThread != null) {
+                            // the old file must not be closed while a sync on it is pending.
+                            syncThread.awaitIdle();
+                        }
                         file.setLength(dataFile.getLength());
                         dataFile.closeRandomAccessFile(file);
                     }
@@ -328,6 +378,9 @@ class DataFileAppender implements FileAppender {
                     buff.writeInt(write.location.getSize());
                     buff.writeByte(write.location.getType());
                     buff.write(write.data.getData(), write.data.getOffset(), write.data.getLength());
+                    if (write.location.getType() == Journal.USER_CHECKSUM_RECORD_TYPE) {
+                        buff.writeInt(JournalChecksum.recordChecksum(write.data.getData(), write.data.getOffset(), write.data.getLength()));
+                    }
                     write = write.getNext();
                 }
 
@@ -338,9 +391,7 @@ class DataFileAppender implements FileAppender {
                 buff.skip(5+Journal.BATCH_CONTROL_RECORD_MAGIC.length);
                 buff.writeInt(sequence.getLength()-Journal.BATCH_CONTROL_RECORD_SIZE);
                 if( journal.isChecksum() ) {
-                    Checksum checksum = new Adler32();
-                    checksum.update(sequence.getData(), sequence.getOffset()+Journal.BATCH_CONTROL_RECORD_SIZE, sequence.getLength()-Journal.BATCH_CONTROL_RECORD_SIZE);
-                    buff.writeLong(checksum.getValue());
+                    buff.writeLong(journal.batchChecksum(sequence.getData(), sequence.getOffset()+Journal.BATCH_CONTROL_RECORD_SIZE, sequence.getLength()-Journal.BATCH_CONTROL_RECORD_SIZE));
                 }
 
                 // Now do the 1 big write.
@@ -357,18 +408,26 @@ class DataFileAppender implements FileAppender {
                     }
                 }
                 file.write(sequence.getData(), sequence.getOffset(), sequence.getLength());
+                journal.getWriteBatchSizeStatistic().addValue(sequence.getLength());
 
                 ReplicationTarget replicationTarget = journal.getReplicationTarget();
                 if( replicationTarget!=null ) {
                     replicationTarget.replicate(wb.writes.getHead().location, sequence, forceToDisk);
                 }
 
+                if (syncThread != null) {
+                    wb.syncFile = file;
+                    wb.syncRequired = forceToDisk;
+                    syncThread.add(wb);
+                    continue;
+                }
+
                 if (forceToDisk) {
-                    file.getFD().sync();
+                    sync(file);
                 }
 
                 Journal.WriteCommand lastWrite = wb.writes.getTail();
-                journal.setLastAppendLocation(lastWrite.location);
+                journal.written(lastWrite.location);
 
                 signalDone(wb);
             }
@@ -386,6 +445,10 @@ class DataFileAppender implements FileAppender {
             }
         } catch (InterruptedException e) {
         } finally {
+            if (syncThread != null) {
+                // let it sync and complete whatever was already written.
+                syncThread.shutdown();
+            }
             try {
                 if (file != null) {
                     dataFile.closeRandomAccessFile(file);
@@ -397,6 +460,113 @@ class DataFileAppender implements FileAppender {
         }
     }
 
+    /**
+     * Syncs and completes the batches the writer thread has written, every batch
+     * queued while a sync was running shares the next sync.
+     */
+    private class SyncThread extends Thread {
+
+        private final LinkedList<WriteBatch> queue = new LinkedList<WriteBatch>();
+        private boolean busy;
+        private boolean stopped;
+        private IOException failure;
+
+        SyncThread() {
+            setPriority(Thread.MAX_PRIORITY);
+            setDaemon(true);
+            setName("ActiveMQ Data File Syncer");
+        }
+
+        synchronized void add(WriteBatch wb) throws IOException {
+            if (failure != null) {
+                throw failure;
+            }
+            if (stopped) {
+                throw new IOException("Async Sync Thread Shutdown");
+            }
+            queue.addLast(wb);
+            notifyAll();
+        }
+
+        synchronized void awaitIdle() throws IOException, InterruptedException {
+            while ((busy || !queue.isEmpty()) && !stopped) {
+                wait();
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+
+        void shutdown() {
+            synchronized (this) {
+                stopped = true;
+                notifyAll();
+            }
+            try {
+                join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void run() {
+            ArrayList<WriteBatch> batches = new ArrayList<WriteBatch>();
+            try {
+                while (true) {
+                    synchronized (this) {
+                        busy = false;
+                        notifyAll();
+                        while (queue.isEmpty()) {
+                            if (stopped) {
+                                return;
+                            }
+                            wait();
+                        }
+                        batches.addAll(queue);
+                        queue.clear();
+                        busy = true;
+                    }
+
+                    try {
+                        // The writer waits for us to go idle before moving to the
+                        // next file, so these batches were all written to the same file.
+                        boolean syncRequired = false;
+                        for (WriteBatch wb : batches) {
+                            syncRequired |= wb.syncRequired;
+                        }
+                        WriteBatch last = batches.get(batches.size() - 1);
+                        if (syncRequired) {
+                            sync(last.syncFile);
+                        }
+                        journal.written(last.writes.getTail().location);
+                        for (WriteBatch wb : batches) {
+                            signalDone(wb);
+                        }
+                    } catch (IOException e) {
+                        synchronized (this) {
+                            failure = e;
+                            batches.addAll(queue);
+                            queue.clear();
+                        }
+                        for (WriteBatch wb : batches) {
+                            wb.exception.set(e);
+                            wb.latch.countDown();
+                        }
+                    }
+                    batches.clear();
+                }
+            } catch (InterruptedException e) {
+            } finally {
+                synchronized (this) {
+                    busy = false;
+                    stopped = true;
+                    notifyAll();
+                }
+            }
+        }
+    }
+
     protected void signalDone(WriteBatch wb) {
         // Now that the data is on disk, remove the writes from the in
         // flight
@@ -0,0 +1,180 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.store.kahadb.disk.journal;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Zero fills the next data file of a journal in the background, under a
+ * temporary name, so the appender never has to grow a file (and so sync its
+ * size) as it writes. The file is renamed into place when the journal rotates
+ * to it, before any location can refer to it.
+ */
+class DataFilePreallocator {
+
+    static final String PREALLOCATED_SUFFIX = ".prealloc";
+
+    private static final Logger LOG = LoggerFactory.getLogger(DataFilePreallocator.class);
+    private static final byte[] ZEROS = new byte[1024 * 64];
+
+    private final Journal journal;
+    private ExecutorService executor;
+    private Future<File> pending;
+    private int pendingNum;
+
+    DataFilePreallocator(Journal journal) {
+        this.journal = journal;
+    }
+
+    synchronized void start() {
+        if (executor != null) {
+            return;
+        }
+        deleteStaleFiles();
+        executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "KahaDB Journal Preallocator");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    synchronized void stop() {
+        if (executor == null) {
+            return;
+        }
+        if (pending != null) {
+            pending.cancel(true);
+            pending = null;
+        }
+        executor.shutdownNow();
+        executor = null;
+        deleteStaleFiles();
+    }
+
+    /**
+     * Starts preallocating the data file with the given number, if it is not
+     * already being preallocated.
+     */
+    synchronized void preallocate(int num) {
+        if (executor == null || (pending != null && pendingNum == num)) {
+            return;
+        }
+        if (pending != null) {
+            pending.cancel(true);
+        }
+        final File file = getPreallocatedFile(num);
+        pendingNum = num;
+        pending = executor.submit(new Callable<File>() {
+            @Override
+            public File call() throws Exception {
+                zeroFill(file);
+                return file;
+            }
+        });
+    }
+
+    /**
+     * Moves the preallocated data file with the given number into place if its
+     * preallocation has finished. One still running is abandoned rather than
+     * waited for, as the journal rotates holding its lock, and the file is
+     * created as it would be without preallocation.
+     *
+     * @return true if the target is now a zero filled file
+     */
+    synchronized boolean moveInto(int num, File target) {
+        if (pending == null || pendingNum != num) {
+            return false;
+        }
+        Future<File> future = pending;
+        pending = null;
+        if (!future.isDone() && future.cancel(true)) {
+            LOG.debug("Preallocation of journal file " + target + " not finished, not waiting for it");
+            return false;
+        }
+        try {
+            File file = future.get();
+            if (target.exists() || !file.renameTo(target)) {
+                LOG.warn("Could not use preallocated journal file " + file + " for " + target);
+                file.delete();
+                return false;
+            }
+            return true;
+        } catch (ExecutionException e) {
+            LOG.warn("Could not preallocate journal file " + target, e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.cancel(true);
+        }
+        return false;
+    }
+
+    private File getPreallocatedFile(int num) {
+        return new File(journal.getDirectory(), journal.getFile(num).getName() + PREALLOCATED_SUFFIX);
+    }
+
+    private void zeroFill(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(0);
+            long remaining = journal.getMaxFileLength();
+            while (remaining > 0) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedIOException();
+                }
+                int len = (int)Math.min(ZEROS.length, remaining);
+                raf.write(ZEROS, 0, len);
+                remaining -= len;
+            }
+            raf.getFD().sync();
+        } catch (IOException e) {
+            raf.close();
+            file.delete();
+            throw e;
+        }
+        raf.close();
+    }
+
+    private void deleteStaleFiles() {
+        final File directory = journal.getDirectory();
+        File[] files = directory.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String n) {
+                return dir.equals(directory) && n.startsWith(journal.getFilePrefix()) && n.endsWith(PREALLOCATED_SUFFIX);
+            }
+        });
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+}
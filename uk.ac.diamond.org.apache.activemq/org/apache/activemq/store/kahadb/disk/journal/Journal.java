@@ -21,12 +21,15 @@ import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
 import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
@@ -34,8 +37,8 @@ import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
-import java.util.zip.Adler32;
 import java.util.zip.Checksum;
+import org.apache.activemq.management.HistogramStatisticImpl;
 import org.apache.activemq.store.kahadb.disk.util.LinkedNode;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -62,6 +65,9 @@ public class Journal {
 
     public static final byte USER_RECORD_TYPE = 1;
     public static final byte BATCH_CONTROL_RECORD_TYPE = 2;
+    // A user record followed by a 4 byte CRC32C of its data, so it can be verified on its own when read.
+    public static final byte USER_CHECKSUM_RECORD_TYPE = 3;
+    public static final int RECORD_CHECKSUM_SPACE = 4;
     // Batch Control Item holds a 4 byte size of the batch and a 8 byte checksum of the batch.
     public static final byte[] BATCH_CONTROL_RECORD_MAGIC = bytes("WRITE BATCH");
     public static final int BATCH_CONTROL_RECORD_SIZE = RECORD_HEAD_SPACE+BATCH_CONTROL_RECORD_MAGIC.length+4+8;
@@ -88,6 +94,11 @@ public class Journal {
     public static final int DEFAULT_MAX_FILE_LENGTH = 1024 * 1024 * 32;
     public static final int DEFAULT_CLEANUP_INTERVAL = 1000 * 30;
     public static final int PREFERED_DIFF = 1024 * 512;
+    // records read together are no further apart than the gap, within the
+    // span, and the last is read with the tail after it
+    static final int READ_AHEAD_GAP = 1024 * 64;
+    static final int READ_AHEAD_SPAN = 1024 * 1024;
+    static final int READ_AHEAD_TAIL = 1024 * 8;
     public static final int DEFAULT_MAX_WRITE_BATCH_SIZE = 1024 * 1024 * 4;
 
     private static final Logger LOG = LoggerFactory.getLogger(Journal.class);
@@ -103,24 +114,44 @@ public class Journal {
     protected int maxFileLength = DEFAULT_MAX_FILE_LENGTH;
     protected int preferedFileLength = DEFAULT_MAX_FILE_LENGTH - PREFERED_DIFF;
     protected int writeBatchSize = DEFAULT_MAX_WRITE_BATCH_SIZE;
+    protected long maxWriteBatchWaitMicros;
+    protected boolean enablePipelinedSync;
 
     protected FileAppender appender;
-    protected DataFileAccessorPool accessorPool;
+    protected volatile DataFileAccessorPool accessorPool;
 
     protected Map<Integer, DataFile> fileMap = new HashMap<Integer, DataFile>();
     protected Map<File, DataFile> fileByFileMap = new LinkedHashMap<File, DataFile>();
     protected LinkedNodeList<DataFile> dataFiles = new LinkedNodeList<DataFile>();
 
+    // Immutable copy of the linked dataFiles, republished under the journal lock each time
+    // the list changes so that read and getNextLocation can run without taking that lock.
+    private volatile NavigableMap<Integer, DataFile> dataFilesSnapshot = new TreeMap<Integer, DataFile>();
+
     protected final AtomicReference<Location> lastAppendLocation = new AtomicReference<Location>();
+    // the last record an appender has written out, set only once its batch
+    // is in the file, unlike lastAppendLocation which others may move on.
+    private final AtomicReference<Location> lastWrittenLocation = new AtomicReference<Location>();
     protected Runnable cleanupTask;
     protected AtomicLong totalLength = new AtomicLong();
     protected boolean archiveDataLogs;
     private ReplicationTarget replicationTarget;
     protected boolean checksum;
+    protected String checksumAlgorithm = JournalChecksum.ADLER32;
+    private int checksumAlgorithmId = JournalChecksum.ADLER32_ID;
+    protected boolean enableRecordChecksums;
     protected boolean checkForCorruptionOnStartup;
     protected boolean enableAsyncDiskSync = true;
+    protected boolean enableMemoryMappedReads;
+    protected boolean preallocateDataFiles;
+    protected DataFilePreallocator preallocator;
     private Timer timer;
 
+    private final HistogramStatisticImpl writeBatchSizeStatistic =
+        new HistogramStatisticImpl("writeBatchSize", "bytes", "Size of the batches written to the journal");
+    private final HistogramStatisticImpl syncLatencyStatistic =
+        new HistogramStatisticImpl("syncLatency", "microseconds", "Time taken to sync a batch to disk");
+
     public synchronized void start() throws IOException {
         if (started) {
             return;
@@ -132,6 +163,10 @@ public class Journal {
         preferedFileLength = Math.max(PREFERED_DIFF, getMaxFileLength() - PREFERED_DIFF);
 
         appender = callerBufferAppender ? new CallerBufferingDataFileAppender(this) : new DataFileAppender(this);
+        if (preallocateDataFiles) {
+            preallocator = new DataFilePreallocator(this);
+            preallocator.start();
+        }
 
         File[] files = directory.listFiles(new FilenameFilter() {
             public boolean accept(File dir, String n) {
@@ -173,11 +208,22 @@ public class Journal {
         }
 
         getCurrentWriteFile();
+        updateDataFilesSnapshot();
 
         if( lastAppendLocation.get()==null ) {
             DataFile df = dataFiles.getTail();
+            DataFile previous = df.getPrevious();
+            if (preallocateDataFiles && previous != null && previous.getLength() >= maxFileLength) {
+                // we may have stopped before the appender trimmed its zero filled tail.
+                recoveryCheck(previous);
+            }
             lastAppendLocation.set(recoveryCheck(df));
         }
+        lastWrittenLocation.set(lastAppendLocation.get());
+
+        if (preallocator != null) {
+            preallocator.preallocate(dataFiles.getTail().getDataFileId() + 1);
+        }
 
         cleanupTask = new Runnable() {
             public void run() {
@@ -212,6 +258,11 @@ public class Journal {
                     location.setOffset(location.getOffset()+BATCH_CONTROL_RECORD_SIZE+size);
                 } else {
 
+                    if (preallocateDataFiles && isZeroFilled(reader, location.getOffset())) {
+                        // we've reached the unused part of a preallocated file.
+                        break;
+                    }
+
                     // Perhaps it's just some corruption... scan through the file to find the next valid batch record.  We
                     // may have subsequent valid batch records.
                     int nextOffset = findNextBatchRecord(reader, location.getOffset()+1);
@@ -247,6 +298,17 @@ public class Journal {
         return location;
     }
 
+    private boolean isZeroFilled(DataFileAccessor reader, int offset) throws IOException {
+        byte data[] = new byte[BATCH_CONTROL_RECORD_SIZE];
+        int size = reader.read(offset, data);
+        for (int i = 0; i < size; i++) {
+            if (data[i] != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     private int findNextBatchRecord(DataFileAccessor reader, int offset) throws IOException {
         ByteSequence header = new ByteSequence(BATCH_CONTROL_RECORD_HEADER);
         byte data[] = new byte[1024*4];
@@ -298,13 +360,18 @@ public class Journal {
                 return size;
             }
 
+            // The batch says which algorithm produced its checksum.
+            Checksum checksum = JournalChecksum.create(JournalChecksum.algorithmIdOf(expectedChecksum));
+            if( checksum == null ) {
+                return -1;
+            }
+
             byte data[] = new byte[size];
             reader.readFully(offset+BATCH_CONTROL_RECORD_SIZE, data);
 
-            Checksum checksum = new Adler32();
             checksum.update(data, 0, data.length);
 
-            if( expectedChecksum!=checksum.getValue() ) {
+            if( JournalChecksum.valueOf(expectedChecksum)!=checksum.getValue() ) {
                 return -1;
             }
 
@@ -313,6 +380,32 @@ public class Journal {
     }
 
 
+    /**
+     * @return the checksum to store in the control record of a batch, tagged with the configured algorithm.
+     */
+    long batchChecksum(byte[] data, int offset, int length) {
+        Checksum checksum = JournalChecksum.create(checksumAlgorithmId);
+        checksum.update(data, offset, length);
+        return JournalChecksum.encode(checksumAlgorithmId, checksum.getValue());
+    }
+
+    static boolean isUserRecord(byte type) {
+        return type == USER_RECORD_TYPE || type == USER_CHECKSUM_RECORD_TYPE;
+    }
+
+    /**
+     * @return the space a record of the given type takes in the journal beyond its data.
+     */
+    static int recordOverhead(byte type) {
+        return type == USER_CHECKSUM_RECORD_TYPE ? RECORD_HEAD_SPACE + RECORD_CHECKSUM_SPACE : RECORD_HEAD_SPACE;
+    }
+
+    static void verifyRecord(Location location, byte[] data, int offset, int length, int expectedChecksum) throws IOException {
+        if (JournalChecksum.recordChecksum(data, offset, length) != expectedChecksum) {
+            throw new IOException("Journal record checksum mismatch at location: " + location);
+        }
+    }
+
     void addToTotalLength(int size) {
         totalLength.addAndGet(size);
     }
@@ -332,25 +425,48 @@ public class Journal {
         int nextNum = !dataFiles.isEmpty() ? dataFiles.getTail().getDataFileId().intValue() + 1 : 1;
         File file = getFile(nextNum);
         DataFile nextWriteFile = new DataFile(file, nextNum, preferedFileLength);
+        if (preallocator != null) {
+            preallocator.moveInto(nextNum, file);
+            preallocator.preallocate(nextNum + 1);
+        }
         // actually allocate the disk space
         fileMap.put(nextWriteFile.getDataFileId(), nextWriteFile);
         fileByFileMap.put(file, nextWriteFile);
         dataFiles.addLast(nextWriteFile);
+        updateDataFilesSnapshot();
         return nextWriteFile;
     }
 
+    /**
+     * Republishes the read only view of the dataFiles list, must be called
+     * while holding the journal lock after the list has been modified.
+     */
+    protected void updateDataFilesSnapshot() {
+        TreeMap<Integer, DataFile> snapshot = new TreeMap<Integer, DataFile>();
+        for (DataFile dataFile = dataFiles.getHead(); dataFile != null; dataFile = dataFile.getNext()) {
+            snapshot.put(dataFile.getDataFileId(), dataFile);
+        }
+        dataFilesSnapshot = snapshot;
+    }
+
     public File getFile(int nextNum) {
         String fileName = filePrefix + nextNum + fileSuffix;
         File file = new File(directory, fileName);
         return file;
     }
 
-    synchronized DataFile getDataFile(Location item) throws IOException {
+    DataFile getDataFile(Location item) throws IOException {
         Integer key = Integer.valueOf(item.getDataFileId());
-        DataFile dataFile = fileMap.get(key);
+        DataFile dataFile = dataFilesSnapshot.get(key);
         if (dataFile == null) {
-            LOG.error("Looking for key " + key + " but not found in fileMap: " + fileMap);
-            throw new IOException("Could not locate data file " + getFile(item.getDataFileId()));
+            // not linked in yet (or anymore), fall back to the full map.
+            synchronized (this) {
+                dataFile = fileMap.get(key);
+                if (dataFile == null) {
+                    LOG.error("Looking for key " + key + " but not found in fileMap: " + fileMap);
+                    throw new IOException("Could not locate data file " + getFile(item.getDataFileId()));
+                }
+            }
         }
         return dataFile;
     }
@@ -365,8 +481,48 @@ public class Journal {
         return dataFile.getFile();
     }
 
+    /**
+     * @return an accessor over the mapped data file when mapped reads are enabled,
+     * the file is complete and the location is not waiting to be written, otherwise
+     * null and a DataFileAccessor should be used.
+     */
+    private MappedDataFileAccessor getMappedAccessor(DataFile dataFile, Location location) throws IOException {
+        if (!enableMemoryMappedReads || inflightWrites.containsKey(new WriteKey(location))) {
+            return null;
+        }
+        // batches are written in order, so once the appender has written a batch
+        // to a later file every record of this one is in the file.
+        Location lastWritten = lastWrittenLocation.get();
+        if (lastWritten == null || dataFile.getDataFileId().intValue() >= lastWritten.getDataFileId()) {
+            return null;
+        }
+        return dataFile.getMappedAccessor();
+    }
+
+    /**
+     * Reads the size and type of the record at the location into it.
+     */
+    public void readLocationDetails(Location location) throws IOException {
+        readLocationDetails(getDataFile(location), location);
+    }
+
+    private void readLocationDetails(DataFile dataFile, Location cur) throws IOException {
+        MappedDataFileAccessor mapped = getMappedAccessor(dataFile, cur);
+        if (mapped != null) {
+            mapped.readLocationDetails(cur);
+            return;
+        }
+        DataFileAccessor reader = accessorPool.openDataFileAccessor(dataFile);
+        try {
+            reader.readLocationDetails(cur);
+        } finally {
+            accessorPool.closeDataFileAccessor(reader);
+        }
+    }
+
     private DataFile getNextDataFile(DataFile dataFile) {
-        return dataFile.getNext();
+        Map.Entry<Integer, DataFile> next = dataFilesSnapshot.higherEntry(dataFile.getDataFileId());
+        return next != null ? next.getValue() : null;
     }
 
     public synchronized void close() throws IOException {
@@ -376,12 +532,21 @@ public class Journal {
         if (this.timer != null) {
             this.timer.cancel();
         }
+        if (preallocator != null) {
+            preallocator.stop();
+            preallocator = null;
+        }
         accessorPool.close();
         appender.close();
+        for (DataFile dataFile : fileMap.values()) {
+            dataFile.unmap();
+        }
         fileMap.clear();
         fileByFileMap.clear();
         dataFiles.clear();
+        updateDataFilesSnapshot();
         lastAppendLocation.set(null);
+        lastWrittenLocation.set(null);
         started = false;
     }
 
@@ -396,21 +561,30 @@ public class Journal {
         // Close all open file handles...
         appender.close();
         accessorPool.close();
+        if (preallocator != null) {
+            preallocator.stop();
+        }
 
         boolean result = true;
         for (Iterator<DataFile> i = fileMap.values().iterator(); i.hasNext();) {
             DataFile dataFile = i.next();
             totalLength.addAndGet(-dataFile.getLength());
+            dataFile.unmap();
             result &= dataFile.delete();
         }
         fileMap.clear();
         fileByFileMap.clear();
         lastAppendLocation.set(null);
+        lastWrittenLocation.set(null);
         dataFiles = new LinkedNodeList<DataFile>();
+        updateDataFilesSnapshot();
 
         // reopen open file handles...
         accessorPool = new DataFileAccessorPool(this);
         appender = new DataFileAppender(this);
+        if (preallocator != null) {
+            preallocator.start();
+        }
         return result;
     }
 
@@ -428,11 +602,16 @@ public class Journal {
     }
 
     private synchronized void forceRemoveDataFile(DataFile dataFile) throws IOException {
-        accessorPool.disposeDataFileAccessors(dataFile);
+        // stop new readers first, those already reading finish with the
+        // file, which stays readable until they close it
+        dataFile.retire();
         fileByFileMap.remove(dataFile.getFile());
         fileMap.remove(dataFile.getDataFileId());
         totalLength.addAndGet(-dataFile.getLength());
         dataFile.unlink();
+        updateDataFilesSnapshot();
+        accessorPool.disposeDataFileAccessors(dataFile);
+        dataFile.unmap();
         if (archiveDataLogs) {
             dataFile.move(getDirectoryArchive());
             LOG.debug("moved data file " + dataFile + " to " + getDirectoryArchive());
@@ -479,23 +658,24 @@ public class Journal {
             fileMap.put(dataFile.getDataFileId(), dataFile);
             fileByFileMap.put(file, dataFile);
             dataFiles.addLast(dataFile);
+            updateDataFilesSnapshot();
         } else {
             throw new IOException("Invalid external append.");
         }
     }
 
-    public synchronized Location getNextLocation(Location location) throws IOException, IllegalStateException {
+    public Location getNextLocation(Location location) throws IOException, IllegalStateException {
 
         Location cur = null;
         while (true) {
             if (cur == null) {
                 if (location == null) {
-                    DataFile head = dataFiles.getHead();
+                    Map.Entry<Integer, DataFile> head = dataFilesSnapshot.firstEntry();
                     if( head == null ) {
                         return null;
                     }
                     cur = new Location();
-                    cur.setDataFileId(head.getDataFileId());
+                    cur.setDataFileId(head.getKey());
                     cur.setOffset(0);
                 } else {
                     // Set to the next offset..
@@ -524,36 +704,37 @@ public class Journal {
             }
 
             // Load in location size and type.
-            DataFileAccessor reader = accessorPool.openDataFileAccessor(dataFile);
-            try {
-                reader.readLocationDetails(cur);
-            } finally {
-                accessorPool.closeDataFileAccessor(reader);
-            }
+            readLocationDetails(dataFile, cur);
 
             if (cur.getType() == 0) {
                 return null;
-            } else if (cur.getType() == USER_RECORD_TYPE) {
+            } else if (isUserRecord(cur.getType())) {
                 // Only return user records.
                 return cur;
             }
         }
     }
 
-    public synchronized Location getNextLocation(File file, Location lastLocation, boolean thisFileOnly) throws IllegalStateException, IOException {
-        DataFile df = fileByFileMap.get(file);
+    public Location getNextLocation(File file, Location lastLocation, boolean thisFileOnly) throws IllegalStateException, IOException {
+        DataFile df;
+        synchronized (this) {
+            df = fileByFileMap.get(file);
+        }
         return getNextLocation(df, lastLocation, thisFileOnly);
     }
 
-    public synchronized Location getNextLocation(DataFile dataFile, Location lastLocation, boolean thisFileOnly) throws IOException, IllegalStateException {
+    public Location getNextLocation(DataFile dataFile, Location lastLocation, boolean thisFileOnly) throws IOException, IllegalStateException {
 
         Location cur = null;
         while (true) {
             if (cur == null) {
                 if (lastLocation == null) {
-                    DataFile head = dataFile.getHeadNode();
+                    Map.Entry<Integer, DataFile> head = dataFilesSnapshot.firstEntry();
+                    if( head == null ) {
+                        return null;
+                    }
                     cur = new Location();
-                    cur.setDataFileId(head.getDataFileId());
+                    cur.setDataFileId(head.getKey());
                     cur.setOffset(0);
                 } else {
                     // Set to the next offset..
@@ -580,12 +761,7 @@ public class Journal {
             }
 
             // Load in location size and type.
-            DataFileAccessor reader = accessorPool.openDataFileAccessor(dataFile);
-            try {
-                reader.readLocationDetails(cur);
-            } finally {
-                accessorPool.closeDataFileAccessor(reader);
-            }
+            readLocationDetails(dataFile, cur);
 
             if (cur.getType() == 0) {
                 return null;
@@ -596,8 +772,12 @@ public class Journal {
         }
     }
 
-    public synchronized ByteSequence read(Location location) throws IOException, IllegalStateException {
+    public ByteSequence read(Location location) throws IOException, IllegalStateException {
         DataFile dataFile = getDataFile(location);
+        MappedDataFileAccessor mapped = getMappedAccessor(dataFile, location);
+        if (mapped != null) {
+            return mapped.readRecord(location);
+        }
         DataFileAccessor reader = accessorPool.openDataFileAccessor(dataFile);
         ByteSequence rc = null;
         try {
@@ -608,16 +788,75 @@ public class Journal {
         return rc;
     }
 
+    /**
+     * Reads the records at the given locations, returned in the same order.
+     * The locations are visited in order of file and offset, and those close
+     * enough together in a data file are read with one read of the span they
+     * cover rather than one each.
+     */
+    public ByteSequence[] read(final Location[] locations) throws IOException, IllegalStateException {
+        Integer[] order = new Integer[locations.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return locations[a].compareTo(locations[b]);
+            }
+        });
+        Location[] sorted = new Location[locations.length];
+        for (int i = 0; i < order.length; i++) {
+            sorted[i] = locations[order[i]];
+        }
+
+        ByteSequence[] read = new ByteSequence[sorted.length];
+        for (int from = 0, to; from < sorted.length; from = to) {
+            Location first = sorted[from];
+            for (to = from + 1; to < sorted.length; to++) {
+                Location next = sorted[to];
+                if (next.getDataFileId() != first.getDataFileId()
+                        || next.getOffset() - sorted[to - 1].getOffset() > READ_AHEAD_GAP
+                        || next.getOffset() - first.getOffset() > READ_AHEAD_SPAN) {
+                    break;
+                }
+            }
+            DataFile dataFile = getDataFile(first);
+            if (to - from == 1 || getMappedAccessor(dataFile, first) != null) {
+                for (int i = from; i < to; i++) {
+                    read[i] = read(sorted[i]);
+                }
+            } else {
+                DataFileAccessor reader = accessorPool.openDataFileAccessor(dataFile);
+                try {
+                    reader.readRecords(sorted, from, to, READ_AHEAD_TAIL, read);
+                } finally {
+                    accessorPool.closeDataFileAccessor(reader);
+                }
+            }
+        }
+
+        ByteSequence[] rc = new ByteSequence[locations.length];
+        for (int i = 0; i < order.length; i++) {
+            rc[order[i]] = read[i];
+        }
+        return rc;
+    }
+
     public Location write(ByteSequence data, boolean sync) throws IOException, IllegalStateException {
-        Location loc = appender.storeItem(data, Location.USER_TYPE, sync);
+        Location loc = appender.storeItem(data, getUserRecordType(), sync);
         return loc;
     }
 
     public Location write(ByteSequence data, Runnable onComplete) throws IOException, IllegalStateException {
-        Location loc = appender.storeItem(data, Location.USER_TYPE, onComplete);
+        Location loc = appender.storeItem(data, getUserRecordType(), onComplete);
         return loc;
     }
 
+    private byte getUserRecordType() {
+        return enableRecordChecksums ? USER_CHECKSUM_RECORD_TYPE : Location.USER_TYPE;
+    }
+
     public void update(Location location, ByteSequence data, boolean sync) throws IOException {
         DataFile dataFile = getDataFile(location);
         DataFileAccessor updater = accessorPool.openDataFileAccessor(dataFile);
@@ -656,6 +895,15 @@ public class Journal {
         this.lastAppendLocation.set(lastSyncedLocation);
     }
 
+    /**
+     * Called by the appender once the batch ending at the location is in the
+     * data file.
+     */
+    void written(Location location) {
+        lastAppendLocation.set(location);
+        lastWrittenLocation.set(location);
+    }
+
     public File getDirectoryArchive() {
         return directoryArchive;
     }
@@ -732,6 +980,32 @@ public class Journal {
         this.checksum = checksumWrites;
     }
 
+    public String getChecksumAlgorithm() {
+        return checksumAlgorithm;
+    }
+
+    /**
+     * The algorithm used to checksum write batches when checksum is set,
+     * either Adler32 or CRC32C.  Batches remember their algorithm, so it can
+     * be changed on an existing journal.
+     */
+    public void setChecksumAlgorithm(String checksumAlgorithm) {
+        this.checksumAlgorithmId = JournalChecksum.getAlgorithmId(checksumAlgorithm);
+        this.checksumAlgorithm = checksumAlgorithm;
+    }
+
+    public boolean isEnableRecordChecksums() {
+        return enableRecordChecksums;
+    }
+
+    /**
+     * When set each record written is followed by a CRC32C of its data,
+     * which read verifies without loading the rest of the write batch.
+     */
+    public void setEnableRecordChecksums(boolean enableRecordChecksums) {
+        this.enableRecordChecksums = enableRecordChecksums;
+    }
+
     public boolean isCheckForCorruptionOnStartup() {
         return checkForCorruptionOnStartup;
     }
@@ -748,6 +1022,51 @@ public class Journal {
         return writeBatchSize;
     }
 
+    public long getMaxWriteBatchWaitMicros() {
+        return maxWriteBatchWaitMicros;
+    }
+
+    /**
+     * How long the appender may hold a partially filled write batch open so
+     * that more concurrent writes can share its sync, 0 to write it at once.
+     */
+    public void setMaxWriteBatchWaitMicros(long maxWriteBatchWaitMicros) {
+        this.maxWriteBatchWaitMicros = maxWriteBatchWaitMicros;
+    }
+
+    public boolean isEnablePipelinedSync() {
+        return enablePipelinedSync;
+    }
+
+    /**
+     * When enabled the appender syncs batches on a separate thread, so the next
+     * batch is written while the previous one is being synced.
+     */
+    public void setEnablePipelinedSync(boolean enablePipelinedSync) {
+        this.enablePipelinedSync = enablePipelinedSync;
+    }
+
+    public boolean isPreallocateDataFiles() {
+        return preallocateDataFiles;
+    }
+
+    /**
+     * When enabled, the next data file is zero filled to the max file length in
+     * the background so appends never grow the file, and recovery treats a zero
+     * filled batch record as the end of the file.
+     */
+    public void setPreallocateDataFiles(boolean preallocateDataFiles) {
+        this.preallocateDataFiles = preallocateDataFiles;
+    }
+
+    public HistogramStatisticImpl getWriteBatchSizeStatistic() {
+        return writeBatchSizeStatistic;
+    }
+
+    public HistogramStatisticImpl getSyncLatencyStatistic() {
+        return syncLatencyStatistic;
+    }
+
     public void setSizeAccumulator(AtomicLong storeSizeAccumulator) {
        this.totalLength = storeSizeAccumulator;
     }
@@ -760,6 +1079,18 @@ public class Journal {
         return enableAsyncDiskSync;
     }
 
+    public boolean isEnableMemoryMappedReads() {
+        return enableMemoryMappedReads;
+    }
+
+    /**
+     * When enabled, records in completed data files are read through a read only
+     * memory mapping of the file rather than with seek and read calls.
+     */
+    public void setEnableMemoryMappedReads(boolean enableMemoryMappedReads) {
+        this.enableMemoryMappedReads = enableMemoryMappedReads;
+    }
+
     public static class WriteCommand extends LinkedNode<WriteCommand> {
         public final Location location;
         public final ByteSequence data;
@@ -0,0 +1,185 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.store.kahadb.disk.journal;
+
+import java.lang.reflect.Constructor;
+import java.util.zip.Adler32;
+import java.util.zip.Checksum;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Creates the checksums used to protect journal write batches and records.
+ *
+ * The algorithm that produced a batch checksum is stored in the top byte of
+ * the batch control record's checksum field, Adler32 being 0 so that batches
+ * written before the algorithm could be chosen still verify.  CRC32C uses the
+ * JVM's intrinsic backed java.util.zip.CRC32C when there is one and a table
+ * driven implementation otherwise.
+ */
+public final class JournalChecksum {
+
+    private static final Logger LOG = LoggerFactory.getLogger(JournalChecksum.class);
+
+    public static final String ADLER32 = "Adler32";
+    public static final String CRC32C = "CRC32C";
+
+    static final int ADLER32_ID = 0;
+    static final int CRC32C_ID = 1;
+
+    private static final int ALGORITHM_SHIFT = 56;
+    private static final long VALUE_MASK = 0xFFFFFFFFL;
+
+    // resolved once, null if the JVM has no java.util.zip.CRC32C
+    private static final Constructor<? extends Checksum> JDK_CRC32C = findJdkCrc32c();
+
+    private JournalChecksum() {
+    }
+
+    /**
+     * @return the id stored with batches checksummed by the named algorithm.
+     * @throws IllegalArgumentException if the algorithm is not supported.
+     */
+    public static int getAlgorithmId(String algorithm) {
+        if (ADLER32.equalsIgnoreCase(algorithm)) {
+            return ADLER32_ID;
+        } else if (CRC32C.equalsIgnoreCase(algorithm)) {
+            return CRC32C_ID;
+        }
+        throw new IllegalArgumentException("Unsupported journal checksum algorithm: " + algorithm);
+    }
+
+    /**
+     * @return a new checksum for the algorithm id, or null if the id is unknown.
+     */
+    public static Checksum create(int algorithmId) {
+        switch (algorithmId) {
+        case ADLER32_ID:
+            return new Adler32();
+        case CRC32C_ID:
+            return createCrc32c();
+        default:
+            return null;
+        }
+    }
+
+    public static Checksum createCrc32c() {
+        if (JDK_CRC32C != null) {
+            try {
+                return JDK_CRC32C.newInstance();
+            } catch (Exception e) {
+                // it was created when the constructor was resolved
+                throw new IllegalStateException("Failed to create a java.util.zip.CRC32C", e);
+            }
+        }
+        return new Crc32c();
+    }
+
+    /**
+     * @return the value to store in a batch control record, tagged with the algorithm id.
+     */
+    static long encode(int algorithmId, long value) {
+        return ((long) algorithmId << ALGORITHM_SHIFT) | (value & VALUE_MASK);
+    }
+
+    static int algorithmIdOf(long encoded) {
+        return (int) (encoded >>> ALGORITHM_SHIFT);
+    }
+
+    static long valueOf(long encoded) {
+        return encoded & VALUE_MASK;
+    }
+
+    /**
+     * @return the CRC32C of a record's payload, as stored after it in a checksummed record.
+     */
+    public static int recordChecksum(byte[] data, int offset, int length) {
+        Checksum checksum = createCrc32c();
+        checksum.update(data, offset, length);
+        return (int) checksum.getValue();
+    }
+
+    private static Constructor<? extends Checksum> findJdkCrc32c() {
+        try {
+            Constructor<? extends Checksum> constructor = Class.forName("java.util.zip.CRC32C").asSubclass(Checksum.class).getConstructor();
+            constructor.newInstance();
+            return constructor;
+        } catch (ClassNotFoundException e) {
+            return null;
+        } catch (Exception e) {
+            LOG.warn("Using the table driven CRC32C, as java.util.zip.CRC32C could not be created", e);
+            return null;
+        }
+    }
+
+    /**
+     * Slicing-by-8 CRC32C (Castagnoli) for JVMs without java.util.zip.CRC32C.
+     */
+    static final class Crc32c implements Checksum {
+
+        private static final int[][] TABLES = createTables();
+
+        private int crc = 0xFFFFFFFF;
+
+        public void update(int b) {
+            crc = (crc >>> 8) ^ TABLES[0][(crc ^ b) & 0xFF];
+        }
+
+        public void update(byte[] b, int off, int len) {
+            int c = crc;
+            final int[] t0 = TABLES[0], t1 = TABLES[1], t2 = TABLES[2], t3 = TABLES[3];
+            final int[] t4 = TABLES[4], t5 = TABLES[5], t6 = TABLES[6], t7 = TABLES[7];
+            int end = off + len;
+            while (end - off >= 8) {
+                c ^= (b[off] & 0xFF) | (b[off + 1] & 0xFF) << 8 | (b[off + 2] & 0xFF) << 16 | (b[off + 3] & 0xFF) << 24;
+                c = t7[c & 0xFF] ^ t6[(c >>> 8) & 0xFF] ^ t5[(c >>> 16) & 0xFF] ^ t4[c >>> 24]
+                    ^ t3[b[off + 4] & 0xFF] ^ t2[b[off + 5] & 0xFF] ^ t1[b[off + 6] & 0xFF] ^ t0[b[off + 7] & 0xFF];
+                off += 8;
+            }
+            while (off < end) {
+                c = (c >>> 8) ^ t0[(c ^ b[off++]) & 0xFF];
+            }
+            crc = c;
+        }
+
+        public long getValue() {
+            return (~crc) & VALUE_MASK;
+        }
+
+        public void reset() {
+            crc = 0xFFFFFFFF;
+        }
+
+        private static int[][] createTables() {
+            int[][] tables = new int[8][256];
+            for (int i = 0; i < 256; i++) {
+                int c = i;
+                for (int k = 0; k < 8; k++) {
+                    c = (c & 1) != 0 ? (c >>> 1) ^ 0x82F63B78 : c >>> 1;
+                }
+                tables[0][i] = c;
+            }
+            for (int i = 0; i < 256; i++) {
+                for (int t = 1; t < 8; t++) {
+                    tables[t][i] = (tables[t - 1][i] >>> 8) ^ tables[0][tables[t - 1][i] & 0xFF];
+                }
+            }
+            return tables;
+        }
+    }
+}
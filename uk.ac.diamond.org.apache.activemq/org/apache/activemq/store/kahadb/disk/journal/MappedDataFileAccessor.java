@@ -0,0 +1,81 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.store.kahadb.disk.journal;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.apache.activemq.util.ByteSequence;
+
+/**
+ * Reads records from a read only memory mapping of a completed DataFile.
+ * Unlike the DataFileAccessor it is safe for concurrent use, each read works
+ * on its own view of the mapping so no seek or read system calls are needed.
+ */
+final class MappedDataFileAccessor {
+
+    private final DataFile dataFile;
+    private final ByteBuffer buffer;
+
+    MappedDataFileAccessor(DataFile dataFile, ByteBuffer buffer) {
+        this.dataFile = dataFile;
+        this.buffer = buffer;
+    }
+
+    public DataFile getDataFile() {
+        return dataFile;
+    }
+
+    public ByteSequence readRecord(Location location) throws IOException {
+
+        if (!location.isValid()) {
+            throw new IOException("Invalid location: " + location);
+        }
+
+        try {
+            ByteBuffer view = buffer.duplicate();
+            if (location.getSize() == Location.NOT_SET || location.getType() == Location.NOT_SET_TYPE) {
+                view.position(location.getOffset());
+                location.setSize(view.getInt());
+                location.setType(view.get());
+            } else {
+                view.position(location.getOffset() + Journal.RECORD_HEAD_SPACE);
+            }
+
+            byte[] data = new byte[location.getSize() - Journal.recordOverhead(location.getType())];
+            view.get(data);
+            if (location.getType() == Journal.USER_CHECKSUM_RECORD_TYPE) {
+                Journal.verifyRecord(location, data, 0, data.length, view.getInt());
+            }
+            return new ByteSequence(data, 0, data.length);
+
+        } catch (RuntimeException e) {
+            throw new IOException("Invalid location: " + location + ", : " + e);
+        }
+    }
+
+    public void readLocationDetails(Location location) throws IOException {
+        try {
+            ByteBuffer view = buffer.duplicate();
+            view.position(location.getOffset());
+            location.setSize(view.getInt());
+            location.setType(view.get());
+        } catch (RuntimeException e) {
+            throw new IOException("Invalid location: " + location + ", : " + e);
+        }
+    }
+}
@@ -76,6 +76,7 @@ public class ReadOnlyJournal extends Journal {
             dataFiles.addLast(df);
             fileByFileMap.put(df.getFile(), df);
         }
+        updateDataFilesSnapshot();
         
 //        // Need to check the current Write File to see if there was a partial
 //        // write to it.
@@ -105,6 +106,8 @@ public class ReadOnlyJournal extends Journal {
         accessorPool.close();
         fileMap.clear();
         fileByFileMap.clear();
+        dataFiles.clear();
+        updateDataFilesSnapshot();
         started = false;
     }
 
@@ -0,0 +1,201 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.store.kahadb.disk.page;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.activemq.management.CountStatisticImpl;
+
+/**
+ * A cache of the on disk image of pages, held in direct ByteBuffer slabs so
+ * it does not add to the heap the garbage collector has to trace.
+ *
+ * The cache is bounded by bytes and split into stripes by page id, each stripe
+ * owning its own slab of page sized slots and its own LRU index, so readers of
+ * different pages rarely contend.
+ */
+public class OffHeapPageCache {
+
+    static final int STRIPES = 16;
+
+    private final int pageSize;
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    private final CountStatisticImpl hits = new CountStatisticImpl("hits", "The number of page reads served from the cache");
+    private final CountStatisticImpl misses = new CountStatisticImpl("misses", "The number of page reads that went to disk");
+    private final CountStatisticImpl evictions = new CountStatisticImpl("evictions", "The number of pages evicted from the cache");
+
+    public OffHeapPageCache(int pageSize, long maxBytes) {
+        this.pageSize = pageSize;
+        hits.setEnabled(true);
+        misses.setEnabled(true);
+        evictions.setEnabled(true);
+        long slots = Math.max(1, maxBytes / pageSize / STRIPES);
+        slots = Math.min(slots, Integer.MAX_VALUE / pageSize);
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe((int)slots);
+        }
+    }
+
+    private Stripe stripe(long pageId) {
+        long h = pageId * 0x9E3779B97F4A7C15L;
+        return stripes[(int)(h >>> 60) & (STRIPES - 1)];
+    }
+
+    /**
+     * Copies the start of a cached page into data.
+     *
+     * @return true if the page was in the cache
+     */
+    boolean get(long pageId, byte[] data) {
+        Stripe stripe = stripe(pageId);
+        synchronized (stripe) {
+            Integer slot = stripe.index.get(pageId);
+            if (slot != null) {
+                ByteBuffer view = stripe.slab.duplicate();
+                view.position(slot.intValue() * pageSize);
+                view.get(data, 0, Math.min(data.length, pageSize));
+                hits.increment();
+                return true;
+            }
+        }
+        misses.increment();
+        return false;
+    }
+
+    /**
+     * @return a token that must be passed to {@link #put} so a page read from
+     *         disk is not cached if it was written while the read was in progress
+     */
+    long getVersion(long pageId) {
+        Stripe stripe = stripe(pageId);
+        synchronized (stripe) {
+            return stripe.version;
+        }
+    }
+
+    /**
+     * Caches a full page read from disk.
+     */
+    void put(long pageId, byte[] data, long version) {
+        Stripe stripe = stripe(pageId);
+        synchronized (stripe) {
+            if (stripe.version == version) {
+                store(stripe, pageId, data);
+            }
+        }
+    }
+
+    /**
+     * Refreshes a cached page once a new image of it has been written to disk.
+     */
+    void update(long pageId, byte[] data) {
+        Stripe stripe = stripe(pageId);
+        synchronized (stripe) {
+            stripe.version++;
+            if (stripe.index.containsKey(pageId)) {
+                store(stripe, pageId, data);
+            }
+        }
+    }
+
+    void clear() {
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                stripe.version++;
+                stripe.index.clear();
+                stripe.free = stripe.slots;
+            }
+        }
+    }
+
+    private void store(Stripe stripe, long pageId, byte[] data) {
+        Integer slot = stripe.index.get(pageId);
+        if (slot == null) {
+            if (stripe.free > 0) {
+                slot = stripe.slots - stripe.free;
+                stripe.free--;
+            } else {
+                Iterator<Map.Entry<Long, Integer>> eldest = stripe.index.entrySet().iterator();
+                slot = eldest.next().getValue();
+                eldest.remove();
+                evictions.increment();
+            }
+            stripe.index.put(pageId, slot);
+        }
+        ByteBuffer view = stripe.slab.duplicate();
+        view.position(slot.intValue() * pageSize);
+        view.put(data, 0, pageSize);
+    }
+
+    public CountStatisticImpl getHits() {
+        return hits;
+    }
+
+    public CountStatisticImpl getMisses() {
+        return misses;
+    }
+
+    public CountStatisticImpl getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @return the number of pages currently cached
+     */
+    public long getSize() {
+        long rc = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                rc += stripe.index.size();
+            }
+        }
+        return rc;
+    }
+
+    /**
+     * @return the number of bytes of direct memory held by the cache
+     */
+    public long getCapacity() {
+        return (long)stripes[0].slots * pageSize * STRIPES;
+    }
+
+    @Override
+    public String toString() {
+        return "OffHeapPageCache { capacity: " + getCapacity() + " bytes, pages: " + getSize() +
+               ", hits: " + hits.getCount() + ", misses: " + misses.getCount() +
+               ", evictions: " + evictions.getCount() + " }";
+    }
+
+    private final class Stripe {
+        final int slots;
+        final ByteBuffer slab;
+        // pageId -> slot, in access order so the first entry is the one to evict.
+        final LinkedHashMap<Long, Integer> index = new LinkedHashMap<Long, Integer>(16, 0.75f, true);
+        int free;
+        long version;
+
+        Stripe(int slots) {
+            this.slots = slots;
+            this.free = slots;
+            this.slab = ByteBuffer.allocateDirect(slots * pageSize);
+        }
+    }
+}
@@ -113,6 +113,10 @@ public class PageFile {
     private boolean enablePageCaching = true;
     // How many pages will we keep in the cache?
     private int pageCacheSize = DEFAULT_PAGE_CACHE_SIZE;
+    // Cache of page images kept in direct memory, behind the page cache.
+    private OffHeapPageCache offHeapPageCache;
+    // How many bytes of direct memory to use for it, 0 disables it.
+    private long offHeapPageCacheSize;
 
     // Should first log the page write to the recovery buffer? Avoids partial
     // page write failures..
@@ -129,10 +133,15 @@ public class PageFile {
 
     // Keeps track of writes that are being written to disk.
     private TreeMap<Long, PageWrite> writes = new TreeMap<Long, PageWrite>();
+    // Only one write batch goes to disk at a time. Held without the writes lock so pages
+    // can be updated, into a copy, while a batch is being written.
+    private final Object writeBatchMutex = new Object();
 
     // Keeps track of free pages.
     private final AtomicLong nextFreePageId = new AtomicLong();
     private SequenceSet freeList = new SequenceSet();
+    // Transactions on different destinations can allocate and free pages concurrently.
+    private final Object freeListMutex = new Object();
 
     private AtomicLong nextTxid = new AtomicLong();
 
@@ -400,6 +409,10 @@ public class PageFile {
                 recoveryFile = new RandomAccessFile(getRecoveryFile(), "rw");
             }
 
+            if (offHeapPageCacheSize > 0) {
+                offHeapPageCache = new OffHeapPageCache(pageSize, offHeapPageCacheSize);
+            }
+
             if (metaData.isCleanShutdown()) {
                 nextTxid.set(metaData.getLastTxId() + 1);
                 if (metaData.getFreePages() > 0) {
@@ -475,6 +488,10 @@ public class PageFile {
                 if (pageCache != null) {
                     pageCache = null;
                 }
+                if (offHeapPageCache != null) {
+                    offHeapPageCache.clear();
+                    offHeapPageCache = null;
+                }
                 synchronized (writes) {
                     writes.clear();
                 }
@@ -512,10 +529,13 @@ public class PageFile {
                 checkpointLatch = this.checkpointLatch;
                 writes.notify();
             } else {
-                writeBatch();
-                return;
+                checkpointLatch = null;
             }
         }
+        if (checkpointLatch == null) {
+            writeBatch();
+            return;
+        }
         try {
             checkpointLatch.await();
         } catch (InterruptedException e) {
@@ -730,6 +750,29 @@ public class PageFile {
         this.pageCacheSize = pageCacheSize;
     }
 
+    /**
+     * @return the number of bytes of direct memory used to cache page images, 0 if disabled.
+     */
+    public long getOffHeapPageCacheSize() {
+        return this.offHeapPageCacheSize;
+    }
+
+    /**
+     * @param offHeapPageCacheSize Sets the number of bytes of direct memory used to cache page
+     *                             images that are not in the read page cache, 0 disables it.
+     */
+    public void setOffHeapPageCacheSize(long offHeapPageCacheSize) {
+        assertNotLoaded();
+        this.offHeapPageCacheSize = offHeapPageCacheSize;
+    }
+
+    /**
+     * @return the off heap page cache, or null if it is disabled or the page file is not loaded.
+     */
+    public OffHeapPageCache getOffHeapPageCache() {
+        return offHeapPageCache;
+    }
+
     public boolean isEnabledWriteThread() {
         return enabledWriteThread;
     }
@@ -830,7 +873,10 @@ public class PageFile {
             throw new IllegalArgumentException("The allocation count must be larger than zero");
         }
 
-        Sequence seq = freeList.removeFirstSequence(count);
+        Sequence seq;
+        synchronized (freeListMutex) {
+            seq = freeList.removeFirstSequence(count);
+        }
 
         // We may need to create new free pages...
         if (seq == null) {
@@ -871,13 +917,34 @@ public class PageFile {
         return nextTxid.incrementAndGet();
     }
 
-    synchronized void readPage(long pageId, byte[] data) throws IOException {
+    void readPage(long pageId, byte[] data) throws IOException {
+        OffHeapPageCache cache = offHeapPageCache;
+        if (cache == null) {
+            readPageFromDisk(pageId, data);
+        } else if (!cache.get(pageId, data)) {
+            long version = cache.getVersion(pageId);
+            if (data.length == pageSize) {
+                readPageFromDisk(pageId, data);
+                cache.put(pageId, data, version);
+            } else {
+                // Only the header was asked for, but cache the whole page.
+                byte[] page = new byte[pageSize];
+                readPageFromDisk(pageId, page);
+                cache.put(pageId, page, version);
+                System.arraycopy(page, 0, data, 0, data.length);
+            }
+        }
+    }
+
+    private synchronized void readPageFromDisk(long pageId, byte[] data) throws IOException {
         readFile.seek(toOffset(pageId));
         readFile.readFully(data);
     }
 
     public void freePage(long pageId) {
-        freeList.add(pageId);
+        synchronized (freeListMutex) {
+            freeList.add(pageId);
+        }
         removeFromCache(pageId);
     }
 
@@ -902,6 +969,7 @@ public class PageFile {
     }
 
     void write(Collection<Map.Entry<Long, PageWrite>> updates) throws IOException {
+        boolean startWriteBatch = false;
         synchronized (writes) {
             if (enabledWriteThread) {
                 while (writes.size() >= writeBatchSize && !stopWriter.get()) {
@@ -940,10 +1008,14 @@ public class PageFile {
                 if (enabledWriteThread) {
                     writes.notify();
                 } else {
-                    writeBatch();
+                    startWriteBatch = true;
                 }
             }
         }
+
+        if (startWriteBatch) {
+            writeBatch();
+        }
     }
 
     private boolean canStartWriteBatch() {
@@ -1019,6 +1091,12 @@ public class PageFile {
     }
 
     private void writeBatch() throws IOException {
+        synchronized (writeBatchMutex) {
+            doWriteBatch();
+        }
+    }
+
+    private void doWriteBatch() throws IOException {
 
         CountDownLatch checkpointLatch;
         ArrayList<PageWrite> batch;
@@ -1060,6 +1138,9 @@ public class PageFile {
 
             writeFile.seek(toOffset(w.page.getPageId()));
             writeFile.write(w.getDiskBound(), 0, pageSize);
+            if (offHeapPageCache != null) {
+                offHeapPageCache.update(w.page.getPageId(), w.getDiskBound());
+            }
             w.done();
         }
 
@@ -1114,7 +1195,9 @@ public class PageFile {
     }
 
     public void removeTmpFile(File file) {
-        tmpFilesForRemoval.add(file);
+        synchronized (writes) {
+            tmpFilesForRemoval.add(file);
+        }
     }
 
     private long recoveryFileSizeForPages(int pageCount) {
@@ -24,7 +24,9 @@ import org.apache.activemq.store.kahadb.disk.util.DataByteArrayOutputStream;
 import org.apache.activemq.util.IOHelper;
 
 import java.io.*;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.TreeMap;
 
@@ -104,6 +106,9 @@ public class Transaction implements Iterable<Page> {
 
     private long size = 0;
 
+    // Run once the transaction has committed or rolled back.
+    private List<Runnable> completionTasks;
+
     Transaction(PageFile pageFile) {
         this.pageFile = pageFile;
     }
@@ -654,46 +659,75 @@ public class Transaction implements Iterable<Page> {
      * with the transaction are written to disk or none will.
      */
     public void commit() throws IOException {
-        if( writeTransactionId!=-1 ) {
-            if (tmpFile != null) {
-                tmpFile.close();
-                pageFile.removeTmpFile(getTempFile());
-                tmpFile = null;
-                txFile = null;
+        try {
+            if( writeTransactionId!=-1 ) {
+                if (tmpFile != null) {
+                    tmpFile.close();
+                    pageFile.removeTmpFile(getTempFile());
+                    tmpFile = null;
+                    txFile = null;
+                }
+                // Actually do the page writes...
+                pageFile.write(writes.entrySet());
+                // Release the pages that were freed up in the transaction..
+                freePages(freeList);
+
+                freeList.clear();
+                allocateList.clear();
+                writes.clear();
+                writeTransactionId = -1;
             }
-            // Actually do the page writes...
-            pageFile.write(writes.entrySet());
-            // Release the pages that were freed up in the transaction..
-            freePages(freeList);
-
-            freeList.clear();
-            allocateList.clear();
-            writes.clear();
-            writeTransactionId = -1;
+            size = 0;
+        } finally {
+            complete();
         }
-        size = 0;
     }
 
     /**
      * Rolls back the transaction.
      */
     public void rollback() throws IOException {
-        if( writeTransactionId!=-1 ) {
-            if (tmpFile != null) {
-                tmpFile.close();
-                pageFile.removeTmpFile(getTempFile());
-                tmpFile = null;
-                txFile = null;
+        try {
+            if( writeTransactionId!=-1 ) {
+                if (tmpFile != null) {
+                    tmpFile.close();
+                    pageFile.removeTmpFile(getTempFile());
+                    tmpFile = null;
+                    txFile = null;
+                }
+                // Release the pages that were allocated in the transaction...
+                freePages(allocateList);
+
+                freeList.clear();
+                allocateList.clear();
+                writes.clear();
+                writeTransactionId = -1;
             }
-            // Release the pages that were allocated in the transaction...
-            freePages(allocateList);
+            size = 0;
+        } finally {
+            complete();
+        }
+    }
+
+    /**
+     * Runs the task when the transaction next commits or rolls back, once its
+     * page writes can be read by other transactions or have been discarded.
+     */
+    public void onCompletion(Runnable task) {
+        if (completionTasks == null) {
+            completionTasks = new ArrayList<Runnable>(2);
+        }
+        completionTasks.add(task);
+    }
 
-            freeList.clear();
-            allocateList.clear();
-            writes.clear();
-            writeTransactionId = -1;
+    private void complete() {
+        if (completionTasks != null) {
+            List<Runnable> tasks = completionTasks;
+            completionTasks = null;
+            for (Runnable task : tasks) {
+                task.run();
+            }
         }
-        size = 0;
     }
 
     private long getWriteTransactionId() {
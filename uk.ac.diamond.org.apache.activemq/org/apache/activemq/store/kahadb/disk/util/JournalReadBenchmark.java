@@ -0,0 +1,263 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.store.kahadb.disk.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.activemq.store.kahadb.disk.journal.Journal;
+import org.apache.activemq.store.kahadb.disk.journal.Location;
+import org.apache.activemq.util.ByteSequence;
+import org.apache.activemq.util.IOHelper;
+
+/**
+ * This class is used to benchmark how random journal read throughput scales
+ * with the number of concurrent reader threads.
+ *
+ * A journal is filled with fixed size records, then each thread count given in
+ * the threads option gets a warmup pass followed by a timed measurement pass.
+ */
+public class JournalReadBenchmark {
+
+    boolean verbose;
+    // size of each record written to the journal.
+    int bs = 1024;
+    int records = 100000;
+    // comma separated list of reader thread counts to measure.
+    String threads = "1,2,4,8,16";
+    long warmupInterval = 2 * 1000;
+    long sampleInterval = 10 * 1000;
+    int maxFileLength = Journal.DEFAULT_MAX_FILE_LENGTH;
+    boolean enableMemoryMappedReads;
+
+    public static void main(String[] args) {
+
+        JournalReadBenchmark benchmark = new JournalReadBenchmark();
+        args = CommandLineSupport.setOptions(benchmark, args);
+        File directory = new File(args.length == 0 ? "journal-read-benchmark" : args[0]);
+
+        try {
+            if (directory.exists()) {
+                System.out.println("Directory " + directory + " allready exists, will not benchmark.");
+            } else {
+                System.out.println("Benchmarking: " + directory.getCanonicalPath());
+                ArrayList<Report> reports = benchmark.benchmark(directory);
+                IOHelper.deleteFile(directory);
+                for (Report report : reports) {
+                    System.out.println(report.toString());
+                }
+            }
+        } catch (Throwable e) {
+            if (benchmark.verbose) {
+                System.out.println("ERROR:");
+                e.printStackTrace(System.out);
+            } else {
+                System.out.println("ERROR: " + e);
+            }
+        }
+    }
+
+    public static class Report {
+
+        public int size;
+        public int threads;
+        public long reads;
+        public long readDuration;
+
+        @Override
+        public String toString() {
+            return
+            "Reads with " + threads + " thread(s): \n" +
+            "  " + reads + " reads of size " + size + " read in " + (readDuration / 1000.0) + " seconds.\n" +
+            "  " + getReadRate() + " reads/second.\n" +
+            "  " + getReadSizeRate() + " megs/second.\n";
+        }
+
+        private float getReadRate() {
+            float rc = reads;
+            rc /= (readDuration / 1000.0); // get rate.
+            return rc;
+        }
+
+        private float getReadSizeRate() {
+            float rc = reads;
+            rc *= size;
+            rc /= (1024 * 1024); // put it in megs
+            rc /= (readDuration / 1000.0); // get rate.
+            return rc;
+        }
+
+        public int getThreads() {
+            return threads;
+        }
+
+        public long getReads() {
+            return reads;
+        }
+
+        public long getReadDuration() {
+            return readDuration;
+        }
+    }
+
+    public ArrayList<Report> benchmark(File directory) throws IOException, InterruptedException {
+        Journal journal = new Journal();
+        journal.setDirectory(directory);
+        journal.setMaxFileLength(maxFileLength);
+        journal.setEnableMemoryMappedReads(enableMemoryMappedReads);
+        IOHelper.mkdirs(directory);
+        journal.start();
+
+        ArrayList<Report> rc = new ArrayList<Report>();
+        try {
+            byte[] data = new byte[bs];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = (byte)('a' + (i % 26));
+            }
+
+            // Populate the journal, the last write is synced so everything is on disk.
+            final Location[] locations = new Location[records];
+            for (int i = 0; i < records; i++) {
+                locations[i] = journal.write(new ByteSequence(data), i == records - 1);
+            }
+
+            for (String t : threads.split(",")) {
+                int threadCount = Integer.parseInt(t.trim());
+                run(journal, locations, threadCount, warmupInterval);
+                Report report = new Report();
+                report.size = bs;
+                report.threads = threadCount;
+                report.readDuration = sampleInterval;
+                report.reads = run(journal, locations, threadCount, sampleInterval);
+                rc.add(report);
+            }
+        } finally {
+            journal.close();
+        }
+        return rc;
+    }
+
+    private long run(final Journal journal, final Location[] locations, int threadCount, final long interval) throws InterruptedException, IOException {
+        final AtomicLong reads = new AtomicLong();
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        final CountDownLatch doneLatch = new CountDownLatch(threadCount);
+        final AtomicLong failures = new AtomicLong();
+
+        for (int i = 0; i < threadCount; i++) {
+            final long seed = i;
+            Thread thread = new Thread("Journal Reader " + i) {
+                public void run() {
+                    Random random = new Random(seed);
+                    long count = 0;
+                    try {
+                        startLatch.await();
+                        long end = System.currentTimeMillis() + interval;
+                        while (System.currentTimeMillis() < end) {
+                            journal.read(locations[random.nextInt(locations.length)]);
+                            count++;
+                        }
+                    } catch (Exception e) {
+                        if (verbose) {
+                            e.printStackTrace(System.out);
+                        }
+                        failures.incrementAndGet();
+                    } finally {
+                        reads.addAndGet(count);
+                        doneLatch.countDown();
+                    }
+                }
+            };
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        startLatch.countDown();
+        doneLatch.await();
+        if (failures.get() > 0) {
+            throw new IOException(failures.get() + " reader thread(s) failed");
+        }
+        return reads.get();
+    }
+
+    public boolean isVerbose() {
+        return verbose;
+    }
+
+    public void setVerbose(boolean verbose) {
+        this.verbose = verbose;
+    }
+
+    public int getBs() {
+        return bs;
+    }
+
+    public void setBs(int bs) {
+        this.bs = bs;
+    }
+
+    public int getRecords() {
+        return records;
+    }
+
+    public void setRecords(int records) {
+        this.records = records;
+    }
+
+    public String getThreads() {
+        return threads;
+    }
+
+    public void setThreads(String threads) {
+        this.threads = threads;
+    }
+
+    public long getWarmupInterval() {
+        return warmupInterval;
+    }
+
+    public void setWarmupInterval(long warmupInterval) {
+        this.warmupInterval = warmupInterval;
+    }
+
+    public long getSampleInterval() {
+        return sampleInterval;
+    }
+
+    public void setSampleInterval(long sampleInterval) {
+        this.sampleInterval = sampleInterval;
+    }
+
+    public int getMaxFileLength() {
+        return maxFileLength;
+    }
+
+    public void setMaxFileLength(int maxFileLength) {
+        this.maxFileLength = maxFileLength;
+    }
+
+    public boolean isEnableMemoryMappedReads() {
+        return enableMemoryMappedReads;
+    }
+
+    public void setEnableMemoryMappedReads(boolean enableMemoryMappedReads) {
+        this.enableMemoryMappedReads = enableMemoryMappedReads;
+    }
+}
@@ -0,0 +1,280 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.store.kahadb.plist;
+
+import java.io.IOException;
+import java.util.NoSuchElementException;
+
+import org.apache.activemq.store.PList;
+import org.apache.activemq.store.PListEntry;
+import org.apache.activemq.util.ByteSequence;
+
+/**
+ * A list in a {@link MappedPListStore}.
+ *
+ * Entries are keyed by a sequence that grows from addLast and shrinks from
+ * addFirst, so the in memory index is a pair of sorted long arrays holding the
+ * keys and the segment locations.  Removing an entry leaves a hole that is
+ * skipped until holes outnumber the live entries and the arrays are compacted.
+ */
+public class MappedPList implements PList {
+
+    private static final long REMOVED = -1;
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final MappedPListStore store;
+    private final String name;
+
+    // guarded by this, the live range of the arrays is [head, tail).
+    private long[] keys = new long[INITIAL_CAPACITY];
+    private long[] locations = new long[INITIAL_CAPACITY];
+    private int head = INITIAL_CAPACITY / 2;
+    private int tail = INITIAL_CAPACITY / 2;
+    private int size;
+    private long nextFirstKey = -1;
+    private long nextLastKey = 0;
+
+    MappedPList(MappedPListStore store, String name) {
+        this.store = store;
+        this.name = name;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public void destroy() throws IOException {
+        long[] removed;
+        int count = 0;
+        synchronized (this) {
+            removed = new long[size];
+            for (int i = head; i < tail; i++) {
+                if (locations[i] != REMOVED) {
+                    removed[count++] = locations[i];
+                }
+            }
+            keys = new long[INITIAL_CAPACITY];
+            locations = new long[INITIAL_CAPACITY];
+            head = tail = INITIAL_CAPACITY / 2;
+            size = 0;
+        }
+        for (int i = 0; i < count; i++) {
+            store.release(removed[i]);
+        }
+    }
+
+    class Locator {
+        final long key;
+
+        Locator(long key) {
+            this.key = key;
+        }
+
+        MappedPList plist() {
+            return MappedPList.this;
+        }
+    }
+
+    @Override
+    public Object addLast(String id, ByteSequence bs) throws IOException {
+        long location = store.write(id, bs);
+        synchronized (this) {
+            if (tail == keys.length) {
+                resize(0);
+            }
+            long key = nextLastKey++;
+            keys[tail] = key;
+            locations[tail++] = location;
+            size++;
+            return new Locator(key);
+        }
+    }
+
+    @Override
+    public Object addFirst(String id, ByteSequence bs) throws IOException {
+        long location = store.write(id, bs);
+        synchronized (this) {
+            if (head == 0) {
+                resize(Math.max(INITIAL_CAPACITY / 2, (tail - head) / 2));
+            }
+            long key = nextFirstKey--;
+            keys[--head] = key;
+            locations[head] = location;
+            size++;
+            return new Locator(key);
+        }
+    }
+
+    @Override
+    public boolean remove(Object l) throws IOException {
+        Locator locator = (Locator) l;
+        assert locator!=null;
+        assert locator.plist()==this;
+        return remove(locator.key);
+    }
+
+    boolean remove(long key) {
+        long location;
+        synchronized (this) {
+            int index = indexOf(key);
+            if (index < 0 || locations[index] == REMOVED) {
+                return false;
+            }
+            location = locations[index];
+            locations[index] = REMOVED;
+            size--;
+            while (head < tail && locations[head] == REMOVED) {
+                head++;
+            }
+            while (tail > head && locations[tail - 1] == REMOVED) {
+                tail--;
+            }
+            if (tail - head > 2 * size + INITIAL_CAPACITY) {
+                resize(INITIAL_CAPACITY / 2);
+            }
+        }
+        store.release(location);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public synchronized long size() {
+        return size;
+    }
+
+    @Override
+    public PListIterator iterator() throws IOException {
+        return new PListIteratorImpl();
+    }
+
+    /**
+     * @return the index of the first entry with a key greater than the given one.
+     */
+    private int higher(long key) {
+        int low = head;
+        int high = tail - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (keys[mid] <= key) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        while (low < tail && locations[low] == REMOVED) {
+            low++;
+        }
+        return low;
+    }
+
+    private int indexOf(long key) {
+        int low = head;
+        int high = tail - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (keys[mid] < key) {
+                low = mid + 1;
+            } else if (keys[mid] > key) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Drops the holes and lays the live entries out again with room in front of them.
+     */
+    private void resize(int front) {
+        // leave at least as much room again, so resizes stay rare.
+        int capacity = INITIAL_CAPACITY;
+        while (capacity < (front + size) * 2) {
+            capacity <<= 1;
+        }
+        long[] newKeys = new long[capacity];
+        long[] newLocations = new long[capacity];
+        int to = front;
+        for (int i = head; i < tail; i++) {
+            if (locations[i] != REMOVED) {
+                newKeys[to] = keys[i];
+                newLocations[to] = locations[i];
+                to++;
+            }
+        }
+        keys = newKeys;
+        locations = newLocations;
+        head = front;
+        tail = to;
+    }
+
+    final class PListIteratorImpl implements PListIterator {
+        long lastKey = Long.MIN_VALUE;
+        boolean removable;
+
+        @Override
+        public boolean hasNext() {
+            synchronized (MappedPList.this) {
+                return higher(lastKey) < tail;
+            }
+        }
+
+        @Override
+        public PListEntry next() {
+            synchronized (MappedPList.this) {
+                int index = higher(lastKey);
+                if (index >= tail) {
+                    throw new NoSuchElementException();
+                }
+                lastKey = keys[index];
+                removable = true;
+                try {
+                    // read while the entry is known to be live, so its segment can't be reclaimed.
+                    return store.read(locations[index], new Locator(lastKey));
+                } catch (IOException unexpected) {
+                    NoSuchElementException e = new NoSuchElementException(unexpected.getLocalizedMessage());
+                    e.initCause(unexpected);
+                    throw e;
+                }
+            }
+        }
+
+        @Override
+        public void remove() {
+            if (!removable) {
+                throw new IllegalStateException();
+            }
+            removable = false;
+            MappedPList.this.remove(lastKey);
+        }
+
+        public void release() {
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name + "[size=" + size() + "]";
+    }
+}
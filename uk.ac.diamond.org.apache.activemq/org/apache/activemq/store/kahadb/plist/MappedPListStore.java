@@ -0,0 +1,310 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.store.kahadb.plist;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.activemq.store.PListEntry;
+import org.apache.activemq.store.PListStore;
+import org.apache.activemq.util.ByteSequence;
+import org.apache.activemq.util.IOHelper;
+import org.apache.activemq.util.ServiceStopper;
+import org.apache.activemq.util.ServiceSupport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link PListStore} for temporary storage that appends entries to memory
+ * mapped segment files and keeps each list's index in memory.
+ *
+ * Unlike {@link PListStoreImpl} nothing is recovered on restart, there is no
+ * page file and no store wide lock: appends claim segment space atomically
+ * and each list only synchronizes on itself.  A segment is reclaimed as soon
+ * as every entry in it has been removed, up to maxFreeSegments of them are
+ * kept mapped for reuse and the rest are deleted.
+ *
+ * @org.apache.xbean.XBean
+ */
+public class MappedPListStore extends ServiceSupport implements PListStore {
+    static final Logger LOG = LoggerFactory.getLogger(MappedPListStore.class);
+
+    public static final int DEFAULT_SEGMENT_SIZE = 1024 * 1024 * 32;
+    static final String FILE_PREFIX = "plist-";
+    static final String FILE_SUFFIX = ".seg";
+
+    private File directory;
+    private int segmentSize = DEFAULT_SEGMENT_SIZE;
+    private int maxFreeSegments = 2;
+
+    private final Map<String, MappedPList> persistentLists = new HashMap<String, MappedPList>();
+    // indexed by segment id, ids of deleted segments are reused.
+    private volatile MappedSegment[] segments = new MappedSegment[0];
+    private final LinkedList<Integer> freeIds = new LinkedList<Integer>();
+    private int nextSegmentId;
+    private final LinkedList<MappedSegment> freeSegments = new LinkedList<MappedSegment>();
+    private volatile MappedSegment current;
+    private final AtomicLong diskSize = new AtomicLong();
+    private boolean initialized;
+
+    @Override
+    public File getDirectory() {
+        return directory;
+    }
+
+    @Override
+    public void setDirectory(File directory) {
+        this.directory = directory;
+    }
+
+    public long size() {
+        return diskSize.get();
+    }
+
+    @Override
+    public MappedPList getPList(String name) throws Exception {
+        if (!isStarted()) {
+            throw new IllegalStateException("Not started");
+        }
+        synchronized (this) {
+            initialize();
+            MappedPList result = persistentLists.get(name);
+            if (result == null) {
+                result = new MappedPList(this, name);
+                persistentLists.put(name, result);
+            }
+            return result;
+        }
+    }
+
+    @Override
+    public boolean removePList(String name) throws Exception {
+        MappedPList pl;
+        synchronized (this) {
+            pl = persistentLists.remove(name);
+        }
+        if (pl != null) {
+            pl.destroy();
+        }
+        return pl != null;
+    }
+
+    private void initialize() throws IOException {
+        if (!initialized) {
+            if (directory == null) {
+                directory = new File(IOHelper.getDefaultDataDirectory() + File.separator + "delayedDB");
+            }
+            IOHelper.mkdirs(directory);
+            // nothing survives a restart, clear out any segments left behind.
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    if (file.getName().startsWith(FILE_PREFIX) && file.getName().endsWith(FILE_SUFFIX)) {
+                        file.delete();
+                    }
+                }
+            }
+            current = newSegment(segmentSize);
+            initialized = true;
+            LOG.info(this + " initialized");
+        }
+    }
+
+    @Override
+    protected synchronized void doStart() throws Exception {
+        LOG.info(this + " started");
+    }
+
+    @Override
+    protected synchronized void doStop(ServiceStopper stopper) throws Exception {
+        persistentLists.clear();
+        current = null;
+        for (MappedSegment segment : segments) {
+            if (segment != null) {
+                segment.seal();
+                // one still in use is unmapped once it is garbage collected
+                if (segment.isUnused()) {
+                    segment.unmap();
+                }
+                if (!segment.file.delete()) {
+                    // still mapped on some platforms until the mapping is collected.
+                    segment.file.deleteOnExit();
+                }
+            }
+        }
+        segments = new MappedSegment[0];
+        freeIds.clear();
+        nextSegmentId = 0;
+        freeSegments.clear();
+        diskSize.set(0);
+        initialized = false;
+        LOG.info(this + " stopped");
+    }
+
+    /**
+     * Appends an entry to the current segment.
+     *
+     * @return the location of the entry, its segment id in the upper and its
+     *         offset in the lower 32 bits.
+     */
+    long write(String id, ByteSequence data) throws IOException {
+        byte[] idBytes = utf8(id);
+        int length = MappedSegment.ENTRY_HEADER_SIZE + idBytes.length + data.getLength();
+        while (true) {
+            MappedSegment segment = current;
+            if (segment == null) {
+                throw new IOException(this + " is stopped");
+            }
+            int offset = segment.allocate(length);
+            if (offset >= 0) {
+                segment.write(offset, idBytes, data);
+                return ((long) segment.id << 32) | offset;
+            }
+            rollSegment(segment, length);
+        }
+    }
+
+    PListEntry read(long location, Object locator) throws IOException {
+        MappedSegment segment = getSegment(location);
+        if (segment == null) {
+            throw new IOException(this + " is stopped");
+        }
+        ByteBuffer view = segment.read((int) location);
+        byte[] id = new byte[view.getInt()];
+        byte[] data = new byte[view.getInt()];
+        view.get(id);
+        view.get(data);
+        return new PListEntry(new String(id, "UTF-8"), new ByteSequence(data), locator);
+    }
+
+    /**
+     * Releases an entry that has been removed from its list.
+     */
+    void release(long location) {
+        MappedSegment segment = getSegment(location);
+        if (segment != null && segment.release() && segment.isSealed()) {
+            reclaim(segment);
+        }
+    }
+
+    private MappedSegment getSegment(long location) {
+        MappedSegment[] table = segments;
+        int id = (int) (location >>> 32);
+        return id < table.length ? table[id] : null;
+    }
+
+    private synchronized void rollSegment(MappedSegment full, int length) throws IOException {
+        if (current != full) {
+            // someone else got there first, and may have found it in use by
+            // this writer's failed claim
+            reclaim(full);
+            return;
+        }
+        full.seal();
+        if (full.isUnused()) {
+            reclaim(full);
+        }
+        if (length <= segmentSize && !freeSegments.isEmpty()) {
+            current = freeSegments.removeFirst();
+        } else {
+            current = newSegment(Math.max(segmentSize, length));
+        }
+    }
+
+    private synchronized void reclaim(MappedSegment segment) {
+        if (segment.reclaimed || !segment.isSealed() || !segment.isUnused()) {
+            return;
+        }
+        segment.reclaimed = true;
+        if (segment.capacity == segmentSize && freeSegments.size() < maxFreeSegments) {
+            MappedSegment recycled = segment.recycle();
+            publish(recycled);
+            freeSegments.add(recycled);
+        } else {
+            segments[segment.id] = null;
+            freeIds.add(segment.id);
+            diskSize.addAndGet(-segment.capacity);
+            segment.unmap();
+            if (!segment.file.delete()) {
+                segment.file.deleteOnExit();
+            }
+        }
+        LOG.trace("Reclaimed " + segment);
+    }
+
+    private MappedSegment newSegment(int capacity) throws IOException {
+        int id = freeIds.isEmpty() ? nextSegmentId++ : freeIds.removeFirst();
+        MappedSegment segment = MappedSegment.create(id, new File(directory, FILE_PREFIX + id + FILE_SUFFIX), capacity);
+        diskSize.addAndGet(capacity);
+        publish(segment);
+        return segment;
+    }
+
+    private void publish(MappedSegment segment) {
+        MappedSegment[] table = segments;
+        if (segment.id >= table.length) {
+            MappedSegment[] grown = new MappedSegment[Math.max(segment.id + 1, table.length * 2)];
+            System.arraycopy(table, 0, grown, 0, table.length);
+            table = grown;
+        }
+        table[segment.id] = segment;
+        segments = table;
+    }
+
+    private static byte[] utf8(String string) {
+        try {
+            return string.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    /**
+     * The size of each segment file, entries larger than this get a segment of
+     * their own.
+     */
+    public void setSegmentSize(int segmentSize) {
+        this.segmentSize = segmentSize;
+    }
+
+    public int getMaxFreeSegments() {
+        return maxFreeSegments;
+    }
+
+    /**
+     * How many emptied segments to keep mapped for reuse rather than delete.
+     */
+    public void setMaxFreeSegments(int maxFreeSegments) {
+        this.maxFreeSegments = maxFreeSegments;
+    }
+
+    @Override
+    public String toString() {
+        String path = getDirectory() != null ? getDirectory().getAbsolutePath() : "DIRECTORY_NOT_SET";
+        return "MappedPListStore:[" + path + "]";
+    }
+}
@@ -0,0 +1,197 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.store.kahadb.plist;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.activemq.util.ByteSequence;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An append only, memory mapped file holding the entries of a
+ * {@link MappedPListStore}.  Space is claimed without locking, so any number
+ * of lists can append to the same segment at once.
+ *
+ * Each entry is stored as the length of its id, the length of its data, the
+ * UTF-8 id and the data.  The segment counts its live entries and is handed
+ * back to the store once it is sealed and the last of them is released.  A
+ * recycled segment is a new instance over the same mapping, so a writer still
+ * holding the old instance only ever sees it sealed.
+ */
+class MappedSegment {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MappedSegment.class);
+
+    static final int ENTRY_HEADER_SIZE = 4 + 4;
+
+    // How the JVM lets a mapping be released before it is garbage collected,
+    // Unsafe.invokeCleaner from Java 9 and the buffer's Cleaner before that.
+    // All null if it does not.
+    private static Object unsafe;
+    private static Method invokeCleaner;
+    private static Method cleaner;
+    private static Method clean;
+
+    static {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = field.get(null);
+        } catch (Exception e) {
+            invokeCleaner = null;
+            try {
+                cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+                clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+            } catch (Exception e2) {
+                cleaner = null;
+                LOG.debug("Mapped segments will be unmapped when they are garbage collected", e2);
+            }
+        }
+    }
+
+    final int id;
+    final File file;
+    final int capacity;
+    private final MappedByteBuffer buffer;
+    private final AtomicInteger position = new AtomicInteger();
+    private final AtomicInteger live = new AtomicInteger();
+    private volatile boolean sealed;
+    // guarded by the store
+    boolean reclaimed;
+
+    private MappedSegment(int id, File file, MappedByteBuffer buffer) {
+        this.id = id;
+        this.file = file;
+        this.buffer = buffer;
+        this.capacity = buffer.capacity();
+    }
+
+    static MappedSegment create(int id, File file, int capacity) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(capacity);
+            return new MappedSegment(id, file, raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity));
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * @return an empty segment over this segment's file and mapping.
+     */
+    MappedSegment recycle() {
+        return new MappedSegment(id, file, buffer);
+    }
+
+    /**
+     * Claims space for an entry and counts it as live.
+     *
+     * @return the offset of the claimed space, or -1 if the segment is sealed or
+     *         full, when the store has to check whether it is unused.
+     */
+    int allocate(int length) {
+        if (sealed) {
+            return -1;
+        }
+        // counted before checking again, so it can not be reclaimed once the
+        // space is claimed
+        live.incrementAndGet();
+        if (!sealed) {
+            int offset = position.getAndAdd(length);
+            if (offset <= capacity - length) {
+                return offset;
+            }
+        }
+        live.decrementAndGet();
+        return -1;
+    }
+
+    void write(int offset, byte[] id, ByteSequence data) {
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset);
+        view.putInt(id.length);
+        view.putInt(data.getLength());
+        view.put(id);
+        view.put(data.getData(), data.getOffset(), data.getLength());
+    }
+
+    /**
+     * @return a view positioned at the entry, the caller must know it is still live.
+     */
+    ByteBuffer read(int offset) {
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset);
+        return view;
+    }
+
+    /**
+     * Stops any more entries being appended.
+     */
+    void seal() {
+        sealed = true;
+    }
+
+    boolean isSealed() {
+        return sealed;
+    }
+
+    /**
+     * @return true if the segment no longer holds any live entries.
+     */
+    boolean release() {
+        return live.decrementAndGet() == 0;
+    }
+
+    boolean isUnused() {
+        return live.get() == 0;
+    }
+
+    /**
+     * Releases the mapping, which must be sealed and unused so nothing reads or
+     * writes it again.  A recycled instance shares the mapping.
+     */
+    void unmap() {
+        try {
+            if (invokeCleaner != null) {
+                invokeCleaner.invoke(unsafe, buffer);
+            } else if (cleaner != null) {
+                Object bufferCleaner = cleaner.invoke(buffer);
+                if (bufferCleaner != null) {
+                    clean.invoke(bufferCleaner);
+                }
+            }
+        } catch (Exception e) {
+            LOG.debug("Failed to unmap " + file + ", it is unmapped when it is garbage collected", e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return file.getName() + "[position=" + Math.min(position.get(), capacity) + ", live=" + live.get() + "]";
+    }
+}
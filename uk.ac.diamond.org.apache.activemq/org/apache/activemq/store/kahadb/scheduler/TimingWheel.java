@@ -0,0 +1,240 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.store.kahadb.scheduler;
+
+import java.util.List;
+
+/**
+ * A hierarchical timing wheel, adding, removing and expiring an entry are all
+ * O(1).
+ *
+ * There are LEVELS wheels of 64 slots, a slot on level n spanning 64^n ticks.
+ * An entry is put on the lowest level whose span covers how far off it is,
+ * in the slot for that level's digit of its tick.  When time reaches the
+ * start of an occupied slot above level 0 its entries are cascaded down, and
+ * the entries of a level 0 slot expire when time reaches it.  Each level
+ * keeps a bit mask of its occupied slots, so the wheel can jump straight to
+ * the next tick it has something to do at rather than stepping through idle
+ * ones.  Entries further off than the top level spans are parked in its last
+ * slot and re-placed each time they are cascaded.
+ *
+ * The wheel is not thread safe.
+ */
+class TimingWheel<T> {
+
+    private static final int BITS = 6;
+    private static final int SLOTS = 1 << BITS;
+    private static final int MASK = SLOTS - 1;
+    private static final int LEVELS = 6;
+    private static final long SPAN = 1L << (BITS * LEVELS);
+    private static final int DUE = -1;
+
+    static final class Entry<T> {
+        final T value;
+        final long time;
+        final long tick;
+        Entry<T> prev;
+        Entry<T> next;
+        int level = DUE;
+        int slot;
+        boolean linked;
+
+        Entry(T value, long time, long tick) {
+            this.value = value;
+            this.time = time;
+            this.tick = tick;
+        }
+    }
+
+    private final long tickMillis;
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    private final Entry<T>[][] slots = new Entry[LEVELS][SLOTS];
+    private final long[] occupied = new long[LEVELS];
+    private Entry<T> due;
+    private long currentTick;
+    private int size;
+
+    TimingWheel(long tickMillis, long now) {
+        this.tickMillis = tickMillis;
+        this.currentTick = now / tickMillis;
+    }
+
+    /**
+     * Adds a value that expires at the given time, rounded up to the next tick.
+     */
+    Entry<T> add(long time, T value) {
+        Entry<T> entry = new Entry<T>(value, time, (time + tickMillis - 1) / tickMillis);
+        place(entry);
+        size++;
+        return entry;
+    }
+
+    /**
+     * Removes an entry that has not expired yet.
+     *
+     * @return false if the entry had already expired or been removed.
+     */
+    boolean remove(Entry<T> entry) {
+        if (!entry.linked) {
+            return false;
+        }
+        unlink(entry);
+        size--;
+        return true;
+    }
+
+    /**
+     * Moves the wheel on to the given time, adding the values that expire by
+     * then to the expired list.
+     */
+    void advance(long now, List<T> expired) {
+        long nowTick = now / tickMillis;
+        while (true) {
+            while (due != null) {
+                Entry<T> entry = due;
+                unlink(entry);
+                size--;
+                expired.add(entry.value);
+            }
+            long next = nextTick();
+            if (next > nowTick) {
+                break;
+            }
+            currentTick = next;
+            for (int level = LEVELS - 1; level > 0; level--) {
+                if ((next & ((1L << (BITS * level)) - 1)) == 0) {
+                    cascade(level, digit(next, level));
+                }
+            }
+            cascade(0, digit(next, 0));
+        }
+        if (nowTick > currentTick) {
+            currentTick = nowTick;
+        }
+    }
+
+    /**
+     * @return the time the wheel next has to be advanced at, or Long.MAX_VALUE
+     *         if it is empty.  Nothing expires before it, though it may be the
+     *         time entries are cascaded rather than expired.
+     */
+    long nextTime() {
+        long next = nextTick();
+        return next == Long.MAX_VALUE ? next : next * tickMillis;
+    }
+
+    int size() {
+        return size;
+    }
+
+    private long nextTick() {
+        if (due != null) {
+            return currentTick;
+        }
+        long result = Long.MAX_VALUE;
+        for (int level = 0; level < LEVELS; level++) {
+            long mask = occupied[level];
+            if (mask == 0) {
+                continue;
+            }
+            int shift = BITS * level;
+            int digit = digit(currentTick, level);
+            long rotation = (currentTick >>> (shift + BITS)) << (shift + BITS);
+            long later = digit == MASK ? 0 : mask & (-1L << (digit + 1));
+            long tick;
+            if (later != 0) {
+                tick = rotation + ((long) Long.numberOfTrailingZeros(later) << shift);
+            } else {
+                // only slots the next rotation of this level reaches.
+                tick = rotation + (1L << (shift + BITS)) + ((long) Long.numberOfTrailingZeros(mask) << shift);
+            }
+            if (tick < result) {
+                result = tick;
+            }
+        }
+        return result;
+    }
+
+    private void cascade(int level, int slot) {
+        Entry<T> entry = slots[level][slot];
+        slots[level][slot] = null;
+        occupied[level] &= ~(1L << slot);
+        while (entry != null) {
+            Entry<T> next = entry.next;
+            entry.linked = false;
+            place(entry);
+            entry = next;
+        }
+    }
+
+    private void place(Entry<T> entry) {
+        long delta = entry.tick - currentTick;
+        entry.prev = null;
+        entry.linked = true;
+        if (delta <= 0) {
+            entry.level = DUE;
+            entry.next = due;
+            if (due != null) {
+                due.prev = entry;
+            }
+            due = entry;
+            return;
+        }
+        int level = 0;
+        long tick = entry.tick;
+        if (delta >= SPAN) {
+            level = LEVELS - 1;
+            tick = currentTick + SPAN - 1;
+        } else {
+            while (delta >= 1L << (BITS * (level + 1))) {
+                level++;
+            }
+        }
+        int slot = digit(tick, level);
+        entry.level = level;
+        entry.slot = slot;
+        entry.next = slots[level][slot];
+        if (entry.next != null) {
+            entry.next.prev = entry;
+        }
+        slots[level][slot] = entry;
+        occupied[level] |= 1L << slot;
+    }
+
+    private void unlink(Entry<T> entry) {
+        if (entry.prev != null) {
+            entry.prev.next = entry.next;
+        } else if (entry.level == DUE) {
+            due = entry.next;
+        } else {
+            slots[entry.level][entry.slot] = entry.next;
+            if (entry.next == null) {
+                occupied[entry.level] &= ~(1L << entry.slot);
+            }
+        }
+        if (entry.next != null) {
+            entry.next.prev = entry.prev;
+        }
+        entry.prev = null;
+        entry.next = null;
+        entry.linked = false;
+    }
+
+    private static int digit(long tick, int level) {
+        return (int) (tick >>> (BITS * level)) & MASK;
+    }
+}
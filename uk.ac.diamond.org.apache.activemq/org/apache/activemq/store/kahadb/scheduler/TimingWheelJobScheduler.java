@@ -0,0 +1,484 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.store.kahadb.scheduler;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.jms.MessageFormatException;
+
+import org.apache.activemq.broker.scheduler.CronParser;
+import org.apache.activemq.broker.scheduler.Job;
+import org.apache.activemq.broker.scheduler.JobListener;
+import org.apache.activemq.broker.scheduler.JobScheduler;
+import org.apache.activemq.util.ByteSequence;
+import org.apache.activemq.util.IdGenerator;
+import org.apache.activemq.util.ServiceStopper;
+import org.apache.activemq.util.ServiceSupport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link JobScheduler} of a {@link TimingWheelJobSchedulerStore}.
+ *
+ * Jobs are held in a {@link TimingWheel} and a map from job id to their wheel
+ * entry, so scheduling, cancelling and firing a job don't depend on how many
+ * others are scheduled.  The dispatch thread sleeps until the wheel's next
+ * event and is only woken early by a job that is due before then.  Queries by
+ * time, which the broker only uses for management, scan all the jobs.
+ */
+class TimingWheelJobScheduler extends ServiceSupport implements Runnable, JobScheduler {
+    private static final Logger LOG = LoggerFactory.getLogger(TimingWheelJobScheduler.class);
+    private static final IdGenerator ID_GENERATOR = new IdGenerator();
+    private static final long TICK_MILLIS = 1;
+    private static final long MAX_WAIT = 1000;
+
+    private static final Comparator<JobLocation> NEXT_TIME_ORDER = new Comparator<JobLocation>() {
+        @Override
+        public int compare(JobLocation o1, JobLocation o2) {
+            long t1 = o1.getNextTime();
+            long t2 = o2.getNextTime();
+            return t1 < t2 ? -1 : (t1 == t2 ? 0 : 1);
+        }
+    };
+
+    final TimingWheelJobSchedulerStore store;
+    private final String name;
+    private final AtomicBoolean running = new AtomicBoolean();
+    private final AtomicBoolean started = new AtomicBoolean(false);
+    private final List<JobListener> jobListeners = new CopyOnWriteArrayList<JobListener>();
+    // guarded by this
+    private final TimingWheel<JobLocation> wheel = new TimingWheel<JobLocation>(TICK_MILLIS, System.currentTimeMillis());
+    private final Map<String, TimingWheel.Entry<JobLocation>> jobs = new HashMap<String, TimingWheel.Entry<JobLocation>>();
+    private long wakeTime;
+    private Thread thread;
+
+    TimingWheelJobScheduler(TimingWheelJobSchedulerStore store, String name) {
+        this.store = store;
+        this.name = name;
+    }
+
+    @Override
+    public String getName() {
+        return this.name;
+    }
+
+    @Override
+    public void addListener(JobListener l) {
+        this.jobListeners.add(l);
+    }
+
+    @Override
+    public void removeListener(JobListener l) {
+        this.jobListeners.remove(l);
+    }
+
+    @Override
+    public void schedule(String jobId, ByteSequence payload, long delay) throws IOException {
+        schedule(jobId, payload, "", 0, delay, 0);
+    }
+
+    @Override
+    public void schedule(String jobId, ByteSequence payload, String cronEntry) throws Exception {
+        schedule(jobId, payload, cronEntry, 0, 0, 0);
+    }
+
+    @Override
+    public synchronized void schedule(String jobId, ByteSequence payload, String cronEntry, long delay, long period, int repeat) throws IOException {
+        long startTime = System.currentTimeMillis();
+        long time = 0;
+        if (cronEntry != null && cronEntry.length() > 0) {
+            try {
+                time = CronParser.getNextScheduledTime(cronEntry, startTime);
+            } catch (MessageFormatException e) {
+                throw new IOException(e.getMessage());
+            }
+        }
+
+        if (time == 0) {
+            // start time not set by CRON - so it it to the current time
+            time = startTime;
+        }
+        if (delay > 0) {
+            time += delay;
+        } else {
+            time += period;
+        }
+
+        JobLocation job = new JobLocation();
+        job.setJobId(jobId);
+        job.setStartTime(startTime);
+        job.setCronEntry(cronEntry);
+        job.setDelay(delay);
+        job.setPeriod(period);
+        job.setRepeat(repeat);
+        job.setNextTime(time);
+        job = this.store.addJob(this.name, job, payload);
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Scheduling " + job);
+        }
+        TimingWheel.Entry<JobLocation> replaced = this.jobs.get(jobId);
+        if (replaced != null) {
+            // the new record supersedes the old one when the journal is replayed.
+            this.wheel.remove(replaced);
+            this.store.release(replaced.value.getLocation());
+        }
+        add(job);
+    }
+
+    @Override
+    public synchronized void remove(long time) throws IOException {
+        for (Iterator<TimingWheel.Entry<JobLocation>> i = this.jobs.values().iterator(); i.hasNext();) {
+            TimingWheel.Entry<JobLocation> entry = i.next();
+            if (entry.value.getNextTime() == time) {
+                i.remove();
+                cancel(entry);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void remove(String jobId) throws IOException {
+        TimingWheel.Entry<JobLocation> entry = this.jobs.remove(jobId);
+        if (entry != null) {
+            cancel(entry);
+        }
+    }
+
+    @Override
+    public synchronized void removeAllJobs() throws IOException {
+        this.store.removeAllJobs(this.name);
+        for (TimingWheel.Entry<JobLocation> entry : this.jobs.values()) {
+            this.wheel.remove(entry);
+            this.store.release(entry.value.getLocation());
+        }
+        this.jobs.clear();
+    }
+
+    @Override
+    public synchronized void removeAllJobs(long start, long finish) throws IOException {
+        for (Iterator<TimingWheel.Entry<JobLocation>> i = this.jobs.values().iterator(); i.hasNext();) {
+            TimingWheel.Entry<JobLocation> entry = i.next();
+            long time = entry.value.getNextTime();
+            if (time >= start && time <= finish) {
+                i.remove();
+                cancel(entry);
+            }
+        }
+    }
+
+    @Override
+    public synchronized long getNextScheduleTime() throws IOException {
+        long result = -1;
+        for (TimingWheel.Entry<JobLocation> entry : this.jobs.values()) {
+            long time = entry.value.getNextTime();
+            if (result == -1 || time < result) {
+                result = time;
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized List<Job> getNextScheduleJobs() throws IOException {
+        long next = getNextScheduleTime();
+        return getAllJobs(next, next);
+    }
+
+    @Override
+    public synchronized List<Job> getAllJobs() throws IOException {
+        return getAllJobs(Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    @Override
+    public synchronized List<Job> getAllJobs(long start, long finish) throws IOException {
+        List<JobLocation> matched = new ArrayList<JobLocation>();
+        for (TimingWheel.Entry<JobLocation> entry : this.jobs.values()) {
+            long time = entry.value.getNextTime();
+            if (time >= start && time <= finish) {
+                matched.add(entry.value);
+            }
+        }
+        Collections.sort(matched, NEXT_TIME_ORDER);
+        List<Job> result = new ArrayList<Job>(matched.size());
+        for (JobLocation jl : matched) {
+            result.add(new JobImpl(jl, this.store.getPayload(jl.getLocation())));
+        }
+        return result;
+    }
+
+    synchronized int size() {
+        return this.jobs.size();
+    }
+
+    private void add(JobLocation job) {
+        this.jobs.put(job.getJobId(), this.wheel.add(job.getNextTime(), job));
+        if (job.getNextTime() < this.wakeTime) {
+            notifyAll();
+        }
+    }
+
+    private void cancel(TimingWheel.Entry<JobLocation> entry) throws IOException {
+        this.wheel.remove(entry);
+        this.store.removeJob(this.name, entry.value);
+    }
+
+    /**
+     * @return true if the job is still the one scheduled under its id, it
+     *         may have been removed or replaced while it was being fired.
+     */
+    private boolean isCurrent(JobLocation job) {
+        TimingWheel.Entry<JobLocation> entry = this.jobs.get(job.getJobId());
+        return entry != null && entry.value == job;
+    }
+
+    private synchronized void reschedule(JobLocation job, int repeat, long nextExecutionTime) throws IOException {
+        if (isCurrent(job)) {
+            job.setRepeat(repeat);
+            job.setNextTime(nextExecutionTime);
+            this.store.rescheduleJob(this.name, job);
+            add(job);
+        }
+    }
+
+    private synchronized void fired(JobLocation job) throws IOException {
+        if (isCurrent(job)) {
+            this.jobs.remove(job.getJobId());
+            this.store.removeJob(this.name, job);
+        }
+    }
+
+    private synchronized void retry(JobLocation job) {
+        if (isCurrent(job)) {
+            this.jobs.put(job.getJobId(), this.wheel.add(System.currentTimeMillis() + MAX_WAIT, job));
+        }
+    }
+
+    /**
+     * Logs the live jobs whose record is in the given journal file again, so
+     * that the file can be removed.
+     */
+    synchronized void relog(int dataFileId) throws IOException {
+        List<TimingWheel.Entry<JobLocation>> moved = new ArrayList<TimingWheel.Entry<JobLocation>>();
+        for (TimingWheel.Entry<JobLocation> entry : this.jobs.values()) {
+            // a job being fired is left for the next time around.
+            if (entry.value.getLocation().getDataFileId() == dataFileId && this.wheel.remove(entry)) {
+                moved.add(entry);
+            }
+        }
+        for (TimingWheel.Entry<JobLocation> entry : moved) {
+            JobLocation job = this.store.addJob(this.name, entry.value, this.store.getPayload(entry.value.getLocation()));
+            this.store.release(entry.value.getLocation());
+            add(job);
+        }
+    }
+
+    // the recover methods replay the journal before the scheduler is started.
+
+    synchronized void recoverAdd(JobLocation job) {
+        TimingWheel.Entry<JobLocation> replaced = this.jobs.get(job.getJobId());
+        if (replaced != null) {
+            this.wheel.remove(replaced);
+            this.store.release(replaced.value.getLocation());
+        }
+        this.store.retain(job.getLocation());
+        add(job);
+    }
+
+    synchronized void recoverRemove(String jobId) {
+        TimingWheel.Entry<JobLocation> entry = this.jobs.remove(jobId);
+        if (entry != null) {
+            this.wheel.remove(entry);
+            this.store.release(entry.value.getLocation());
+        }
+    }
+
+    synchronized void recoverReschedule(String jobId, int repeat, long nextTime) {
+        TimingWheel.Entry<JobLocation> entry = this.jobs.get(jobId);
+        if (entry != null) {
+            this.wheel.remove(entry);
+            entry.value.setRepeat(repeat);
+            entry.value.setNextTime(nextTime);
+            add(entry.value);
+        }
+    }
+
+    synchronized void recoverRemoveAll() {
+        for (TimingWheel.Entry<JobLocation> entry : this.jobs.values()) {
+            this.wheel.remove(entry);
+            this.store.release(entry.value.getLocation());
+        }
+        this.jobs.clear();
+    }
+
+    @Override
+    public void run() {
+        try {
+            mainLoop();
+        } catch (Throwable e) {
+            if (this.running.get() && isStarted()) {
+                LOG.error(this + " Caught exception in mainloop", e);
+            }
+        } finally {
+            if (running.get()) {
+                try {
+                    stop();
+                } catch (Exception e) {
+                    LOG.error("Failed to stop " + this);
+                }
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "JobScheduler:" + this.name;
+    }
+
+    protected void mainLoop() throws InterruptedException {
+        List<JobLocation> due = new ArrayList<JobLocation>();
+        while (this.running.get() && this.started.get()) {
+            synchronized (this) {
+                long currentTime = System.currentTimeMillis();
+                this.wheel.advance(currentTime, due);
+                if (due.isEmpty()) {
+                    long next = this.wheel.nextTime();
+                    long waitTime = next == Long.MAX_VALUE ? MAX_WAIT : Math.min(next - currentTime, MAX_WAIT);
+                    if (waitTime > 0) {
+                        this.wakeTime = currentTime + waitTime;
+                        wait(waitTime);
+                        this.wakeTime = 0;
+                    }
+                    continue;
+                }
+            }
+            for (JobLocation job : due) {
+                try {
+                    fire(job);
+                } catch (Exception e) {
+                    LOG.error(this.name + " Failed to fire job " + job + ", retrying in " + MAX_WAIT + " ms", e);
+                    retry(job);
+                }
+            }
+            due.clear();
+        }
+    }
+
+    private void fire(JobLocation job) throws Exception {
+        synchronized (this) {
+            if (!isCurrent(job)) {
+                return;
+            }
+        }
+        long currentTime = System.currentTimeMillis();
+        int repeat = job.getRepeat();
+        long nextExecutionTime = calculateNextExecutionTime(job, currentTime, repeat);
+        if (job.isCron() == false) {
+            fireJob(job);
+            if (repeat != 0) {
+                reschedule(job, repeat - 1, nextExecutionTime);
+            } else {
+                fired(job);
+            }
+        } else {
+            // cron job will have a repeat time.
+            if (repeat == 0) {
+                // we haven't got a separate scheduler to execute at
+                // this time - just a cron job - so fire it
+                fireJob(job);
+            }
+
+            if (nextExecutionTime > currentTime) {
+                reschedule(job, repeat, nextExecutionTime);
+                if (repeat != 0) {
+                    // the cron job is used to set of a separate schedule
+                    ByteSequence payload = this.store.getPayload(job.getLocation());
+                    schedule(ID_GENERATOR.generateId(), payload, "", job.getDelay(), job.getPeriod(), job.getRepeat());
+                }
+            } else {
+                fired(job);
+            }
+        }
+    }
+
+    void fireJob(JobLocation job) throws IllegalStateException, IOException {
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Firing " + job);
+        }
+        ByteSequence bs = this.store.getPayload(job.getLocation());
+        for (JobListener l : jobListeners) {
+            l.scheduledJob(job.getJobId(), bs);
+        }
+    }
+
+    long calculateNextExecutionTime(final JobLocation job, long currentTime, int repeat) throws MessageFormatException {
+        long result = currentTime;
+        String cron = job.getCronEntry();
+        if (cron != null && cron.length() > 0) {
+            result = CronParser.getNextScheduledTime(cron, result);
+        } else if (job.getRepeat() != 0) {
+            result += job.getPeriod();
+        }
+        return result;
+    }
+
+    @Override
+    public void startDispatching() throws Exception {
+        if (!this.running.get()) {
+            return;
+        }
+
+        if (started.compareAndSet(false, true)) {
+            this.thread = new Thread(this, "JobScheduler:" + this.name);
+            this.thread.setDaemon(true);
+            this.thread.start();
+        }
+    }
+
+    @Override
+    public void stopDispatching() throws Exception {
+        if (started.compareAndSet(true, false)) {
+            synchronized (this) {
+                notifyAll();
+            }
+            Thread t = this.thread;
+            this.thread = null;
+            if (t != null) {
+                t.join(1000);
+            }
+        }
+    }
+
+    @Override
+    protected void doStart() throws Exception {
+        this.running.set(true);
+    }
+
+    @Override
+    protected void doStop(ServiceStopper stopper) throws Exception {
+        this.running.set(false);
+        stopDispatching();
+    }
+}
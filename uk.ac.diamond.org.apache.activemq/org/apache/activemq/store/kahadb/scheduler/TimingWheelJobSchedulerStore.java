@@ -0,0 +1,430 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.store.kahadb.scheduler;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.activemq.broker.scheduler.JobScheduler;
+import org.apache.activemq.broker.scheduler.JobSchedulerStore;
+import org.apache.activemq.store.kahadb.disk.journal.Journal;
+import org.apache.activemq.store.kahadb.disk.journal.Location;
+import org.apache.activemq.thread.Scheduler;
+import org.apache.activemq.util.ByteSequence;
+import org.apache.activemq.util.DataByteArrayInputStream;
+import org.apache.activemq.util.DataByteArrayOutputStream;
+import org.apache.activemq.util.IOHelper;
+import org.apache.activemq.util.LockFile;
+import org.apache.activemq.util.ServiceStopper;
+import org.apache.activemq.util.ServiceSupport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link JobSchedulerStore} that keeps its jobs in memory in timing wheels
+ * and only uses the journal as a log to rebuild them from on restart.
+ *
+ * Unlike {@link JobSchedulerStoreImpl} there is no page file index to update,
+ * every change to a job is a single journal append.  A job is added with a
+ * record holding its payload, later records only name it.  The number of live
+ * jobs added in each data file is counted, and the cleanup task removes data
+ * files from the oldest on while they hold none.  When the oldest file still
+ * holding live jobs falls behind, its jobs are added again at the end of the
+ * journal so it can go too.
+ *
+ * @org.apache.xbean.XBean
+ */
+public class TimingWheelJobSchedulerStore extends ServiceSupport implements JobSchedulerStore, Runnable {
+    static final Logger LOG = LoggerFactory.getLogger(TimingWheelJobSchedulerStore.class);
+    private static final int DATABASE_LOCKED_WAIT_DELAY = 10 * 1000;
+
+    private static final byte ADD_JOB = 1;
+    private static final byte REMOVE_JOB = 2;
+    private static final byte RESCHEDULE_JOB = 3;
+    private static final byte REMOVE_ALL_JOBS = 4;
+
+    private File directory;
+    private Journal journal;
+    protected AtomicLong journalSize = new AtomicLong(0);
+    private LockFile lockFile;
+    private boolean failIfDatabaseIsLocked;
+    private int journalMaxFileLength = Journal.DEFAULT_MAX_FILE_LENGTH;
+    private int journalMaxWriteBatchSize = Journal.DEFAULT_MAX_WRITE_BATCH_SIZE;
+    private long cleanupInterval = 30000;
+    private Scheduler scheduler;
+    final Map<String, TimingWheelJobScheduler> schedulers = new HashMap<String, TimingWheelJobScheduler>();
+    // data file id -> number of live jobs added in it
+    private final TreeMap<Integer, Integer> liveJobs = new TreeMap<Integer, Integer>();
+
+    @Override
+    public File getDirectory() {
+        return directory;
+    }
+
+    @Override
+    public void setDirectory(File directory) {
+        this.directory = directory;
+    }
+
+    @Override
+    public long size() {
+        if (!isStarted()) {
+            return 0;
+        }
+        return journalSize.get();
+    }
+
+    @Override
+    public synchronized JobScheduler getJobScheduler(String name) throws Exception {
+        TimingWheelJobScheduler result = this.schedulers.get(name);
+        if (result == null) {
+            result = new TimingWheelJobScheduler(this, name);
+            this.schedulers.put(name, result);
+            if (isStarted()) {
+                result.start();
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized boolean removeJobScheduler(String name) throws Exception {
+        TimingWheelJobScheduler js = this.schedulers.remove(name);
+        if (js != null) {
+            js.stop();
+            js.removeAllJobs();
+        }
+        return js != null;
+    }
+
+    @Override
+    protected synchronized void doStart() throws Exception {
+        if (this.directory == null) {
+            this.directory = new File(IOHelper.getDefaultDataDirectory() + File.separator + "delayedDB");
+        }
+        IOHelper.mkdirs(this.directory);
+        lock();
+        this.journal = new Journal();
+        this.journal.setDirectory(directory);
+        this.journal.setMaxFileLength(getJournalMaxFileLength());
+        this.journal.setWriteBatchSize(getJournalMaxWriteBatchSize());
+        this.journal.setSizeAccumulator(this.journalSize);
+        this.journal.start();
+
+        recover();
+        for (TimingWheelJobScheduler js : this.schedulers.values()) {
+            try {
+                js.start();
+            } catch (Exception e) {
+                LOG.error("Failed to load " + js.getName(), e);
+            }
+        }
+
+        if (cleanupInterval > 0) {
+            this.scheduler = new Scheduler(TimingWheelJobSchedulerStore.class.getSimpleName());
+            this.scheduler.start();
+            this.scheduler.executePeriodically(this, cleanupInterval);
+        }
+        LOG.info(this + " started");
+    }
+
+    @Override
+    protected synchronized void doStop(ServiceStopper stopper) throws Exception {
+        if (this.scheduler != null) {
+            this.scheduler.stop();
+            this.scheduler = null;
+        }
+        for (TimingWheelJobScheduler js : this.schedulers.values()) {
+            js.stop();
+        }
+        this.schedulers.clear();
+        synchronized (liveJobs) {
+            liveJobs.clear();
+        }
+        if (this.journal != null) {
+            journal.close();
+        }
+        if (this.lockFile != null) {
+            this.lockFile.unlock();
+        }
+        this.lockFile = null;
+        LOG.info(this + " stopped");
+    }
+
+    /**
+     * Rebuilds the schedulers by replaying the journal.
+     */
+    private void recover() throws IOException {
+        long start = System.currentTimeMillis();
+        int records = 0;
+        Location location = this.journal.getNextLocation(null);
+        while (location != null) {
+            DataByteArrayInputStream in = new DataByteArrayInputStream(this.journal.read(location));
+            byte type = in.readByte();
+            String name = in.readUTF();
+            TimingWheelJobScheduler js = this.schedulers.get(name);
+            if (js == null) {
+                js = new TimingWheelJobScheduler(this, name);
+                this.schedulers.put(name, js);
+            }
+            switch (type) {
+            case ADD_JOB:
+                js.recoverAdd(readJob(location, in));
+                break;
+            case REMOVE_JOB:
+                js.recoverRemove(in.readUTF());
+                break;
+            case RESCHEDULE_JOB:
+                js.recoverReschedule(in.readUTF(), in.readInt(), in.readLong());
+                break;
+            case REMOVE_ALL_JOBS:
+                js.recoverRemoveAll();
+                break;
+            default:
+                throw new IOException("Unknown job scheduler record type " + type + " at " + location);
+            }
+            records++;
+            location = this.journal.getNextLocation(location);
+        }
+        int jobs = 0;
+        for (TimingWheelJobScheduler js : this.schedulers.values()) {
+            jobs += js.size();
+        }
+        LOG.info("Recovered " + jobs + " jobs from " + records + " journal records in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Logs a new job.
+     *
+     * @return a copy of the job located at its record.
+     */
+    JobLocation addJob(String name, JobLocation job, ByteSequence payload) throws IOException {
+        DataByteArrayOutputStream os = new DataByteArrayOutputStream(payload.getLength() + 128);
+        os.writeByte(ADD_JOB);
+        os.writeUTF(name);
+        os.writeUTF(job.getJobId());
+        os.writeInt(job.getRepeat());
+        os.writeLong(job.getStartTime());
+        os.writeLong(job.getDelay());
+        os.writeLong(job.getNextTime());
+        os.writeLong(job.getPeriod());
+        os.writeUTF(job.getCronEntry() != null ? job.getCronEntry() : "");
+        os.writeInt(payload.getLength());
+        os.write(payload.getData(), payload.getOffset(), payload.getLength());
+        Location location = this.journal.write(os.toByteSequence(), false);
+        retain(location);
+
+        JobLocation result = new JobLocation(location);
+        result.setJobId(job.getJobId());
+        result.setRepeat(job.getRepeat());
+        result.setStartTime(job.getStartTime());
+        result.setDelay(job.getDelay());
+        result.setNextTime(job.getNextTime());
+        result.setPeriod(job.getPeriod());
+        result.setCronEntry(job.getCronEntry());
+        return result;
+    }
+
+    void removeJob(String name, JobLocation job) throws IOException {
+        DataByteArrayOutputStream os = new DataByteArrayOutputStream(64);
+        os.writeByte(REMOVE_JOB);
+        os.writeUTF(name);
+        os.writeUTF(job.getJobId());
+        this.journal.write(os.toByteSequence(), false);
+        release(job.getLocation());
+    }
+
+    void rescheduleJob(String name, JobLocation job) throws IOException {
+        DataByteArrayOutputStream os = new DataByteArrayOutputStream(64);
+        os.writeByte(RESCHEDULE_JOB);
+        os.writeUTF(name);
+        os.writeUTF(job.getJobId());
+        os.writeInt(job.getRepeat());
+        os.writeLong(job.getNextTime());
+        this.journal.write(os.toByteSequence(), false);
+    }
+
+    /**
+     * Logs that all the scheduler's jobs were removed, the caller releases them.
+     */
+    void removeAllJobs(String name) throws IOException {
+        DataByteArrayOutputStream os = new DataByteArrayOutputStream(64);
+        os.writeByte(REMOVE_ALL_JOBS);
+        os.writeUTF(name);
+        this.journal.write(os.toByteSequence(), false);
+    }
+
+    ByteSequence getPayload(Location location) throws IllegalStateException, IOException {
+        ByteSequence record = this.journal.read(location);
+        DataByteArrayInputStream in = new DataByteArrayInputStream(record);
+        in.readByte();
+        in.readUTF();
+        readJob(location, in);
+        int length = in.readInt();
+        return new ByteSequence(record.getData(), record.getOffset() + in.size(), length);
+    }
+
+    private static JobLocation readJob(Location location, DataByteArrayInputStream in) throws IOException {
+        JobLocation job = new JobLocation(location);
+        job.setJobId(in.readUTF());
+        job.setRepeat(in.readInt());
+        job.setStartTime(in.readLong());
+        job.setDelay(in.readLong());
+        job.setNextTime(in.readLong());
+        job.setPeriod(in.readLong());
+        job.setCronEntry(in.readUTF());
+        return job;
+    }
+
+    void retain(Location location) {
+        synchronized (liveJobs) {
+            Integer count = liveJobs.get(location.getDataFileId());
+            liveJobs.put(location.getDataFileId(), count != null ? count.intValue() + 1 : 1);
+        }
+    }
+
+    void release(Location location) {
+        synchronized (liveJobs) {
+            Integer count = liveJobs.get(location.getDataFileId());
+            if (count != null && count.intValue() > 1) {
+                liveJobs.put(location.getDataFileId(), count.intValue() - 1);
+            } else {
+                liveJobs.remove(location.getDataFileId());
+            }
+        }
+    }
+
+    /**
+     * Removes the data files no live job was added in, and adds the jobs of the
+     * oldest file still holding some again once it is two files behind.
+     */
+    @Override
+    public void run() {
+        try {
+            if (!isStarted()) {
+                return;
+            }
+            Integer current = this.journal.getCurrentDataFileId();
+            if (current == null) {
+                return;
+            }
+            Set<Integer> unused = new HashSet<Integer>();
+            int oldestLive = -1;
+            synchronized (liveJobs) {
+                for (Integer dataFileId : this.journal.getFileMap().keySet()) {
+                    if (dataFileId.intValue() >= current.intValue()) {
+                        break;
+                    }
+                    if (liveJobs.containsKey(dataFileId)) {
+                        oldestLive = dataFileId.intValue();
+                        break;
+                    }
+                    unused.add(dataFileId);
+                }
+            }
+            if (!unused.isEmpty()) {
+                LOG.debug("Cleanup removing the data files: " + unused);
+                this.journal.removeDataFiles(unused);
+            }
+            if (oldestLive >= 0 && current.intValue() - oldestLive >= 2) {
+                List<TimingWheelJobScheduler> list;
+                synchronized (this) {
+                    list = new ArrayList<TimingWheelJobScheduler>(this.schedulers.values());
+                }
+                LOG.debug("Cleanup relogging the jobs of data file: " + oldestLive);
+                for (TimingWheelJobScheduler js : list) {
+                    js.relog(oldestLive);
+                }
+            }
+        } catch (IOException e) {
+            LOG.error("Failed to cleanup " + this, e);
+        }
+    }
+
+    private void lock() throws IOException {
+        if (lockFile == null) {
+            File lockFileName = new File(directory, "lock");
+            lockFile = new LockFile(lockFileName, true);
+            if (failIfDatabaseIsLocked) {
+                lockFile.lock();
+            } else {
+                while (true) {
+                    try {
+                        lockFile.lock();
+                        break;
+                    } catch (IOException e) {
+                        LOG.info("Database " + lockFileName + " is locked... waiting " + (DATABASE_LOCKED_WAIT_DELAY / 1000)
+                            + " seconds for the database to be unlocked. Reason: " + e);
+                        try {
+                            Thread.sleep(DATABASE_LOCKED_WAIT_DELAY);
+                        } catch (InterruptedException e1) {
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    public boolean isFailIfDatabaseIsLocked() {
+        return failIfDatabaseIsLocked;
+    }
+
+    public void setFailIfDatabaseIsLocked(boolean failIfDatabaseIsLocked) {
+        this.failIfDatabaseIsLocked = failIfDatabaseIsLocked;
+    }
+
+    public int getJournalMaxFileLength() {
+        return journalMaxFileLength;
+    }
+
+    public void setJournalMaxFileLength(int journalMaxFileLength) {
+        this.journalMaxFileLength = journalMaxFileLength;
+    }
+
+    public int getJournalMaxWriteBatchSize() {
+        return journalMaxWriteBatchSize;
+    }
+
+    public void setJournalMaxWriteBatchSize(int journalMaxWriteBatchSize) {
+        this.journalMaxWriteBatchSize = journalMaxWriteBatchSize;
+    }
+
+    public long getCleanupInterval() {
+        return cleanupInterval;
+    }
+
+    /**
+     * How often, in milliseconds, to look for journal files that can be
+     * removed, zero disables the cleanup.
+     */
+    public void setCleanupInterval(long cleanupInterval) {
+        this.cleanupInterval = cleanupInterval;
+    }
+
+    @Override
+    public String toString() {
+        return "JobSchedulerStore:" + this.directory;
+    }
+}
@@ -20,6 +20,7 @@ import java.io.IOException;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 
@@ -58,6 +59,15 @@ public class MemoryMessageStore extends AbstractMessageStore {
         message.incrementReferenceCount();
     }
 
+    public synchronized void addMessages(ConnectionContext context, List<Message> messages) throws IOException {
+        // one pass over the table lock rather than one per message
+        synchronized (messageTable) {
+            for (Message message : messages) {
+                addMessage(context, message);
+            }
+        }
+    }
+
     // public void addMessageReference(ConnectionContext context,MessageId
     // messageId,long expirationTime,String messageRef)
     // throws IOException{
@@ -78,6 +88,14 @@ public class MemoryMessageStore extends AbstractMessageStore {
         removeMessage(ack.getLastMessageId());
     }
 
+    public void removeMessages(ConnectionContext context, List<MessageAck> acks) throws IOException {
+        synchronized (messageTable) {
+            for (MessageAck ack : acks) {
+                removeMessage(context, ack);
+            }
+        }
+    }
+
     public void removeMessage(MessageId msgId) throws IOException {
         synchronized (messageTable) {
             Message removed = messageTable.remove(msgId);
@@ -0,0 +1,117 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.store.memory;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.activemq.broker.ConnectionContext;
+import org.apache.activemq.command.ActiveMQDestination;
+import org.apache.activemq.command.Message;
+import org.apache.activemq.command.MessageAck;
+import org.apache.activemq.command.MessageId;
+import org.apache.activemq.store.AbstractMessageStore;
+import org.apache.activemq.store.MessageRecoveryListener;
+
+/**
+ * A {@link org.apache.activemq.store.MessageStore} that keeps the messages
+ * of a destination in a {@link MessageRing}, its batch position being a
+ * sequence in the ring rather than a message id.
+ */
+public class MemoryRingMessageStore extends AbstractMessageStore {
+
+    protected final MessageRing ring;
+    // the sequence of the last message recovered by recoverNextMessages
+    protected long lastBatch = -1;
+
+    public MemoryRingMessageStore(ActiveMQDestination destination, int initialCapacity) {
+        super(destination);
+        this.ring = new MessageRing(initialCapacity);
+    }
+
+    public synchronized void addMessage(ConnectionContext context, Message message) throws IOException {
+        ring.add(message);
+        message.incrementReferenceCount();
+    }
+
+    public synchronized void addMessages(ConnectionContext context, List<Message> messages) throws IOException {
+        for (Message message : messages) {
+            addMessage(context, message);
+        }
+    }
+
+    public synchronized Message getMessage(MessageId identity) throws IOException {
+        long sequence = ring.find(identity);
+        return sequence < 0 ? null : ring.get(sequence);
+    }
+
+    public void removeMessage(ConnectionContext context, MessageAck ack) throws IOException {
+        removeMessage(ack.getLastMessageId());
+    }
+
+    public synchronized void removeMessages(ConnectionContext context, List<MessageAck> acks) throws IOException {
+        for (MessageAck ack : acks) {
+            removeMessage(ack.getLastMessageId());
+        }
+    }
+
+    public synchronized void removeMessage(MessageId msgId) throws IOException {
+        long sequence = ring.find(msgId);
+        if (sequence >= 0) {
+            ring.remove(sequence).decrementReferenceCount();
+        }
+    }
+
+    public synchronized void recover(MessageRecoveryListener listener) throws Exception {
+        for (long sequence = ring.next(0); sequence >= 0; sequence = ring.next(sequence + 1)) {
+            listener.recoverMessage(ring.get(sequence));
+        }
+    }
+
+    public synchronized void removeAllMessages(ConnectionContext context) throws IOException {
+        ring.clear();
+    }
+
+    public synchronized void delete() {
+        ring.clear();
+    }
+
+    public synchronized int getMessageCount() {
+        return ring.size();
+    }
+
+    public synchronized void recoverNextMessages(int maxReturned, MessageRecoveryListener listener) throws Exception {
+        int count = 0;
+        for (long sequence = ring.next(lastBatch + 1); sequence >= 0 && count < maxReturned; sequence = ring.next(sequence + 1)) {
+            listener.recoverMessage(ring.get(sequence));
+            lastBatch = sequence;
+            count++;
+        }
+    }
+
+    public synchronized void resetBatching() {
+        lastBatch = -1;
+    }
+
+    @Override
+    public synchronized void setBatch(MessageId messageId) {
+        long sequence = ring.find(messageId);
+        if (sequence >= 0) {
+            lastBatch = sequence;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.store.memory;
+
+import java.io.IOException;
+import java.util.Iterator;
+
+import org.apache.activemq.command.ActiveMQQueue;
+import org.apache.activemq.command.ActiveMQTopic;
+import org.apache.activemq.store.MessageStore;
+import org.apache.activemq.store.ProxyMessageStore;
+import org.apache.activemq.store.ProxyTopicMessageStore;
+import org.apache.activemq.store.TopicMessageStore;
+
+/**
+ * A {@link MemoryPersistenceAdapter} whose destinations keep their messages
+ * in ring buffers indexed by sequence, see {@link MemoryRingMessageStore}
+ * and {@link MemoryRingTopicMessageStore}, rather than in maps keyed by
+ * message id.  Each destination, and so each durable subscription, has its
+ * own lock and nothing is allocated per message stored.
+ *
+ * @org.apache.xbean.XBean
+ *
+ */
+public class MemoryRingPersistenceAdapter extends MemoryPersistenceAdapter {
+
+    private int initialCapacity = 64;
+
+    public MessageStore createQueueMessageStore(ActiveMQQueue destination) throws IOException {
+        MessageStore rc = queues.get(destination);
+        if (rc == null) {
+            rc = new MemoryRingMessageStore(destination, initialCapacity);
+            if (transactionStore != null) {
+                rc = transactionStore.proxy(rc);
+            }
+            MessageStore existing = queues.putIfAbsent(destination, rc);
+            if (existing != null) {
+                rc = existing;
+            }
+        }
+        return rc;
+    }
+
+    public TopicMessageStore createTopicMessageStore(ActiveMQTopic destination) throws IOException {
+        TopicMessageStore rc = topics.get(destination);
+        if (rc == null) {
+            rc = new MemoryRingTopicMessageStore(destination, initialCapacity);
+            if (transactionStore != null) {
+                rc = transactionStore.proxy(rc);
+            }
+            TopicMessageStore existing = topics.putIfAbsent(destination, rc);
+            if (existing != null) {
+                rc = existing;
+            }
+        }
+        return rc;
+    }
+
+    public void deleteAllMessages() throws IOException {
+        for (Iterator<TopicMessageStore> iter = topics.values().iterator(); iter.hasNext();) {
+            MemoryRingMessageStore store = asMemoryRingMessageStore(iter.next());
+            if (store != null) {
+                store.delete();
+            }
+        }
+        for (Iterator<MessageStore> iter = queues.values().iterator(); iter.hasNext();) {
+            MemoryRingMessageStore store = asMemoryRingMessageStore(iter.next());
+            if (store != null) {
+                store.delete();
+            }
+        }
+
+        if (transactionStore != null) {
+            transactionStore.delete();
+        }
+    }
+
+    protected MemoryRingMessageStore asMemoryRingMessageStore(MessageStore value) {
+        if (value instanceof ProxyMessageStore) {
+            value = ((ProxyMessageStore)value).getDelegate();
+        } else if (value instanceof ProxyTopicMessageStore) {
+            value = ((ProxyTopicMessageStore)value).getDelegate();
+        }
+        return value instanceof MemoryRingMessageStore ? (MemoryRingMessageStore)value : null;
+    }
+
+    public int getInitialCapacity() {
+        return initialCapacity;
+    }
+
+    /**
+     * The number of messages a destination's ring buffer starts with room
+     * for, it doubles as needed and shrinks back as it empties.
+     */
+    public void setInitialCapacity(int initialCapacity) {
+        this.initialCapacity = initialCapacity;
+    }
+
+    public String toString() {
+        return "MemoryRingPersistenceAdapter";
+    }
+}
@@ -0,0 +1,190 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.store.memory;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.activemq.broker.ConnectionContext;
+import org.apache.activemq.command.ActiveMQDestination;
+import org.apache.activemq.command.Message;
+import org.apache.activemq.command.MessageAck;
+import org.apache.activemq.command.MessageId;
+import org.apache.activemq.command.SubscriptionInfo;
+import org.apache.activemq.store.MessageRecoveryListener;
+import org.apache.activemq.store.TopicMessageStore;
+import org.apache.activemq.util.SubscriptionKey;
+
+/**
+ * A {@link TopicMessageStore} that keeps each message once in a
+ * {@link MessageRing}, counting the durable subscriptions it is pending for,
+ * and each subscription's pending messages as a {@link SequenceSet}.
+ *
+ * A message goes once no subscription needs it and it is not one of the
+ * last retained messages added, which are kept for retroactive
+ * subscriptions as {@link MemoryTopicMessageStore} does.
+ */
+public class MemoryRingTopicMessageStore extends MemoryRingMessageStore implements TopicMessageStore {
+
+    static final int RETAINED = 100;
+
+    private final Map<SubscriptionKey, Subscription> subscriptions = new HashMap<SubscriptionKey, Subscription>();
+
+    static final class Subscription {
+        final SubscriptionInfo info;
+        final SequenceSet pending = new SequenceSet();
+        long lastBatch = -1;
+
+        Subscription(SubscriptionInfo info) {
+            this.info = info;
+        }
+    }
+
+    public MemoryRingTopicMessageStore(ActiveMQDestination destination, int initialCapacity) {
+        super(destination, initialCapacity);
+    }
+
+    public synchronized void addMessage(ConnectionContext context, Message message) throws IOException {
+        long sequence = ring.add(message);
+        message.incrementReferenceCount();
+        for (Subscription sub : subscriptions.values()) {
+            sub.pending.add(sequence);
+        }
+        ring.reference(sequence, subscriptions.size());
+        // no longer retained, so goes unless a subscription still needs it
+        long expired = sequence - RETAINED;
+        if (ring.get(expired) != null && ring.reference(expired, 0) == 0) {
+            ring.remove(expired).decrementReferenceCount();
+        }
+    }
+
+    public synchronized void acknowledge(ConnectionContext context, String clientId, String subscriptionName,
+                                         MessageId messageId, MessageAck ack) throws IOException {
+        Subscription sub = subscriptions.get(new SubscriptionKey(clientId, subscriptionName));
+        if (sub != null) {
+            long sequence = ring.find(messageId);
+            if (sequence >= 0 && sub.pending.remove(sequence)) {
+                release(sequence);
+            }
+        }
+    }
+
+    private void release(long sequence) {
+        if (ring.get(sequence) == null) {
+            // removed from the topic as a whole
+            return;
+        }
+        if (ring.reference(sequence, -1) == 0 && sequence <= ring.getEnd() - 1 - RETAINED) {
+            ring.remove(sequence).decrementReferenceCount();
+        }
+    }
+
+    public synchronized SubscriptionInfo lookupSubscription(String clientId, String subscriptionName) throws IOException {
+        Subscription sub = subscriptions.get(new SubscriptionKey(clientId, subscriptionName));
+        return sub != null ? sub.info : null;
+    }
+
+    public synchronized void addSubsciption(SubscriptionInfo info, boolean retroactive) throws IOException {
+        SubscriptionKey key = new SubscriptionKey(info);
+        Subscription sub = new Subscription(info);
+        Subscription replaced = subscriptions.put(key, sub);
+        if (replaced != null) {
+            releaseAll(replaced);
+        }
+        if (retroactive) {
+            for (long sequence = ring.next(0); sequence >= 0; sequence = ring.next(sequence + 1)) {
+                sub.pending.add(sequence);
+                ring.reference(sequence, 1);
+            }
+        }
+    }
+
+    public synchronized void deleteSubscription(String clientId, String subscriptionName) {
+        Subscription sub = subscriptions.remove(new SubscriptionKey(clientId, subscriptionName));
+        if (sub != null) {
+            releaseAll(sub);
+        }
+    }
+
+    private void releaseAll(Subscription sub) {
+        for (long sequence = sub.pending.next(0); sequence >= 0; sequence = sub.pending.next(sequence + 1)) {
+            release(sequence);
+        }
+        sub.pending.clear();
+    }
+
+    public synchronized void recoverSubscription(String clientId, String subscriptionName, MessageRecoveryListener listener) throws Exception {
+        Subscription sub = subscriptions.get(new SubscriptionKey(clientId, subscriptionName));
+        if (sub != null) {
+            for (long sequence = sub.pending.next(0); sequence >= 0; sequence = sub.pending.next(sequence + 1)) {
+                Message message = ring.get(sequence);
+                if (message != null) {
+                    listener.recoverMessage(message);
+                }
+            }
+        }
+    }
+
+    public synchronized void recoverNextMessages(String clientId, String subscriptionName, int maxReturned, MessageRecoveryListener listener) throws Exception {
+        Subscription sub = subscriptions.get(new SubscriptionKey(clientId, subscriptionName));
+        if (sub != null) {
+            int count = 0;
+            for (long sequence = sub.pending.next(sub.lastBatch + 1); sequence >= 0 && count < maxReturned; sequence = sub.pending.next(sequence + 1)) {
+                Message message = ring.get(sequence);
+                if (message != null) {
+                    listener.recoverMessage(message);
+                    count++;
+                }
+                sub.lastBatch = sequence;
+            }
+        }
+    }
+
+    public synchronized void resetBatching(String clientId, String subscriptionName) {
+        Subscription sub = subscriptions.get(new SubscriptionKey(clientId, subscriptionName));
+        if (sub != null) {
+            sub.lastBatch = -1;
+        }
+    }
+
+    public synchronized int getMessageCount(String clientId, String subscriberName) throws IOException {
+        Subscription sub = subscriptions.get(new SubscriptionKey(clientId, subscriberName));
+        return sub != null ? sub.pending.size() : 0;
+    }
+
+    public synchronized SubscriptionInfo[] getAllSubscriptions() throws IOException {
+        SubscriptionInfo[] result = new SubscriptionInfo[subscriptions.size()];
+        int i = 0;
+        for (Subscription sub : subscriptions.values()) {
+            result[i++] = sub.info;
+        }
+        return result;
+    }
+
+    public synchronized void removeAllMessages(ConnectionContext context) throws IOException {
+        super.removeAllMessages(context);
+        for (Subscription sub : subscriptions.values()) {
+            sub.pending.clear();
+        }
+    }
+
+    public synchronized void delete() {
+        super.delete();
+        subscriptions.clear();
+    }
+}
@@ -34,6 +34,7 @@ import org.apache.activemq.store.TransactionStore;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Future;
 
@@ -84,6 +85,47 @@ public class MemoryTransactionStore implements TransactionStore {
             return rc;
         }
 
+        /**
+         * Runs all the message adds, then the removes. Runs of adds or removes
+         * that just store to the same message store are handed to it as one batch.
+         *
+         * @throws IOException
+         */
+        public void run(ConnectionContext ctx) throws IOException {
+            // Do all the message adds.
+            for (int i = 0; i < messages.size();) {
+                AddMessageCommand cmd = messages.get(i++);
+                if (cmd instanceof StoreAddMessageCommand) {
+                    MessageStore store = cmd.getMessageStore();
+                    List<Message> batch = new ArrayList<Message>();
+                    batch.add(cmd.getMessage());
+                    while (i < messages.size() && messages.get(i) instanceof StoreAddMessageCommand
+                            && messages.get(i).getMessageStore() == store) {
+                        batch.add(messages.get(i++).getMessage());
+                    }
+                    store.addMessages(ctx, batch);
+                } else {
+                    cmd.run(ctx);
+                }
+            }
+            // And removes..
+            for (int i = 0; i < acks.size();) {
+                RemoveMessageCommand cmd = acks.get(i++);
+                if (cmd instanceof StoreRemoveMessageCommand) {
+                    MessageStore store = cmd.getMessageStore();
+                    List<MessageAck> batch = new ArrayList<MessageAck>();
+                    batch.add(cmd.getMessageAck());
+                    while (i < acks.size() && acks.get(i) instanceof StoreRemoveMessageCommand
+                            && acks.get(i).getMessageStore() == store) {
+                        batch.add(acks.get(i++).getMessageAck());
+                    }
+                    store.removeMessages(ctx, batch);
+                } else {
+                    cmd.run(ctx);
+                }
+            }
+        }
+
         /**
          * @throws IOException
          */
@@ -92,16 +134,7 @@ public class MemoryTransactionStore implements TransactionStore {
             persistenceAdapter.beginTransaction(ctx);
             try {
 
-                // Do all the message adds.
-                for (Iterator<AddMessageCommand> iter = messages.iterator(); iter.hasNext();) {
-                    AddMessageCommand cmd = iter.next();
-                    cmd.run(ctx);
-                }
-                // And removes..
-                for (Iterator<RemoveMessageCommand> iter = acks.iterator(); iter.hasNext();) {
-                    RemoveMessageCommand cmd = iter.next();
-                    cmd.run(ctx);
-                }
+                run(ctx);
 
             } catch ( IOException e ) {
                 persistenceAdapter.rollbackTransaction(ctx);
@@ -127,6 +160,56 @@ public class MemoryTransactionStore implements TransactionStore {
         MessageStore getMessageStore();
     }
 
+    /**
+     * An add that just stores the message, so can be batched with its neighbours.
+     */
+    class StoreAddMessageCommand implements AddMessageCommand {
+        private final MessageStore destination;
+        private final Message message;
+
+        StoreAddMessageCommand(MessageStore destination, Message message) {
+            this.destination = destination;
+            this.message = message;
+        }
+
+        public Message getMessage() {
+            return message;
+        }
+
+        public MessageStore getMessageStore() {
+            return destination;
+        }
+
+        public void run(ConnectionContext ctx) throws IOException {
+            destination.addMessage(ctx, message);
+        }
+    }
+
+    /**
+     * A remove that just removes the message, so can be batched with its neighbours.
+     */
+    class StoreRemoveMessageCommand implements RemoveMessageCommand {
+        private final MessageStore destination;
+        private final MessageAck ack;
+
+        StoreRemoveMessageCommand(MessageStore destination, MessageAck ack) {
+            this.destination = destination;
+            this.ack = ack;
+        }
+
+        public MessageAck getMessageAck() {
+            return ack;
+        }
+
+        public MessageStore getMessageStore() {
+            return destination;
+        }
+
+        public void run(ConnectionContext ctx) throws IOException {
+            destination.removeMessage(ctx, ack);
+        }
+    }
+
     public MemoryTransactionStore(PersistenceAdapter persistenceAdapter) {
         this.persistenceAdapter=persistenceAdapter;
     }
@@ -145,14 +228,12 @@ public class MemoryTransactionStore implements TransactionStore {
 
             @Override
             public Future<Object> asyncAddQueueMessage(ConnectionContext context, Message message) throws IOException {
-                MemoryTransactionStore.this.addMessage(getDelegate(), message);
-                return AbstractMessageStore.FUTURE;
+                return MemoryTransactionStore.this.asyncAddQueueMessage(getDelegate(), message);
              }
 
             @Override
             public Future<Object> asyncAddQueueMessage(ConnectionContext context, Message message, boolean canoptimize) throws IOException {
-                MemoryTransactionStore.this.addMessage(getDelegate(), message);
-                return AbstractMessageStore.FUTURE;
+                return MemoryTransactionStore.this.asyncAddQueueMessage(getDelegate(), message);
              }
 
             @Override
@@ -164,6 +245,16 @@ public class MemoryTransactionStore implements TransactionStore {
             public void removeAsyncMessage(ConnectionContext context, MessageAck ack) throws IOException {
                 MemoryTransactionStore.this.removeMessage(getDelegate(), ack);
             }
+
+            @Override
+            public void addMessages(ConnectionContext context, List<Message> messages) throws IOException {
+                MemoryTransactionStore.this.addMessages(getDelegate(), messages);
+            }
+
+            @Override
+            public void removeMessages(ConnectionContext context, List<MessageAck> acks) throws IOException {
+                MemoryTransactionStore.this.removeMessages(getDelegate(), acks);
+            }
         };
     }
 
@@ -201,6 +292,16 @@ public class MemoryTransactionStore implements TransactionStore {
                 MemoryTransactionStore.this.removeMessage(getDelegate(), ack);
             }
 
+            @Override
+            public void addMessages(ConnectionContext context, List<Message> messages) throws IOException {
+                MemoryTransactionStore.this.addMessages(getDelegate(), messages);
+            }
+
+            @Override
+            public void removeMessages(ConnectionContext context, List<MessageAck> acks) throws IOException {
+                MemoryTransactionStore.this.removeMessages(getDelegate(), acks);
+            }
+
             @Override
             public void acknowledge(ConnectionContext context, String clientId, String subscriptionName,
                             MessageId messageId, MessageAck ack) throws IOException {
@@ -308,23 +409,51 @@ public class MemoryTransactionStore implements TransactionStore {
 
         if (message.getTransactionId() != null) {
             Tx tx = getTx(message.getTransactionId());
-            tx.add(new AddMessageCommand() {
-                public Message getMessage() {
-                    return message;
-                }
+            tx.add(new StoreAddMessageCommand(destination, message));
+        } else {
+            destination.addMessage(null, message);
+        }
+    }
 
-                @Override
-                public MessageStore getMessageStore() {
-                    return destination;
-                }
+    /**
+     * Like addMessage, but a message outside a transaction is handed to the
+     * store's own async add, so the store can complete it later.
+     */
+    Future<Object> asyncAddQueueMessage(final MessageStore destination, final Message message) throws IOException {
 
-                public void run(ConnectionContext ctx) throws IOException {
-                    destination.addMessage(ctx, message);
-                }
+        if (doingRecover) {
+            return AbstractMessageStore.FUTURE;
+        }
 
-            });
+        if (message.getTransactionId() != null) {
+            Tx tx = getTx(message.getTransactionId());
+            tx.add(new StoreAddMessageCommand(destination, message));
+            return AbstractMessageStore.FUTURE;
         } else {
-            destination.addMessage(null, message);
+            return destination.asyncAddQueueMessage(null, message);
+        }
+    }
+
+    /**
+     * @param messages
+     * @throws IOException
+     */
+    void addMessages(final MessageStore destination, final List<Message> messages) throws IOException {
+
+        if (doingRecover) {
+            return;
+        }
+
+        List<Message> batch = new ArrayList<Message>(messages.size());
+        for (Message message : messages) {
+            if (message.getTransactionId() != null) {
+                addMessage(destination, message);
+            } else {
+                batch.add(message);
+            }
+        }
+        if (!batch.isEmpty()) {
+            destination.addMessages(null, batch);
         }
     }
 
@@ -339,25 +468,34 @@ public class MemoryTransactionStore implements TransactionStore {
 
         if (ack.isInTransaction()) {
             Tx tx = getTx(ack.getTransactionId());
-            tx.add(new RemoveMessageCommand() {
-                public MessageAck getMessageAck() {
-                    return ack;
-                }
-
-                public void run(ConnectionContext ctx) throws IOException {
-                    destination.removeMessage(ctx, ack);
-                }
-
-                @Override
-                public MessageStore getMessageStore() {
-                    return destination;
-                }
-            });
+            tx.add(new StoreRemoveMessageCommand(destination, ack));
         } else {
             destination.removeMessage(null, ack);
         }
     }
 
+    /**
+     * @param acks
+     * @throws IOException
+     */
+    final void removeMessages(final MessageStore destination, final List<MessageAck> acks) throws IOException {
+        if (doingRecover) {
+            return;
+        }
+
+        List<MessageAck> batch = new ArrayList<MessageAck>(acks.size());
+        for (MessageAck ack : acks) {
+            if (ack.isInTransaction()) {
+                removeMessage(destination, ack);
+            } else {
+                batch.add(ack);
+            }
+        }
+        if (!batch.isEmpty()) {
+            destination.removeMessages(null, batch);
+        }
+    }
+
     public void acknowledge(final TopicMessageStore destination, final String clientId, final String subscriptionName,
                            final MessageId messageId, final MessageAck ack) throws IOException {
         if (doingRecover) {
@@ -0,0 +1,300 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.store.memory;
+
+import java.util.HashMap;
+import java.util.TreeMap;
+
+import org.apache.activemq.command.Message;
+import org.apache.activemq.command.MessageId;
+
+/**
+ * The messages of a destination in the order they were added, each given
+ * the next sequence number and kept in the ring buffer slot for it.
+ *
+ * The ring spans the sequences from the oldest message still held to the
+ * newest, so removing any message is O(1) and leaves a hole until those
+ * before it have gone too.  Message ids are found through an open
+ * addressing table of sequences, probed by the id's hash code and checked
+ * against the message in the ring, so nothing is allocated per message.
+ * Each slot also carries a reference count for stores that share a message
+ * between subscriptions.
+ *
+ * A message that stays while those after it go, such as one a slow durable
+ * subscription has yet to ack, would stretch the ring over more and more
+ * holes.  So once no more than a quarter of the slots are in use, the ring
+ * is compacted rather than grown: the oldest messages are moved out to a
+ * sorted overflow map until the ring spans at most twice the messages left
+ * in it.  Their sequences stay the same, all lower than the ring's.
+ *
+ * The ring is not thread safe.
+ */
+class MessageRing {
+
+    private Message[] slots;
+    private int[] references;
+    private int mask;
+    // sequence + 1 of the messages, by hash of their id, 0 when free
+    private long[] index;
+    // the id hash of each index entry, saves looking at the message
+    private int[] hashes;
+    private int indexMask;
+    private final int initialCapacity;
+    private long first;
+    private long end;
+    private int size;
+    // the messages older than first, moved out of the ring by compact()
+    private final TreeMap<Long, Overflow> overflow = new TreeMap<Long, Overflow>();
+    private final HashMap<MessageId, Long> overflowIds = new HashMap<MessageId, Long>();
+
+    private static final class Overflow {
+        final Message message;
+        int references;
+
+        Overflow(Message message, int references) {
+            this.message = message;
+            this.references = references;
+        }
+    }
+
+    MessageRing(int initialCapacity) {
+        int capacity = 16;
+        while (capacity < initialCapacity) {
+            capacity <<= 1;
+        }
+        this.initialCapacity = capacity;
+        allocate(capacity);
+    }
+
+    /**
+     * @return the sequence of the added message.
+     */
+    long add(Message message) {
+        if (end - first == slots.length) {
+            if (size <= slots.length >> 2) {
+                compact();
+            } else {
+                resize(slots.length << 1);
+            }
+        }
+        long sequence = end++;
+        int slot = (int) sequence & mask;
+        slots[slot] = message;
+        references[slot] = 0;
+        size++;
+        insert(sequence, message.getMessageId());
+        return sequence;
+    }
+
+    Message get(long sequence) {
+        if (sequence < first) {
+            Overflow entry = overflow.get(sequence);
+            return entry == null ? null : entry.message;
+        }
+        if (sequence >= end) {
+            return null;
+        }
+        return slots[(int) sequence & mask];
+    }
+
+    /**
+     * @return the sequence of the message with the given id, or -1.
+     */
+    long find(MessageId id) {
+        int hash = hash(id);
+        int i = hash & indexMask;
+        long entry;
+        while ((entry = index[i]) != 0) {
+            if (hashes[i] == hash && slots[(int) (entry - 1) & mask].getMessageId().equals(id)) {
+                return entry - 1;
+            }
+            i = (i + 1) & indexMask;
+        }
+        if (!overflowIds.isEmpty()) {
+            Long sequence = overflowIds.get(id);
+            if (sequence != null) {
+                return sequence;
+            }
+        }
+        return -1;
+    }
+
+    Message remove(long sequence) {
+        if (sequence < first) {
+            Overflow entry = overflow.remove(sequence);
+            if (entry == null) {
+                return null;
+            }
+            overflowIds.remove(entry.message.getMessageId());
+            size--;
+            return entry.message;
+        }
+        Message message = get(sequence);
+        if (message == null) {
+            return null;
+        }
+        delete(sequence, message.getMessageId());
+        slots[(int) sequence & mask] = null;
+        size--;
+        while (first < end && slots[(int) first & mask] == null) {
+            first++;
+        }
+        if (end - first > initialCapacity && (long) (size - overflow.size()) << 3 < end - first) {
+            compact();
+        }
+        if (slots.length > initialCapacity && end - first <= slots.length >> 2) {
+            resize(slots.length >> 1);
+        }
+        return message;
+    }
+
+    /**
+     * @return the sequence of the first message held at or after the given
+     *         one, or -1.
+     */
+    long next(long sequence) {
+        if (sequence < first && !overflow.isEmpty()) {
+            Long s = overflow.ceilingKey(sequence);
+            if (s != null) {
+                return s;
+            }
+        }
+        for (long s = Math.max(sequence, first); s < end; s++) {
+            if (slots[(int) s & mask] != null) {
+                return s;
+            }
+        }
+        return -1;
+    }
+
+    int reference(long sequence, int delta) {
+        if (sequence < first) {
+            return overflow.get(sequence).references += delta;
+        }
+        return references[(int) sequence & mask] += delta;
+    }
+
+    long getEnd() {
+        return end;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return the number of slots in the ring.
+     */
+    int capacity() {
+        return slots.length;
+    }
+
+    void clear() {
+        first = end;
+        size = 0;
+        overflow.clear();
+        overflowIds.clear();
+        allocate(initialCapacity);
+    }
+
+    /**
+     * Moves the oldest messages out of the ring into the overflow, until the
+     * ring spans no more than twice the messages left in it.
+     */
+    private void compact() {
+        long held = size - overflow.size();
+        while (first < end && end - first > held << 1) {
+            int slot = (int) first & mask;
+            Message message = slots[slot];
+            if (message != null) {
+                delete(first, message.getMessageId());
+                overflow.put(first, new Overflow(message, references[slot]));
+                overflowIds.put(message.getMessageId(), first);
+                slots[slot] = null;
+                held--;
+            }
+            first++;
+        }
+        while (first < end && slots[(int) first & mask] == null) {
+            first++;
+        }
+    }
+
+    private void allocate(int capacity) {
+        slots = new Message[capacity];
+        references = new int[capacity];
+        mask = capacity - 1;
+        index = new long[capacity << 1];
+        hashes = new int[capacity << 1];
+        indexMask = index.length - 1;
+    }
+
+    private void resize(int capacity) {
+        Message[] oldSlots = slots;
+        int[] oldReferences = references;
+        int oldMask = mask;
+        allocate(capacity);
+        for (long s = first; s < end; s++) {
+            Message message = oldSlots[(int) s & oldMask];
+            if (message != null) {
+                slots[(int) s & mask] = message;
+                references[(int) s & mask] = oldReferences[(int) s & oldMask];
+                insert(s, message.getMessageId());
+            }
+        }
+    }
+
+    private void insert(long sequence, MessageId id) {
+        int hash = hash(id);
+        int i = hash & indexMask;
+        while (index[i] != 0) {
+            i = (i + 1) & indexMask;
+        }
+        index[i] = sequence + 1;
+        hashes[i] = hash;
+    }
+
+    private void delete(long sequence, MessageId id) {
+        int i = hash(id) & indexMask;
+        while (index[i] != sequence + 1) {
+            i = (i + 1) & indexMask;
+        }
+        // shift back the entries that probed past the freed one.
+        int j = i;
+        while (true) {
+            j = (j + 1) & indexMask;
+            long entry = index[j];
+            if (entry == 0) {
+                break;
+            }
+            int home = hashes[j] & indexMask;
+            if (((j - home) & indexMask) >= ((j - i) & indexMask)) {
+                index[i] = entry;
+                hashes[i] = hashes[j];
+                i = j;
+            }
+        }
+        index[i] = 0;
+    }
+
+    private static int hash(MessageId id) {
+        // the ids of a producer hash to consecutive values, spread them so
+        // they do not form one long probe sequence.
+        int h = id.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,144 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.store.memory;
+
+import java.util.Arrays;
+
+/**
+ * A set of message sequences held as a bit map from the lowest one in it,
+ * the words before it being dropped as it moves on.  Suits sets that are
+ * mostly added to at the end and removed from at the start.
+ *
+ * The set is not thread safe.
+ */
+class SequenceSet {
+
+    private long[] words = new long[2];
+    // the sequence of the first bit of words[0], a multiple of 64
+    private long base;
+    // the index of the first word that may have bits set
+    private int low;
+    private int size;
+
+    boolean add(long sequence) {
+        if (size == 0) {
+            low = 0;
+            base = sequence & ~63L;
+        } else if (sequence < base) {
+            int shift = (int) ((base - (sequence & ~63L)) >>> 6);
+            ensureCapacity(words.length + shift);
+            System.arraycopy(words, 0, words, shift, words.length - shift);
+            Arrays.fill(words, 0, shift, 0L);
+            base -= (long) shift << 6;
+            low = 0;
+        }
+        int word = (int) ((sequence - base) >>> 6);
+        ensureCapacity(word + 1);
+        long bit = 1L << (sequence & 63);
+        if ((words[word] & bit) != 0) {
+            return false;
+        }
+        words[word] |= bit;
+        if (word < low) {
+            low = word;
+        }
+        size++;
+        return true;
+    }
+
+    boolean remove(long sequence) {
+        if (size == 0 || sequence < base || sequence - base >= (long) words.length << 6) {
+            return false;
+        }
+        int word = (int) ((sequence - base) >>> 6);
+        long bit = 1L << (sequence & 63);
+        if ((words[word] & bit) == 0) {
+            return false;
+        }
+        words[word] &= ~bit;
+        size--;
+        if (size == 0) {
+            Arrays.fill(words, 0L);
+            low = 0;
+        } else {
+            while (words[low] == 0) {
+                low++;
+            }
+            if (low > 8 && low > words.length >> 1) {
+                System.arraycopy(words, low, words, 0, words.length - low);
+                Arrays.fill(words, words.length - low, words.length, 0L);
+                base += (long) low << 6;
+                low = 0;
+            }
+        }
+        return true;
+    }
+
+    boolean contains(long sequence) {
+        if (size == 0 || sequence < base || sequence - base >= (long) words.length << 6) {
+            return false;
+        }
+        return (words[(int) ((sequence - base) >>> 6)] & (1L << (sequence & 63))) != 0;
+    }
+
+    /**
+     * @return the first sequence in the set at or after the given one, or -1.
+     */
+    long next(long sequence) {
+        if (size == 0) {
+            return -1;
+        }
+        int word;
+        long bits;
+        if (sequence < base + ((long) low << 6)) {
+            word = low;
+            bits = words[word];
+        } else {
+            long offset = sequence - base;
+            if (offset >= (long) words.length << 6) {
+                return -1;
+            }
+            word = (int) (offset >>> 6);
+            bits = words[word] & (-1L << (offset & 63));
+        }
+        while (bits == 0) {
+            if (++word == words.length) {
+                return -1;
+            }
+            bits = words[word];
+        }
+        return base + ((long) word << 6) + Long.numberOfTrailingZeros(bits);
+    }
+
+    int size() {
+        return size;
+    }
+
+    void clear() {
+        words = new long[2];
+        low = 0;
+        size = 0;
+    }
+
+    private void ensureCapacity(int length) {
+        if (length > words.length) {
+            long[] grown = new long[Math.max(length, words.length << 1)];
+            System.arraycopy(words, 0, grown, 0, words.length);
+            words = grown;
+        }
+    }
+}